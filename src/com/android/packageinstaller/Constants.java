@@ -33,6 +33,19 @@ public class Constants {
      */
     public static final int LOCATION_ACCESS_CHECK_JOB_ID = 1;
 
+    /**
+     * ID for the periodic job in
+     * {@link com.android.packageinstaller.permission.service.PermissionUsageStore}.
+     */
+    public static final int PERIODIC_PERMISSION_USAGE_STORE_JOB_ID = 2;
+
+    /**
+     * Name of the file containing the aggregated permission usages.
+     *
+     * @see com.android.packageinstaller.permission.service.PermissionUsageStore
+     */
+    public static final String PERMISSION_USAGE_STORE_FILE = "permission_usage_store";
+
     /**
      * Name of file to containing the packages we already showed a notificaiton for.
      *
@@ -41,6 +54,15 @@ public class Constants {
     public static final String LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE =
             "packages_already_notified_location_access";
 
+    /**
+     * Name of the append-only log containing the packages we already showed a notification for.
+     * Replaces {@link #LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE}.
+     *
+     * @see com.android.packageinstaller.permission.service.LocationAccessCheck
+     */
+    public static final String LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE =
+            "packages_already_notified_location_access.log";
+
     /**
      * ID for notification shown by
      * {@link com.android.packageinstaller.permission.service.LocationAccessCheck}.
@@ -80,6 +102,22 @@ public class Constants {
     public static final String KEY_LOCATION_ACCESS_CHECK_ENABLED_TIME =
             "location_access_check_enabled_time";
 
+    /**
+     * Keys in the generic shared preferences that store the progress of a
+     * {@link com.android.packageinstaller.permission.service.LocationAccessCheck} that did not
+     * finish in a single run of its job.
+     */
+    public static final String KEY_LOCATION_ACCESS_CHECK_PROGRESS_START_TIME =
+            "location_access_check_progress_start_time";
+    public static final String KEY_LOCATION_ACCESS_CHECK_PROGRESS_STAGE =
+            "location_access_check_progress_stage";
+    public static final String KEY_LOCATION_ACCESS_CHECK_PROGRESS_CURSOR =
+            "location_access_check_progress_cursor";
+    public static final String KEY_LOCATION_ACCESS_CHECK_PROGRESS_NUM_RUNS =
+            "location_access_check_progress_num_runs";
+    public static final String KEY_LOCATION_ACCESS_CHECK_PROGRESS_CANDIDATES =
+            "location_access_check_progress_candidates";
+
     /**
      * Key in the generic shared preferences that stores when the last notification was shown by
      * {@link com.android.packageinstaller.permission.service.LocationAccessCheck}
@@ -121,6 +159,18 @@ public class Constants {
     public static final String ASSISTANT_RECORD_AUDIO_IS_USER_SENSITIVE_KEY =
             "assistant_record_audio_is_user_sensitive_key";
 
+    /**
+     * Key prefix in the generic shared preferences that stores the uid of the assistant the user
+     * sensitivity of a user was last updated for. The key is suffixed with the user id.
+     */
+    public static final String USER_SENSITIVE_ASSISTANT_UID_KEY = "user_sensitive_assistant_uid:";
+
+    /**
+     * Key prefix in the generic shared preferences that stores when the user sensitivity of all
+     * packages of a user was last brought up to date. The key is suffixed with the user id.
+     */
+    public static final String USER_SENSITIVE_UPDATE_TIME_KEY = "user_sensitive_update_time:";
+
     /**
      * Name of file containing the permissions that should be restored, but have not been restored
      * yet.
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.incident;
+
+import android.content.Context;
+
+/**
+ * Runs updates one at a time.
+ *
+ * If an update is requested while another one is running, it is not run right away.  Instead
+ * one more update is run when the running one is done, no matter how many updates were
+ * requested in the meantime.  It uses the context of the last request and only the flags set
+ * by all of the requests.
+ */
+class CoalescingUpdater {
+    /**
+     * A single update.
+     */
+    interface Update {
+        /**
+         * Run the update.  Never called concurrently by the same updater.
+         */
+        void run(Context context, int flags);
+    }
+
+    private final Object mLock = new Object();
+
+    private final Update mUpdate;
+
+    /**
+     * Whether an update is running.
+     */
+    // @GuardedBy("mLock")
+    private boolean mIsUpdating;
+
+    /**
+     * Context of the update requested while another one was running, {@code null} if none.
+     */
+    // @GuardedBy("mLock")
+    private Context mPendingContext;
+
+    /**
+     * Flags of the update requested while another one was running.
+     */
+    // @GuardedBy("mLock")
+    private int mPendingFlags;
+
+    /**
+     * Constructor.
+     *
+     * @param update The update to run
+     */
+    CoalescingUpdater(Update update) {
+        mUpdate = update;
+    }
+
+    /**
+     * Run the update, or have the running update repeated once it is done.
+     */
+    void requestUpdate(Context context, int flags) {
+        synchronized (mLock) {
+            if (mIsUpdating) {
+                mPendingFlags = mPendingContext == null ? flags : mPendingFlags & flags;
+                mPendingContext = context;
+                return;
+            }
+            mIsUpdating = true;
+        }
+
+        boolean isFinished = false;
+        try {
+            while (!isFinished) {
+                mUpdate.run(context, flags);
+
+                synchronized (mLock) {
+                    if (mPendingContext == null) {
+                        mIsUpdating = false;
+                        isFinished = true;
+                    } else {
+                        context = mPendingContext;
+                        flags = mPendingFlags;
+                        mPendingContext = null;
+                    }
+                }
+            }
+        } finally {
+            if (!isFinished) {
+                // The update failed, don't block the next ones.
+                synchronized (mLock) {
+                    mIsUpdating = false;
+                    mPendingContext = null;
+                }
+            }
+        }
+    }
+}
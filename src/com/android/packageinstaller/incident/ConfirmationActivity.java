@@ -22,6 +22,8 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.res.Resources;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
@@ -31,6 +33,7 @@ import android.text.SpannableString;
 import android.text.style.BulletSpan;
 import android.util.Log;
 import android.view.View;
+import android.widget.HorizontalScrollView;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -38,6 +41,9 @@ import android.widget.TextView;
 import com.android.permissioncontroller.R;
 
 import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Confirmation dialog for approving an incident or bug report for sharing off the device.
@@ -45,6 +51,17 @@ import java.util.ArrayList;
 public class ConfirmationActivity extends Activity implements OnClickListener, OnDismissListener {
     private static final String TAG = "ConfirmationActivity";
 
+    /**
+     * Executor to decode the images on. Decoding is slow, hence it should not block the shared
+     * serial executor.
+     */
+    private static final ThreadPoolExecutor sDecodeExecutor = new ThreadPoolExecutor(2, 2, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        sDecodeExecutor.allowCoreThreadTimeOut(true);
+    }
+
     /**
      * Currently displaying activity.
      */
@@ -55,6 +72,22 @@ public class ConfirmationActivity extends Activity implements OnClickListener, O
      */
     private static Uri sCurrentUri;
 
+    /**
+     * The images to confirm, {@code null} until parsed.
+     */
+    private ArrayList<ReportDetails.ReportImage> mImages;
+
+    /**
+     * Views showing the images, only set if there are images.
+     */
+    private HorizontalScrollView mImageScrollView;
+    private LinearLayout mImageList;
+
+    /**
+     * Whether an image is currently being decoded, by index.
+     */
+    private boolean[] mIsDecoding;
+
     /**
      * If this activity is running in the current process, call finish() on it.
      */
@@ -165,24 +198,31 @@ public class ConfirmationActivity extends Activity implements OnClickListener, O
                     appLabel);
         ((TextView) content.findViewById(R.id.message)).setText(message);
 
-        final ArrayList<Drawable> images = details.getImages();
-        final int imagesSize = images.size();
+        mImages = details.getImages();
+        final int imagesSize = mImages.size();
         if (imagesSize > 0) {
-            content.findViewById(R.id.imageScrollView).setVisibility(View.VISIBLE);
+            mImageScrollView = (HorizontalScrollView) content.findViewById(R.id.imageScrollView);
+            mImageScrollView.setVisibility(View.VISIBLE);
 
-            final LinearLayout imageList = (LinearLayout) content.findViewById(R.id.imageList);
+            mImageList = (LinearLayout) content.findViewById(R.id.imageList);
+            mIsDecoding = new boolean[imagesSize];
 
             final int width = res.getDimensionPixelSize(R.dimen.incident_image_width);
             final int height = res.getDimensionPixelSize(R.dimen.incident_image_height);
 
             for (int i = 0; i < imagesSize; i++) {
-                final Drawable drawable = images.get(i);
                 final ImageView imageView = new ImageView(this);
-                imageView.setImageDrawable(images.get(i));
                 imageView.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
 
-                imageList.addView(imageView, new LinearLayout.LayoutParams(width, height));
+                mImageList.addView(imageView, new LinearLayout.LayoutParams(width, height));
             }
+
+            // Images are decoded once they are about to be shown
+            mImageScrollView.setOnScrollChangeListener(
+                    (v, scrollX, scrollY, oldScrollX, oldScrollY) -> updateDecodedImages());
+            mImageScrollView.addOnLayoutChangeListener(
+                    (v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom)
+                            -> updateDecodedImages());
         }
 
         new AlertDialog.Builder(this)
@@ -194,6 +234,50 @@ public class ConfirmationActivity extends Activity implements OnClickListener, O
                 .show();
     }
 
+    /**
+     * Decode the images that are visible or close to being visible and release the images that
+     * are far away.
+     */
+    private void updateDecodedImages() {
+        final int scrollX = mImageScrollView.getScrollX();
+        final int viewportWidth = mImageScrollView.getWidth();
+
+        // Keep one screen on each side decoded, so that images are ready when scrolled to
+        final int decodeStart = scrollX - viewportWidth - mImageList.getLeft();
+        final int decodeEnd = scrollX + 2 * viewportWidth - mImageList.getLeft();
+
+        final int imagesSize = mImageList.getChildCount();
+        for (int i = 0; i < imagesSize; i++) {
+            final ImageView imageView = (ImageView) mImageList.getChildAt(i);
+            final boolean shouldBeDecoded = imageView.getRight() >= decodeStart
+                    && imageView.getLeft() <= decodeEnd;
+
+            if (shouldBeDecoded) {
+                if (imageView.getDrawable() == null && !mIsDecoding[i]) {
+                    mIsDecoding[i] = true;
+
+                    final ReportDetails.ReportImage image = mImages.get(i);
+                    final int imageNum = i;
+                    sDecodeExecutor.execute(() -> {
+                        Drawable drawable = image.decode(getResources());
+                        if (drawable == null) {
+                            // Show nothing, but don't retry until the image is scrolled to again
+                            drawable = new ColorDrawable(Color.TRANSPARENT);
+                        }
+
+                        final Drawable finalDrawable = drawable;
+                        runOnUiThread(() -> {
+                            mIsDecoding[imageNum] = false;
+                            imageView.setImageDrawable(finalDrawable);
+                        });
+                    });
+                }
+            } else if (imageView.getDrawable() != null) {
+                imageView.setImageDrawable(null);
+            }
+        }
+    }
+
     /**
      * Activity lifecycle callback.  Now visible.
      */
@@ -17,23 +17,39 @@
 package com.android.packageinstaller.incident;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.util.ArrayMap;
 
 import com.android.packageinstaller.permission.utils.Utils;
 
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.Locale;
 
 /**
  * Utility class for formatting the incident report confirmations.
  */
 public class Formatting {
+    private static final Object sLock = new Object();
+
+    /**
+     * package name -> label of the package.  Shared by all instances as a new one is created for
+     * every update of the pending list.
+     */
+    // @GuardedBy("sLock")
+    private static final ArrayMap<String, CachedLabel> sLabels = new ArrayMap<>();
+
     private final Context mContext;
     private final PackageManager mPm;
     private final DateFormat mDateFormat;
     private final DateFormat mTimeFormat;
 
+    /**
+     * Reused for formatting, hence instances of this class must not be shared between threads.
+     */
+    private final Date mDate = new Date();
+
     /**
      * Constructor.  This object keeps the context.
      */
@@ -47,28 +63,93 @@ public class Formatting {
     /**
      * Get the name to show the user for an application, given the package name.
      * If the application can't be found, returns null.
+     *
+     * Loading the label requires the resources of the application, so labels are cached until
+     * the application is updated or the locale changes.
      */
     String getAppLabel(String pkg) {
-        ApplicationInfo app;
+        final PackageInfo info;
         try {
-            app = mPm.getApplicationInfo(pkg, 0);
+            info = mPm.getPackageInfo(pkg, 0);
         } catch (PackageManager.NameNotFoundException ex) {
+            synchronized (sLock) {
+                sLabels.remove(pkg);
+            }
             return null;
         }
-        return Utils.getAppLabel(app, mContext);
+
+        final Locale locale = mContext.getResources().getConfiguration().getLocales().get(0);
+        synchronized (sLock) {
+            final CachedLabel cached = sLabels.get(pkg);
+            if (cached != null && cached.isValidFor(info, locale)) {
+                return cached.label;
+            }
+        }
+
+        final String label = Utils.getAppLabel(info.applicationInfo, mContext);
+        synchronized (sLock) {
+            sLabels.put(pkg, new CachedLabel(info, locale, label));
+        }
+        return label;
     }
 
     /**
      * Format the date portion of a {@link System.currentTimeMillis} as a user-visible string.
      */
     String getDate(long wallTimeMs) {
-        return mDateFormat.format(new Date(wallTimeMs));
+        mDate.setTime(wallTimeMs);
+        return mDateFormat.format(mDate);
     }
 
     /**
      * Format the time portion of a {@link System.currentTimeMillis} as a user-visible string.
      */
     String getTime(long wallTimeMs) {
-        return mTimeFormat.format(new Date(wallTimeMs));
+        mDate.setTime(wallTimeMs);
+        return mTimeFormat.format(mDate);
+    }
+
+    /**
+     * The label of a certain version of a package.
+     */
+    private static class CachedLabel {
+        /**
+         * Constructor.
+         */
+        CachedLabel(PackageInfo info, Locale l, String lbl) {
+            this.versionCode = info.getLongVersionCode();
+            this.lastUpdateTime = info.lastUpdateTime;
+            this.locale = l;
+            this.label = lbl;
+        }
+
+        /**
+         * The version of the package the label was loaded from.
+         */
+        public final long versionCode;
+
+        /**
+         * When the package was updated.  Catches reinstalls with the same version.
+         */
+        public final long lastUpdateTime;
+
+        /**
+         * The locale the label was loaded in.
+         */
+        public final Locale locale;
+
+        /**
+         * The label.
+         */
+        public final String label;
+
+        /**
+         * Whether the label is still the one of the package.
+         */
+        boolean isValidFor(PackageInfo info, Locale l) {
+            return versionCode == info.getLongVersionCode()
+                    && lastUpdateTime == info.lastUpdateTime
+                    && locale.equals(l);
+        }
     }
 }
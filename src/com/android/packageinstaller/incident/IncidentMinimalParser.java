@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.incident;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an {@link IncidentMinimal} from an incident report.
+ *
+ * <p>{@link IncidentMinimal#parseFrom} keeps all fields it does not know as unknown fields, i.e.
+ * it reads the whole, potentially huge, report into memory. This parser walks the report and only
+ * reads the fields that are needed to confirm the report. All other sections are skipped in the
+ * stream.
+ */
+final class IncidentMinimalParser {
+    private IncidentMinimalParser() {
+    }
+
+    /**
+     * Parse the fields of {@link IncidentMinimal} from an incident report.
+     *
+     * @param stream The incident report
+     *
+     * @return The parsed fields
+     *
+     * @throws IOException if the report cannot be read or is malformed
+     */
+    static IncidentMinimal parse(InputStream stream) throws IOException {
+        final CodedInputStream input = CodedInputStream.newInstance(stream);
+        // Incident reports can be larger than the default limit, the limit does not matter as
+        // sections are skipped
+        input.setSizeLimit(Integer.MAX_VALUE);
+
+        final IncidentMinimal.Builder incident = IncidentMinimal.newBuilder();
+        RestrictedImagesDumpProto.Builder imagesSection = null;
+
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+
+            if (isLengthDelimited(tag, IncidentMinimal.HEADER_FIELD_NUMBER)) {
+                final int oldLimit = pushMessage(input);
+                incident.addHeader(parseHeader(input));
+                input.popLimit(oldLimit);
+            } else if (isLengthDelimited(tag,
+                    IncidentMinimal.RESTRICTED_IMAGES_SECTION_FIELD_NUMBER)) {
+                if (imagesSection == null) {
+                    imagesSection = RestrictedImagesDumpProto.newBuilder();
+                }
+
+                // The section might appear multiple times, in which case the sets are merged
+                final int oldLimit = pushMessage(input);
+                parseImagesSection(input, imagesSection);
+                input.popLimit(oldLimit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+
+        if (imagesSection != null) {
+            incident.setRestrictedImagesSection(imagesSection);
+        }
+
+        return incident.build();
+    }
+
+    private static IncidentHeaderProto parseHeader(CodedInputStream input) throws IOException {
+        final IncidentHeaderProto.Builder header = IncidentHeaderProto.newBuilder();
+
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+
+            if (isLengthDelimited(tag, IncidentHeaderProto.REASON_FIELD_NUMBER)) {
+                header.setReason(input.readString());
+            } else {
+                input.skipField(tag);
+            }
+        }
+
+        return header.build();
+    }
+
+    private static void parseImagesSection(CodedInputStream input,
+            RestrictedImagesDumpProto.Builder section) throws IOException {
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+
+            if (isLengthDelimited(tag, RestrictedImagesDumpProto.SETS_FIELD_NUMBER)) {
+                final int oldLimit = pushMessage(input);
+                section.addSets(parseImageSet(input));
+                input.popLimit(oldLimit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+    }
+
+    private static RestrictedImageSetProto parseImageSet(CodedInputStream input)
+            throws IOException {
+        final RestrictedImageSetProto.Builder set = RestrictedImageSetProto.newBuilder();
+
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+
+            // The category and metadata of the set are not shown, hence skipped
+            if (isLengthDelimited(tag, RestrictedImageSetProto.IMAGES_FIELD_NUMBER)) {
+                final int oldLimit = pushMessage(input);
+                set.addImages(parseImage(input));
+                input.popLimit(oldLimit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+
+        return set.build();
+    }
+
+    private static RestrictedImageProto parseImage(CodedInputStream input) throws IOException {
+        final RestrictedImageProto.Builder image = RestrictedImageProto.newBuilder();
+
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+
+            // The metadata of the image is not shown, hence skipped
+            if (isLengthDelimited(tag, RestrictedImageProto.MIME_TYPE_FIELD_NUMBER)) {
+                image.setMimeType(input.readString());
+            } else if (isLengthDelimited(tag, RestrictedImageProto.IMAGE_DATA_FIELD_NUMBER)) {
+                image.setImageData(input.readBytes());
+            } else {
+                input.skipField(tag);
+            }
+        }
+
+        return image.build();
+    }
+
+    /**
+     * Check if a tag starts a length delimited field (message, string or bytes).
+     *
+     * @param tag The tag read
+     * @param fieldNumber The field number expected
+     *
+     * @return {@code true} iff the tag is for the field and the field is length delimited
+     */
+    private static boolean isLengthDelimited(int tag, int fieldNumber) {
+        return WireFormat.getTagFieldNumber(tag) == fieldNumber
+                && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+
+    /**
+     * Limit the input to the length delimited field that starts at the current position.
+     *
+     * @return The previous limit, to be passed to {@link CodedInputStream#popLimit}
+     */
+    private static int pushMessage(CodedInputStream input) throws IOException {
+        return input.pushLimit(input.readRawVarint32());
+    }
+}
@@ -24,17 +24,20 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.IncidentManager;
+import android.service.notification.StatusBarNotification;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 
 import com.android.packageinstaller.Constants;
 import com.android.permissioncontroller.R;
 
+import java.text.CollationKey;
 import java.text.Collator;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -56,20 +59,49 @@ class PendingList {
             "com.android.packageinstaller.incident.PendingList";
 
     /**
-     * Key for the list of currently showing notifications.
+     * Key for the list of showing notifications written by previous versions.  Only the uris were
+     * stored, so these notifications are re-posted once if they are still pending.
      */
     private static final String SHARED_PREFS_KEY_NOTIFICATIONS = "notifications";
 
+    /**
+     * Key for the list of currently showing notifications.  Each entry is the state of the
+     * notification followed by the uri, see {@link Updater#getNotificationState}.
+     */
+    private static final String SHARED_PREFS_KEY_POSTED_NOTIFICATIONS = "posted_notifications";
+
+    /**
+     * State of a notification that is unknown, so it never matches the state of a report.
+     */
+    private static final String UNKNOWN_STATE = "";
+
     /**
      * Singleton instance.
      */
     private static final PendingList sInstance = new PendingList();
 
     /**
-     * Date format that will sort lexicographical, so we can have our notifications sorted.
+     * Number of hex digits of a sort key, enough for any long.
+     */
+    private static final int SORT_KEY_LENGTH = 16;
+
+    /**
+     * Runs the updates one at a time.
+     */
+    private final CoalescingUpdater mUpdater = new CoalescingUpdater(
+            (context, flags) -> (new Updater(context, flags)).updateState());
+
+    /**
+     * uri -> state of the notification currently showing for the report.  Loaded from the
+     * shared preferences on the first update.  Only accessed by the running update.
+     */
+    private ArrayMap<String, String> mPostedNotifications;
+
+    /**
+     * Name the notification channel was last created with, {@code null} if not created yet.
+     * Only accessed by the running update.
      */
-    private static final SimpleDateFormat sDateFormatter =
-            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private String mChannelName;
 
     /**
      * List of currently pending records.
@@ -78,9 +110,10 @@ class PendingList {
         /**
          * Constructor.
          */
-        Rec(IncidentManager.PendingReport r, String l) {
+        Rec(IncidentManager.PendingReport r, String l, CollationKey k) {
             this.report = r;
             this.label = l;
+            this.labelSortKey = k;
         }
 
         /**
@@ -92,17 +125,23 @@ class PendingList {
          * The user-visible name of the entry.
          */
         public final String label;
+
+        /**
+         * The key to sort by label, so the label is not collated again for every comparison.
+         */
+        public final CollationKey labelSortKey;
     }
 
     /**
      * Class to update the state.  Holds the Context, and other system services for
      * the duration of the update.
      */
-    private static class Updater {
+    private class Updater {
         private final Context mContext;
         private final int mFlags;
         private final NotificationManager mNm;
         private final Formatting mFormatting;
+        private final Locale mLocale;
         private Collator mCollator;
 
         /**
@@ -113,8 +152,8 @@ class PendingList {
             mFlags = flags;
             mNm = context.getSystemService(NotificationManager.class);
             mFormatting = new Formatting(context);
-            mCollator = Collator.getInstance(
-                context.getResources().getConfiguration().getLocales().get(0));
+            mLocale = context.getResources().getConfiguration().getLocales().get(0);
+            mCollator = Collator.getInstance(mLocale);
         }
 
         /**
@@ -125,19 +164,11 @@ class PendingList {
                     mContext.getSystemService(IncidentManager.class);
             final List<IncidentManager.PendingReport> reports = incidentManager.getPendingReports();
 
-            // Load whatever we previously displayed.  This may result in some spurious
-            // cancel calls across reboots... but that's not an actual problem.
+            // Load whatever we previously displayed.
             final SharedPreferences prefs = mContext.getSharedPreferences(SHARED_PREFS_NAME,
                     Context.MODE_PRIVATE);
-            final Set<String> prevNotifications =
-                    prefs.getStringSet(SHARED_PREFS_KEY_NOTIFICATIONS, null);
-            final ArraySet<String> remainingNotifications = new ArraySet<String>();
-            if (prevNotifications != null) {
-                for (final String s: prevNotifications) {
-                    remainingNotifications.add(s);
-                }
-            }
-            final ArraySet<String> currentNotifications = new ArraySet<String>();
+            final ArrayMap<String, String> prevNotifications = getPostedNotifications(prefs);
+            final ArrayMap<String, String> currentNotifications = new ArrayMap<String, String>();
 
             // Load everything we will need for display
             final List<Rec> recs = new ArrayList();
@@ -152,7 +183,7 @@ class PendingList {
                     continue;
                 }
 
-                recs.add(new Rec(report, label));
+                recs.add(new Rec(report, label, mCollator.getCollationKey(label)));
             }
 
             // Sort by timestamp, then by label name (for a stable ordering, with the assumption
@@ -160,22 +191,25 @@ class PendingList {
             recs.sort((a, b) -> {
                 long val = a.report.getTimestamp() - b.report.getTimestamp();
                 if (val == 0) {
-                    return mCollator.compare(a.label, b.label);
+                    return a.labelSortKey.compareTo(b.labelSortKey);
                 } else {
                     return val < 0 ? -1 : 1;
                 }
             });
 
-            // Collect what we are going to do.
+            // Collect what we are going to do.  Only notifications that are new or would look
+            // different are posted, re-posting the others would make them flicker.
             Rec firstDialog = null;
             final List<Rec> notificationRecs = new ArrayList();
             final int notificationCount = recs.size();
             for (int i = 0; i < notificationCount; i++) {
                 final Rec rec = recs.get(i);
-                notificationRecs.add(rec);
                 final String uri = rec.report.getUri().toString();
-                remainingNotifications.remove(uri);
-                currentNotifications.add(uri);
+                final String state = getNotificationState(rec);
+                if (!state.equals(prevNotifications.get(uri))) {
+                    notificationRecs.add(rec);
+                }
+                currentNotifications.put(uri, state);
                 if ((rec.report.getFlags() & IncidentManager.FLAG_CONFIRMATION_DIALOG) != 0) {
                     if (firstDialog == null) {
                         firstDialog = rec;
@@ -183,9 +217,18 @@ class PendingList {
                 }
             }
 
+            final ArraySet<String> remainingNotifications = new ArraySet<String>();
+            final int prevCount = prevNotifications.size();
+            for (int i = 0; i < prevCount; i++) {
+                final String uri = prevNotifications.keyAt(i);
+                if (!currentNotifications.containsKey(uri)) {
+                    remainingNotifications.add(uri);
+                }
+            }
+
             if (false) {
                 Log.d(TAG, "PermissionController pending list plan ... {");
-                Log.d(TAG, "  showing {");
+                Log.d(TAG, "  posting {");
                 for (int i = 0; i < notificationRecs.size(); i++) {
                     Log.d(TAG, "    [" + i + "] " + notificationRecs.get(i).report.getUri());
                 }
@@ -227,15 +270,93 @@ class PendingList {
             }
 
             // Save this list, so we know what we did for next time.
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putStringSet(SHARED_PREFS_KEY_NOTIFICATIONS, currentNotifications);
-            editor.apply();
+            mPostedNotifications = currentNotifications;
+            if (!notificationRecs.isEmpty() || !remainingNotifications.isEmpty()) {
+                final int currentCount = currentNotifications.size();
+                final ArraySet<String> entries = new ArraySet<String>(currentCount);
+                for (int i = 0; i < currentCount; i++) {
+                    entries.add(currentNotifications.valueAt(i) + ":"
+                            + currentNotifications.keyAt(i));
+                }
+
+                final SharedPreferences.Editor editor = prefs.edit();
+                editor.putStringSet(SHARED_PREFS_KEY_POSTED_NOTIFICATIONS, entries);
+                editor.remove(SHARED_PREFS_KEY_NOTIFICATIONS);
+                editor.apply();
+            }
+        }
+
+        /**
+         * Get the notifications that are currently showing.
+         *
+         * @return uri -> state of the notification for the report
+         */
+        private ArrayMap<String, String> getPostedNotifications(SharedPreferences prefs) {
+            if (mPostedNotifications != null) {
+                return mPostedNotifications;
+            }
+
+            final ArrayMap<String, String> posted = new ArrayMap<String, String>();
+            final Set<String> entries =
+                    prefs.getStringSet(SHARED_PREFS_KEY_POSTED_NOTIFICATIONS, null);
+            if (entries != null) {
+                for (final String entry: entries) {
+                    // The uri comes last as it contains ':' itself
+                    final String[] parts = entry.split(":", 3);
+                    if (parts.length == 3) {
+                        posted.put(parts[2], parts[0] + ":" + parts[1]);
+                    }
+                }
+            }
+            final Set<String> legacyEntries = prefs.getStringSet(SHARED_PREFS_KEY_NOTIFICATIONS,
+                    null);
+            if (legacyEntries != null) {
+                for (final String uri: legacyEntries) {
+                    if (!posted.containsKey(uri)) {
+                        posted.put(uri, UNKNOWN_STATE);
+                    }
+                }
+            }
+
+            // Notifications don't survive a reboot, the shared preferences do.  Re-post
+            // everything that is not actually showing anymore.
+            final ArraySet<String> activeTags = new ArraySet<String>();
+            for (final StatusBarNotification sbn: mNm.getActiveNotifications()) {
+                if (sbn.getId() == Constants.INCIDENT_NOTIFICATION_ID && sbn.getTag() != null) {
+                    activeTags.add(sbn.getTag());
+                }
+            }
+            final int postedCount = posted.size();
+            for (int i = 0; i < postedCount; i++) {
+                if (!activeTags.contains(posted.keyAt(i))) {
+                    posted.setValueAt(i, UNKNOWN_STATE);
+                }
+            }
+
+            mPostedNotifications = posted;
+            return posted;
+        }
+
+        /**
+         * Get the state of the notification for a Rec.  If the state changes, the notification
+         * has to be re-posted.
+         *
+         * The state is "<timestamp>:<hash of the label and locale>" and never contains the
+         * {@link #UNKNOWN_STATE}.
+         */
+        private String getNotificationState(Rec rec) {
+            return rec.report.getTimestamp() + ":"
+                    + Integer.toHexString(Objects.hash(rec.label, mLocale));
         }
 
         /**
-         * Show the list of notifications and cancel any unneeded ones.
+         * Show the list of new or changed notifications.
          */
         private void showNotifications(List<Rec> recs) {
+            if (recs.isEmpty()) {
+                return;
+            }
+
             createNotificationChannel();
 
             final int recCount = recs.size();
@@ -281,22 +402,38 @@ class PendingList {
          * Create the notification channel for {@link #NOTIFICATION_CHANNEL_ID}.
          */
         private void createNotificationChannel() {
+            // The channel only needs to be updated if its name changed with the locale
+            final String name = mContext.getString(R.string.incident_report_channel_name);
+            if (name.equals(mChannelName)) {
+                return;
+            }
+
             final NotificationChannel channel = new NotificationChannel(
-                    Constants.INCIDENT_NOTIFICATION_CHANNEL_ID,
-                    mContext.getString(R.string.incident_report_channel_name),
+                    Constants.INCIDENT_NOTIFICATION_CHANNEL_ID, name,
                     NotificationManager.IMPORTANCE_DEFAULT);
 
             // TODO: Not in SystemApi, so we can't use it.
             // channel.setBlockableSystem(true);
 
             mNm.createNotificationChannel(channel);
+            mChannelName = name;
         }
 
         /**
          * Get the sort key for the order of our notifications.
+         *
+         * The key is the timestamp as a fixed-width hex string, so it sorts lexicographical in
+         * the order of the timestamps.  The sign bit is flipped so that negative timestamps sort
+         * first.
          */
         private String getSortKey(long timestamp) {
-            return sDateFormatter.format(new Date(timestamp));
+            long value = timestamp ^ Long.MIN_VALUE;
+            final char[] key = new char[SORT_KEY_LENGTH];
+            for (int i = SORT_KEY_LENGTH - 1; i >= 0; i--) {
+                key[i] = Character.forDigit((int) (value & 0xf), 16);
+                value >>>= 4;
+            }
+            return new String(key);
         }
 
         /**
@@ -329,8 +466,12 @@ class PendingList {
 
     /**
      * Update the notifications and dialog to reflect the current state of affairs.
+     *
+     * Only one update runs at a time, see {@link CoalescingUpdater}.  As the dialog is only
+     * suppressed for updates coming from the notification handling, an update repeated for
+     * several requests only suppresses it if all of them did.
      */
     public void updateState(Context context, int flags) {
-        (new Updater(context, flags)).updateState();
+        mUpdater.requestUpdate(context, flags);
     }
 }
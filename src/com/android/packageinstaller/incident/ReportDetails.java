@@ -18,13 +18,17 @@ package com.android.packageinstaller.incident;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.IncidentManager;
+import android.util.Log;
 
+import com.android.permissioncontroller.R;
 import com.google.protobuf.ByteString;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -35,8 +39,16 @@ import java.util.ArrayList;
 public class ReportDetails {
     private static final String TAG = "ReportDetails";
 
+    /**
+     * Limit for the sum of the pixels of all images once they are downscaled to the thumbnail
+     * size. Even though images are only decoded when shown, this bounds the memory needed in
+     * the worst case. As every image is charged at least a thumbnail, this also bounds the
+     * number of image views.
+     */
+    private static final long TOTAL_THUMBNAIL_PIXELS_LIMIT = 16 * 1024 * 1024;
+
     private ArrayList<String> mReasons = new ArrayList<String>();
-    private ArrayList<Drawable> mImages = new ArrayList<Drawable>();
+    private ArrayList<ReportImage> mImages = new ArrayList<ReportImage>();
 
     /**
      * Thrown when there is an error parsing the incident report.  Incident reports
@@ -76,7 +88,7 @@ public class ReportDetails {
 
             final InputStream stream = report.getInputStream();
             if (stream != null) {
-                final IncidentMinimal incident = IncidentMinimal.parseFrom(stream);
+                final IncidentMinimal incident = IncidentMinimalParser.parse(stream);
                 if (incident != null) {
                     parseImages(details.mImages, incident, context.getResources());
                     parseReasons(details.mReasons, incident);
@@ -110,12 +122,16 @@ public class ReportDetails {
     /**
      * Read images from the IncidentMinimal.
      *
+     * <p>Only the bounds of the images are decoded. The images are decoded when they are shown.
+     *
      * @throw ParseException if there was an error reading them.
      */
-    private static void parseImages(ArrayList<Drawable> result, IncidentMinimal incident,
+    private static void parseImages(ArrayList<ReportImage> result, IncidentMinimal incident,
             Resources res) throws ParseException {
-        final int totalImageCountLimit = 200;
-        int totalImageCount = 0;
+        final int thumbnailWidth = res.getDimensionPixelSize(R.dimen.incident_image_width);
+        final int thumbnailHeight = res.getDimensionPixelSize(R.dimen.incident_image_height);
+        final long thumbnailPixels = (long) thumbnailWidth * thumbnailHeight;
+        long totalThumbnailPixels = 0;
 
         if (incident.hasRestrictedImagesSection()) {
             final RestrictedImagesDumpProto section = incident.getRestrictedImagesSection();
@@ -127,13 +143,6 @@ public class ReportDetails {
                 }
                 final int imageCount = set.getImagesCount();
                 for (int j = 0; j < imageCount; j++) {
-                    // Hard cap on number of images, as a guardrail.
-                    totalImageCount++;
-                    if (totalImageCount > totalImageCountLimit) {
-                        throw new ParseException("Image count is greater than the limit of "
-                                + totalImageCountLimit);
-                    }
-
                     final RestrictedImageProto image = set.getImages(j);
                     if (image == null) {
                         continue;
@@ -144,23 +153,22 @@ public class ReportDetails {
                         throw new ParseException("Unsupported image type " + mimeType);
                     }
                     final ByteString bytes = image.getImageData();
-                    if (bytes == null) {
-                        continue;
-                    }
-                    final byte[] buf = bytes.toByteArray();
-                    if (buf.length == 0) {
+                    if (bytes == null || bytes.isEmpty()) {
                         continue;
                     }
 
-                    // This will attempt to uncompress the image. If it's gigantic,
-                    // this could fail with OutOfMemoryError, which will be caught
-                    // by the caller, and turned into a report rejection.
-                    final Drawable drawable = new android.graphics.drawable.BitmapDrawable(
-                            res, new ByteArrayInputStream(buf));
+                    final ReportImage reportImage = ReportImage.parse(bytes, thumbnailWidth,
+                            thumbnailHeight);
 
-                    // TODO: Scale bitmap to correct thumbnail size to save memory.
+                    // Hard cap on the memory needed for the images, as a guardrail. Each image
+                    // occupies at least a thumbnail sized view, however small it is.
+                    totalThumbnailPixels += Math.max(reportImage.getPixelCount(), thumbnailPixels);
+                    if (totalThumbnailPixels > TOTAL_THUMBNAIL_PIXELS_LIMIT) {
+                        throw new ParseException("Images are larger than the limit of "
+                                + TOTAL_THUMBNAIL_PIXELS_LIMIT + " pixels");
+                    }
 
-                    result.add(drawable);
+                    result.add(reportImage);
                 }
             }
         }
@@ -177,7 +185,90 @@ public class ReportDetails {
     /**
      * Images that must be approved by the user.
      */
-    public ArrayList<Drawable> getImages() {
+    public ArrayList<ReportImage> getImages() {
         return mImages;
     }
+
+    /**
+     * An image of an incident report, downscaled to the size it is shown at.
+     *
+     * <p>The image is kept encoded and only decoded via {@link #decode} when it is shown.
+     */
+    public static class ReportImage {
+        private final ByteString mData;
+        private final int mSampleSize;
+        private final int mWidth;
+        private final int mHeight;
+
+        private ReportImage(ByteString data, int sampleSize, int width, int height) {
+            mData = data;
+            mSampleSize = sampleSize;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /**
+         * Read the bounds of an encoded image and compute how much it can be downscaled.
+         *
+         * @param data The encoded image
+         * @param thumbnailWidth The width the image is shown at
+         * @param thumbnailHeight The height the image is shown at
+         *
+         * @throw ParseException if the image cannot be decoded
+         */
+        static ReportImage parse(ByteString data, int thumbnailWidth, int thumbnailHeight)
+                throws ParseException {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(data.newInput(), null, options);
+
+            final int width = options.outWidth;
+            final int height = options.outHeight;
+            if (width <= 0 || height <= 0) {
+                throw new ParseException("Cannot decode image");
+            }
+
+            // The image is scaled to fit into the thumbnail. Use the largest power of two sample
+            // size that still keeps the image at least as large as it is shown.
+            final float scale = Math.min((float) thumbnailWidth / width,
+                    (float) thumbnailHeight / height);
+            int sampleSize = 1;
+            while (sampleSize * 2 * scale <= 1) {
+                sampleSize *= 2;
+            }
+
+            return new ReportImage(data, sampleSize, (width + sampleSize - 1) / sampleSize,
+                    (height + sampleSize - 1) / sampleSize);
+        }
+
+        /**
+         * @return The number of pixels of the downscaled image
+         */
+        long getPixelCount() {
+            return (long) mWidth * mHeight;
+        }
+
+        /**
+         * Decode the downscaled image.
+         *
+         * @return The image or {@code null} if it could not be decoded
+         */
+        public Drawable decode(Resources res) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mSampleSize;
+
+            final Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeStream(mData.newInput(), null, options);
+            } catch (OutOfMemoryError ex) {
+                Log.w(TAG, "Out of memory while decoding image", ex);
+                return null;
+            }
+            if (bitmap == null) {
+                return null;
+            }
+
+            return new BitmapDrawable(res, bitmap);
+        }
+    }
 }
@@ -34,9 +34,10 @@ import android.util.SparseArray;
 
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
 
 import com.android.packageinstaller.AsyncTaskLiveData;
-import com.android.packageinstaller.permission.utils.ArrayUtils;
+import com.android.packageinstaller.permission.model.LauncherPackages;
 import com.android.packageinstaller.permission.utils.Utils;
 
 import java.util.List;
@@ -59,6 +60,12 @@ public class PerUserUidToSensitivityLiveData extends
     private final BroadcastReceiver mPackageMonitor = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            // The launcher packages might not have received this broadcast yet
+            if (intent.getData() != null) {
+                LauncherPackages.get(mContext).invalidate(mUser,
+                        intent.getData().getSchemeSpecificPart());
+            }
+
             loadValue();
         }
     };
@@ -111,7 +118,8 @@ public class PerUserUidToSensitivityLiveData extends
         PackageManager pm = mContext.getPackageManager();
         List<PackageInfo> pkgs = pm.getInstalledPackages(PackageManager.GET_PERMISSIONS);
         Set<String> platformPerms = Utils.getPlatformPermissions();
-        ArraySet<String> pkgsWithLauncherIcon = Utils.getLauncherPackages(mContext);
+        ArraySet<String> pkgsWithLauncherIcon = LauncherPackages.get(mContext)
+                .getLauncherPackages(mUser, pkgs);
 
         // uid -> permission -> flags
         SparseArray<ArrayMap<String, Integer>> uidsPermissions = new SparseArray<>();
@@ -120,67 +128,132 @@ public class PerUserUidToSensitivityLiveData extends
         int numPkgs = pkgs.size();
         for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
             PackageInfo pkg = pkgs.get(pkgNum);
-            boolean pkgHasLauncherIcon = pkgsWithLauncherIcon.contains(pkg.packageName);
-            boolean pkgIsSystemApp = (pkg.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
-
-            // permission -> flags
-            ArrayMap<String, Integer> uidPermissions = uidsPermissions.get(pkg.applicationInfo.uid);
-            if (uidPermissions == null) {
-                uidPermissions = new ArrayMap<>();
-                uidsPermissions.put(pkg.applicationInfo.uid, uidPermissions);
+
+            addPackageSensitivity(pm, pkg, pkgsWithLauncherIcon.contains(pkg.packageName),
+                    platformPerms, uidsPermissions);
+        }
+
+        return uidsPermissions;
+    }
+
+    /**
+     * Compute the user sensitivity of only some uids of the user.
+     *
+     * <p>Same as {@link #loadValueInBackground()}, but only the packages sharing one of the
+     * {@code uids} are looked at. This is much cheaper than a full computation when only a few
+     * packages changed.
+     *
+     * @param uids The uids to compute the user sensitivity for
+     *
+     * @return uid -> permission -> flags for all of the {@code uids} that still have packages
+     */
+    @WorkerThread
+    public @NonNull SparseArray<ArrayMap<String, Integer>> loadUidsInBackground(
+            @NonNull int[] uids) {
+        PackageManager pm = mContext.getPackageManager();
+        Set<String> platformPerms = Utils.getPlatformPermissions();
+
+        // uid -> permission -> flags
+        SparseArray<ArrayMap<String, Integer>> uidsPermissions = new SparseArray<>();
+
+        for (int uid : uids) {
+            String[] uidPkgs = pm.getPackagesForUid(uid);
+            if (uidPkgs == null) {
+                continue;
             }
 
-            for (String perm : platformPerms) {
-                if (!ArrayUtils.contains(pkg.requestedPermissions, perm)) {
+            for (String pkgName : uidPkgs) {
+                PackageInfo pkg;
+                try {
+                    pkg = pm.getPackageInfo(pkgName, PackageManager.GET_PERMISSIONS);
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Package got uninstalled in the meantime
                     continue;
                 }
 
-                /*
-                 * Permissions are considered user sensitive for a package, when
-                 * - the package has a launcher icon, or
-                 * - the permission is not pre-granted, or
-                 * - the package is not a system app (i.e. not preinstalled)
-                 *
-                 * If two packages share a UID there can be two cases:
-                 * - for well known UIDs: if the permission for any package is non-user sensitive,
-                 *                        it is non-sensitive. I.e. prefer to hide
-                 * - for non system UIDs: if the permission for any package is user sensitive, it is
-                 *                        user sensitive. I.e. prefer to show
-                 */
-                Integer previousFlagsInt = uidPermissions.get(perm);
-                int previousFlags;
-                if (pkg.applicationInfo.uid < Process.FIRST_APPLICATION_UID) {
-                    previousFlags = previousFlagsInt == null
-                            ? FLAGS_ALWAYS_USER_SENSITIVE
-                            : previousFlagsInt;
-                } else {
-                    previousFlags = previousFlagsInt == null ? 0 : previousFlagsInt;
-                }
+                addPackageSensitivity(pm, pkg,
+                        LauncherPackages.get(mContext).hasLauncherIcon(mUser, pkg), platformPerms,
+                        uidsPermissions);
+            }
+        }
 
-                int flags;
-                if (pkgIsSystemApp && !pkgHasLauncherIcon) {
-                    boolean permGrantedByDefault = (pm.getPermissionFlags(perm, pkg.packageName,
-                            mUser) & PackageManager.FLAG_PERMISSION_GRANTED_BY_DEFAULT) != 0;
+        return uidsPermissions;
+    }
 
-                    if (permGrantedByDefault) {
-                        flags = 0;
-                    } else {
-                        flags = PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED;
-                    }
-                } else {
-                    flags = FLAGS_ALWAYS_USER_SENSITIVE;
-                }
+    /**
+     * Merge the user sensitivity of the platform permissions requested by a package into the
+     * sensitivity of its uid.
+     *
+     * @param pm The package manager of the user
+     * @param pkg The package to add
+     * @param pkgHasLauncherIcon {@code true} iff the package has a launcher icon
+     * @param platformPerms All platform permissions
+     * @param uidsPermissions uid -> permission -> flags to merge into
+     */
+    private void addPackageSensitivity(@NonNull PackageManager pm, @NonNull PackageInfo pkg,
+            boolean pkgHasLauncherIcon, @NonNull Set<String> platformPerms,
+            @NonNull SparseArray<ArrayMap<String, Integer>> uidsPermissions) {
+        boolean pkgIsSystemApp = (pkg.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
 
-                if (pkg.applicationInfo.uid < Process.FIRST_APPLICATION_UID) {
-                    flags &= previousFlags;
+        // permission -> flags
+        ArrayMap<String, Integer> uidPermissions = uidsPermissions.get(pkg.applicationInfo.uid);
+        if (uidPermissions == null) {
+            uidPermissions = new ArrayMap<>();
+            uidsPermissions.put(pkg.applicationInfo.uid, uidPermissions);
+        }
+
+        if (pkg.requestedPermissions == null) {
+            return;
+        }
+
+        for (String perm : pkg.requestedPermissions) {
+            if (!platformPerms.contains(perm)) {
+                continue;
+            }
+
+            /*
+             * Permissions are considered user sensitive for a package, when
+             * - the package has a launcher icon, or
+             * - the permission is not pre-granted, or
+             * - the package is not a system app (i.e. not preinstalled)
+             *
+             * If two packages share a UID there can be two cases:
+             * - for well known UIDs: if the permission for any package is non-user sensitive,
+             *                        it is non-sensitive. I.e. prefer to hide
+             * - for non system UIDs: if the permission for any package is user sensitive, it is
+             *                        user sensitive. I.e. prefer to show
+             */
+            Integer previousFlagsInt = uidPermissions.get(perm);
+            int previousFlags;
+            if (pkg.applicationInfo.uid < Process.FIRST_APPLICATION_UID) {
+                previousFlags = previousFlagsInt == null
+                        ? FLAGS_ALWAYS_USER_SENSITIVE
+                        : previousFlagsInt;
+            } else {
+                previousFlags = previousFlagsInt == null ? 0 : previousFlagsInt;
+            }
+
+            int flags;
+            if (pkgIsSystemApp && !pkgHasLauncherIcon) {
+                boolean permGrantedByDefault = (pm.getPermissionFlags(perm, pkg.packageName,
+                        mUser) & PackageManager.FLAG_PERMISSION_GRANTED_BY_DEFAULT) != 0;
+
+                if (permGrantedByDefault) {
+                    flags = 0;
                 } else {
-                    flags |= previousFlags;
+                    flags = PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED;
                 }
+            } else {
+                flags = FLAGS_ALWAYS_USER_SENSITIVE;
+            }
 
-                uidPermissions.put(perm, flags);
+            if (pkg.applicationInfo.uid < Process.FIRST_APPLICATION_UID) {
+                flags &= previousFlags;
+            } else {
+                flags |= previousFlags;
             }
-        }
 
-        return uidsPermissions;
+            uidPermissions.put(perm, flags);
+        }
     }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.model;
+
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Caches the raw app-op modes of apps.
+ *
+ * <p>The modes of the ops of runtime permissions are read for every package while building
+ * {@link AppPermissionGroup}s, e.g. once per group when counting or backing up the permissions of
+ * all apps. This snapshot makes sure each mode is only read once. As this app runs per user, the
+ * snapshot only holds the apps of the current user and its profiles.
+ *
+ * <p>The modes are kept as a compact table of (uid, package) -> op index -> mode. A mode is
+ * dropped whenever the system reports a change of the op for the package and when the mode is
+ * changed by this app.
+ *
+ * <p>The modes are loaded on first use as {@link AppOpsManager#getPackagesForOps} only returns the
+ * package modes, not the uid modes set via {@link AppOpsManager#setUidMode} that
+ * {@link AppOpsManager#unsafeCheckOpRaw} returns.
+ */
+public final class AppOpsSnapshot {
+    /** Marker for modes not in the table */
+    private static final int MODE_UNKNOWN = -1;
+
+    private static final Object sLock = new Object();
+
+    // @GuardedBy("sLock")
+    private static AppOpsSnapshot sInstance;
+
+    private final @NonNull AppOpsManager mAppOpsManager;
+
+    private final Object mLock = new Object();
+
+    /** op -> index of the op in the mode arrays, ops are watched once they have an index */
+    // @GuardedBy("mLock")
+    private final ArrayMap<String, Integer> mOpIndices = new ArrayMap<>();
+
+    /** uid -> package -> op index -> mode */
+    // @GuardedBy("mLock")
+    private final SparseArray<ArrayMap<String, int[]>> mModes = new SparseArray<>();
+
+    /**
+     * Incremented on every invalidation. Modes read while an invalidation happened are not
+     * cached.
+     */
+    // @GuardedBy("mLock")
+    private long mNumInvalidations;
+
+    private final @NonNull AppOpsManager.OnOpChangedListener mOpChangedListener =
+            this::invalidate;
+
+    /**
+     * Get the snapshot.
+     *
+     * @param context A context of this app
+     *
+     * @return The snapshot shared in this process
+     */
+    public static @NonNull AppOpsSnapshot get(@NonNull Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new AppOpsSnapshot(context.getApplicationContext());
+            }
+
+            return sInstance;
+        }
+    }
+
+    private AppOpsSnapshot(@NonNull Context context) {
+        mAppOpsManager = context.getSystemService(AppOpsManager.class);
+    }
+
+    /**
+     * Get the {@link AppOpsManager#unsafeCheckOpRaw raw mode} of an op of a package.
+     *
+     * @param op The op
+     * @param uid The uid of the package
+     * @param packageName The package
+     *
+     * @return The mode of the op
+     */
+    public int getMode(@NonNull String op, int uid, @NonNull String packageName) {
+        long numInvalidationsBeforeRead;
+        int opIndex;
+        synchronized (mLock) {
+            numInvalidationsBeforeRead = mNumInvalidations;
+            opIndex = getOpIndexLocked(op);
+
+            ArrayMap<String, int[]> uidModes = mModes.get(uid);
+            if (uidModes != null) {
+                int[] pkgModes = uidModes.get(packageName);
+                if (pkgModes != null && opIndex < pkgModes.length
+                        && pkgModes[opIndex] != MODE_UNKNOWN) {
+                    return pkgModes[opIndex];
+                }
+            }
+        }
+
+        int mode = mAppOpsManager.unsafeCheckOpRaw(op, uid, packageName);
+
+        synchronized (mLock) {
+            if (mNumInvalidations != numInvalidationsBeforeRead) {
+                return mode;
+            }
+
+            ArrayMap<String, int[]> uidModes = mModes.get(uid);
+            if (uidModes == null) {
+                uidModes = new ArrayMap<>(1);
+                mModes.put(uid, uidModes);
+            }
+
+            int[] pkgModes = uidModes.get(packageName);
+            if (pkgModes == null || opIndex >= pkgModes.length) {
+                int oldLength = pkgModes == null ? 0 : pkgModes.length;
+                pkgModes = pkgModes == null ? new int[mOpIndices.size()]
+                        : Arrays.copyOf(pkgModes, mOpIndices.size());
+                Arrays.fill(pkgModes, oldLength, pkgModes.length, MODE_UNKNOWN);
+                uidModes.put(packageName, pkgModes);
+            }
+            pkgModes[opIndex] = mode;
+        }
+
+        return mode;
+    }
+
+    /**
+     * Set the mode of an op of a uid and drop the cached modes of the op for the uid.
+     *
+     * @param op The op
+     * @param uid The uid
+     * @param mode The new mode
+     *
+     * @see AppOpsManager#setUidMode
+     */
+    public void setUidMode(@NonNull String op, int uid, int mode) {
+        mAppOpsManager.setUidMode(op, uid, mode);
+
+        // If the mode is the default mode the uid mode is removed and the package modes apply
+        // again, hence the new modes are not known.
+        synchronized (mLock) {
+            Integer opIndex = mOpIndices.get(op);
+            ArrayMap<String, int[]> uidModes = mModes.get(uid);
+            if (opIndex != null && uidModes != null) {
+                int numPkgs = uidModes.size();
+                for (int i = 0; i < numPkgs; i++) {
+                    int[] pkgModes = uidModes.valueAt(i);
+                    if (opIndex < pkgModes.length) {
+                        pkgModes[opIndex] = MODE_UNKNOWN;
+                    }
+                }
+            }
+            mNumInvalidations++;
+        }
+    }
+
+    /**
+     * Drop the cached mode of an op of a package.
+     *
+     * <p>Called by the system for every package of a uid if the uid mode changes.
+     *
+     * @param op The op that changed
+     * @param packageName The package the op changed for
+     */
+    private void invalidate(@NonNull String op, @NonNull String packageName) {
+        synchronized (mLock) {
+            Integer opIndex = mOpIndices.get(op);
+            if (opIndex != null) {
+                // The user of the package is not reported, hence drop the mode for all uids
+                int numUids = mModes.size();
+                for (int i = 0; i < numUids; i++) {
+                    int[] pkgModes = mModes.valueAt(i).get(packageName);
+                    if (pkgModes != null && opIndex < pkgModes.length) {
+                        pkgModes[opIndex] = MODE_UNKNOWN;
+                    }
+                }
+            }
+            mNumInvalidations++;
+        }
+    }
+
+    /**
+     * Get the index of an op in the mode arrays. Start watching the op if it was not used before.
+     */
+    // @GuardedBy("mLock")
+    private int getOpIndexLocked(@NonNull String op) {
+        Integer opIndex = mOpIndices.get(op);
+        if (opIndex == null) {
+            opIndex = mOpIndices.size();
+            mOpIndices.put(op, opIndex);
+
+            mAppOpsManager.startWatchingMode(op, null, mOpChangedListener);
+        }
+
+        return opIndex;
+    }
+}
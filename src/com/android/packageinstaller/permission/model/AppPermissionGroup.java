@@ -22,7 +22,6 @@ import static android.app.AppOpsManager.MODE_ALLOWED;
 import static android.app.AppOpsManager.MODE_FOREGROUND;
 import static android.app.AppOpsManager.MODE_IGNORED;
 import static android.app.AppOpsManager.OPSTR_LEGACY_STORAGE;
-import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 
 import android.app.ActivityManager;
 import android.app.AppOpsManager;
@@ -35,7 +34,7 @@ import android.content.pm.PermissionGroupInfo;
 import android.content.pm.PermissionInfo;
 import android.os.Build;
 import android.os.UserHandle;
-import android.permission.PermissionManager;
+import android.permission.PermissionManager.SplitPermissionInfo;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
@@ -44,13 +43,16 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 
+import com.android.packageinstaller.permission.model.PermissionChangeDispatcher.PermissionChanges;
 import com.android.packageinstaller.permission.service.LocationAccessCheck;
 import com.android.packageinstaller.permission.utils.ArrayUtils;
 import com.android.packageinstaller.permission.utils.LocationUtils;
 import com.android.packageinstaller.permission.utils.SoftRestrictedPermissionPolicy;
+import com.android.packageinstaller.permission.utils.SplitPermissions;
 import com.android.packageinstaller.permission.utils.Utils;
 import com.android.permissioncontroller.R;
 
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.List;
@@ -73,12 +75,22 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
 
     private static final String KILL_REASON_APP_OP_CHANGE = "Permission related app op changed";
 
+    /** The permission flags {@link #persistChanges} writes */
+    private static final int PERSISTED_FLAGS_MASK = PackageManager.FLAG_PERMISSION_USER_SET
+            | PackageManager.FLAG_PERMISSION_USER_FIXED
+            | PackageManager.FLAG_PERMISSION_REVOKE_ON_UPGRADE
+            | PackageManager.FLAG_PERMISSION_POLICY_FIXED
+            | PackageManager.FLAG_PERMISSION_REVIEW_REQUIRED;
+
     private final Context mContext;
     private final UserHandle mUserHandle;
     private final PackageManager mPackageManager;
     private final AppOpsManager mAppOps;
+    private final AppOpsSnapshot mAppOpsSnapshot;
     private final ActivityManager mActivityManager;
     private final Collator mCollator;
+    /** Key to sort by {@link #mLabel}, created on first use */
+    private CollationKey mLabelSortKey;
 
     private final PackageInfo mPackageInfo;
     private final String mName;
@@ -222,6 +234,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
         }
 
         AppOpsManager appOpsManager = context.getSystemService(AppOpsManager.class);
+        AppOpsSnapshot appOpsSnapshot = AppOpsSnapshot.get(context);
 
         AppPermissionGroup group = new AppPermissionGroup(context, packageInfo, groupInfo.name,
                 groupInfo.packageName, groupLabel, fullGroupLabel,
@@ -277,8 +290,8 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             if (appOp == null) {
                 appOpAllowed = false;
             } else {
-                int appOpsMode = appOpsManager.unsafeCheckOpRaw(appOp,
-                        packageInfo.applicationInfo.uid, packageName);
+                int appOpsMode = appOpsSnapshot.getMode(appOp, packageInfo.applicationInfo.uid,
+                        packageName);
                 appOpAllowed = appOpsMode == MODE_ALLOWED || appOpsMode == MODE_FOREGROUND;
             }
 
@@ -316,10 +329,11 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
                     // the foregound permission's appOp. Hence we can only set it once we know the
                     // matching foreground permission.
                     // @see #allowAppOp
-                    if (context.getSystemService(AppOpsManager.class).unsafeCheckOpRaw(
-                            permission.getAppOp(), packageInfo.applicationInfo.uid,
-                            packageInfo.packageName) == MODE_ALLOWED) {
+                    if (appOpsSnapshot.getMode(permission.getAppOp(),
+                            packageInfo.applicationInfo.uid, packageInfo.packageName)
+                            == MODE_ALLOWED) {
                         backgroundPermission.setAppOpAllowed(true);
+                        backgroundPermission.markPersisted();
                     }
                 }
             }
@@ -399,6 +413,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
         mAppSupportsRuntimePermissions = targetSDK > Build.VERSION_CODES.LOLLIPOP_MR1;
         mIsEphemeralApp = packageInfo.applicationInfo.isInstantApp();
         mAppOps = appOpsManager;
+        mAppOpsSnapshot = AppOpsSnapshot.get(context);
         mActivityManager = context.getSystemService(ActivityManager.class);
         mDeclaringPackage = declaringPackage;
         mName = name;
@@ -672,17 +687,17 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
      * @return {@code true} iff app-op was changed
      */
     private boolean setAppOpMode(@NonNull String op, int uid, int mode) {
-        int currentMode = mAppOps.unsafeCheckOpRaw(op, uid, mPackageInfo.packageName);
+        int currentMode = mAppOpsSnapshot.getMode(op, uid, mPackageInfo.packageName);
         if (currentMode == mode) {
             return false;
         }
 
-        mAppOps.setUidMode(op, uid, mode);
+        mAppOpsSnapshot.setUidMode(op, uid, mode);
         return true;
     }
 
     /**
-     * Allow the app op for a permission/uid.
+     * Collect the app-op modes that allow the app op for a permission.
      *
      * <p>There are three cases:
      * <dl>
@@ -701,13 +716,10 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
      * </dl>
      *
      * @param permission The permission which has an appOps that should be allowed
-     * @param uid        The uid of the process the app op if for
-     *
-     * @return {@code true} iff app-op was changed
+     * @param appOpModes Collects the new modes: app op -> mode
      */
-    private boolean allowAppOp(Permission permission, int uid) {
-        boolean wasChanged = false;
-
+    private void allowAppOp(Permission permission,
+            @NonNull ArrayMap<String, Integer> appOpModes) {
         if (permission.isBackgroundPermission()) {
             ArrayList<Permission> foregroundPermissions = permission.getForegroundPermissions();
 
@@ -715,7 +727,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             for (int i = 0; i < numForegroundPermissions; i++) {
                 Permission foregroundPermission = foregroundPermissions.get(i);
                 if (foregroundPermission.isAppOpAllowed()) {
-                    wasChanged |= setAppOpMode(foregroundPermission.getAppOp(), uid, MODE_ALLOWED);
+                    appOpModes.put(foregroundPermission.getAppOp(), MODE_ALLOWED);
                 }
             }
         } else {
@@ -726,20 +738,18 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
                     // The app requested a permission that has a background permission but it did
                     // not request the background permission, hence it can never get background
                     // access
-                    wasChanged = setAppOpMode(permission.getAppOp(), uid, MODE_FOREGROUND);
+                    appOpModes.put(permission.getAppOp(), MODE_FOREGROUND);
                 } else {
                     if (backgroundPermission.isAppOpAllowed()) {
-                        wasChanged = setAppOpMode(permission.getAppOp(), uid, MODE_ALLOWED);
+                        appOpModes.put(permission.getAppOp(), MODE_ALLOWED);
                     } else {
-                        wasChanged = setAppOpMode(permission.getAppOp(), uid, MODE_FOREGROUND);
+                        appOpModes.put(permission.getAppOp(), MODE_FOREGROUND);
                     }
                 }
             } else {
-                wasChanged = setAppOpMode(permission.getAppOp(), uid, MODE_ALLOWED);
+                appOpModes.put(permission.getAppOp(), MODE_ALLOWED);
             }
         }
-
-        return wasChanged;
     }
 
     /**
@@ -890,7 +900,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
     }
 
     /**
-     * Disallow the app op for a permission/uid.
+     * Collect the app-op modes that disallow the app op for a permission.
      *
      * <p>There are three cases:
      * <dl>
@@ -904,13 +914,10 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
      * </dl>
      *
      * @param permission The permission which has an appOps that should be disallowed
-     * @param uid        The uid of the process the app op if for
-     *
-     * @return {@code true} iff app-op was changed
+     * @param appOpModes Collects the new modes: app op -> mode
      */
-    private boolean disallowAppOp(Permission permission, int uid) {
-        boolean wasChanged = false;
-
+    private void disallowAppOp(Permission permission,
+            @NonNull ArrayMap<String, Integer> appOpModes) {
         if (permission.isBackgroundPermission()) {
             ArrayList<Permission> foregroundPermissions = permission.getForegroundPermissions();
 
@@ -918,15 +925,12 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
             for (int i = 0; i < numForegroundPermissions; i++) {
                 Permission foregroundPermission = foregroundPermissions.get(i);
                 if (foregroundPermission.isAppOpAllowed()) {
-                    wasChanged |= setAppOpMode(foregroundPermission.getAppOp(), uid,
-                            MODE_FOREGROUND);
+                    appOpModes.put(foregroundPermission.getAppOp(), MODE_FOREGROUND);
                 }
             }
         } else {
-            wasChanged = setAppOpMode(permission.getAppOp(), uid, MODE_IGNORED);
+            appOpModes.put(permission.getAppOp(), MODE_IGNORED);
         }
-
-        return wasChanged;
     }
 
     /**
@@ -1159,7 +1163,7 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
 
     @Override
     public int compareTo(AppPermissionGroup another) {
-        final int result = mCollator.compare(mLabel.toString(), another.mLabel.toString());
+        final int result = getLabelSortKey().compareTo(another.getLabelSortKey());
         if (result == 0) {
             // Unbadged before badged.
             return mPackageInfo.applicationInfo.uid
@@ -1168,6 +1172,13 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
         return result;
     }
 
+    private @NonNull CollationKey getLabelSortKey() {
+        if (mLabelSortKey == null) {
+            mLabelSortKey = mCollator.getCollationKey(mLabel.toString());
+        }
+        return mLabelSortKey;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == null || !(o instanceof AppPermissionGroup)) {
@@ -1219,70 +1230,271 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
      *                                     caller has to make sure to kill the app if needed.
      */
     void persistChanges(boolean mayKillBecauseOfAppOpsChange) {
-        int uid = mPackageInfo.applicationInfo.uid;
+        writeChanges(takeChanges(), mayKillBecauseOfAppOpsChange);
+    }
 
-        int numPermissions = mPermissions.size();
-        boolean shouldKillApp = false;
+    /**
+     * Collect the writes needed to persist the changes to this group and mark the permissions
+     * as persisted.
+     *
+     * <p>Does not call into the platform. The writes can then be {@link #writeChanges written}
+     * on another thread while this group is changed further.
+     *
+     * @return The writes to persist the changes
+     */
+    @NonNull PendingWrites takeChanges() {
+        PendingWrites writes = new PendingWrites();
 
+        int numPermissions = mPermissions.size();
         for (int i = 0; i < numPermissions; i++) {
             Permission permission = mPermissions.valueAt(i);
 
-            if (!permission.isSystemFixed()) {
+            if (!permission.isSystemFixed() && permission.isGrantedChanged()) {
                 if (permission.isGranted()) {
-                    mPackageManager.grantRuntimePermission(mPackageInfo.packageName,
-                            permission.getName(), mUserHandle);
-                } else {
-                    boolean isCurrentlyGranted = mContext.checkPermission(permission.getName(), -1,
-                            uid) == PERMISSION_GRANTED;
-
-                    if (isCurrentlyGranted) {
-                        mPackageManager.revokeRuntimePermission(mPackageInfo.packageName,
-                                permission.getName(), mUserHandle);
-                    }
+                    writes.mGrantedPermissions.add(permission.getName());
+                } else if (permission.wasGrantedWhenPersisted()) {
+                    writes.mRevokedPermissions.add(permission.getName());
                 }
             }
 
-            int flags = (permission.isUserSet() ? PackageManager.FLAG_PERMISSION_USER_SET : 0)
-                    | (permission.isUserFixed() ? PackageManager.FLAG_PERMISSION_USER_FIXED : 0)
-                    | (permission.shouldRevokeOnUpgrade()
-                    ? PackageManager.FLAG_PERMISSION_REVOKE_ON_UPGRADE : 0)
-                    | (permission.isPolicyFixed() ? PackageManager.FLAG_PERMISSION_POLICY_FIXED : 0)
-                    | (permission.isReviewRequired()
-                    ? PackageManager.FLAG_PERMISSION_REVIEW_REQUIRED : 0);
-
-            mPackageManager.updatePermissionFlags(permission.getName(),
-                    mPackageInfo.packageName,
-                    PackageManager.FLAG_PERMISSION_USER_SET
-                            | PackageManager.FLAG_PERMISSION_USER_FIXED
-                            | PackageManager.FLAG_PERMISSION_REVOKE_ON_UPGRADE
-                            | PackageManager.FLAG_PERMISSION_POLICY_FIXED
-                            | PackageManager.FLAG_PERMISSION_REVIEW_REQUIRED,
-                    flags, mUserHandle);
-
-            if (permission.affectsAppOp()) {
+            if (permission.areFlagsChanged(PERSISTED_FLAGS_MASK)) {
+                int flags = (permission.isUserSet() ? PackageManager.FLAG_PERMISSION_USER_SET : 0)
+                        | (permission.isUserFixed() ? PackageManager.FLAG_PERMISSION_USER_FIXED : 0)
+                        | (permission.shouldRevokeOnUpgrade()
+                        ? PackageManager.FLAG_PERMISSION_REVOKE_ON_UPGRADE : 0)
+                        | (permission.isPolicyFixed()
+                        ? PackageManager.FLAG_PERMISSION_POLICY_FIXED : 0)
+                        | (permission.isReviewRequired()
+                        ? PackageManager.FLAG_PERMISSION_REVIEW_REQUIRED : 0);
+
+                writes.mFlags.put(permission.getName(), flags);
+            }
+
+            if (permission.affectsAppOp() && isAppOpChanged(permission)) {
                 if (!permission.isSystemFixed()) {
                     // Enabling/Disabling an app op may put the app in a situation in which it has
                     // a handle to state it shouldn't have, so we have to kill the app. This matches
                     // the revoke runtime permission behavior.
                     if (permission.isAppOpAllowed()) {
-                        shouldKillApp |= allowAppOp(permission, uid);
+                        allowAppOp(permission, writes.mAppOpModes);
                     } else {
-                        shouldKillApp |= disallowAppOp(permission, uid);
+                        disallowAppOp(permission, writes.mAppOpModes);
                     }
                 }
             }
         }
 
+        // Only mark the permissions as persisted once all of them are collected as the app-op
+        // state of a permission depends on the state of its linked foreground/background
+        // permissions.
+        for (int i = 0; i < numPermissions; i++) {
+            mPermissions.valueAt(i).markPersisted();
+        }
+
+        writes.mTriggerLocationAccessCheck = mTriggerLocationAccessCheckOnPersist;
+        mTriggerLocationAccessCheckOnPersist = false;
+
+        return writes;
+    }
+
+    /**
+     * Write changes {@link #takeChanges taken} from this group to the platform.
+     *
+     * <p>Does not access the permissions of this group, hence this can run on another thread
+     * while the group is changed.
+     *
+     * @param writes The writes to execute
+     * @param mayKillBecauseOfAppOpsChange If the app these permissions belong to may be killed if
+     *                                     app ops change. If this is set to {@code false} the
+     *                                     caller has to make sure to kill the app if needed.
+     */
+    void writeChanges(@NonNull PendingWrites writes, boolean mayKillBecauseOfAppOpsChange) {
+        int uid = mPackageInfo.applicationInfo.uid;
+
+        int numGranted = writes.mGrantedPermissions.size();
+        for (int i = 0; i < numGranted; i++) {
+            mPackageManager.grantRuntimePermission(mPackageInfo.packageName,
+                    writes.mGrantedPermissions.get(i), mUserHandle);
+        }
+
+        int numRevoked = writes.mRevokedPermissions.size();
+        for (int i = 0; i < numRevoked; i++) {
+            mPackageManager.revokeRuntimePermission(mPackageInfo.packageName,
+                    writes.mRevokedPermissions.get(i), mUserHandle);
+        }
+
+        int numFlags = writes.mFlags.size();
+        for (int i = 0; i < numFlags; i++) {
+            mPackageManager.updatePermissionFlags(writes.mFlags.keyAt(i),
+                    mPackageInfo.packageName, PERSISTED_FLAGS_MASK, writes.mFlags.valueAt(i),
+                    mUserHandle);
+        }
+
+        boolean shouldKillApp = false;
+        int numAppOps = writes.mAppOpModes.size();
+        for (int i = 0; i < numAppOps; i++) {
+            shouldKillApp |= setAppOpMode(writes.mAppOpModes.keyAt(i), uid,
+                    writes.mAppOpModes.valueAt(i));
+        }
+
         if (mayKillBecauseOfAppOpsChange && shouldKillApp) {
             killApp(KILL_REASON_APP_OP_CHANGE);
         }
 
-        if (mTriggerLocationAccessCheckOnPersist) {
+        if (writes.mTriggerLocationAccessCheck) {
             new LocationAccessCheck(mContext, null).checkLocationAccessSoon();
-            mTriggerLocationAccessCheckOnPersist = false;
         }
     }
 
+    /**
+     * Apply permission changes delivered by the {@link PermissionChangeDispatcher} instead of
+     * loading the group again.
+     *
+     * <p>The flags are only updated if the listener asked for the flags of the permissions of
+     * this group, see {@link #getAllPermissionNames}. The app-ops of the group are read again as
+     * the platform changes them together with the permissions. Changes of this group that were
+     * not persisted yet are overridden.
+     *
+     * @param changes The changes of the uid of the app
+     *
+     * @return {@code true} iff any permission of the group or its background group changed
+     */
+    public boolean applyPermissionChanges(@NonNull PermissionChanges changes) {
+        boolean isChanged = applyPermissionChangesToPermissions(changes);
+        if (mBackgroundPermissions != null) {
+            isChanged |= mBackgroundPermissions.applyPermissionChangesToPermissions(changes);
+        }
+
+        if (!isChanged) {
+            return false;
+        }
+
+        // The app-op state of a background permission depends on its foreground permissions,
+        // hence the state of the foreground permissions has to be read first
+        readAppOpsAllowed();
+        if (mBackgroundPermissions != null) {
+            mBackgroundPermissions.readAppOpsAllowed();
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The names of the permissions of this group and its background group
+     */
+    public @NonNull String[] getAllPermissionNames() {
+        int numPermissions = mPermissions.size();
+        int numBackgroundPermissions = mBackgroundPermissions == null ? 0
+                : mBackgroundPermissions.mPermissions.size();
+
+        String[] names = new String[numPermissions + numBackgroundPermissions];
+        for (int i = 0; i < numPermissions; i++) {
+            names[i] = mPermissions.keyAt(i);
+        }
+        for (int i = 0; i < numBackgroundPermissions; i++) {
+            names[numPermissions + i] = mBackgroundPermissions.mPermissions.keyAt(i);
+        }
+
+        return names;
+    }
+
+    /**
+     * Set the grant states and flags of the changed permissions of this group.
+     *
+     * @return {@code true} iff any permission changed
+     */
+    private boolean applyPermissionChangesToPermissions(@NonNull PermissionChanges changes) {
+        boolean isChanged = false;
+
+        int numPermissions = mPermissions.size();
+        for (int i = 0; i < numPermissions; i++) {
+            Permission permission = mPermissions.valueAt(i);
+            if (!changes.isChanged(permission.getName())) {
+                continue;
+            }
+
+            permission.setGranted(changes.isGranted(permission.getName()));
+            Integer flags = changes.getPermissionFlags(permission.getName());
+            if (flags != null) {
+                permission.setFlags(flags);
+            }
+            isChanged = true;
+        }
+
+        return isChanged;
+    }
+
+    /**
+     * Read the app-op states of the permissions of this group the same way {@link #create} does
+     * and mark the permissions as persisted.
+     */
+    private void readAppOpsAllowed() {
+        int uid = mPackageInfo.applicationInfo.uid;
+
+        int numPermissions = mPermissions.size();
+        for (int i = 0; i < numPermissions; i++) {
+            Permission permission = mPermissions.valueAt(i);
+
+            boolean appOpAllowed = false;
+            if (permission.getAppOp() != null) {
+                int appOpsMode = mAppOpsSnapshot.getMode(permission.getAppOp(), uid,
+                        mPackageInfo.packageName);
+                appOpAllowed = appOpsMode == MODE_ALLOWED || appOpsMode == MODE_FOREGROUND;
+            }
+
+            if (permission.isBackgroundPermission()) {
+                ArrayList<Permission> foregroundPermissions =
+                        permission.getForegroundPermissions();
+
+                int numForegroundPermissions = foregroundPermissions.size();
+                for (int fgNum = 0; fgNum < numForegroundPermissions; fgNum++) {
+                    Permission foregroundPermission = foregroundPermissions.get(fgNum);
+
+                    if (foregroundPermission.getAppOp() != null
+                            && mAppOpsSnapshot.getMode(foregroundPermission.getAppOp(), uid,
+                            mPackageInfo.packageName) == MODE_ALLOWED) {
+                        appOpAllowed = true;
+                    }
+                }
+            }
+
+            permission.setAppOpAllowed(appOpAllowed);
+            permission.markPersisted();
+        }
+    }
+
+    /**
+     * Check if the app-op a permission affects needs to be written.
+     *
+     * <p>The app-op of a foreground permission also depends on the state of its background
+     * permission and vice versa.
+     *
+     * @param permission The permission that affects an app-op
+     *
+     * @return {@code true} iff the app-op state of the permission or of a linked permission
+     * changed since it was last persisted
+     */
+    private static boolean isAppOpChanged(@NonNull Permission permission) {
+        if (permission.isAppOpAllowedChanged()) {
+            return true;
+        }
+
+        if (permission.isBackgroundPermission()) {
+            ArrayList<Permission> foregroundPermissions = permission.getForegroundPermissions();
+
+            int numForegroundPermissions = foregroundPermissions.size();
+            for (int i = 0; i < numForegroundPermissions; i++) {
+                if (foregroundPermissions.get(i).isAppOpAllowedChanged()) {
+                    return true;
+                }
+            }
+        } else if (permission.getBackgroundPermission() != null) {
+            return permission.getBackgroundPermission().isAppOpAllowedChanged();
+        }
+
+        return false;
+    }
+
     /**
      * Check if permission group contains a runtime permission that split from an installed
      * permission and the split happened in an Android version higher than app's targetSdk.
@@ -1290,13 +1502,31 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
      * @return {@code true} if there is such permission, {@code false} otherwise
      */
     public boolean hasInstallToRuntimeSplit() {
-        PermissionManager permissionManager =
-                (PermissionManager) mContext.getSystemService(PermissionManager.class);
+        List<SplitPermissionInfo> splitPerms = SplitPermissions.get(mContext)
+                .getSplitPermissions();
 
-        int numSplitPerms = permissionManager.getSplitPermissions().size();
+        int numSplitPerms = splitPerms.size();
         for (int splitPermNum = 0; splitPermNum < numSplitPerms; splitPermNum++) {
-            PermissionManager.SplitPermissionInfo spi =
-                    permissionManager.getSplitPermissions().get(splitPermNum);
+            SplitPermissionInfo spi = splitPerms.get(splitPermNum);
+
+            // Check the cheap conditions first to avoid looking up permission infos
+            if (mPackageInfo.applicationInfo.targetSdkVersion >= spi.getTargetSdk()) {
+                continue;
+            }
+
+            List<String> newPerms = spi.getNewPermissions();
+            int numNewPerms = newPerms.size();
+            boolean hasAnyNewPerm = false;
+            for (int newPermNum = 0; newPermNum < numNewPerms; newPermNum++) {
+                if (hasPermission(newPerms.get(newPermNum))) {
+                    hasAnyNewPerm = true;
+                    break;
+                }
+            }
+            if (!hasAnyNewPerm) {
+                continue;
+            }
+
             String splitPerm = spi.getSplitPermission();
 
             PermissionInfo pi;
@@ -1312,8 +1542,6 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
                 continue;
             }
 
-            List<String> newPerms = spi.getNewPermissions();
-            int numNewPerms = newPerms.size();
             for (int newPermNum = 0; newPermNum < numNewPerms; newPermNum++) {
                 String newPerm = newPerms.get(newPermNum);
 
@@ -1329,15 +1557,33 @@ public final class AppPermissionGroup implements Comparable<AppPermissionGroup>
                 }
 
                 // Skip if new permission is not "runtime" permission.
-                if (pi.getProtection() != pi.PROTECTION_DANGEROUS) {
-                    continue;
-                }
-
-                if (mPackageInfo.applicationInfo.targetSdkVersion < spi.getTargetSdk()) {
+                if (pi.getProtection() == pi.PROTECTION_DANGEROUS) {
                     return true;
                 }
             }
         }
         return false;
     }
+
+    /**
+     * The platform writes needed to persist the changes of a group, see {@link #takeChanges}.
+     *
+     * <p>Holds copies of the state to write, not the permissions of the group.
+     */
+    static final class PendingWrites {
+        /** Permissions to grant */
+        final ArrayList<String> mGrantedPermissions = new ArrayList<>();
+
+        /** Permissions to revoke */
+        final ArrayList<String> mRevokedPermissions = new ArrayList<>();
+
+        /** permission -> new value of the {@link #PERSISTED_FLAGS_MASK persisted flags} */
+        final ArrayMap<String, Integer> mFlags = new ArrayMap<>();
+
+        /** app op -> new mode */
+        final ArrayMap<String, Integer> mAppOpModes = new ArrayMap<>();
+
+        /** If a location access check should be triggered once written */
+        boolean mTriggerLocationAccessCheck;
+    }
 }
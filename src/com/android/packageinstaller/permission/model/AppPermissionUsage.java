@@ -21,15 +21,18 @@ import android.app.AppOpsManager.HistoricalOp;
 import android.app.AppOpsManager.HistoricalPackageOps;
 import android.app.AppOpsManager.OpEntry;
 import android.app.AppOpsManager.PackageOps;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.android.packageinstaller.permission.model.PermissionApps.PermissionApp;
+import com.android.packageinstaller.permission.service.PermissionUsageStore.Usage;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 /**
  * Stats for permission usage of an app. This data is for a given time period,
@@ -41,15 +44,41 @@ public final class AppPermissionUsage {
 
     private AppPermissionUsage(@NonNull PermissionApp permissionApp,
             @NonNull List<AppPermissionGroup> groups, @Nullable PackageOps lastUsage,
-            @Nullable HistoricalPackageOps historicalUsage) {
+            @Nullable HistoricalPackageOps historicalUsage,
+            @Nullable ArrayMap<String, Usage> storedUsages) {
         mPermissionApp = permissionApp;
+        // The index is shared by all groups of the app
+        final ArrayMap<String, OpEntry> lastUsageByOp = indexByOp(lastUsage);
         final int groupCount = groups.size();
         for (int i = 0; i < groupCount; i++) {
             final AppPermissionGroup group = groups.get(i);
-            mGroupUsages.add(new GroupUsage(group, lastUsage, historicalUsage));
+            mGroupUsages.add(new GroupUsage(group, lastUsage, lastUsageByOp, historicalUsage,
+                    storedUsages == null ? null : storedUsages.get(group.getName())));
         }
     }
 
+    /**
+     * Index the last usages of a package by op.
+     *
+     * @param lastUsage The last usages of the package
+     *
+     * @return op -> last usage of the op, {@code null} if {@code lastUsage} is {@code null}
+     */
+    private static @Nullable ArrayMap<String, OpEntry> indexByOp(@Nullable PackageOps lastUsage) {
+        if (lastUsage == null) {
+            return null;
+        }
+
+        final List<OpEntry> ops = lastUsage.getOps();
+        final int opCount = ops.size();
+        final ArrayMap<String, OpEntry> lastUsageByOp = new ArrayMap<>(opCount);
+        for (int i = 0; i < opCount; i++) {
+            final OpEntry op = ops.get(i);
+            lastUsageByOp.put(op.getOpStr(), op);
+        }
+        return lastUsageByOp;
+    }
+
     public @NonNull PermissionApp getApp() {
         return mPermissionApp;
     }
@@ -95,11 +124,43 @@ public final class AppPermissionUsage {
         private final @Nullable PackageOps mLastUsage;
         private final @Nullable HistoricalPackageOps mHistoricalUsage;
 
+        /**
+         * The usage of the group read from the
+         * {@link com.android.packageinstaller.permission.service.PermissionUsageStore store}, adds
+         * to {@link #mHistoricalUsage}
+         */
+        private final @Nullable Usage mStoredUsage;
+
+        /** op -> last usage of the op, {@code null} iff {@link #mLastUsage} is {@code null} */
+        private final @Nullable ArrayMap<String, OpEntry> mLastUsageByOp;
+
+        /** The distinct ops of the permissions of the group */
+        private final @NonNull String[] mOpNames;
+
         GroupUsage(@NonNull AppPermissionGroup group, @Nullable PackageOps lastUsage,
                 @Nullable HistoricalPackageOps historicalUsage) {
+            this(group, lastUsage, indexByOp(lastUsage), historicalUsage, null);
+        }
+
+        private GroupUsage(@NonNull AppPermissionGroup group, @Nullable PackageOps lastUsage,
+                @Nullable ArrayMap<String, OpEntry> lastUsageByOp,
+                @Nullable HistoricalPackageOps historicalUsage, @Nullable Usage storedUsage) {
             mGroup = group;
             mLastUsage = lastUsage;
+            mLastUsageByOp = lastUsageByOp;
             mHistoricalUsage = historicalUsage;
+            mStoredUsage = storedUsage;
+
+            final ArraySet<String> opNames = new ArraySet<>();
+            final ArrayList<Permission> permissions = group.getPermissions();
+            final int permissionCount = permissions.size();
+            for (int i = 0; i < permissionCount; i++) {
+                final String opName = permissions.get(i).getAppOp();
+                if (opName != null) {
+                    opNames.add(opName);
+                }
+            }
+            mOpNames = opNames.toArray(new String[opNames.size()]);
         }
 
         public long getLastAccessTime() {
@@ -127,36 +188,43 @@ public final class AppPermissionUsage {
         }
 
         public long getForegroundAccessCount() {
+            final long storedCount = mStoredUsage == null ? 0
+                    : mStoredUsage.getForegroundAccessCount();
             if (mHistoricalUsage == null) {
-                return 0;
+                return storedCount;
             }
-            return extractAggregate((HistoricalOp op)
+            return storedCount + extractAggregate((HistoricalOp op)
                     -> op.getForegroundAccessCount(AppOpsManager.OP_FLAGS_ALL_TRUSTED));
         }
 
         public long getBackgroundAccessCount() {
+            final long storedCount = mStoredUsage == null ? 0
+                    : mStoredUsage.getBackgroundAccessCount();
             if (mHistoricalUsage == null) {
-                return 0;
+                return storedCount;
             }
-            return extractAggregate((HistoricalOp op)
+            return storedCount + extractAggregate((HistoricalOp op)
                     -> op.getBackgroundAccessCount(AppOpsManager.OP_FLAGS_ALL_TRUSTED));
         }
 
         public long getAccessCount() {
+            final long storedCount = mStoredUsage == null ? 0 : mStoredUsage.getAccessCount();
             if (mHistoricalUsage == null) {
-                return 0;
+                return storedCount;
             }
-            return extractAggregate((HistoricalOp op) ->
+            return storedCount + extractAggregate((HistoricalOp op) ->
                 op.getForegroundAccessCount(AppOpsManager.OP_FLAGS_ALL_TRUSTED)
                         + op.getBackgroundAccessCount(AppOpsManager.OP_FLAGS_ALL_TRUSTED)
             );
         }
 
         public long getAccessDuration() {
+            final long storedDuration = mStoredUsage == null ? 0
+                    : mStoredUsage.getAccessDuration();
             if (mHistoricalUsage == null) {
-                return 0;
+                return storedDuration;
             }
-            return extractAggregate((HistoricalOp op) ->
+            return storedDuration + extractAggregate((HistoricalOp op) ->
                     op.getForegroundAccessDuration(AppOpsManager.OP_FLAGS_ALL_TRUSTED)
                             + op.getBackgroundAccessDuration(AppOpsManager.OP_FLAGS_ALL_TRUSTED)
             );
@@ -166,52 +234,35 @@ public final class AppPermissionUsage {
             if (mLastUsage == null) {
                 return false;
             }
-            final ArrayList<Permission> permissions = mGroup.getPermissions();
-            final int permissionCount = permissions.size();
-            for (int i = 0; i < permissionCount; i++) {
-                final Permission permission = permissions.get(i);
-                final String opName = permission.getAppOp();
-                final List<OpEntry> ops = mLastUsage.getOps();
-                final int opCount = ops.size();
-                for (int j = 0; j < opCount; j++) {
-                    final OpEntry op = ops.get(j);
-                    if (op.getOpStr().equals(opName) && op.isRunning()) {
-                        return true;
-                    }
+            final int opCount = mOpNames.length;
+            for (int i = 0; i < opCount; i++) {
+                final OpEntry op = mLastUsageByOp.get(mOpNames[i]);
+                if (op != null && op.isRunning()) {
+                    return true;
                 }
             }
             return false;
         }
 
-        private long extractAggregate(@NonNull Function<HistoricalOp, Long> extractor) {
+        private long extractAggregate(@NonNull ToLongFunction<HistoricalOp> extractor) {
             long aggregate = 0;
-            final ArrayList<Permission> permissions = mGroup.getPermissions();
-            final int permissionCount = permissions.size();
-            for (int i = 0; i < permissionCount; i++) {
-                final Permission permission = permissions.get(i);
-                final String opName = permission.getAppOp();
-                final HistoricalOp historicalOp = mHistoricalUsage.getOp(opName);
+            final int opCount = mOpNames.length;
+            for (int i = 0; i < opCount; i++) {
+                final HistoricalOp historicalOp = mHistoricalUsage.getOp(mOpNames[i]);
                 if (historicalOp != null) {
-                    aggregate += extractor.apply(historicalOp);
+                    aggregate += extractor.applyAsLong(historicalOp);
                 }
             }
             return aggregate;
         }
 
-        private long lastAccessAggregate(@NonNull Function<OpEntry, Long> extractor) {
+        private long lastAccessAggregate(@NonNull ToLongFunction<OpEntry> extractor) {
             long aggregate = 0;
-            final ArrayList<Permission> permissions = mGroup.getPermissions();
-            final int permissionCount = permissions.size();
-            for (int permissionNum = 0; permissionNum < permissionCount; permissionNum++) {
-                final Permission permission = permissions.get(permissionNum);
-                final String opName = permission.getAppOp();
-                final List<OpEntry> ops = mLastUsage.getOps();
-                final int opCount = ops.size();
-                for (int opNum = 0; opNum < opCount; opNum++) {
-                    final OpEntry op = ops.get(opNum);
-                    if (op.getOpStr().equals(opName)) {
-                        aggregate = Math.max(aggregate, extractor.apply(op));
-                    }
+            final int opCount = mOpNames.length;
+            for (int i = 0; i < opCount; i++) {
+                final OpEntry op = mLastUsageByOp.get(mOpNames[i]);
+                if (op != null) {
+                    aggregate = Math.max(aggregate, extractor.applyAsLong(op));
                 }
             }
             return aggregate;
@@ -227,6 +278,7 @@ public final class AppPermissionUsage {
         private final @NonNull PermissionApp mPermissionApp;
         private @Nullable PackageOps mLastUsage;
         private @Nullable HistoricalPackageOps mHistoricalUsage;
+        private @Nullable ArrayMap<String, Usage> mStoredUsages;
 
         public Builder(@NonNull PermissionApp permissionApp) {
             mPermissionApp = permissionApp;
@@ -247,11 +299,27 @@ public final class AppPermissionUsage {
             return this;
         }
 
+        /**
+         * Set the usages read from the
+         * {@link com.android.packageinstaller.permission.service.PermissionUsageStore store}.
+         * They add to the {@link #setHistoricalUsage historical usage}. The store keeps the usages
+         * per uid, hence for a shared uid only one of the apps should get the usage of a group.
+         *
+         * @param storedUsages permission group -> usage of the group attributed to the app
+         *
+         * @return This builder
+         */
+        public @NonNull Builder setStoredUsages(@Nullable ArrayMap<String, Usage> storedUsages) {
+            mStoredUsages = storedUsages;
+            return this;
+        }
+
         public @NonNull AppPermissionUsage build() {
             if (mGroups.isEmpty()) {
                 throw new IllegalStateException("mGroups cannot be empty.");
             }
-            return new AppPermissionUsage(mPermissionApp, mGroups, mLastUsage, mHistoricalUsage);
+            return new AppPermissionUsage(mPermissionApp, mGroups, mLastUsage, mHistoricalUsage,
+                    mStoredUsages);
         }
     }
 }
@@ -22,6 +22,10 @@ import android.content.pm.PackageManager;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.packageinstaller.permission.utils.ArrayUtils;
 import com.android.packageinstaller.permission.utils.Utils;
 
 import java.util.ArrayList;
@@ -57,6 +61,9 @@ public final class AppPermissions {
     /** Do not actually commit changes to the platform until {@link #persistChanges} is called */
     private final boolean mDelayChanges;
 
+    /** Only load the groups of these permissions, {@code null} == load all groups */
+    private @Nullable String[] mPermissionsToLoad;
+
     private PackageInfo mPackageInfo;
 
     public AppPermissions(Context context, PackageInfo packageInfo, boolean sortGroups,
@@ -66,12 +73,34 @@ public final class AppPermissions {
 
     public AppPermissions(Context context, PackageInfo packageInfo, boolean sortGroups,
             boolean delayChanges, Runnable onErrorCallback) {
+        this(context, packageInfo, null, sortGroups, delayChanges, onErrorCallback);
+    }
+
+    /**
+     * Create the permission groups of an app, but only the groups some permissions belong to.
+     *
+     * <p>Creating a group is expensive, hence this is much faster than loading all groups if only
+     * a few permissions are interesting, e.g. when the app requests only a few permissions to be
+     * granted.
+     *
+     * @param context A context
+     * @param packageInfo The package of the app
+     * @param permissionsToLoad The permissions whose groups should be loaded, {@code null} to load
+     *                          the groups of all permissions the app requests
+     * @param sortGroups If the groups should be sorted
+     * @param delayChanges If changes should only be committed on {@link #persistChanges}
+     * @param onErrorCallback Called if the package cannot be reloaded
+     */
+    public AppPermissions(Context context, PackageInfo packageInfo,
+            @Nullable String[] permissionsToLoad, boolean sortGroups, boolean delayChanges,
+            Runnable onErrorCallback) {
         mContext = context;
         mPackageInfo = packageInfo;
         mAppLabel = Utils.getAppLabel(packageInfo.applicationInfo, context);
         mSortGroups = sortGroups;
         mDelayChanges = delayChanges;
         mOnErrorCallback = onErrorCallback;
+        mPermissionsToLoad = permissionsToLoad;
         loadPermissionGroups();
     }
 
@@ -142,6 +171,11 @@ public final class AppPermissions {
 
         if (mPackageInfo.requestedPermissions != null) {
             for (String requestedPerm : mPackageInfo.requestedPermissions) {
+                if (mPermissionsToLoad != null
+                        && !ArrayUtils.contains(mPermissionsToLoad, requestedPerm)) {
+                    continue;
+                }
+
                 if (getGroupForPermission(requestedPerm) == null) {
                     AppPermissionGroup group = AppPermissionGroup.create(mContext, mPackageInfo,
                             requestedPerm, mDelayChanges);
@@ -167,6 +201,50 @@ public final class AppPermissions {
         }
     }
 
+    /**
+     * Add the groups loaded by another instance for the same package, e.g. if the groups of some
+     * permissions were loaded first and the groups of the other permissions later.
+     *
+     * <p>Groups already loaded by this instance are kept.
+     *
+     * @param other The other groups of the package
+     */
+    public void addPermissionGroups(@NonNull AppPermissions other) {
+        List<AppPermissionGroup> otherGroups = other.getPermissionGroups();
+
+        int numOtherGroups = otherGroups.size();
+        for (int i = 0; i < numOtherGroups; i++) {
+            AppPermissionGroup group = otherGroups.get(i);
+            if (mGroupNameToGroup.containsKey(group.getName())) {
+                continue;
+            }
+
+            mGroups.add(group);
+            mGroupNameToGroup.put(group.getName(), group);
+
+            addAllPermissions(group);
+
+            AppPermissionGroup backgroundGroup = group.getBackgroundPermissions();
+            if (backgroundGroup != null) {
+                addAllPermissions(backgroundGroup);
+            }
+        }
+
+        if (mPermissionsToLoad != null) {
+            if (other.mPermissionsToLoad == null) {
+                mPermissionsToLoad = null;
+            } else {
+                for (String permission : other.mPermissionsToLoad) {
+                    mPermissionsToLoad = ArrayUtils.appendString(mPermissionsToLoad, permission);
+                }
+            }
+        }
+
+        if (mSortGroups) {
+            Collections.sort(mGroups);
+        }
+    }
+
     /**
      * Find the group a permission belongs to.
      *
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.model;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.android.packageinstaller.permission.utils.Utils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tracks the packages that have an activity that shows up in the launcher.
+ *
+ * <p>All launcher activities of a user are only resolved once. Afterwards only the packages that
+ * were added, removed or changed are resolved again. A package is also resolved again if it was
+ * installed or updated after it was last resolved, as the package broadcast might not have
+ * arrived yet.
+ *
+ * <p>Once a user is loaded, the packages of the user are tracked while this process is running.
+ */
+public final class LauncherPackages {
+    private static final Object sLock = new Object();
+
+    // @GuardedBy("sLock")
+    private static LauncherPackages sInstance;
+
+    private final @NonNull Context mContext;
+
+    /** userId -> launcher packages of the user */
+    // @GuardedBy("mUsers")
+    private final SparseArray<UserLauncherPackages> mUsers = new SparseArray<>();
+
+    /**
+     * Get the launcher packages.
+     *
+     * @param context A context of this app
+     *
+     * @return The launcher packages shared in this process
+     */
+    public static @NonNull LauncherPackages get(@NonNull Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new LauncherPackages(context.getApplicationContext());
+            }
+
+            return sInstance;
+        }
+    }
+
+    private LauncherPackages(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Get the packages of a user that have a launcher icon.
+     *
+     * @param user The user
+     * @param installedPkgs The installed packages of the user if known. Packages installed or
+     *                      updated since they were last resolved are resolved again.
+     *
+     * @return The packages with launcher icon
+     */
+    @WorkerThread
+    public @NonNull ArraySet<String> getLauncherPackages(@NonNull UserHandle user,
+            @Nullable List<PackageInfo> installedPkgs) {
+        UserLauncherPackages userPkgs = getUser(user);
+        if (userPkgs == null) {
+            return new ArraySet<>();
+        }
+
+        return userPkgs.getLauncherPackages(installedPkgs);
+    }
+
+    /**
+     * Check if a package has a launcher icon.
+     *
+     * <p>Much cheaper than {@link #getLauncherPackages} if only a single package is interesting.
+     *
+     * @param user The user of the package
+     * @param pkg The package
+     *
+     * @return {@code true} iff the package has a launcher icon
+     */
+    @WorkerThread
+    public boolean hasLauncherIcon(@NonNull UserHandle user, @NonNull PackageInfo pkg) {
+        UserLauncherPackages userPkgs = getUser(user);
+        if (userPkgs == null) {
+            return false;
+        }
+
+        return userPkgs.hasLauncherIcon(pkg);
+    }
+
+    /**
+     * Resolve a package again on next use, e.g. if the package changed and the change might be
+     * read before the package broadcast is received here.
+     *
+     * @param user The user of the package
+     * @param packageName The package that changed
+     */
+    public void invalidate(@NonNull UserHandle user, @NonNull String packageName) {
+        UserLauncherPackages userPkgs;
+        synchronized (mUsers) {
+            userPkgs = mUsers.get(user.getIdentifier());
+        }
+
+        if (userPkgs != null) {
+            userPkgs.invalidate(packageName);
+        }
+    }
+
+    /**
+     * @return The state of the user, {@code null} if the user cannot be accessed
+     */
+    private @Nullable UserLauncherPackages getUser(@NonNull UserHandle user) {
+        synchronized (mUsers) {
+            UserLauncherPackages userPkgs = mUsers.get(user.getIdentifier());
+            if (userPkgs == null) {
+                Context userContext;
+                try {
+                    userContext = mContext.createPackageContextAsUser(mContext.getPackageName(),
+                            0, user);
+                } catch (PackageManager.NameNotFoundException e) {
+                    return null;
+                }
+
+                userPkgs = new UserLauncherPackages(userContext);
+                mUsers.put(user.getIdentifier(), userPkgs);
+            }
+
+            return userPkgs;
+        }
+    }
+
+    /**
+     * The launcher packages of a single user.
+     */
+    private static class UserLauncherPackages {
+        private final @NonNull Context mUserContext;
+
+        /** Packages that changed since they were last resolved */
+        // @GuardedBy("mPendingPkgs")
+        private final ArraySet<String> mPendingPkgs = new ArraySet<>();
+
+        /** Packages with launcher icon, {@code null} until loaded */
+        // @GuardedBy("this")
+        private ArraySet<String> mPkgs;
+
+        /** When all packages were resolved */
+        // @GuardedBy("this")
+        private long mLoadTime;
+
+        /** package -> when the package was resolved on its own */
+        // @GuardedBy("this")
+        private final ArrayMap<String, Long> mResolveTimes = new ArrayMap<>();
+
+        private final @NonNull BroadcastReceiver mPackageMonitor = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data != null) {
+                    invalidate(data.getSchemeSpecificPart());
+                }
+            }
+        };
+
+        UserLauncherPackages(@NonNull Context userContext) {
+            mUserContext = userContext;
+
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addDataScheme("package");
+            mUserContext.registerReceiver(mPackageMonitor, filter);
+        }
+
+        void invalidate(@NonNull String packageName) {
+            synchronized (mPendingPkgs) {
+                mPendingPkgs.add(packageName);
+            }
+        }
+
+        synchronized @NonNull ArraySet<String> getLauncherPackages(
+                @Nullable List<PackageInfo> installedPkgs) {
+            updateLocked(installedPkgs);
+            return new ArraySet<>(mPkgs);
+        }
+
+        synchronized boolean hasLauncherIcon(@NonNull PackageInfo pkg) {
+            updateLocked(Collections.singletonList(pkg));
+            return mPkgs.contains(pkg.packageName);
+        }
+
+        /**
+         * Resolve all packages if not loaded yet, otherwise only the pending packages and the
+         * packages installed or updated since they were last resolved.
+         */
+        // @GuardedBy("this")
+        private void updateLocked(@Nullable List<PackageInfo> installedPkgs) {
+            ArraySet<String> pkgsToResolve;
+            synchronized (mPendingPkgs) {
+                pkgsToResolve = new ArraySet<>(mPendingPkgs);
+                mPendingPkgs.clear();
+            }
+
+            if (mPkgs == null) {
+                mLoadTime = System.currentTimeMillis();
+                mPkgs = Utils.queryLauncherPackages(mUserContext);
+                return;
+            }
+
+            if (installedPkgs != null) {
+                int numPkgs = installedPkgs.size();
+                for (int i = 0; i < numPkgs; i++) {
+                    PackageInfo pkg = installedPkgs.get(i);
+
+                    Long resolveTime = mResolveTimes.get(pkg.packageName);
+                    if (pkg.lastUpdateTime >= (resolveTime == null ? mLoadTime : resolveTime)) {
+                        pkgsToResolve.add(pkg.packageName);
+                    }
+                }
+            }
+
+            int numPkgsToResolve = pkgsToResolve.size();
+            for (int i = 0; i < numPkgsToResolve; i++) {
+                String pkg = pkgsToResolve.valueAt(i);
+
+                mResolveTimes.put(pkg, System.currentTimeMillis());
+                if (Utils.hasLauncherIcon(mUserContext, pkg)) {
+                    mPkgs.add(pkg);
+                } else {
+                    mPkgs.remove(pkg);
+                }
+            }
+        }
+    }
+}
@@ -43,6 +43,13 @@ public final class Permission {
     private ArrayList<Permission> mForegroundPermissions;
     private boolean mWhitelisted;
 
+    /** Grant state last read from or written to the platform */
+    private boolean mPersistedGranted;
+    /** App-op state last read from or written to the platform */
+    private boolean mPersistedAppOpAllowed;
+    /** Flags last read from or written to the platform */
+    private int mPersistedFlags;
+
     public Permission(String name, @NonNull PermissionInfo permissionInfo, boolean granted,
             String appOp, boolean appOpAllowed, int flags) {
         mPermissionInfo = permissionInfo;
@@ -56,6 +63,51 @@ public final class Permission {
                 (permissionInfo.protectionLevel & PermissionInfo.PROTECTION_FLAG_INSTANT) != 0;
         mIsRuntimeOnly =
                 (permissionInfo.protectionLevel & PermissionInfo.PROTECTION_FLAG_RUNTIME_ONLY) != 0;
+
+        markPersisted();
+    }
+
+    /**
+     * Remember the current state as the state of the platform.
+     *
+     * <p>Called once the state is loaded from or written to the platform. All following
+     * {@code is*Changed} calls compare against this state.
+     */
+    void markPersisted() {
+        mPersistedGranted = mGranted;
+        mPersistedAppOpAllowed = mAppOpAllowed;
+        mPersistedFlags = mFlags;
+    }
+
+    /**
+     * @return {@code true} iff the grant state changed since it was last persisted
+     */
+    boolean isGrantedChanged() {
+        return mGranted != mPersistedGranted;
+    }
+
+    /**
+     * @return {@code true} iff the grant state was granted when last persisted
+     */
+    boolean wasGrantedWhenPersisted() {
+        return mPersistedGranted;
+    }
+
+    /**
+     * @return {@code true} iff the app-op state changed since it was last persisted
+     */
+    boolean isAppOpAllowedChanged() {
+        return mAppOpAllowed != mPersistedAppOpAllowed;
+    }
+
+    /**
+     * @param flagMask The flags to compare
+     *
+     * @return {@code true} iff any of the flags in {@code flagMask} changed since they were last
+     * persisted
+     */
+    boolean areFlagsChanged(int flagMask) {
+        return ((mFlags ^ mPersistedFlags) & flagMask) != 0;
     }
 
     /**
@@ -95,6 +147,15 @@ public final class Permission {
         return mFlags;
     }
 
+    /**
+     * Set the flags after they were changed on the platform.
+     *
+     * @param flags The new flags
+     */
+    void setFlags(int flags) {
+        mFlags = flags;
+    }
+
     boolean isHardRestricted() {
         return (mPermissionInfo.flags & PermissionInfo.FLAG_HARD_RESTRICTED) != 0;
     }
@@ -39,13 +39,35 @@ import androidx.annotation.Nullable;
 import com.android.packageinstaller.permission.utils.Utils;
 import com.android.permissioncontroller.R;
 
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class PermissionApps {
     private static final String LOG_TAG = "PermissionApps";
 
+    /** Max number of profiles loaded in parallel */
+    private static final int MAX_PARALLEL_PROFILE_LOADS = 4;
+
+    /**
+     * Loads the apps of additional profiles. The callers usually run on the {@link AsyncTask}
+     * pool and wait for these loads, hence they cannot use the same pool. The loads never wait
+     * for other loads on this executor.
+     */
+    private static final ThreadPoolExecutor sProfileLoadExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_PROFILE_LOADS, MAX_PARALLEL_PROFILE_LOADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+    static {
+        sProfileLoadExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final Context mContext;
     private final String mGroupName;
     private final String mPackageName;
@@ -232,76 +254,125 @@ public class PermissionApps {
         CharSequence fullGroupLabel = groupInfo.loadSafeLabel(packageManager, 0,
                 TextUtils.SAFE_STRING_FLAG_TRIM | TextUtils.SAFE_STRING_FLAG_FIRST_LINE);
 
+        UserManager userManager = mContext.getSystemService(UserManager.class);
+        List<UserHandle> users = userManager.getUserProfiles();
+        int numUsers = users.size();
+
+        // The profiles are independent, hence load all but the first profile in parallel
+        ArrayList<FutureTask<List<PermissionApp>>> otherUserLoads = new ArrayList<>();
+        for (int i = 1; i < numUsers; i++) {
+            UserHandle user = users.get(i);
+
+            FutureTask<List<PermissionApp>> load = new FutureTask<>(
+                    () -> loadPermissionApps(user, groupInfo, groupPermInfos, targetPermInfos,
+                            groupLabel, fullGroupLabel));
+            sProfileLoadExecutor.execute(load);
+            otherUserLoads.add(load);
+        }
+
         ArrayList<PermissionApp> permApps = new ArrayList<>();
+        if (numUsers > 0) {
+            permApps.addAll(loadPermissionApps(users.get(0), groupInfo, groupPermInfos,
+                    targetPermInfos, groupLabel, fullGroupLabel));
+        }
 
-        UserManager userManager = mContext.getSystemService(UserManager.class);
-        for (UserHandle user : userManager.getUserProfiles()) {
-            List<PackageInfo> apps = getPackageInfos(user);
-            final int N = apps.size();
-            for (int i = 0; i < N; i++) {
-                PackageInfo app = apps.get(i);
-                if (app.requestedPermissions == null) {
-                    continue;
+        int numOtherUserLoads = otherUserLoads.size();
+        for (int i = 0; i < numOtherUserLoads; i++) {
+            try {
+                permApps.addAll(otherUserLoads.get(i).get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while loading apps of "
+                        + users.get(i + 1), e);
+            }
+        }
 
-                for (int j = 0; j < app.requestedPermissions.length; j++) {
-                    String requestedPerm = app.requestedPermissions[j];
+        Collections.sort(permApps);
 
-                    PermissionInfo requestedPermissionInfo = null;
+        return permApps;
+    }
 
-                    for (PermissionInfo groupPermInfo : targetPermInfos) {
-                        if (requestedPerm.equals(groupPermInfo.name)) {
-                            requestedPermissionInfo = groupPermInfo;
-                            break;
-                        }
-                    }
+    /**
+     * Load the apps of a single profile that request a permission of the group.
+     *
+     * <p>Might be called for several profiles in parallel.
+     *
+     * @return The apps of the profile, not sorted
+     */
+    private @NonNull List<PermissionApp> loadPermissionApps(@NonNull UserHandle user,
+            @NonNull PackageItemInfo groupInfo, @NonNull List<PermissionInfo> groupPermInfos,
+            @NonNull List<PermissionInfo> targetPermInfos, @NonNull CharSequence groupLabel,
+            @NonNull CharSequence fullGroupLabel) {
+        ArrayList<PermissionApp> permApps = new ArrayList<>();
 
-                    if (requestedPermissionInfo == null) {
-                        continue;
-                    }
+        List<PackageInfo> apps = getPackageInfos(user);
+        final int N = apps.size();
+        for (int i = 0; i < N; i++) {
+            PackageInfo app = apps.get(i);
+            if (app.requestedPermissions == null) {
+                continue;
+            }
 
-                    AppPermissionGroup group = AppPermissionGroup.create(mContext,
-                            app, groupInfo, groupPermInfos, groupLabel, fullGroupLabel, false);
+            for (int j = 0; j < app.requestedPermissions.length; j++) {
+                String requestedPerm = app.requestedPermissions[j];
 
-                    if (group == null) {
-                        continue;
-                    }
+                PermissionInfo requestedPermissionInfo = null;
 
-                    Pair<String, Drawable> appData = null;
-                    if (mAppDataCache != null && !mSkipUi) {
-                        appData = mAppDataCache.getAppData(user.getIdentifier(),
-                                app.applicationInfo);
+                for (PermissionInfo groupPermInfo : targetPermInfos) {
+                    if (requestedPerm.equals(groupPermInfo.name)) {
+                        requestedPermissionInfo = groupPermInfo;
+                        break;
                     }
+                }
 
-                    String label;
-                    if (mSkipUi) {
-                        label = app.packageName;
-                    } else if (appData != null) {
-                        label = appData.first;
-                    } else {
-                        label = app.applicationInfo.loadLabel(mPm).toString();
-                    }
+                if (requestedPermissionInfo == null) {
+                    continue;
+                }
 
-                    Drawable icon = null;
-                    if (!mSkipUi) {
-                        if (appData != null) {
-                            icon = appData.second;
-                        } else {
-                            icon = Utils.getBadgedIcon(mContext, app.applicationInfo);
-                        }
-                    }
+                AppPermissionGroup group = AppPermissionGroup.create(mContext,
+                        app, groupInfo, groupPermInfos, groupLabel, fullGroupLabel, false);
 
-                    PermissionApp permApp = new PermissionApp(app.packageName, group, label, icon,
+                if (group == null) {
+                    continue;
+                }
+
+                Pair<String, Drawable> appData = null;
+                if (mAppDataCache != null && !mSkipUi) {
+                    appData = mAppDataCache.getAppData(user.getIdentifier(),
                             app.applicationInfo);
+                }
 
-                    permApps.add(permApp);
-                    break; // move to the next app.
+                String label;
+                if (mSkipUi) {
+                    label = app.packageName;
+                } else if (appData != null) {
+                    label = appData.first;
+                } else {
+                    label = app.applicationInfo.loadLabel(mPm).toString();
                 }
+
+                Drawable icon = null;
+                if (!mSkipUi) {
+                    if (appData != null) {
+                        icon = appData.second;
+                    } else {
+                        icon = Utils.getBadgedIcon(mContext, app.applicationInfo);
+                    }
+                }
+
+                PermissionApp permApp = new PermissionApp(app.packageName, group, label, icon,
+                        app.applicationInfo);
+
+                permApps.add(permApp);
+                break; // move to the next app.
             }
         }
 
-        Collections.sort(permApps);
-
         return permApps;
     }
 
@@ -354,6 +425,10 @@ public class PermissionApps {
         private Drawable mIcon;
         private final ApplicationInfo mInfo;
 
+        /** Collator {@link #mLabelSortKey} was created with */
+        private Collator mLabelSortKeyCollator;
+        private CollationKey mLabelSortKey;
+
         public PermissionApp(String packageName, AppPermissionGroup appPermissionGroup,
                 String label, Drawable icon, ApplicationInfo info) {
             mPackageName = packageName;
@@ -432,6 +507,25 @@ public class PermissionApps {
             }
         }
 
+        /**
+         * Get the key to sort this app by label.
+         *
+         * <p>The key is only created again if the label or the collator changed, hence sorting
+         * by these keys does not redo the collation for every comparison.
+         *
+         * @param collator The collator to use
+         *
+         * @return The key of the label
+         */
+        public @NonNull CollationKey getLabelSortKey(@NonNull Collator collator) {
+            if (mLabelSortKey == null || mLabelSortKeyCollator != collator
+                    || !mLabelSortKey.getSourceString().equals(mLabel)) {
+                mLabelSortKey = collator.getCollationKey(mLabel);
+                mLabelSortKeyCollator = collator;
+            }
+            return mLabelSortKey;
+        }
+
         @Override
         public int compareTo(PermissionApp another) {
             final int result = mLabel.compareTo(another.mLabel);
@@ -468,22 +562,52 @@ public class PermissionApps {
      * Class used to reduce the number of calls to the package manager.
      * This caches app information so it should only be used across parallel PermissionApps
      * instances, and should not be retained across UI refresh.
+     *
+     * <p>Each profile is a separate partition, hence profiles can be loaded in parallel.
      */
     public static class PmCache {
-        private final SparseArray<List<PackageInfo>> mPackageInfoCache = new SparseArray<>();
+        /** userId -> packages of the user */
+        // @GuardedBy("mPackageInfoCache")
+        private final SparseArray<Partition> mPackageInfoCache = new SparseArray<>();
         private final PackageManager mPm;
 
         public PmCache(PackageManager pm) {
             mPm = pm;
         }
 
-        public synchronized List<PackageInfo> getPackages(int userId) {
-            List<PackageInfo> ret = mPackageInfoCache.get(userId);
-            if (ret == null) {
-                ret = mPm.getInstalledPackagesAsUser(PackageManager.GET_PERMISSIONS, userId);
-                mPackageInfoCache.put(userId, ret);
+        public List<PackageInfo> getPackages(int userId) {
+            Partition partition;
+            synchronized (mPackageInfoCache) {
+                partition = mPackageInfoCache.get(userId);
+                if (partition == null) {
+                    partition = new Partition(userId);
+                    mPackageInfoCache.put(userId, partition);
+                }
+            }
+
+            return partition.getPackages();
+        }
+
+        /**
+         * The packages of a single user, loaded on first use.
+         */
+        private class Partition {
+            private final int mUserId;
+
+            // @GuardedBy("this")
+            private List<PackageInfo> mPackages;
+
+            Partition(int userId) {
+                mUserId = userId;
+            }
+
+            synchronized List<PackageInfo> getPackages() {
+                if (mPackages == null) {
+                    mPackages = mPm.getInstalledPackagesAsUser(PackageManager.GET_PERMISSIONS,
+                            mUserId);
+                }
+                return mPackages;
             }
-            return ret;
         }
     }
 
@@ -491,10 +615,20 @@ public class PermissionApps {
      * Class used to reduce the number of calls to loading labels and icons.
      * This caches app information so it should only be used across parallel PermissionApps
      * instances, and should not be retained across UI refresh.
+     *
+     * <p>Can be used from several threads. The label and unbadged icon of an apk are loaded only
+     * once even if the apk is installed in several profiles, only the badging is done per profile.
      */
     public static class AppDataCache {
+        // @GuardedBy("mCache")
         private final @NonNull SparseArray<ArrayMap<String, Pair<String, Drawable>>> mCache =
                 new SparseArray<>();
+
+        /** apk -> label and unbadged icon */
+        // @GuardedBy("mCache")
+        private final @NonNull ArrayMap<String, Pair<String, Drawable>> mApkData =
+                new ArrayMap<>();
+
         private final @NonNull PackageManager mPm;
         private final @NonNull Context mContext;
 
@@ -513,18 +647,69 @@ public class PermissionApps {
          */
         public @NonNull Pair<String, Drawable> getAppData(int userId,
                 @NonNull ApplicationInfo app) {
-            ArrayMap<String, Pair<String, Drawable>> dataForUser = mCache.get(userId);
-            if (dataForUser == null) {
-                dataForUser = new ArrayMap<>();
-                mCache.put(userId, dataForUser);
+            synchronized (mCache) {
+                ArrayMap<String, Pair<String, Drawable>> dataForUser = mCache.get(userId);
+                if (dataForUser != null) {
+                    Pair<String, Drawable> data = dataForUser.get(app.packageName);
+                    if (data != null) {
+                        return data;
+                    }
+                }
+            }
+
+            // Loading is done outside of the lock so other profiles are not blocked. In the rare
+            // case the same app is loaded twice, the first result is kept.
+            Pair<String, Drawable> apkData = getApkData(app);
+
+            Drawable icon;
+            // Badging draws the shared unbadged icon
+            synchronized (apkData.second) {
+                icon = Utils.getBadgedIcon(mContext, apkData.second,
+                        UserHandle.getUserHandleForUid(app.uid));
+            }
+
+            synchronized (mCache) {
+                ArrayMap<String, Pair<String, Drawable>> dataForUser = mCache.get(userId);
+                if (dataForUser == null) {
+                    dataForUser = new ArrayMap<>();
+                    mCache.put(userId, dataForUser);
+                }
+
+                Pair<String, Drawable> data = dataForUser.get(app.packageName);
+                if (data == null) {
+                    data = Pair.create(apkData.first, icon);
+                    dataForUser.put(app.packageName, data);
+                }
+                return data;
             }
-            Pair<String, Drawable> data = dataForUser.get(app.packageName);
-            if (data == null) {
-                data = Pair.create(app.loadLabel(mPm).toString(),
-                        Utils.getBadgedIcon(mContext, app));
-                dataForUser.put(app.packageName, data);
+        }
+
+        /**
+         * Get the label and unbadged icon of the apk of an app. These do not depend on the profile
+         * the apk is installed in.
+         */
+        private @NonNull Pair<String, Drawable> getApkData(@NonNull ApplicationInfo app) {
+            String apk = app.sourceDir != null ? app.sourceDir : app.packageName;
+
+            synchronized (mCache) {
+                Pair<String, Drawable> apkData = mApkData.get(apk);
+                if (apkData != null) {
+                    return apkData;
+                }
+            }
+
+            Pair<String, Drawable> apkData = Pair.create(app.loadLabel(mPm).toString(),
+                    app.loadUnbadgedIcon(mPm));
+
+            synchronized (mCache) {
+                Pair<String, Drawable> otherApkData = mApkData.get(apk);
+                if (otherApkData != null) {
+                    return otherApkData;
+                }
+
+                mApkData.put(apk, apkData);
+                return apkData;
             }
-            return data;
         }
     }
 
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.model;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches permission changes of uids to listeners in this process.
+ *
+ * <p>Only a single listener is registered with the platform. Changes reported in quick succession
+ * are collapsed and the new permission state of a changed uid is resolved once in the background,
+ * no matter how many screens listen for the uid.
+ *
+ * <p>The grant states of all permissions of a uid are read from the packages of the uid. The
+ * flags are only resolved for the permissions a listener asked for.
+ */
+public final class PermissionChangeDispatcher {
+    private static final String LOG_TAG = PermissionChangeDispatcher.class.getSimpleName();
+
+    /** How long to wait for more changes before dispatching */
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    /**
+     * Executor to resolve the changes on. Changes are resolved in order, hence the changes of a
+     * uid never overtake each other.
+     */
+    private static final ThreadPoolExecutor sResolveExecutor = new ThreadPoolExecutor(1, 1, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        sResolveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Object sLock = new Object();
+
+    // @GuardedBy("sLock")
+    private static PermissionChangeDispatcher sInstance;
+
+    private final @NonNull Context mContext;
+    private final @NonNull Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** uid -> listeners for the uid */
+    private final SparseArray<ArrayList<Listener>> mListeners = new SparseArray<>();
+
+    /** listener -> permissions the listener needs the flags of */
+    private final ArrayMap<Listener, String[]> mFlagPermissions = new ArrayMap<>();
+
+    /** uid -> changes of the uid when last dispatched */
+    private final SparseArray<PermissionChanges> mLastChanges = new SparseArray<>();
+
+    /** Uids that changed but were not dispatched yet */
+    private final ArraySet<Integer> mChangedUids = new ArraySet<>();
+
+    /** If the platform listener is registered */
+    private boolean mIsRegistered;
+
+    private final @NonNull PackageManager.OnPermissionsChangedListener mPlatformListener =
+            uid -> mMainHandler.post(() -> onPermissionsChanged(uid));
+
+    private final @NonNull Runnable mDispatch = this::dispatch;
+
+    /**
+     * Get the dispatcher.
+     *
+     * @param context A context of this app
+     *
+     * @return The dispatcher shared in this process
+     */
+    public static @NonNull PermissionChangeDispatcher get(@NonNull Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new PermissionChangeDispatcher(context.getApplicationContext());
+            }
+
+            return sInstance;
+        }
+    }
+
+    private PermissionChangeDispatcher(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Start listening for permission changes of a uid.
+     *
+     * @param uid The uid to listen for
+     * @param flagPermissions The permissions to also deliver the flags of, {@code null} if only the
+     *                        grant states are needed
+     * @param listener The listener to add
+     */
+    @MainThread
+    public void addListener(int uid, @Nullable String[] flagPermissions,
+            @NonNull Listener listener) {
+        ArrayList<Listener> uidListeners = mListeners.get(uid);
+        if (uidListeners == null) {
+            uidListeners = new ArrayList<>(1);
+            mListeners.put(uid, uidListeners);
+        }
+        uidListeners.add(listener);
+
+        if (flagPermissions != null) {
+            mFlagPermissions.put(listener, flagPermissions);
+        }
+
+        if (!mIsRegistered) {
+            mContext.getPackageManager().addOnPermissionsChangeListener(mPlatformListener);
+            mIsRegistered = true;
+        }
+    }
+
+    /**
+     * Stop listening for permission changes.
+     *
+     * @param listener The listener to remove
+     */
+    @MainThread
+    public void removeListener(@NonNull Listener listener) {
+        for (int i = mListeners.size() - 1; i >= 0; i--) {
+            ArrayList<Listener> uidListeners = mListeners.valueAt(i);
+
+            if (uidListeners.remove(listener) && uidListeners.isEmpty()) {
+                mLastChanges.remove(mListeners.keyAt(i));
+                mListeners.removeAt(i);
+            }
+        }
+        mFlagPermissions.remove(listener);
+
+        if (mIsRegistered && mListeners.size() == 0) {
+            mContext.getPackageManager().removeOnPermissionsChangeListener(mPlatformListener);
+            mIsRegistered = false;
+
+            mMainHandler.removeCallbacks(mDispatch);
+            mChangedUids.clear();
+        }
+    }
+
+    @MainThread
+    private void onPermissionsChanged(int uid) {
+        if (mListeners.get(uid) == null) {
+            return;
+        }
+
+        if (mChangedUids.isEmpty()) {
+            mMainHandler.postDelayed(mDispatch, DEBOUNCE_MILLIS);
+        }
+        mChangedUids.add(uid);
+    }
+
+    @MainThread
+    private void dispatch() {
+        int numChangedUids = mChangedUids.size();
+        int[] changedUids = new int[numChangedUids];
+        ArrayList<ArraySet<String>> flagPermissions = new ArrayList<>(numChangedUids);
+        ArrayList<PermissionChanges> lastChanges = new ArrayList<>(numChangedUids);
+        for (int i = 0; i < numChangedUids; i++) {
+            changedUids[i] = mChangedUids.valueAt(i);
+            flagPermissions.add(getFlagPermissions(changedUids[i]));
+            lastChanges.add(mLastChanges.get(changedUids[i]));
+        }
+        mChangedUids.clear();
+
+        sResolveExecutor.execute(() -> {
+            ArrayList<PermissionChanges> allChanges = new ArrayList<>(numChangedUids);
+            for (int i = 0; i < numChangedUids; i++) {
+                PermissionChanges changes = resolveChanges(changedUids[i],
+                        flagPermissions.get(i), lastChanges.get(i));
+                if (changes != null) {
+                    allChanges.add(changes);
+                }
+            }
+
+            mMainHandler.post(() -> deliver(allChanges));
+        });
+    }
+
+    /**
+     * @return The permissions the listeners of a uid need the flags of
+     */
+    @MainThread
+    private @NonNull ArraySet<String> getFlagPermissions(int uid) {
+        ArraySet<String> flagPermissions = new ArraySet<>();
+
+        ArrayList<Listener> uidListeners = mListeners.get(uid);
+        if (uidListeners != null) {
+            int numListeners = uidListeners.size();
+            for (int i = 0; i < numListeners; i++) {
+                String[] listenerFlagPermissions = mFlagPermissions.get(uidListeners.get(i));
+
+                if (listenerFlagPermissions != null) {
+                    for (String permission : listenerFlagPermissions) {
+                        flagPermissions.add(permission);
+                    }
+                }
+            }
+        }
+
+        return flagPermissions;
+    }
+
+    @MainThread
+    private void deliver(@NonNull List<PermissionChanges> allChanges) {
+        int numChanges = allChanges.size();
+        for (int changesNum = 0; changesNum < numChanges; changesNum++) {
+            PermissionChanges changes = allChanges.get(changesNum);
+
+            ArrayList<Listener> uidListeners = mListeners.get(changes.mUid);
+            if (uidListeners == null) {
+                // Nobody listens for the uid anymore
+                continue;
+            }
+
+            mLastChanges.put(changes.mUid, changes);
+
+            // Listeners might remove themselves
+            ArrayList<Listener> listeners = new ArrayList<>(uidListeners);
+            int numListeners = listeners.size();
+            for (int i = 0; i < numListeners; i++) {
+                listeners.get(i).onPermissionsChanged(changes);
+            }
+        }
+    }
+
+    /**
+     * Resolve the current permission state of a uid.
+     *
+     * @param uid The uid that changed
+     * @param flagPermissions The permissions to resolve the flags of
+     * @param lastChanges The changes when last dispatched, {@code null} if unknown
+     *
+     * @return The changes of the uid, {@code null} if the uid cannot be accessed anymore
+     */
+    @WorkerThread
+    private @Nullable PermissionChanges resolveChanges(int uid,
+            @NonNull ArraySet<String> flagPermissions, @Nullable PermissionChanges lastChanges) {
+        UserHandle user = UserHandle.getUserHandleForUid(uid);
+        PackageManager userPm;
+        try {
+            userPm = mContext.createPackageContextAsUser(mContext.getPackageName(), 0, user)
+                    .getPackageManager();
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(LOG_TAG, "Cannot access user " + user, e);
+            return null;
+        }
+
+        // The cached packages only provide the names, their grant states are stale
+        List<PackageInfo> cachedPkgs = UidPackagesCache.get(mContext).getPackages(uid);
+
+        // The grant state is per uid, but reading it from the package avoids a call per
+        // permission
+        ArraySet<String> requestedPermissions = new ArraySet<>();
+        ArraySet<String> grantedPermissions = new ArraySet<>();
+        String flagsPkg = null;
+        int numPkgs = cachedPkgs.size();
+        for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
+            String pkgName = cachedPkgs.get(pkgNum).packageName;
+
+            PackageInfo pkg;
+            try {
+                pkg = userPm.getPackageInfo(pkgName, PackageManager.GET_PERMISSIONS);
+            } catch (PackageManager.NameNotFoundException e) {
+                continue;
+            }
+            flagsPkg = pkgName;
+
+            if (pkg.requestedPermissions == null) {
+                continue;
+            }
+
+            int numRequestedPermissions = pkg.requestedPermissions.length;
+            for (int i = 0; i < numRequestedPermissions; i++) {
+                String permission = pkg.requestedPermissions[i];
+
+                requestedPermissions.add(permission);
+                if ((pkg.requestedPermissionsFlags[i] & PackageInfo.REQUESTED_PERMISSION_GRANTED)
+                        != 0) {
+                    grantedPermissions.add(permission);
+                }
+            }
+        }
+
+        if (flagsPkg == null) {
+            return null;
+        }
+
+        ArrayMap<String, Integer> permissionFlags = new ArrayMap<>();
+        int numFlagPermissions = flagPermissions.size();
+        for (int i = 0; i < numFlagPermissions; i++) {
+            String permission = flagPermissions.valueAt(i);
+
+            if (requestedPermissions.contains(permission)) {
+                permissionFlags.put(permission, userPm.getPermissionFlags(permission, flagsPkg,
+                        user));
+            }
+        }
+
+        ArraySet<String> changedPermissions = new ArraySet<>();
+        int numRequestedPermissions = requestedPermissions.size();
+        for (int i = 0; i < numRequestedPermissions; i++) {
+            String permission = requestedPermissions.valueAt(i);
+
+            Integer flags = permissionFlags.get(permission);
+
+            if (lastChanges == null
+                    || lastChanges.isGranted(permission) != grantedPermissions.contains(permission)
+                    || (flags != null
+                            && !flags.equals(lastChanges.mPermissionFlags.get(permission)))) {
+                changedPermissions.add(permission);
+            }
+        }
+
+        return new PermissionChanges(uid, grantedPermissions, permissionFlags, changedPermissions);
+    }
+
+    /**
+     * The permission changes of a uid.
+     */
+    public static final class PermissionChanges {
+        private final int mUid;
+        private final @NonNull ArraySet<String> mGrantedPermissions;
+        private final @NonNull ArrayMap<String, Integer> mPermissionFlags;
+        private final @NonNull ArraySet<String> mChangedPermissions;
+
+        private PermissionChanges(int uid, @NonNull ArraySet<String> grantedPermissions,
+                @NonNull ArrayMap<String, Integer> permissionFlags,
+                @NonNull ArraySet<String> changedPermissions) {
+            mUid = uid;
+            mGrantedPermissions = grantedPermissions;
+            mPermissionFlags = permissionFlags;
+            mChangedPermissions = changedPermissions;
+        }
+
+        /**
+         * @return The uid that changed
+         */
+        public int getUid() {
+            return mUid;
+        }
+
+        /**
+         * Check if a permission is granted after the change.
+         *
+         * @param permission The permission to check
+         *
+         * @return {@code true} iff the permission is requested by the uid and granted
+         */
+        public boolean isGranted(@NonNull String permission) {
+            return mGrantedPermissions.contains(permission);
+        }
+
+        /**
+         * Get the flags of a permission after the change.
+         *
+         * @param permission The permission to get the flags of
+         *
+         * @return The flags, {@code null} if the permission is not requested by the uid or no
+         * listener asked for its flags
+         */
+        public @Nullable Integer getPermissionFlags(@NonNull String permission) {
+            return mPermissionFlags.get(permission);
+        }
+
+        /**
+         * Check if the state of a permission changed since the last dispatch.
+         *
+         * <p>Flags only count if a listener asked for them. Any change reported by the platform is
+         * dispatched, even if no permission changed.
+         *
+         * @param permission The permission to check
+         *
+         * @return {@code true} iff the grant state or the flags changed or the previous state is
+         * not known
+         */
+        public boolean isChanged(@NonNull String permission) {
+            return mChangedPermissions.contains(permission);
+        }
+    }
+
+    /**
+     * Gets told about permission changes of a uid.
+     */
+    public interface Listener {
+        /**
+         * The permissions of a uid changed.
+         *
+         * @param changes The changes of the uid
+         */
+        @MainThread
+        void onPermissionsChanged(@NonNull PermissionChanges changes);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.android.packageinstaller.permission.model.AppPermissionGroup.PendingWrites;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Commits changes to a {@link AppPermissionGroup group created with delayed changes} in the
+ * background.
+ *
+ * <p>Changes are applied to the model right away, hence the UI can show the new state
+ * immediately. Changes done in quick succession are collapsed into a single commit. As only the
+ * difference to the last committed state is written, toggling a permission back and forth does
+ * not cause any writes (and does not kill the app).
+ *
+ * <p>The group is only accessed on the main thread. A commit copies the state to write on the
+ * main thread and only the platform writes run in the background, hence changes never wait for
+ * a running commit.
+ *
+ * <p>All commits of all queues are executed one after another, hence writes for a uid never
+ * overlap.
+ */
+public final class PermissionCommitQueue {
+    private static final String LOG_TAG = PermissionCommitQueue.class.getSimpleName();
+
+    /** How long to wait for more changes before committing */
+    private static final long COLLAPSE_DELAY_MILLIS = 300;
+
+    /** Executes all commits one after another */
+    private static final Executor sCommitExecutor = Executors.newSingleThreadExecutor();
+
+    private final @NonNull AppPermissionGroup mGroup;
+    private final @NonNull Listener mListener;
+    private final @NonNull Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Number of changes not yet committed, including the ones currently committing */
+    private int mNumPendingCommits;
+
+    /** If a commit is scheduled but not yet handed to the {@link #sCommitExecutor} */
+    private boolean mIsCommitScheduled;
+
+    private final @NonNull Runnable mCommit = this::commitNow;
+
+    /**
+     * Create a new queue.
+     *
+     * @param group The group to commit, needs to be created with delayed changes
+     * @param listener Gets told about the result of the commits
+     */
+    public PermissionCommitQueue(@NonNull AppPermissionGroup group, @NonNull Listener listener) {
+        mGroup = group;
+        mListener = listener;
+    }
+
+    /**
+     * @return The group this queue commits
+     */
+    public @NonNull AppPermissionGroup getGroup() {
+        return mGroup;
+    }
+
+    /**
+     * Change the group and schedule a commit of the change.
+     *
+     * <p>The {@code change} is run right away.
+     *
+     * @param change The change to apply to the group (or its background group)
+     */
+    @MainThread
+    public void change(@NonNull Runnable change) {
+        change.run();
+
+        if (!mIsCommitScheduled) {
+            mIsCommitScheduled = true;
+            mNumPendingCommits++;
+        }
+
+        mMainHandler.removeCallbacks(mCommit);
+        mMainHandler.postDelayed(mCommit, COLLAPSE_DELAY_MILLIS);
+    }
+
+    /**
+     * Commit scheduled changes without waiting for more changes.
+     */
+    @MainThread
+    public void flush() {
+        if (mIsCommitScheduled) {
+            mMainHandler.removeCallbacks(mCommit);
+            commitNow();
+        }
+    }
+
+    /**
+     * @return {@code true} iff there are changes that are not committed yet
+     */
+    @MainThread
+    public boolean hasPendingChanges() {
+        return mNumPendingCommits > 0;
+    }
+
+    @MainThread
+    private void commitNow() {
+        mIsCommitScheduled = false;
+
+        // Same as if the changes were not delayed: Legacy apps are restarted on app-op changes,
+        // apps supporting runtime permissions are killed by the system if needed.
+        boolean mayKillBecauseOfAppOpsChange = !mGroup.doesSupportRuntimePermissions();
+
+        PendingWrites writes = mGroup.takeChanges();
+        AppPermissionGroup backgroundGroup = mGroup.getBackgroundPermissions();
+        PendingWrites backgroundWrites = backgroundGroup == null ? null
+                : backgroundGroup.takeChanges();
+
+        sCommitExecutor.execute(() -> {
+            Exception failure = null;
+            try {
+                commitInBackground(writes, backgroundGroup, backgroundWrites,
+                        mayKillBecauseOfAppOpsChange);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Cannot commit changes to " + mGroup.getName() + " of "
+                        + mGroup.getApp().packageName, e);
+                failure = e;
+            }
+
+            Exception finalFailure = failure;
+            mMainHandler.post(() -> {
+                mNumPendingCommits--;
+
+                if (finalFailure == null) {
+                    mListener.onCommitted();
+                } else {
+                    mListener.onCommitFailed(finalFailure);
+                }
+            });
+        });
+    }
+
+    @WorkerThread
+    private void commitInBackground(@NonNull PendingWrites writes,
+            @Nullable AppPermissionGroup backgroundGroup, @Nullable PendingWrites backgroundWrites,
+            boolean mayKillBecauseOfAppOpsChange) {
+        mGroup.writeChanges(writes, mayKillBecauseOfAppOpsChange);
+
+        if (backgroundGroup != null) {
+            backgroundGroup.writeChanges(backgroundWrites, mayKillBecauseOfAppOpsChange);
+        }
+    }
+
+    /**
+     * Gets told about the results of the commits of a {@link PermissionCommitQueue}.
+     */
+    public interface Listener {
+        /**
+         * A commit succeeded.
+         */
+        @MainThread
+        void onCommitted();
+
+        /**
+         * A commit failed. The platform state might now differ from the model.
+         *
+         * @param e The reason of the failure
+         */
+        @MainThread
+        void onCommitFailed(@NonNull Exception e);
+    }
+}
@@ -16,6 +16,12 @@
 
 package com.android.packageinstaller.permission.model;
 
+import android.app.AppOpsManager;
+import android.app.AppOpsManager.HistoricalOps;
+import android.app.AppOpsManager.HistoricalOpsRequest;
+import android.app.AppOpsManager.HistoricalPackageOps;
+import android.app.AppOpsManager.HistoricalUidOps;
+import android.app.AppOpsManager.PackageOps;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.AsyncTaskLoader;
@@ -23,18 +29,42 @@ import android.content.Context;
 import android.content.Loader;
 import android.os.Bundle;
 import android.os.Process;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.Pair;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.android.packageinstaller.permission.model.AppPermissionUsage.Builder;
+import com.android.packageinstaller.permission.model.PermissionApps.PermissionApp;
+import com.android.packageinstaller.permission.service.PermissionUsageStore;
+import com.android.packageinstaller.permission.service.PermissionUsageStore.Usage;
+import com.android.packageinstaller.permission.utils.Utils;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Loads all permission usages for a set of apps and permission groups.
  */
 public final class PermissionUsages implements LoaderCallbacks<List<AppPermissionUsage>> {
+    private static final String LOG_TAG = PermissionUsages.class.getSimpleName();
+
+    /** How long to wait for the historical ops before checking for cancellation again */
+    private static final long HISTORICAL_OPS_POLL_MILLIS = 100;
+
+    /** How long to wait for the historical ops at most */
+    private static final long HISTORICAL_OPS_TIMEOUT_MILLIS = 30 * 1000;
+
     public static final int USAGE_FLAG_LAST = 1 << 0;
     public static final int USAGE_FLAG_HISTORICAL = 1 << 2;
 
@@ -77,6 +107,39 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
             boolean getUiInfo, boolean getNonPlatformPermissions,
             @NonNull PermissionsUsagesChangeCallback callback, boolean sync) {
         mCallback = callback;
+        final Bundle args = createArgs(filterUid, filterPackageName, filterPermissionGroups,
+                filterBeginTimeMillis, filterEndTimeMillis, usageFlags, getUiInfo,
+                getNonPlatformPermissions);
+        if (sync) {
+            final UsageLoader loader = new UsageLoader(mContext, args);
+            final List<AppPermissionUsage> usages = loader.loadInBackground();
+            onLoadFinished(loader, usages);
+        } else {
+            loaderManager.restartLoader(1, args, this);
+        }
+    }
+
+    /**
+     * Load the usages on the calling thread, without a loader manager.
+     *
+     * @see #load(int, String, String[], long, long, int, LoaderManager, boolean, boolean,
+     *      PermissionsUsagesChangeCallback, boolean)
+     */
+    @WorkerThread
+    public static @NonNull List<AppPermissionUsage> loadSync(@NonNull Context context,
+            int filterUid, @Nullable String filterPackageName,
+            @Nullable String[] filterPermissionGroups, long filterBeginTimeMillis,
+            long filterEndTimeMillis, int usageFlags, boolean getUiInfo,
+            boolean getNonPlatformPermissions) {
+        return new UsageLoader(context, createArgs(filterUid, filterPackageName,
+                filterPermissionGroups, filterBeginTimeMillis, filterEndTimeMillis, usageFlags,
+                getUiInfo, getNonPlatformPermissions)).loadInBackground();
+    }
+
+    private static @NonNull Bundle createArgs(int filterUid, @Nullable String filterPackageName,
+            @Nullable String[] filterPermissionGroups, long filterBeginTimeMillis,
+            long filterEndTimeMillis, int usageFlags, boolean getUiInfo,
+            boolean getNonPlatformPermissions) {
         final Bundle args = new Bundle();
         args.putInt(KEY_FILTER_UID, filterUid);
         args.putString(KEY_FILTER_PACKAGE_NAME, filterPackageName);
@@ -86,13 +149,7 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
         args.putInt(KEY_USAGE_FLAGS, usageFlags);
         args.putBoolean(KEY_GET_UI_INFO, getUiInfo);
         args.putBoolean(KEY_GET_NON_PLATFORM_PERMISSIONS, getNonPlatformPermissions);
-        if (sync) {
-            final UsageLoader loader = new UsageLoader(mContext, args);
-            final List<AppPermissionUsage> usages = loader.loadInBackground();
-            onLoadFinished(loader, usages);
-        } else {
-            loaderManager.restartLoader(1, args, this);
-        }
+        return args;
     }
 
     @Override
@@ -124,9 +181,48 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
         loaderManager.destroyLoader(1);
     }
 
+    /**
+     * Load the last usage of a single permission group of an app.
+     *
+     * @param context A context
+     * @param group The group of the app
+     *
+     * @return The last usage or {@code null} if the app never used any op of the group
+     */
+    @WorkerThread
     public static @Nullable AppPermissionUsage.GroupUsage loadLastGroupUsage(
             @NonNull Context context, @NonNull AppPermissionGroup group) {
-        return null;
+        final ArraySet<String> opNames = new ArraySet<>();
+        addOpNames(group, opNames);
+        if (opNames.isEmpty()) {
+            return null;
+        }
+
+        final List<PackageOps> usageOps = context.getSystemService(AppOpsManager.class)
+                .getOpsForPackage(group.getApp().applicationInfo.uid, group.getApp().packageName,
+                        opNames.toArray(new String[opNames.size()]));
+        if (usageOps == null || usageOps.isEmpty()) {
+            return null;
+        }
+        return new AppPermissionUsage.GroupUsage(group, usageOps.get(0), null);
+    }
+
+    /**
+     * Add the app ops of the permissions of a group.
+     *
+     * @param group The group
+     * @param opNames The set to add the ops to
+     */
+    private static void addOpNames(@NonNull AppPermissionGroup group,
+            @NonNull ArraySet<String> opNames) {
+        final List<Permission> permissions = group.getPermissions();
+        final int permissionCount = permissions.size();
+        for (int i = 0; i < permissionCount; i++) {
+            final String opName = permissions.get(i).getAppOp();
+            if (opName != null) {
+                opNames.add(opName);
+            }
+        }
     }
 
     private static final class UsageLoader extends AsyncTaskLoader<List<AppPermissionUsage>> {
@@ -156,9 +252,308 @@ public final class PermissionUsages implements LoaderCallbacks<List<AppPermissio
             forceLoad();
         }
 
+        /**
+         * Load the usages.
+         *
+         * <p>The permission model is loaded first to find the apps and the ops that are
+         * interesting. Then the last and historical usages of all these ops are fetched with a
+         * single call each and joined with the apps by uid and package. The historical usages
+         * are taken from the {@link PermissionUsageStore} as far as it has them, only the rest is
+         * read from the app op history.
+         */
         @Override
         public @NonNull List<AppPermissionUsage> loadInBackground() {
-            return Collections.emptyList();
+            final List<PermissionGroup> groups = PermissionGroups.getPermissionGroups(
+                    getContext(), this::isLoadInBackgroundCanceled, mGetUiInfo,
+                    mGetNonPlatformPermissions, mFilterPermissionGroups, mFilterPackageName);
+            if (groups.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            final ArraySet<String> opNames = new ArraySet<>();
+            final ArrayMap<Pair<Integer, String>, Builder> usageBuilders = new ArrayMap<>();
+            // uid -> group -> the package the stored usage of the group is attributed to
+            final SparseArray<ArrayMap<String, String>> storedUsagePackages = new SparseArray<>();
+
+            final int groupCount = groups.size();
+            for (int groupNum = 0; groupNum < groupCount; groupNum++) {
+                final PermissionGroup group = groups.get(groupNum);
+                // Only platform permissions have ops
+                if (!group.getDeclaringPackage().equals(Utils.OS_PKG)) {
+                    continue;
+                }
+
+                final List<PermissionApp> permissionApps = group.getPermissionApps().getApps();
+                final int appCount = permissionApps.size();
+                for (int appNum = 0; appNum < appCount; appNum++) {
+                    final PermissionApp permissionApp = permissionApps.get(appNum);
+                    if (mFilterUid != Process.INVALID_UID
+                            && permissionApp.getUid() != mFilterUid) {
+                        continue;
+                    }
+
+                    final AppPermissionGroup appPermGroup = permissionApp.getPermissionGroup();
+                    if (!Utils.shouldShowPermission(getContext(), appPermGroup)) {
+                        continue;
+                    }
+
+                    final Pair<Integer, String> usageKey = Pair.create(permissionApp.getUid(),
+                            permissionApp.getPackageName());
+                    Builder usageBuilder = usageBuilders.get(usageKey);
+                    if (usageBuilder == null) {
+                        usageBuilder = new Builder(permissionApp);
+                        usageBuilders.put(usageKey, usageBuilder);
+                    }
+                    usageBuilder.addGroup(appPermGroup);
+
+                    // The store only knows the uid, hence attribute the stored usage of a group
+                    // to a single package of a shared uid
+                    ArrayMap<String, String> groupPackages = storedUsagePackages.get(
+                            permissionApp.getUid());
+                    if (groupPackages == null) {
+                        groupPackages = new ArrayMap<>();
+                        storedUsagePackages.put(permissionApp.getUid(), groupPackages);
+                    }
+                    final String groupPackage = groupPackages.get(appPermGroup.getName());
+                    if (groupPackage == null
+                            || permissionApp.getPackageName().compareTo(groupPackage) < 0) {
+                        groupPackages.put(appPermGroup.getName(), permissionApp.getPackageName());
+                    }
+
+                    addOpNames(appPermGroup, opNames);
+                }
+            }
+
+            if (usageBuilders.isEmpty() || opNames.isEmpty() || isLoadInBackgroundCanceled()) {
+                return Collections.emptyList();
+            }
+
+            final AppOpsManager appOpsManager = getContext().getSystemService(AppOpsManager.class);
+
+            final ArrayMap<Pair<Integer, String>, PackageOps> lastUsages;
+            if ((mUsageFlags & USAGE_FLAG_LAST) != 0) {
+                lastUsages = loadLastUsages(appOpsManager, opNames, usageBuilders);
+            } else {
+                lastUsages = new ArrayMap<>();
+            }
+
+            if (isLoadInBackgroundCanceled()) {
+                return Collections.emptyList();
+            }
+
+            final ArrayMap<Pair<Integer, String>, HistoricalPackageOps> historicalUsages;
+            SparseArray<ArrayMap<String, Usage>> storedUsages = null;
+            if ((mUsageFlags & USAGE_FLAG_HISTORICAL) != 0) {
+                final PermissionUsageStore store = PermissionUsageStore.get(getContext());
+                final long storedUntilMillis = store.getUpdatedUntilMillis();
+
+                if (storedUntilMillis > mFilterBeginTimeMillis
+                        && store.hasUsagesSince(mFilterBeginTimeMillis)
+                        && areAllUidsOfThisUser(usageBuilders)) {
+                    // Only the usages that are not in the store yet need to be read from the
+                    // app op history
+                    storedUsages = store.getUsages(mFilterBeginTimeMillis,
+                            Math.min(storedUntilMillis, mFilterEndTimeMillis));
+                    if (mFilterEndTimeMillis > storedUntilMillis) {
+                        historicalUsages = loadHistoricalUsages(appOpsManager, opNames,
+                                storedUntilMillis, mFilterEndTimeMillis);
+                    } else {
+                        historicalUsages = new ArrayMap<>();
+                    }
+                } else {
+                    historicalUsages = loadHistoricalUsages(appOpsManager, opNames,
+                            mFilterBeginTimeMillis, mFilterEndTimeMillis);
+                }
+            } else {
+                historicalUsages = new ArrayMap<>();
+            }
+
+            if (isLoadInBackgroundCanceled()) {
+                return Collections.emptyList();
+            }
+
+            // Join the usages with the apps
+            final int builderCount = usageBuilders.size();
+            final List<AppPermissionUsage> usages = new ArrayList<>(builderCount);
+            for (int i = 0; i < builderCount; i++) {
+                final Pair<Integer, String> key = usageBuilders.keyAt(i);
+                usages.add(usageBuilders.valueAt(i)
+                        .setLastUsage(lastUsages.get(key))
+                        .setHistoricalUsage(historicalUsages.get(key))
+                        .setStoredUsages(getStoredUsagesOfPackage(storedUsages,
+                                storedUsagePackages, key))
+                        .build());
+            }
+
+            return usages;
+        }
+
+        /**
+         * Get the stored usages attributed to a package.
+         *
+         * <p>The {@link PermissionUsageStore store} keeps the usages per uid. To not count them
+         * once per package of a shared uid, the usage of a group is only attributed to the
+         * package with the smallest name among the loaded packages of the uid that have the
+         * group.
+         *
+         * @param storedUsages uid -> permission group -> usage, {@code null} if the store is not
+         *                     used
+         * @param storedUsagePackages uid -> permission group -> package the usage is attributed to
+         * @param key (uid, package) of the package
+         *
+         * @return permission group -> usage of the group attributed to the package
+         */
+        private static @Nullable ArrayMap<String, Usage> getStoredUsagesOfPackage(
+                @Nullable SparseArray<ArrayMap<String, Usage>> storedUsages,
+                @NonNull SparseArray<ArrayMap<String, String>> storedUsagePackages,
+                @NonNull Pair<Integer, String> key) {
+            if (storedUsages == null) {
+                return null;
+            }
+
+            final ArrayMap<String, Usage> uidUsages = storedUsages.get(key.first);
+            final ArrayMap<String, String> groupPackages = storedUsagePackages.get(key.first);
+            if (uidUsages == null || groupPackages == null) {
+                return null;
+            }
+
+            final ArrayMap<String, Usage> packageUsages = new ArrayMap<>();
+            final int usageCount = uidUsages.size();
+            for (int i = 0; i < usageCount; i++) {
+                if (key.second.equals(groupPackages.get(uidUsages.keyAt(i)))) {
+                    packageUsages.put(uidUsages.keyAt(i), uidUsages.valueAt(i));
+                }
+            }
+            return packageUsages;
+        }
+
+        /**
+         * Check if all apps belong to this user. The {@link PermissionUsageStore store} only has
+         * the usages of this user.
+         *
+         * @param usageBuilders The apps
+         *
+         * @return {@code true} iff no app is of another user
+         */
+        private static boolean areAllUidsOfThisUser(
+                @NonNull ArrayMap<Pair<Integer, String>, Builder> usageBuilders) {
+            final UserHandle myUser = Process.myUserHandle();
+
+            final int builderCount = usageBuilders.size();
+            for (int i = 0; i < builderCount; i++) {
+                if (!UserHandle.getUserHandleForUid(usageBuilders.keyAt(i).first).equals(myUser)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Load the last usages of the ops.
+         *
+         * @param appOpsManager The app ops manager
+         * @param opNames The ops to load
+         * @param usageBuilders The apps to load the usages for
+         *
+         * @return (uid, package) -> last usages of the package
+         */
+        private @NonNull ArrayMap<Pair<Integer, String>, PackageOps> loadLastUsages(
+                @NonNull AppOpsManager appOpsManager, @NonNull ArraySet<String> opNames,
+                @NonNull ArrayMap<Pair<Integer, String>, Builder> usageBuilders) {
+            final String[] opNamesArray = opNames.toArray(new String[opNames.size()]);
+
+            final List<PackageOps> usageOps;
+            if (mFilterPackageName != null) {
+                // Only the package is interesting, but it might be installed for several users
+                usageOps = new ArrayList<>();
+                final int builderCount = usageBuilders.size();
+                for (int i = 0; i < builderCount; i++) {
+                    final List<PackageOps> packageOps = appOpsManager.getOpsForPackage(
+                            usageBuilders.keyAt(i).first, usageBuilders.keyAt(i).second,
+                            opNamesArray);
+                    if (packageOps != null) {
+                        usageOps.addAll(packageOps);
+                    }
+                }
+            } else {
+                usageOps = appOpsManager.getPackagesForOps(opNamesArray);
+            }
+
+            final ArrayMap<Pair<Integer, String>, PackageOps> lastUsages = new ArrayMap<>();
+            if (usageOps != null) {
+                final int usageOpsCount = usageOps.size();
+                for (int i = 0; i < usageOpsCount; i++) {
+                    final PackageOps packageOps = usageOps.get(i);
+                    lastUsages.put(Pair.create(packageOps.getUid(), packageOps.getPackageName()),
+                            packageOps);
+                }
+            }
+            return lastUsages;
+        }
+
+        /**
+         * Load the historical usages of the ops in a time window.
+         *
+         * @param appOpsManager The app ops manager
+         * @param opNames The ops to load
+         * @param beginTimeMillis Begin of the window
+         * @param endTimeMillis End of the window
+         *
+         * @return (uid, package) -> historical usages of the package
+         */
+        private @NonNull ArrayMap<Pair<Integer, String>, HistoricalPackageOps>
+                loadHistoricalUsages(@NonNull AppOpsManager appOpsManager,
+                @NonNull ArraySet<String> opNames, long beginTimeMillis, long endTimeMillis) {
+            final ArrayMap<Pair<Integer, String>, HistoricalPackageOps> historicalUsages =
+                    new ArrayMap<>();
+
+            final AtomicReference<HistoricalOps> historicalOpsRef = new AtomicReference<>();
+            final CountDownLatch latch = new CountDownLatch(1);
+            final HistoricalOpsRequest request = new HistoricalOpsRequest.Builder(
+                    beginTimeMillis, endTimeMillis)
+                    .setUid(mFilterUid)
+                    .setPackageName(mFilterPackageName)
+                    .setOpNames(new ArrayList<>(opNames))
+                    .setFlags(AppOpsManager.OP_FLAGS_ALL_TRUSTED)
+                    .build();
+            appOpsManager.getHistoricalOps(request, Runnable::run, (HistoricalOps ops) -> {
+                historicalOpsRef.set(ops);
+                latch.countDown();
+            });
+
+            // Wait in short intervals to react to cancellation
+            long waitedMillis = 0;
+            try {
+                while (!latch.await(HISTORICAL_OPS_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    waitedMillis += HISTORICAL_OPS_POLL_MILLIS;
+                    if (isLoadInBackgroundCanceled()) {
+                        return historicalUsages;
+                    }
+                    if (waitedMillis >= HISTORICAL_OPS_TIMEOUT_MILLIS) {
+                        Log.w(LOG_TAG, "Timed out waiting for historical ops");
+                        return historicalUsages;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return historicalUsages;
+            }
+
+            final HistoricalOps historicalOps = historicalOpsRef.get();
+            if (historicalOps != null) {
+                final int uidCount = historicalOps.getUidCount();
+                for (int i = 0; i < uidCount; i++) {
+                    final HistoricalUidOps uidOps = historicalOps.getUidOpsAt(i);
+                    final int packageCount = uidOps.getPackageCount();
+                    for (int j = 0; j < packageCount; j++) {
+                        final HistoricalPackageOps packageOps = uidOps.getPackageOpsAt(j);
+                        historicalUsages.put(
+                                Pair.create(uidOps.getUid(), packageOps.getPackageName()),
+                                packageOps);
+                    }
+                }
+            }
+            return historicalUsages;
         }
     }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.model;
+
+import static android.content.pm.PackageManager.GET_PERMISSIONS;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Caches the packages of uids.
+ *
+ * <p>Runtime permission state is per uid, but apps sharing a uid are usually modeled one package
+ * at a time. This cache makes sure the packages of a uid, including the package specific data
+ * (requested permissions, target SDK), are only read once per uid.
+ *
+ * <p>The packages of a uid are dropped whenever a package of the uid is added, removed, replaced
+ * or changed. The permission state itself is not cached as the system does not report all
+ * changes of it, e.g. changes of permission flags.
+ */
+public final class UidPackagesCache {
+    private static final String LOG_TAG = UidPackagesCache.class.getSimpleName();
+
+    private static final Object sLock = new Object();
+
+    // @GuardedBy("sLock")
+    private static UidPackagesCache sInstance;
+
+    private final @NonNull Context mContext;
+
+    private final Object mLock = new Object();
+
+    /** uid -> packages of the uid */
+    // @GuardedBy("mLock")
+    private final SparseArray<List<PackageInfo>> mPackages = new SparseArray<>();
+
+    /** userId -> receiver for the package changes of the user */
+    // @GuardedBy("mLock")
+    private final SparseArray<BroadcastReceiver> mPackageMonitors = new SparseArray<>();
+
+    /**
+     * Incremented on every invalidation. State read while an invalidation happened is not
+     * cached.
+     */
+    // @GuardedBy("mLock")
+    private long mNumInvalidations;
+
+    /**
+     * Get the cache.
+     *
+     * @param context A context of this app
+     *
+     * @return The cache shared in this process
+     */
+    public static @NonNull UidPackagesCache get(@NonNull Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new UidPackagesCache(context.getApplicationContext());
+            }
+
+            return sInstance;
+        }
+    }
+
+    private UidPackagesCache(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Drop all cached state of a uid.
+     *
+     * @param uid The uid that changed
+     */
+    public void invalidate(int uid) {
+        synchronized (mLock) {
+            mPackages.remove(uid);
+            mNumInvalidations++;
+        }
+    }
+
+    /**
+     * Drop all cached state of the uids of a user.
+     *
+     * @param userId The user that changed
+     */
+    private void invalidateUser(int userId) {
+        synchronized (mLock) {
+            for (int i = mPackages.size() - 1; i >= 0; i--) {
+                if (UserHandle.getUserHandleForUid(mPackages.keyAt(i)).getIdentifier()
+                        == userId) {
+                    mPackages.removeAt(i);
+                }
+            }
+            mNumInvalidations++;
+        }
+    }
+
+    /**
+     * Start tracking the package changes of a user if not already tracked.
+     *
+     * @param userContext A context of this app for the user
+     * @param user The user
+     */
+    private void monitorPackageChanges(@NonNull Context userContext, @NonNull UserHandle user) {
+        int userId = user.getIdentifier();
+
+        BroadcastReceiver packageMonitor;
+        synchronized (mLock) {
+            if (mPackageMonitors.get(userId) != null) {
+                return;
+            }
+
+            packageMonitor = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    int uid = intent.getIntExtra(Intent.EXTRA_UID, Process.INVALID_UID);
+                    if (uid == Process.INVALID_UID) {
+                        invalidateUser(userId);
+                    } else {
+                        invalidate(uid);
+                    }
+                }
+            };
+            mPackageMonitors.put(userId, packageMonitor);
+        }
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        userContext.registerReceiver(packageMonitor, filter);
+    }
+
+    /**
+     * Get all packages sharing a uid.
+     *
+     * <p>The packages are loaded with their {@link PackageInfo#requestedPermissions requested
+     * permissions}.
+     *
+     * @param uid The uid
+     *
+     * @return The unmodifiable list of the packages of the uid, empty if there are none or if
+     *         they changed while being read
+     */
+    public @NonNull List<PackageInfo> getPackages(int uid) {
+        UserHandle user = UserHandle.getUserHandleForUid(uid);
+
+        Context userContext;
+        try {
+            userContext = mContext.createPackageContextAsUser(mContext.getPackageName(), 0,
+                    user);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(LOG_TAG, "Cannot create context for uid " + uid, e);
+            return Collections.emptyList();
+        }
+        monitorPackageChanges(userContext, user);
+
+        PackageManager pm = userContext.getPackageManager();
+
+        String[] pkgNames = pm.getPackagesForUid(uid);
+        if (pkgNames == null) {
+            invalidate(uid);
+            return Collections.emptyList();
+        }
+        Arrays.sort(pkgNames);
+
+        long numInvalidationsBeforeRead;
+        synchronized (mLock) {
+            numInvalidationsBeforeRead = mNumInvalidations;
+
+            List<PackageInfo> pkgs = mPackages.get(uid);
+
+            // Packages might have been added to or removed from a shared uid
+            if (pkgs != null && pkgs.size() == pkgNames.length) {
+                boolean isSamePackages = true;
+                int numPkgs = pkgs.size();
+                for (int i = 0; i < numPkgs; i++) {
+                    if (!pkgs.get(i).packageName.equals(pkgNames[i])) {
+                        isSamePackages = false;
+                        break;
+                    }
+                }
+
+                if (isSamePackages) {
+                    return pkgs;
+                }
+            }
+        }
+
+        ArrayList<PackageInfo> pkgs = new ArrayList<>(pkgNames.length);
+        for (String pkgName : pkgNames) {
+            try {
+                pkgs.add(pm.getPackageInfo(pkgName, GET_PERMISSIONS));
+            } catch (PackageManager.NameNotFoundException e) {
+                // Package got uninstalled in the meantime, don't cache or return the incomplete
+                // state. The uid is about to go away or to change its packages.
+                Log.w(LOG_TAG, pkgName + " was uninstalled", e);
+                return Collections.emptyList();
+            }
+        }
+
+        List<PackageInfo> unmodifiablePkgs = Collections.unmodifiableList(pkgs);
+        synchronized (mLock) {
+            if (mNumInvalidations == numInvalidationsBeforeRead) {
+                mPackages.put(uid, unmodifiablePkgs);
+            }
+        }
+
+        return unmodifiablePkgs;
+    }
+}
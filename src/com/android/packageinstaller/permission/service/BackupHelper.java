@@ -35,8 +35,6 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.UserHandle;
-import android.permission.PermissionManager;
-import android.permission.PermissionManager.SplitPermissionInfo;
 import android.util.Log;
 import android.util.Xml;
 
@@ -48,6 +46,7 @@ import com.android.packageinstaller.Constants;
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.AppPermissions;
 import com.android.packageinstaller.permission.model.Permission;
+import com.android.packageinstaller.permission.utils.SplitPermissions;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -409,28 +408,16 @@ public class BackupHelper {
                         + ATTR_PERMISSION_NAME);
             }
 
-            ArrayList<String> expandedPermissions = new ArrayList<>();
-            expandedPermissions.add(permName);
-
-            List<SplitPermissionInfo> splitPerms = context.getSystemService(
-                    PermissionManager.class).getSplitPermissions();
-
             // Expand the properties to permissions that were split between the platform version the
             // backup was taken and the current version.
-            int numSplitPerms = splitPerms.size();
-            for (int i = 0; i < numSplitPerms; i++) {
-                SplitPermissionInfo splitPerm = splitPerms.get(i);
-                if (backupPlatformVersion < splitPerm.getTargetSdk()
-                        && permName.equals(splitPerm.getSplitPermission())) {
-                    expandedPermissions.addAll(splitPerm.getNewPermissions());
-                }
-            }
+            String[] expandedPermissions = SplitPermissions.get(context).expand(permName,
+                    backupPlatformVersion);
 
             ArrayList<BackupPermissionState> parsedPermissions = new ArrayList<>(
-                    expandedPermissions.size());
-            int numExpandedPerms = expandedPermissions.size();
+                    expandedPermissions.length);
+            int numExpandedPerms = expandedPermissions.length;
             for (int i = 0; i < numExpandedPerms; i++) {
-                parsedPermissions.add(new BackupPermissionState(expandedPermissions.get(i),
+                parsedPermissions.add(new BackupPermissionState(expandedPermissions[i],
                         "true".equals(parser.getAttributeValue(null, ATTR_IS_GRANTED)),
                         "true".equals(parser.getAttributeValue(null, ATTR_USER_SET)),
                         "true".equals(parser.getAttributeValue(null, ATTR_USER_FIXED)),
@@ -43,7 +43,13 @@ import static com.android.packageinstaller.Constants.EXTRA_SESSION_ID;
 import static com.android.packageinstaller.Constants.INVALID_SESSION_ID;
 import static com.android.packageinstaller.Constants.KEY_LAST_LOCATION_ACCESS_NOTIFICATION_SHOWN;
 import static com.android.packageinstaller.Constants.KEY_LOCATION_ACCESS_CHECK_ENABLED_TIME;
+import static com.android.packageinstaller.Constants.KEY_LOCATION_ACCESS_CHECK_PROGRESS_CANDIDATES;
+import static com.android.packageinstaller.Constants.KEY_LOCATION_ACCESS_CHECK_PROGRESS_CURSOR;
+import static com.android.packageinstaller.Constants.KEY_LOCATION_ACCESS_CHECK_PROGRESS_NUM_RUNS;
+import static com.android.packageinstaller.Constants.KEY_LOCATION_ACCESS_CHECK_PROGRESS_STAGE;
+import static com.android.packageinstaller.Constants.KEY_LOCATION_ACCESS_CHECK_PROGRESS_START_TIME;
 import static com.android.packageinstaller.Constants.LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE;
+import static com.android.packageinstaller.Constants.LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE;
 import static com.android.packageinstaller.Constants.LOCATION_ACCESS_CHECK_JOB_ID;
 import static com.android.packageinstaller.Constants.LOCATION_ACCESS_CHECK_NOTIFICATION_ID;
 import static com.android.packageinstaller.Constants.PERIODIC_LOCATION_ACCESS_CHECK_JOB_ID;
@@ -61,6 +67,7 @@ import static com.android.packageinstaller.permission.utils.Utils.getSystemServi
 
 import static java.lang.System.currentTimeMillis;
 import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 import android.app.AppOpsManager;
 import android.app.AppOpsManager.OpEntry;
@@ -88,12 +95,16 @@ import android.location.LocationManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.provider.DeviceConfig;
 import android.provider.Settings;
 import android.service.notification.StatusBarNotification;
 import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -106,13 +117,22 @@ import com.android.packageinstaller.permission.ui.AppPermissionActivity;
 import com.android.packageinstaller.permission.utils.Utils;
 import com.android.permissioncontroller.R;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
@@ -139,6 +159,40 @@ public class LocationAccessCheck {
     /** Lock required for all methods called {@code ...Locked} */
     private static final Object sLock = new Object();
 
+    /** Device config property for the time budget of a single run of the check */
+    private static final String PROPERTY_LOCATION_ACCESS_CHECK_RUN_BUDGET_MILLIS =
+            "location_access_check_run_budget_millis";
+
+    /** Stage of a check: Find the packages that accessed the location in the background */
+    private static final int STAGE_COLLECT = 0;
+    /** Stage of a check: Forget about notified packages that lost the background permission */
+    private static final int STAGE_RESET = 1;
+    /** Stage of a check: Show a notification for one of the found packages */
+    private static final int STAGE_NOTIFY = 2;
+
+    /** Header of the already notified log */
+    private static final int ALREADY_NOTIFIED_LOG_MAGIC = 0x4c41434e;
+    private static final int ALREADY_NOTIFIED_LOG_VERSION = 1;
+
+    /** Record types of the already notified log */
+    private static final int ALREADY_NOTIFIED_LOG_OP_ADD = 1;
+    private static final int ALREADY_NOTIFIED_LOG_OP_REMOVE = 2;
+
+    /** The log is never compacted while it has less records than this */
+    private static final int MIN_ALREADY_NOTIFIED_LOG_RECORDS_BEFORE_COMPACTION = 32;
+
+    /**
+     * The packages we already shown a notification for, {@code null} if not loaded yet.
+     *
+     * @see #getAlreadyNotifiedPackagesLocked()
+     */
+    // @GuardedBy("sLock")
+    private static @Nullable ArraySet<UserPackage> sAlreadyNotifiedPackages;
+
+    /** Number of records currently in the already notified log */
+    // @GuardedBy("sLock")
+    private static int sAlreadyNotifiedLogNumRecords;
+
     private final Random mRandom = new Random();
 
     private final @NonNull Context mContext;
@@ -199,11 +253,125 @@ public class LocationAccessCheck {
     }
 
     /**
-     * Load the list of {@link UserPackage packages} we already shown a notification for.
+     * Get the set of {@link UserPackage packages} we already shown a notification for.
+     *
+     * <p>The set is loaded from the already notified log once per process and then kept in
+     * memory. All changes to the set have to be persisted via
+     * {@link #appendToAlreadyNotifiedLogLocked}.
+     *
+     * @return The set of packages we already shown a notification for. Must not be modified by
+     *         the caller.
+     */
+    private @NonNull ArraySet<UserPackage> getAlreadyNotifiedPackagesLocked() {
+        if (sAlreadyNotifiedPackages == null) {
+            AtomicFile logFile = new AtomicFile(new File(mContext.getFilesDir(),
+                    LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE));
+
+            sAlreadyNotifiedPackages = new ArraySet<>();
+            if (!readAlreadyNotifiedLogLocked(logFile)) {
+                sAlreadyNotifiedPackages = loadLegacyAlreadyNotifiedPackagesLocked();
+                compactAlreadyNotifiedLogLocked();
+                mContext.deleteFile(LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE);
+            }
+
+            if (DEBUG) {
+                Log.i(LOG_TAG, "Loaded " + sAlreadyNotifiedPackages.size()
+                        + " already notified packages from " + sAlreadyNotifiedLogNumRecords
+                        + " records");
+            }
+        }
+
+        return sAlreadyNotifiedPackages;
+    }
+
+    /**
+     * Replay the records of the already notified log into {@link #sAlreadyNotifiedPackages}.
+     *
+     * <p>A truncated last record, e.g. from a crash while appending, is ignored and the log is
+     * compacted to drop it.
+     *
+     * @param logFile The log to read
+     *
+     * @return {@code false} iff the log does not exist yet
+     */
+    private boolean readAlreadyNotifiedLogLocked(@NonNull AtomicFile logFile) {
+        LongSparseArray<UserHandle> usersBySerial = new LongSparseArray<>();
+        boolean needsCompaction = false;
+        sAlreadyNotifiedLogNumRecords = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                logFile.openRead()))) {
+            if (in.readInt() != ALREADY_NOTIFIED_LOG_MAGIC
+                    || in.readInt() != ALREADY_NOTIFIED_LOG_VERSION) {
+                throw new IOException("Unknown header");
+            }
+
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+
+                String pkg;
+                long serial;
+                try {
+                    pkg = in.readUTF();
+                    serial = in.readLong();
+                } catch (EOFException e) {
+                    Log.w(LOG_TAG, "Dropping truncated record in "
+                            + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE);
+                    needsCompaction = true;
+                    break;
+                }
+                sAlreadyNotifiedLogNumRecords++;
+
+                int userIndex = usersBySerial.indexOfKey(serial);
+                UserHandle user;
+                if (userIndex >= 0) {
+                    user = usersBySerial.valueAt(userIndex);
+                } else {
+                    user = mUserManager.getUserForSerialNumber(serial);
+                    usersBySerial.put(serial, user);
+                }
+
+                if (user == null) {
+                    if (DEBUG) Log.i(LOG_TAG, "Not restoring " + pkg + " as user is unknown");
+                    needsCompaction = true;
+                    continue;
+                }
+
+                UserPackage userPkg = new UserPackage(mContext, pkg, user);
+                switch (op) {
+                    case ALREADY_NOTIFIED_LOG_OP_ADD:
+                        sAlreadyNotifiedPackages.add(userPkg);
+                        break;
+                    case ALREADY_NOTIFIED_LOG_OP_REMOVE:
+                        sAlreadyNotifiedPackages.remove(userPkg);
+                        break;
+                    default:
+                        throw new IOException("Unknown op " + op);
+                }
+            }
+        } catch (FileNotFoundException ignored) {
+            return false;
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Could not read " + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE, e);
+            needsCompaction = true;
+        }
+
+        if (needsCompaction) {
+            compactAlreadyNotifiedLogLocked();
+        }
+        return true;
+    }
+
+    /**
+     * Load the list of {@link UserPackage packages} we already shown a notification for from the
+     * text file used by previous versions.
      *
      * @return The list of packages we already shown a notification for.
      */
-    private @NonNull ArraySet<UserPackage> loadAlreadyNotifiedPackagesLocked() {
+    private @NonNull ArraySet<UserPackage> loadLegacyAlreadyNotifiedPackagesLocked() {
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(
                 mContext.openFileInput(LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE)))) {
             ArraySet<UserPackage> packages = new ArraySet<>();
@@ -243,33 +411,97 @@ public class LocationAccessCheck {
     }
 
     /**
-     * Safe the list of {@link UserPackage packages} we have already shown a notification for.
-     *
-     * @param packages The list of packages we already shown a notification for.
+     * Write a single record of the already notified log.
      */
-    private void safeAlreadyNotifiedPackagesLocked(@NonNull ArraySet<UserPackage> packages) {
-        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
-                mContext.openFileOutput(LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE,
-                        MODE_PRIVATE)))) {
-            /*
-             * The format of the file is <package> <serial of user>, e.g.
-             *
-             * com.one.package 5630633845
-             * com.two.package 5630633853
-             * com.three.package 5630633853
-             */
-            int numPkgs = packages.size();
+    private void writeAlreadyNotifiedRecord(@NonNull DataOutputStream out, int op,
+            @NonNull UserPackage userPkg) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(userPkg.pkg);
+        out.writeLong(mUserManager.getSerialNumberForUser(userPkg.user));
+    }
+
+    /**
+     * Atomically rewrite the already notified log so that it only contains one record per package
+     * in {@link #sAlreadyNotifiedPackages}.
+     */
+    private void compactAlreadyNotifiedLogLocked() {
+        AtomicFile logFile = new AtomicFile(new File(mContext.getFilesDir(),
+                LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE));
+
+        FileOutputStream out = null;
+        try {
+            out = logFile.startWrite();
+
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+            dataOut.writeInt(ALREADY_NOTIFIED_LOG_MAGIC);
+            dataOut.writeInt(ALREADY_NOTIFIED_LOG_VERSION);
+
+            int numPkgs = sAlreadyNotifiedPackages.size();
             for (int i = 0; i < numPkgs; i++) {
-                UserPackage userPkg = packages.valueAt(i);
+                writeAlreadyNotifiedRecord(dataOut, ALREADY_NOTIFIED_LOG_OP_ADD,
+                        sAlreadyNotifiedPackages.valueAt(i));
+            }
+            dataOut.flush();
 
-                writer.append(userPkg.pkg);
-                writer.append(' ');
-                writer.append(
-                        Long.valueOf(mUserManager.getSerialNumberForUser(userPkg.user)).toString());
-                writer.newLine();
+            logFile.finishWrite(out);
+            sAlreadyNotifiedLogNumRecords = numPkgs;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not write " + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE, e);
+            logFile.failWrite(out);
+        }
+    }
+
+    /**
+     * Apply a change to {@link #sAlreadyNotifiedPackages} and append it to the already notified
+     * log. If the log grew too large compared to the set it describes, compact it instead.
+     *
+     * @param op {@link #ALREADY_NOTIFIED_LOG_OP_ADD} or {@link #ALREADY_NOTIFIED_LOG_OP_REMOVE}
+     * @param packages The packages to add or remove
+     */
+    private void appendToAlreadyNotifiedLogLocked(int op,
+            @NonNull Collection<UserPackage> packages) {
+        ArraySet<UserPackage> alreadyNotifiedPkgs = getAlreadyNotifiedPackagesLocked();
+
+        ArrayList<UserPackage> changedPkgs = new ArrayList<>(packages.size());
+        for (UserPackage userPkg : packages) {
+            boolean changed = op == ALREADY_NOTIFIED_LOG_OP_ADD
+                    ? alreadyNotifiedPkgs.add(userPkg)
+                    : alreadyNotifiedPkgs.remove(userPkg);
+            if (changed) {
+                changedPkgs.add(userPkg);
+            }
+        }
+
+        if (changedPkgs.isEmpty()) {
+            return;
+        }
+
+        int numChangedPkgs = changedPkgs.size();
+        if (sAlreadyNotifiedLogNumRecords + numChangedPkgs > Math.max(
+                MIN_ALREADY_NOTIFIED_LOG_RECORDS_BEFORE_COMPACTION,
+                alreadyNotifiedPkgs.size() * 2)) {
+            compactAlreadyNotifiedLogLocked();
+            return;
+        }
+
+        // Build the records in memory so that they get appended with a single write
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        try (FileOutputStream out = new FileOutputStream(new File(mContext.getFilesDir(),
+                LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE), true)) {
+            DataOutputStream dataOut = new DataOutputStream(records);
+            for (int i = 0; i < numChangedPkgs; i++) {
+                writeAlreadyNotifiedRecord(dataOut, op, changedPkgs.get(i));
             }
+
+            records.writeTo(out);
+            out.getFD().sync();
+            sAlreadyNotifiedLogNumRecords += numChangedPkgs;
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Could not write " + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_FILE, e);
+            Log.e(LOG_TAG, "Could not append to " + LOCATION_ACCESS_CHECK_ALREADY_NOTIFIED_LOG_FILE,
+                    e);
+
+            // The in-memory state is ahead of the log, rewrite the whole log
+            compactAlreadyNotifiedLogLocked();
         }
     }
 
@@ -281,9 +513,8 @@ public class LocationAccessCheck {
      */
     private void markAsNotified(@NonNull String pkg, @NonNull UserHandle user) {
         synchronized (sLock) {
-            ArraySet<UserPackage> alreadyNotifiedPackages = loadAlreadyNotifiedPackagesLocked();
-            alreadyNotifiedPackages.add(new UserPackage(mContext, pkg, user));
-            safeAlreadyNotifiedPackagesLocked(alreadyNotifiedPackages);
+            appendToAlreadyNotifiedLogLocked(ALREADY_NOTIFIED_LOG_OP_ADD,
+                    Collections.singletonList(new UserPackage(mContext, pkg, user)));
         }
     }
 
@@ -335,6 +566,9 @@ public class LocationAccessCheck {
      *
      * <p>Always run async inside a
      * {@link LocationAccessCheckJobService.AddLocationNotificationIfNeededTask}.
+     *
+     * <p>The check might not finish within a single run of the job. In this case the progress is
+     * persisted and the job asks to be rescheduled so that a later run can continue.
      */
     @WorkerThread
     private void addLocationNotificationIfNeeded(@NonNull JobParameters params,
@@ -358,9 +592,13 @@ public class LocationAccessCheck {
                     return;
                 }
 
-                addLocationNotificationIfNeeded(mAppOpsManager.getPackagesForOps(
-                        new String[]{OPSTR_FINE_LOCATION}));
-                service.jobFinished(params, false);
+                boolean isFinished = addLocationNotificationIfNeeded(mAppOpsManager
+                        .getPackagesForOps(new String[]{OPSTR_FINE_LOCATION}), new RunBudget());
+                service.jobFinished(params, !isFinished);
+            } catch (InterruptedException e) {
+                // The progress is persisted before the check can be canceled, continue in the
+                // next run
+                service.jobFinished(params, true);
             } catch (Exception e) {
                 Log.e(LOG_TAG, "Could not check for location access", e);
                 service.jobFinished(params, true);
@@ -372,74 +610,163 @@ public class LocationAccessCheck {
         }
     }
 
-    private void addLocationNotificationIfNeeded(@NonNull List<PackageOps> ops)
-            throws InterruptedException {
+    /**
+     * Run or continue a check if a location access notification should be shown.
+     *
+     * @param allOps The location ops of all packages
+     * @param budget The budget of the current run
+     *
+     * @return {@code true} iff the check finished, {@code false} if the budget was exhausted and
+     *         the check needs to be continued in a later run
+     *
+     * @throws InterruptedException If {@link #mShouldCancel}
+     */
+    private boolean addLocationNotificationIfNeeded(@NonNull List<PackageOps> allOps,
+            @NonNull RunBudget budget) throws InterruptedException {
         synchronized (sLock) {
-            List<UserPackage> packages = getLocationUsersWithNoNotificationYetLocked(ops);
+            CheckProgress progress = loadCheckProgressLocked();
+            progress.numRuns++;
 
-            // Get a random package and resolve package info
-            PackageInfo pkgInfo = null;
-            while (pkgInfo == null) {
-                throwInterruptedExceptionIfTaskIsCanceled();
+            if (progress.stage == STAGE_COLLECT) {
+                long stageStart = SystemClock.elapsedRealtime();
+                int numProcessed = collectLocationUsersLocked(allOps, progress, budget);
+                logStageTiming("collect", stageStart, numProcessed, progress);
 
-                if (packages.isEmpty()) {
-                    return;
+                if (progress.stage == STAGE_COLLECT) {
+                    saveCheckProgressLocked(progress);
+                    return false;
                 }
+            }
 
-                UserPackage packageToNotifyFor = null;
-
-                // Prefer to show notification for location controller extra package
-                int numPkgs = packages.size();
-                for (int i = 0; i < numPkgs; i++) {
-                    UserPackage pkg = packages.get(i);
+            if (progress.stage == STAGE_RESET) {
+                long stageStart = SystemClock.elapsedRealtime();
+                int numProcessed = resetAlreadyNotifiedPackagesWithoutPermissionLocked(progress,
+                        budget);
+                logStageTiming("reset", stageStart, numProcessed, progress);
 
-                    LocationManager locationManager = getSystemServiceSafe(mContext,
-                            LocationManager.class, pkg.user);
-                    if (locationManager.isExtraLocationControllerPackageEnabled() && pkg.pkg.equals(
-                            locationManager.getExtraLocationControllerPackage())) {
-                        packageToNotifyFor = pkg;
-                        break;
-                    }
+                if (progress.stage == STAGE_RESET) {
+                    saveCheckProgressLocked(progress);
+                    return false;
                 }
+            }
 
-                if (packageToNotifyFor == null) {
-                    packageToNotifyFor = packages.get(mRandom.nextInt(packages.size()));
-                }
+            long stageStart = SystemClock.elapsedRealtime();
+            List<UserPackage> packages = progress.candidates;
+            packages.removeAll(getAlreadyNotifiedPackagesLocked());
 
-                try {
-                    pkgInfo = packageToNotifyFor.getPackageInfo();
-                } catch (PackageManager.NameNotFoundException e) {
-                    packages.remove(packageToNotifyFor);
+            // The earlier stages might have finished in this run. Persist that before the
+            // notification stage can be canceled, so it does not have to be repeated.
+            saveCheckProgressLocked(progress);
+
+            int numCandidates = packages.size();
+            showNotificationForOneOfLocked(packages);
+            clearCheckProgressLocked();
+            logStageTiming("notify", stageStart, numCandidates, progress);
+
+            Log.v(LOG_TAG, "Location access check finished after " + progress.numRuns
+                    + " run(s), " + (currentTimeMillis() - progress.startTime) + " ms since start");
+            return true;
+        }
+    }
+
+    /**
+     * Show a notification for a random package of a list of packages.
+     *
+     * @param packages The packages to choose from. This parameter is modified inside of this
+     *                 method.
+     *
+     * @throws InterruptedException If {@link #mShouldCancel}
+     */
+    private void showNotificationForOneOfLocked(@NonNull List<UserPackage> packages)
+            throws InterruptedException {
+        // Get a random package and resolve package info
+        PackageInfo pkgInfo = null;
+        while (pkgInfo == null) {
+            throwInterruptedExceptionIfTaskIsCanceled();
+
+            if (packages.isEmpty()) {
+                return;
+            }
+
+            UserPackage packageToNotifyFor = null;
+
+            // Prefer to show notification for location controller extra package
+            int numPkgs = packages.size();
+            for (int i = 0; i < numPkgs; i++) {
+                UserPackage pkg = packages.get(i);
+
+                LocationManager locationManager = getSystemServiceSafe(mContext,
+                        LocationManager.class, pkg.user);
+                if (locationManager.isExtraLocationControllerPackageEnabled() && pkg.pkg.equals(
+                        locationManager.getExtraLocationControllerPackage())) {
+                    packageToNotifyFor = pkg;
+                    break;
                 }
             }
 
-            createPermissionReminderChannel(getUserHandleForUid(pkgInfo.applicationInfo.uid));
-            createNotificationForLocationUser(pkgInfo);
+            if (packageToNotifyFor == null) {
+                packageToNotifyFor = packages.get(mRandom.nextInt(packages.size()));
+            }
+
+            try {
+                pkgInfo = packageToNotifyFor.getPackageInfo();
+            } catch (PackageManager.NameNotFoundException e) {
+                packages.remove(packageToNotifyFor);
+            }
         }
+
+        createPermissionReminderChannel(getUserHandleForUid(pkgInfo.applicationInfo.uid));
+        createNotificationForLocationUser(pkgInfo);
     }
 
     /**
-     * Get the {@link UserPackage packages} which accessed the location but we have not yet shown
-     * a notification for.
+     * Find the {@link UserPackage packages} which accessed the location in the background and add
+     * them to {@link CheckProgress#candidates}.
      *
      * <p>This also ignores all packages that are excepted from the notification.
      *
-     * @return The packages we need to show a notification for
+     * <p>Packages are processed in the order of their {@link #getCursorKey cursor key}, starting
+     * after {@link CheckProgress#cursor}. Once all packages are processed
+     * {@link CheckProgress#stage} is advanced.
+     *
+     * @param allOps The location ops of all packages
+     * @param progress The progress of the current check. This parameter is modified inside of this
+     *                 method.
+     * @param budget The budget of the current run
+     *
+     * @return The number of packages processed in this run
      *
      * @throws InterruptedException If {@link #mShouldCancel}
      */
-    private @NonNull List<UserPackage> getLocationUsersWithNoNotificationYetLocked(
-            @NonNull List<PackageOps> allOps) throws InterruptedException {
-        List<UserPackage> pkgsWithLocationAccess = new ArrayList<>();
+    private int collectLocationUsersLocked(@NonNull List<PackageOps> allOps,
+            @NonNull CheckProgress progress, @NonNull RunBudget budget)
+            throws InterruptedException {
         List<UserHandle> profiles = mUserManager.getUserProfiles();
 
         LocationManager lm = mContext.getSystemService(LocationManager.class);
+        long featureEnabledTime = getLocationAccessCheckEnabledTime();
 
-        int numPkgs = allOps.size();
+        ArrayList<PackageOps> sortedOps = new ArrayList<>(allOps);
+        sortedOps.sort(Comparator.comparing(
+                packageOps -> getCursorKey(packageOps.getUid(), packageOps.getPackageName())));
+
+        int numProcessed = 0;
+        int numPkgs = sortedOps.size();
         for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
-            PackageOps packageOps = allOps.get(pkgNum);
+            PackageOps packageOps = sortedOps.get(pkgNum);
 
             String pkg = packageOps.getPackageName();
+            String cursorKey = getCursorKey(packageOps.getUid(), pkg);
+            if (progress.cursor != null && cursorKey.compareTo(progress.cursor) <= 0) {
+                continue;
+            }
+
+            if (pauseIfNeededLocked(progress, budget)) {
+                return numProcessed;
+            }
+            progress.cursor = cursorKey;
+            numProcessed++;
+
             if (pkg.equals(OS_PKG) || lm.isProviderPackage(pkg)) {
                 continue;
             }
@@ -496,22 +823,17 @@ public class LocationAccessCheck {
                 // We show only bg accesses since the location access check feature was enabled
                 // to handle cases where the feature is remotely toggled since we don't want to
                 // notify for accesses before the feature was turned on.
-                long featureEnabledTime = getLocationAccessCheckEnabledTime();
                 if (featureEnabledTime >= 0 && entry.getLastAccessBackgroundTime(
                         AppOpsManager.OP_FLAGS_ALL_TRUSTED) > featureEnabledTime) {
-                    pkgsWithLocationAccess.add(userPkg);
+                    progress.candidates.add(userPkg);
                     break;
                 }
             }
         }
 
-        ArraySet<UserPackage> alreadyNotifiedPkgs = loadAlreadyNotifiedPackagesLocked();
-        throwInterruptedExceptionIfTaskIsCanceled();
-
-        resetAlreadyNotifiedPackagesWithoutPermissionLocked(alreadyNotifiedPkgs);
-
-        pkgsWithLocationAccess.removeAll(alreadyNotifiedPkgs);
-        return pkgsWithLocationAccess;
+        progress.stage = STAGE_RESET;
+        progress.cursor = null;
+        return numProcessed;
     }
 
     /**
@@ -669,29 +991,189 @@ public class LocationAccessCheck {
      * Go through the list of packages we already shown a notification for and remove those that do
      * not request fine background location access.
      *
-     * @param alreadyNotifiedPkgs The packages we already shown a notification for. This paramter is
-     *                            modified inside of this method.
+     * <p>Packages are processed in the order of their {@link #getCursorKey cursor key}, starting
+     * after {@link CheckProgress#cursor}. Once all packages are processed
+     * {@link CheckProgress#stage} is advanced.
+     *
+     * @param progress The progress of the current check. This parameter is modified inside of this
+     *                 method.
+     * @param budget The budget of the current run
+     *
+     * @return The number of packages processed in this run
      *
      * @throws InterruptedException If {@link #mShouldCancel}
      */
-    private void resetAlreadyNotifiedPackagesWithoutPermissionLocked(
-            @NonNull ArraySet<UserPackage> alreadyNotifiedPkgs) throws InterruptedException {
+    private int resetAlreadyNotifiedPackagesWithoutPermissionLocked(
+            @NonNull CheckProgress progress, @NonNull RunBudget budget)
+            throws InterruptedException {
+        ArrayList<UserPackage> alreadyNotifiedPkgs = new ArrayList<>(
+                getAlreadyNotifiedPackagesLocked());
+        alreadyNotifiedPkgs.sort(Comparator.comparing(
+                userPkg -> getCursorKey(userPkg.user.getIdentifier(), userPkg.pkg)));
+
         ArrayList<UserPackage> packagesToRemove = new ArrayList<>();
 
-        for (UserPackage userPkg : alreadyNotifiedPkgs) {
-            throwInterruptedExceptionIfTaskIsCanceled();
+        int numProcessed = 0;
+        try {
+            int numPkgs = alreadyNotifiedPkgs.size();
+            for (int i = 0; i < numPkgs; i++) {
+                UserPackage userPkg = alreadyNotifiedPkgs.get(i);
 
-            AppPermissionGroup bgLocationGroup = userPkg.getBackgroundLocationGroup();
-            if (bgLocationGroup == null || !bgLocationGroup.areRuntimePermissionsGranted()) {
-                packagesToRemove.add(userPkg);
+                String cursorKey = getCursorKey(userPkg.user.getIdentifier(), userPkg.pkg);
+                if (progress.cursor != null && cursorKey.compareTo(progress.cursor) <= 0) {
+                    continue;
+                }
+
+                if (pauseIfNeededLocked(progress, budget)) {
+                    return numProcessed;
+                }
+                progress.cursor = cursorKey;
+                numProcessed++;
+
+                AppPermissionGroup bgLocationGroup = userPkg.getBackgroundLocationGroup();
+                if (bgLocationGroup == null || !bgLocationGroup.areRuntimePermissionsGranted()) {
+                    packagesToRemove.add(userPkg);
+                }
+            }
+
+            progress.stage = STAGE_NOTIFY;
+            progress.cursor = null;
+            return numProcessed;
+        } finally {
+            // Also persist the packages found before the run got paused or canceled
+            if (!packagesToRemove.isEmpty()) {
+                appendToAlreadyNotifiedLogLocked(ALREADY_NOTIFIED_LOG_OP_REMOVE,
+                        packagesToRemove);
             }
         }
+    }
 
-        if (!packagesToRemove.isEmpty()) {
-            alreadyNotifiedPkgs.removeAll(packagesToRemove);
-            safeAlreadyNotifiedPackagesLocked(alreadyNotifiedPkgs);
-            throwInterruptedExceptionIfTaskIsCanceled();
+    /**
+     * Get the key used to order packages processed by a check and to remember how far a check
+     * progressed.
+     *
+     * @param id The uid or user id of the package
+     * @param pkg The name of the package
+     *
+     * @return The cursor key
+     */
+    private static @NonNull String getCursorKey(int id, @NonNull String pkg) {
+        return id + " " + pkg;
+    }
+
+    /**
+     * Check if the current run should stop processing packages. If so persist the progress.
+     *
+     * @param progress The progress of the current check
+     * @param budget The budget of the current run
+     *
+     * @return {@code true} iff the budget of the current run is exhausted
+     *
+     * @throws InterruptedException If {@link #mShouldCancel}
+     */
+    private boolean pauseIfNeededLocked(@NonNull CheckProgress progress,
+            @NonNull RunBudget budget) throws InterruptedException {
+        if (mShouldCancel != null && mShouldCancel.getAsBoolean()) {
+            saveCheckProgressLocked(progress);
+            throw new InterruptedException();
+        }
+
+        if (budget.isExhausted()) {
+            if (DEBUG) Log.i(LOG_TAG, "Budget exhausted, pausing at " + progress.cursor);
+            return true;
         }
+
+        return false;
+    }
+
+    /**
+     * Load the progress of the currently running check. If no check is running or the persisted
+     * progress is too old to be trusted, start a new check.
+     *
+     * @return The progress of the check
+     */
+    private @NonNull CheckProgress loadCheckProgressLocked() {
+        CheckProgress progress = new CheckProgress();
+
+        long startTime = mSharedPrefs.getLong(KEY_LOCATION_ACCESS_CHECK_PROGRESS_START_TIME, 0);
+        long now = currentTimeMillis();
+        if (startTime <= 0 || startTime > now
+                || now - startTime > getPeriodicCheckIntervalMillis()) {
+            progress.startTime = now;
+            return progress;
+        }
+
+        progress.startTime = startTime;
+        progress.stage = mSharedPrefs.getInt(KEY_LOCATION_ACCESS_CHECK_PROGRESS_STAGE,
+                STAGE_COLLECT);
+        progress.cursor = mSharedPrefs.getString(KEY_LOCATION_ACCESS_CHECK_PROGRESS_CURSOR, null);
+        progress.numRuns = mSharedPrefs.getInt(KEY_LOCATION_ACCESS_CHECK_PROGRESS_NUM_RUNS, 0);
+
+        for (String candidate : mSharedPrefs.getStringSet(
+                KEY_LOCATION_ACCESS_CHECK_PROGRESS_CANDIDATES, Collections.emptySet())) {
+            int separator = candidate.indexOf(' ');
+            try {
+                UserHandle user = UserHandle.of(Integer.parseInt(
+                        candidate.substring(0, separator)));
+                progress.candidates.add(new UserPackage(mContext,
+                        candidate.substring(separator + 1), user));
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "Ignoring candidate \"" + candidate + "\"", e);
+            }
+        }
+
+        return progress;
+    }
+
+    /**
+     * Persist the progress of the currently running check so that a later run can continue it.
+     *
+     * @param progress The progress to persist
+     */
+    private void saveCheckProgressLocked(@NonNull CheckProgress progress) {
+        ArraySet<String> candidates = new ArraySet<>();
+        int numCandidates = progress.candidates.size();
+        for (int i = 0; i < numCandidates; i++) {
+            UserPackage userPkg = progress.candidates.get(i);
+            candidates.add(getCursorKey(userPkg.user.getIdentifier(), userPkg.pkg));
+        }
+
+        mSharedPrefs.edit()
+                .putLong(KEY_LOCATION_ACCESS_CHECK_PROGRESS_START_TIME, progress.startTime)
+                .putInt(KEY_LOCATION_ACCESS_CHECK_PROGRESS_STAGE, progress.stage)
+                .putString(KEY_LOCATION_ACCESS_CHECK_PROGRESS_CURSOR, progress.cursor)
+                .putInt(KEY_LOCATION_ACCESS_CHECK_PROGRESS_NUM_RUNS, progress.numRuns)
+                .putStringSet(KEY_LOCATION_ACCESS_CHECK_PROGRESS_CANDIDATES, candidates)
+                .apply();
+    }
+
+    /**
+     * Forget about the progress of the currently running check.
+     */
+    private void clearCheckProgressLocked() {
+        mSharedPrefs.edit()
+                .remove(KEY_LOCATION_ACCESS_CHECK_PROGRESS_START_TIME)
+                .remove(KEY_LOCATION_ACCESS_CHECK_PROGRESS_STAGE)
+                .remove(KEY_LOCATION_ACCESS_CHECK_PROGRESS_CURSOR)
+                .remove(KEY_LOCATION_ACCESS_CHECK_PROGRESS_NUM_RUNS)
+                .remove(KEY_LOCATION_ACCESS_CHECK_PROGRESS_CANDIDATES)
+                .apply();
+    }
+
+    /**
+     * Log how long a stage of a check took. Use these numbers to tune
+     * {@link #getPeriodicCheckIntervalMillis()} and {@link #getFlexForPeriodicCheckMillis()}.
+     *
+     * @param stageName The name of the stage
+     * @param stageStart When the stage started, in {@link SystemClock#elapsedRealtime()}
+     * @param numProcessed Number of packages processed in the stage
+     * @param progress The progress of the current check
+     */
+    private static void logStageTiming(@NonNull String stageName, long stageStart,
+            int numProcessed, @NonNull CheckProgress progress) {
+        Log.v(LOG_TAG, "Location access check stage " + stageName + " processed " + numProcessed
+                + " package(s) in " + (SystemClock.elapsedRealtime() - stageStart) + " ms (run "
+                + progress.numRuns + ")");
     }
 
     /**
@@ -709,9 +1191,8 @@ public class LocationAccessCheck {
                         pkg, LOCATION_ACCESS_CHECK_NOTIFICATION_ID);
             }
 
-            ArraySet<UserPackage> packages = loadAlreadyNotifiedPackagesLocked();
-            packages.remove(new UserPackage(mContext, pkg, user));
-            safeAlreadyNotifiedPackagesLocked(packages);
+            appendToAlreadyNotifiedLogLocked(ALREADY_NOTIFIED_LOG_OP_REMOVE,
+                    Collections.singletonList(new UserPackage(mContext, pkg, user)));
         }
     }
 
@@ -820,11 +1301,12 @@ public class LocationAccessCheck {
         }
 
         /**
-         * Abort the check if still running.
+         * Abort the check if still running. The progress of the check is persisted so that the
+         * next run can continue it.
          *
          * @param params ignored
          *
-         * @return false
+         * @return {@code true} iff a check was aborted and needs to be rescheduled
          */
         @Override
         public boolean onStopJob(JobParameters params) {
@@ -846,7 +1328,7 @@ public class LocationAccessCheck {
                 Log.e(LOG_TAG, "While waiting for " + task + " to finish", e);
             }
 
-            return false;
+            return true;
         }
 
         /**
@@ -941,6 +1423,59 @@ public class LocationAccessCheck {
         }
     }
 
+    /**
+     * Budget of a single run of a check. Once the budget is exhausted the check is paused and
+     * continued in a later run.
+     */
+    private static final class RunBudget {
+        private final long mStartElapsedRealtime = SystemClock.elapsedRealtime();
+        private final long mStartThreadTime = SystemClock.currentThreadTimeMillis();
+
+        private final long mTimeBudgetMillis = getRunTimeBudgetMillis();
+
+        /**
+         * Get the wall clock time a single run of the check may take.
+         *
+         * <p>Default: 1 minute
+         *
+         * @return The time in milliseconds
+         */
+        private static long getRunTimeBudgetMillis() {
+            return DeviceConfig.getLong(DeviceConfig.NAMESPACE_PRIVACY,
+                    PROPERTY_LOCATION_ACCESS_CHECK_RUN_BUDGET_MILLIS, MINUTES.toMillis(1));
+        }
+
+        /**
+         * @return {@code true} iff the wall clock time or the CPU time used by this run exceeds
+         *         the budget. The CPU time budget is a third of the wall clock time budget.
+         */
+        boolean isExhausted() {
+            return SystemClock.elapsedRealtime() - mStartElapsedRealtime > mTimeBudgetMillis
+                    || SystemClock.currentThreadTimeMillis() - mStartThreadTime
+                    > mTimeBudgetMillis / 3;
+        }
+    }
+
+    /**
+     * Progress of a check that might span several runs of the job.
+     */
+    private static final class CheckProgress {
+        /** When the check was started, in {@link System#currentTimeMillis()} */
+        long startTime;
+
+        /** The stage the check is in, {@code STAGE_...} */
+        int stage = STAGE_COLLECT;
+
+        /** Key of the last package processed in the current stage, {@code null} if none */
+        @Nullable String cursor;
+
+        /** Number of runs of the job the check took so far */
+        int numRuns;
+
+        /** Packages that accessed the location in the background, found in the collect stage */
+        final @NonNull ArrayList<UserPackage> candidates = new ArrayList<>();
+    }
+
     /**
      * A immutable class containing a package name and a {@link UserHandle}.
      */
@@ -34,9 +34,9 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.AsyncTask;
+import android.os.Process;
 import android.os.UserHandle;
 import android.permission.PermissionControllerService;
-import android.permission.PermissionManager;
 import android.permission.RuntimePermissionPresentationInfo;
 import android.permission.RuntimePermissionUsageInfo;
 import android.util.ArrayMap;
@@ -47,15 +47,22 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
+import com.android.packageinstaller.permission.model.AppPermissionUsage;
+import com.android.packageinstaller.permission.model.AppPermissionUsage.GroupUsage;
 import com.android.packageinstaller.permission.model.AppPermissions;
 import com.android.packageinstaller.permission.model.Permission;
+import com.android.packageinstaller.permission.model.PermissionUsages;
+import com.android.packageinstaller.permission.model.UidPackagesCache;
+import com.android.packageinstaller.permission.utils.SplitPermissions;
 import com.android.packageinstaller.permission.utils.Utils;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.FileDescriptor;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -84,27 +91,7 @@ public final class PermissionControllerServiceImpl extends PermissionControllerS
      */
     private @NonNull ArrayList<String> addSplitPermissions(@NonNull List<String> perms,
             int targetSDK) {
-        List<PermissionManager.SplitPermissionInfo> splitPerms =
-                getSystemService(PermissionManager.class).getSplitPermissions();
-
-        // Add split permissions to the request
-        ArrayList<String> expandedPerms = new ArrayList<>(perms);
-        int numReqPerms = perms.size();
-        for (int reqPermNum = 0; reqPermNum < numReqPerms; reqPermNum++) {
-            String reqPerm = perms.get(reqPermNum);
-
-            int numSplitPerms = splitPerms.size();
-            for (int splitPermNum = 0; splitPermNum < numSplitPerms; splitPermNum++) {
-                PermissionManager.SplitPermissionInfo splitPerm = splitPerms.get(splitPermNum);
-
-                if (targetSDK < splitPerm.getTargetSdk()
-                        && splitPerm.getSplitPermission().equals(reqPerm)) {
-                    expandedPerms.addAll(splitPerm.getNewPermissions());
-                }
-            }
-        }
-
-        return expandedPerms;
+        return SplitPermissions.get(this).expand(perms, targetSDK);
     }
 
     /**
@@ -243,19 +230,13 @@ public final class PermissionControllerServiceImpl extends PermissionControllerS
 
             // Permissions are per UID. Hence permissions will be removed from all apps sharing an
             // UID.
-            String[] pkgNames = pm.getPackagesForUid(requestedPkgInfo.applicationInfo.uid);
-            if (pkgNames == null) {
-                continue;
-            }
+            List<PackageInfo> pkgInfos = UidPackagesCache.get(this).getPackages(
+                    requestedPkgInfo.applicationInfo.uid);
 
-            int numPkgNames = pkgNames.length;
-            for (int pkgNum = 0; pkgNum < numPkgNames; pkgNum++) {
-                String pkgName = pkgNames[pkgNum];
-
-                PackageInfo pkgInfo = getPkgInfo(pkgName);
-                if (pkgInfo == null) {
-                    continue;
-                }
+            int numPkgs = pkgInfos.size();
+            for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
+                PackageInfo pkgInfo = pkgInfos.get(pkgNum);
+                String pkgName = pkgInfo.packageName;
 
                 // If the revocation is because of a market policy violation only the installer can
                 // revoke the permissions.
@@ -496,7 +477,44 @@ public final class PermissionControllerServiceImpl extends PermissionControllerS
 
     private @NonNull List<RuntimePermissionUsageInfo> onGetPermissionUsages(
             boolean countSystem, long numMillis) {
-        return Collections.emptyList();
+        long curTime = System.currentTimeMillis();
+        long filterBeginTimeMillis = Math.max(curTime - numMillis, 0);
+
+        // Only the last access times are needed, not the history
+        List<AppPermissionUsage> appUsages = PermissionUsages.loadSync(this,
+                Process.INVALID_UID, null, null, filterBeginTimeMillis, Long.MAX_VALUE,
+                PermissionUsages.USAGE_FLAG_LAST, false, false);
+
+        ArrayMap<String, Integer> groupUsers = new ArrayMap<>();
+        int numApps = appUsages.size();
+        for (int appNum = 0; appNum < numApps; appNum++) {
+            List<GroupUsage> groupUsages = appUsages.get(appNum).getGroupUsages();
+
+            int numGroups = groupUsages.size();
+            for (int groupNum = 0; groupNum < numGroups; groupNum++) {
+                GroupUsage groupUsage = groupUsages.get(groupNum);
+
+                long lastAccessTime = groupUsage.getLastAccessTime();
+                if (lastAccessTime == 0 || curTime - lastAccessTime > numMillis) {
+                    continue;
+                }
+
+                if (!countSystem && !Utils.isGroupOrBgGroupUserSensitive(groupUsage.getGroup())) {
+                    continue;
+                }
+
+                String groupName = groupUsage.getGroup().getName();
+                groupUsers.put(groupName, groupUsers.getOrDefault(groupName, 0) + 1);
+            }
+        }
+
+        int numGroups = groupUsers.size();
+        List<RuntimePermissionUsageInfo> users = new ArrayList<>(numGroups);
+        for (int groupNum = 0; groupNum < numGroups; groupNum++) {
+            users.add(new RuntimePermissionUsageInfo(groupUsers.keyAt(groupNum),
+                    groupUsers.valueAt(groupNum)));
+        }
+        return users;
     }
 
     @Override
@@ -578,4 +596,15 @@ public final class PermissionControllerServiceImpl extends PermissionControllerS
         // TODO: Default permission grants should go here
         RuntimePermissionsUpgradeController.upgradeIfNeeded(this);
     }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0
+                && PermissionUsageStore.DUMP_ARG.equals(args[0])) {
+            PermissionUsageStore.get(this).dump(writer);
+            return;
+        }
+
+        super.dump(fd, writer, args);
+    }
 }
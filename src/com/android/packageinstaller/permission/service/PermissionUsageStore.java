@@ -0,0 +1,978 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.service;
+
+import static android.app.AppOpsManager.OP_FLAGS_ALL_TRUSTED;
+import static android.app.job.JobScheduler.RESULT_SUCCESS;
+
+import static com.android.packageinstaller.Constants.PERIODIC_PERMISSION_USAGE_STORE_JOB_ID;
+import static com.android.packageinstaller.Constants.PERMISSION_USAGE_STORE_FILE;
+import static com.android.packageinstaller.permission.utils.Utils.getSystemServiceSafe;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import android.app.AppOpsManager;
+import android.app.AppOpsManager.HistoricalOp;
+import android.app.AppOpsManager.HistoricalOps;
+import android.app.AppOpsManager.HistoricalOpsRequest;
+import android.app.AppOpsManager.HistoricalPackageOps;
+import android.app.AppOpsManager.HistoricalUidOps;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.android.packageinstaller.permission.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
+
+/**
+ * Aggregated usages of the platform permission groups by the uids of this user.
+ *
+ * <p>A periodic job reads the app op history of every hour that completed since its last run and
+ * adds it to hourly buckets. Hourly buckets are compacted into daily buckets after
+ * {@link #HOURLY_RETENTION_MILLIS}, daily buckets are dropped after {@link #RETENTION_MILLIS}.
+ * Hence usage dashboards can be answered from the store without querying the app op history for
+ * the whole time window. The buckets of uids that are no longer installed are dropped by the job.
+ *
+ * <p>Run via
+ * {@code adb shell dumpsys activity service com.android.permissioncontroller/com.android.packageinstaller.permission.service.PermissionControllerServiceImpl permission-usage-store}
+ * to print the usages of the last day and week.
+ */
+public final class PermissionUsageStore {
+    private static final String LOG_TAG = PermissionUsageStore.class.getSimpleName();
+
+    private static final boolean DEBUG = false;
+
+    /** Name of the dump argument that prints the store */
+    public static final String DUMP_ARG = "permission-usage-store";
+
+    /** Length of an hourly bucket */
+    private static final long HOUR_MILLIS = HOURS.toMillis(1);
+
+    /** Length of a daily bucket */
+    private static final long DAY_MILLIS = DAYS.toMillis(1);
+
+    /** How long hourly buckets are kept before they are compacted into daily buckets */
+    private static final long HOURLY_RETENTION_MILLIS = DAYS.toMillis(2);
+
+    /** How long usages are kept */
+    private static final long RETENTION_MILLIS = DAYS.toMillis(28);
+
+    /** How long to wait for the app op history of a single hour */
+    private static final long HISTORICAL_OPS_TIMEOUT_MILLIS = SECONDS.toMillis(30);
+
+    /** Magic number at the start of the store file */
+    private static final int FILE_MAGIC = 0x50555354;
+
+    /** Version of the format of the store file */
+    private static final int FILE_VERSION = 2;
+
+    /** Runs the updates, never blocks the serial {@link AsyncTask} executor */
+    private static final ThreadPoolExecutor sUpdateExecutor = new ThreadPoolExecutor(1, 1, 30,
+            SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        sUpdateExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Object sLock = new Object();
+
+    // @GuardedBy("sLock")
+    private static PermissionUsageStore sInstance;
+
+    /** app op -> platform permission group guarded by the op */
+    // @GuardedBy("sLock")
+    private static ArrayMap<String, String> sGroupsOfOps;
+
+    private final @NonNull Context mContext;
+
+    /** The file the store is persisted in */
+    private final @NonNull File mFile;
+
+    private final Object mLock = new Object();
+
+    /** If the store was read from disk */
+    // @GuardedBy("mLock")
+    private boolean mIsLoaded;
+
+    /** End of the last hour that was added to the store, {@code 0} if none */
+    // @GuardedBy("mLock")
+    private long mUpdatedUntilMillis;
+
+    /**
+     * Since when the store holds all usages, i.e. begin of the first hour added after the store
+     * was empty or the history could not be caught up with. {@code 0} if none.
+     */
+    // @GuardedBy("mLock")
+    private long mCoveredSinceMillis;
+
+    /** begin -> hourly bucket */
+    // @GuardedBy("mLock")
+    private final LongSparseArray<Bucket> mHourlyBuckets = new LongSparseArray<>();
+
+    /** begin -> daily bucket */
+    // @GuardedBy("mLock")
+    private final LongSparseArray<Bucket> mDailyBuckets = new LongSparseArray<>();
+
+    /**
+     * Get the store.
+     *
+     * <p>The first access in a process also makes sure the periodic update is scheduled, so the
+     * store fills even if the device was not rebooted since this app was installed or updated.
+     *
+     * @param context A context of this app
+     *
+     * @return The store shared in this process
+     */
+    public static @NonNull PermissionUsageStore get(@NonNull Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                Context appContext = context.getApplicationContext();
+                sInstance = new PermissionUsageStore(appContext,
+                        new File(appContext.getFilesDir(), PERMISSION_USAGE_STORE_FILE));
+
+                schedulePeriodicUpdate(appContext);
+            }
+
+            return sInstance;
+        }
+    }
+
+    /**
+     * Schedule the periodic job that updates the store if it is not scheduled yet.
+     *
+     * @param context A context of this app
+     */
+    private static void schedulePeriodicUpdate(@NonNull Context context) {
+        JobScheduler jobScheduler = getSystemServiceSafe(context, JobScheduler.class);
+
+        if (jobScheduler.getPendingJob(PERIODIC_PERMISSION_USAGE_STORE_JOB_ID) == null) {
+            JobInfo.Builder b = (new JobInfo.Builder(PERIODIC_PERMISSION_USAGE_STORE_JOB_ID,
+                    new ComponentName(context, UpdateJobService.class)))
+                    .setPeriodic(HOUR_MILLIS);
+
+            int scheduleResult = jobScheduler.schedule(b.build());
+            if (scheduleResult != RESULT_SUCCESS) {
+                Log.e(LOG_TAG, "Could not schedule permission usage store update "
+                        + scheduleResult);
+            }
+        }
+    }
+
+    /**
+     * Create a store persisted in a file. Usually there is only one store that can be
+     * {@link #get retrieved}.
+     *
+     * @param context A context of this app
+     * @param file The file the store is persisted in
+     */
+    PermissionUsageStore(@NonNull Context context, @NonNull File file) {
+        mContext = context;
+        mFile = file;
+    }
+
+    /**
+     * @return End of the last hour that was added to the store, {@code 0} if none. Usages after
+     *         this time are not in the store yet.
+     */
+    @WorkerThread
+    public long getUpdatedUntilMillis() {
+        synchronized (mLock) {
+            loadLocked();
+
+            return mUpdatedUntilMillis;
+        }
+    }
+
+    /**
+     * Check if the store holds all usages since a time, i.e. if {@link #getUsages} can be used
+     * for a window beginning at that time.
+     *
+     * @param beginTimeMillis Begin of the window
+     *
+     * @return {@code true} iff no usages since the time are missing from the store
+     */
+    @WorkerThread
+    public boolean hasUsagesSince(long beginTimeMillis) {
+        synchronized (mLock) {
+            loadLocked();
+
+            return mCoveredSinceMillis != 0 && beginTimeMillis >= mCoveredSinceMillis;
+        }
+    }
+
+    /**
+     * Get the aggregated usages in a time window.
+     *
+     * <p>Buckets that overlap the window are counted completely, i.e. the window is extended to
+     * hourly boundaries for the last {@link #HOURLY_RETENTION_MILLIS} and to daily boundaries
+     * before that. The hour that is currently running is not in the store yet.
+     *
+     * @param beginTimeMillis Begin of the window
+     * @param endTimeMillis End of the window
+     *
+     * @return uid -> permission group -> usage of the group by the uid
+     */
+    @WorkerThread
+    public @NonNull SparseArray<ArrayMap<String, Usage>> getUsages(long beginTimeMillis,
+            long endTimeMillis) {
+        SparseArray<ArrayMap<String, Usage>> usages = new SparseArray<>();
+
+        synchronized (mLock) {
+            loadLocked();
+
+            addOverlappingBucketsLocked(mDailyBuckets, beginTimeMillis, endTimeMillis, usages);
+            addOverlappingBucketsLocked(mHourlyBuckets, beginTimeMillis, endTimeMillis, usages);
+        }
+
+        return usages;
+    }
+
+    private static void addOverlappingBucketsLocked(@NonNull LongSparseArray<Bucket> buckets,
+            long beginTimeMillis, long endTimeMillis,
+            @NonNull SparseArray<ArrayMap<String, Usage>> usages) {
+        int numBuckets = buckets.size();
+        for (int i = 0; i < numBuckets; i++) {
+            Bucket bucket = buckets.valueAt(i);
+
+            if (bucket.mBeginMillis < endTimeMillis
+                    && bucket.mBeginMillis + bucket.mDurationMillis > beginTimeMillis) {
+                bucket.addTo(usages);
+            }
+        }
+    }
+
+    /**
+     * Add the app op history of all hours that completed since the last update, then compact and
+     * persist the store.
+     *
+     * @param currentTimeMillis The current time
+     * @param isCanceled Checked between hours, the progress up to the last complete hour is kept
+     */
+    @WorkerThread
+    void update(long currentTimeMillis, @NonNull CancellationCheck isCanceled) {
+        ArrayMap<String, String> groupsOfOps = getGroupsOfPlatformOps();
+        List<String> opNames = new ArrayList<>(groupsOfOps.keySet());
+        AppOpsManager appOpsManager = getSystemServiceSafe(mContext, AppOpsManager.class);
+
+        long hourBegin;
+        synchronized (mLock) {
+            loadLocked();
+
+            // Older history ends up in a daily bucket anyway, but would have to be read hour by
+            // hour
+            hourBegin = Math.max(mUpdatedUntilMillis,
+                    getBucketBegin(currentTimeMillis - HOURLY_RETENTION_MILLIS, HOUR_MILLIS));
+        }
+        long lastHourBegin = getBucketBegin(currentTimeMillis, HOUR_MILLIS) - HOUR_MILLIS;
+
+        // Only this job updates the store, hence the history can be read without holding the
+        // lock
+        for (; hourBegin <= lastHourBegin; hourBegin += HOUR_MILLIS) {
+            if (isCanceled.isCanceled()) {
+                break;
+            }
+
+            HistoricalOps historicalOps = loadHistoricalOps(appOpsManager, opNames, hourBegin,
+                    hourBegin + HOUR_MILLIS);
+            if (historicalOps == null) {
+                break;
+            }
+
+            synchronized (mLock) {
+                // Either the store is empty or hours in between could not be read anymore
+                if (hourBegin != mUpdatedUntilMillis) {
+                    mCoveredSinceMillis = hourBegin;
+                }
+
+                addHistoricalOpsLocked(hourBegin, historicalOps, groupsOfOps);
+                mUpdatedUntilMillis = hourBegin + HOUR_MILLIS;
+            }
+        }
+
+        PackageManager pm = mContext.getPackageManager();
+        purgeUids(uid -> pm.getPackagesForUid(uid) == null);
+
+        synchronized (mLock) {
+            compactLocked(currentTimeMillis);
+            writeLocked();
+        }
+    }
+
+    /**
+     * Drop all usages of uids, e.g. of uids that are not installed anymore.
+     *
+     * @param isUidRemoved Checked for every uid in the store without holding the lock
+     */
+    @WorkerThread
+    void purgeUids(@NonNull IntPredicate isUidRemoved) {
+        ArraySet<Integer> uids = new ArraySet<>();
+        synchronized (mLock) {
+            loadLocked();
+
+            addUidsLocked(mHourlyBuckets, uids);
+            addUidsLocked(mDailyBuckets, uids);
+        }
+
+        ArraySet<Integer> removedUids = new ArraySet<>();
+        int numUids = uids.size();
+        for (int i = 0; i < numUids; i++) {
+            if (isUidRemoved.test(uids.valueAt(i))) {
+                removedUids.add(uids.valueAt(i));
+            }
+        }
+
+        if (removedUids.isEmpty()) {
+            return;
+        }
+
+        synchronized (mLock) {
+            removeUidsLocked(mHourlyBuckets, removedUids);
+            removeUidsLocked(mDailyBuckets, removedUids);
+        }
+    }
+
+    private static void addUidsLocked(@NonNull LongSparseArray<Bucket> buckets,
+            @NonNull ArraySet<Integer> uids) {
+        int numBuckets = buckets.size();
+        for (int bucketNum = 0; bucketNum < numBuckets; bucketNum++) {
+            SparseArray<ArrayMap<String, Usage>> usages = buckets.valueAt(bucketNum).mUsages;
+
+            int numUids = usages.size();
+            for (int i = 0; i < numUids; i++) {
+                uids.add(usages.keyAt(i));
+            }
+        }
+    }
+
+    private static void removeUidsLocked(@NonNull LongSparseArray<Bucket> buckets,
+            @NonNull ArraySet<Integer> uids) {
+        for (int bucketNum = buckets.size() - 1; bucketNum >= 0; bucketNum--) {
+            Bucket bucket = buckets.valueAt(bucketNum);
+
+            int numUids = uids.size();
+            for (int i = 0; i < numUids; i++) {
+                bucket.mUsages.remove(uids.valueAt(i));
+            }
+
+            if (bucket.mUsages.size() == 0) {
+                buckets.removeAt(bucketNum);
+            }
+        }
+    }
+
+    /**
+     * Compact the store as if it was updated at a time.
+     *
+     * @param currentTimeMillis The current time
+     *
+     * @see #compactLocked
+     */
+    void compact(long currentTimeMillis) {
+        synchronized (mLock) {
+            loadLocked();
+
+            compactLocked(currentTimeMillis);
+        }
+    }
+
+    /**
+     * Persist the store.
+     */
+    @WorkerThread
+    void write() {
+        synchronized (mLock) {
+            loadLocked();
+
+            writeLocked();
+        }
+    }
+
+    /**
+     * Add usages to the store.
+     *
+     * <p>Usually called with the history read from the app ops. Can be used to feed synthetic
+     * usages.
+     *
+     * @param timeMillis When the usage happened
+     * @param uid The uid that used the permission group
+     * @param permissionGroup The permission group used
+     * @param usage The usage
+     */
+    void addUsage(long timeMillis, int uid, @NonNull String permissionGroup,
+            @NonNull Usage usage) {
+        synchronized (mLock) {
+            loadLocked();
+
+            getOrCreateBucketLocked(mHourlyBuckets, getBucketBegin(timeMillis, HOUR_MILLIS),
+                    HOUR_MILLIS).getOrCreateUsage(uid, permissionGroup).add(usage);
+        }
+    }
+
+    private void addHistoricalOpsLocked(long hourBegin, @NonNull HistoricalOps historicalOps,
+            @NonNull ArrayMap<String, String> groupsOfOps) {
+        UserHandle myUser = Process.myUserHandle();
+        Bucket bucket = null;
+
+        int numUids = historicalOps.getUidCount();
+        for (int uidNum = 0; uidNum < numUids; uidNum++) {
+            HistoricalUidOps uidOps = historicalOps.getUidOpsAt(uidNum);
+            int uid = uidOps.getUid();
+
+            // Other users have their own store
+            if (!UserHandle.getUserHandleForUid(uid).equals(myUser)) {
+                continue;
+            }
+
+            int numPkgs = uidOps.getPackageCount();
+            for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
+                HistoricalPackageOps pkgOps = uidOps.getPackageOpsAt(pkgNum);
+
+                int numOps = pkgOps.getOpCount();
+                for (int opNum = 0; opNum < numOps; opNum++) {
+                    HistoricalOp op = pkgOps.getOpAt(opNum);
+
+                    String group = groupsOfOps.get(op.getOpName());
+                    if (group == null) {
+                        continue;
+                    }
+
+                    Usage opUsage = new Usage(op.getForegroundAccessCount(OP_FLAGS_ALL_TRUSTED),
+                            op.getBackgroundAccessCount(OP_FLAGS_ALL_TRUSTED),
+                            op.getForegroundAccessDuration(OP_FLAGS_ALL_TRUSTED),
+                            op.getBackgroundAccessDuration(OP_FLAGS_ALL_TRUSTED));
+                    if (opUsage.isEmpty()) {
+                        continue;
+                    }
+
+                    if (bucket == null) {
+                        bucket = getOrCreateBucketLocked(mHourlyBuckets, hourBegin, HOUR_MILLIS);
+                    }
+                    bucket.getOrCreateUsage(uid, group).add(opUsage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move hourly buckets older than {@link #HOURLY_RETENTION_MILLIS} into daily buckets and drop
+     * buckets older than {@link #RETENTION_MILLIS}.
+     */
+    private void compactLocked(long currentTimeMillis) {
+        long hourlyCutoff = currentTimeMillis - HOURLY_RETENTION_MILLIS;
+        while (mHourlyBuckets.size() > 0 && mHourlyBuckets.keyAt(0) < hourlyCutoff) {
+            Bucket hourlyBucket = mHourlyBuckets.valueAt(0);
+            mHourlyBuckets.removeAt(0);
+
+            getOrCreateBucketLocked(mDailyBuckets,
+                    getBucketBegin(hourlyBucket.mBeginMillis, DAY_MILLIS), DAY_MILLIS)
+                    .add(hourlyBucket);
+        }
+
+        long cutoff = currentTimeMillis - RETENTION_MILLIS;
+        while (mDailyBuckets.size() > 0
+                && mDailyBuckets.keyAt(0) + DAY_MILLIS <= cutoff) {
+            mDailyBuckets.removeAt(0);
+        }
+
+        // All days that ended before the cutoff are dropped
+        if (mCoveredSinceMillis != 0) {
+            mCoveredSinceMillis = Math.max(mCoveredSinceMillis,
+                    getBucketBegin(cutoff, DAY_MILLIS));
+        }
+    }
+
+    private static @NonNull Bucket getOrCreateBucketLocked(@NonNull LongSparseArray<Bucket> buckets,
+            long beginMillis, long durationMillis) {
+        Bucket bucket = buckets.get(beginMillis);
+        if (bucket == null) {
+            bucket = new Bucket(beginMillis, durationMillis);
+            buckets.put(beginMillis, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * @return The begin of the bucket containing the time. Buckets are aligned to the epoch.
+     */
+    private static long getBucketBegin(long timeMillis, long durationMillis) {
+        return timeMillis - Math.floorMod(timeMillis, durationMillis);
+    }
+
+    /**
+     * Read the app op history of a time window.
+     *
+     * @return The history or {@code null} if it could not be read
+     */
+    private static @Nullable HistoricalOps loadHistoricalOps(@NonNull AppOpsManager appOpsManager,
+            @NonNull List<String> opNames, long beginTimeMillis, long endTimeMillis) {
+        AtomicReference<HistoricalOps> historicalOpsRef = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+
+        HistoricalOpsRequest request = new HistoricalOpsRequest.Builder(beginTimeMillis,
+                endTimeMillis)
+                .setOpNames(opNames)
+                .setFlags(OP_FLAGS_ALL_TRUSTED)
+                .build();
+        appOpsManager.getHistoricalOps(request, Runnable::run, ops -> {
+            historicalOpsRef.set(ops);
+            latch.countDown();
+        });
+
+        try {
+            if (!latch.await(HISTORICAL_OPS_TIMEOUT_MILLIS, MILLISECONDS)) {
+                Log.w(LOG_TAG, "Timed out reading app op history");
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        return historicalOpsRef.get();
+    }
+
+    /**
+     * Get the app ops of the platform runtime permissions.
+     *
+     * @return app op -> group of the first platform permission guarded by the op
+     */
+    private static @NonNull ArrayMap<String, String> getGroupsOfPlatformOps() {
+        synchronized (sLock) {
+            if (sGroupsOfOps == null) {
+                sGroupsOfOps = new ArrayMap<>();
+
+                List<String> groups = Utils.getPlatformPermissionGroups();
+                int numGroups = groups.size();
+                for (int groupNum = 0; groupNum < numGroups; groupNum++) {
+                    String group = groups.get(groupNum);
+                    List<String> permissions = Utils.getPlatformPermissionNamesOfGroup(group);
+
+                    int numPermissions = permissions.size();
+                    for (int i = 0; i < numPermissions; i++) {
+                        String opName = AppOpsManager.permissionToOp(permissions.get(i));
+                        if (opName != null && !sGroupsOfOps.containsKey(opName)) {
+                            sGroupsOfOps.put(opName, group);
+                        }
+                    }
+                }
+            }
+
+            return sGroupsOfOps;
+        }
+    }
+
+    /**
+     * Read the store from disk if not already done.
+     */
+    private void loadLocked() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+
+        AtomicFile file = new AtomicFile(mFile);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                file.openRead()))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown header");
+            }
+
+            mUpdatedUntilMillis = in.readLong();
+            mCoveredSinceMillis = in.readLong();
+            readBuckets(in, mHourlyBuckets);
+            readBuckets(in, mDailyBuckets);
+        } catch (FileNotFoundException ignored) {
+            // First run
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read " + mFile, e);
+
+            mUpdatedUntilMillis = 0;
+            mCoveredSinceMillis = 0;
+            mHourlyBuckets.clear();
+            mDailyBuckets.clear();
+        }
+
+        if (DEBUG) {
+            Log.i(LOG_TAG, "Loaded " + mHourlyBuckets.size() + " hourly and "
+                    + mDailyBuckets.size() + " daily buckets");
+        }
+    }
+
+    private static void readBuckets(@NonNull DataInputStream in,
+            @NonNull LongSparseArray<Bucket> buckets) throws IOException {
+        int numBuckets = in.readInt();
+        for (int bucketNum = 0; bucketNum < numBuckets; bucketNum++) {
+            Bucket bucket = new Bucket(in.readLong(), in.readLong());
+
+            int numUsages = in.readInt();
+            for (int i = 0; i < numUsages; i++) {
+                int uid = in.readInt();
+                String group = in.readUTF();
+                bucket.getOrCreateUsage(uid, group).add(new Usage(in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong()));
+            }
+
+            buckets.put(bucket.mBeginMillis, bucket);
+        }
+    }
+
+    /**
+     * Atomically rewrite the store file.
+     */
+    private void writeLocked() {
+        AtomicFile file = new AtomicFile(mFile);
+
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+            dataOut.writeInt(FILE_MAGIC);
+            dataOut.writeInt(FILE_VERSION);
+            dataOut.writeLong(mUpdatedUntilMillis);
+            dataOut.writeLong(mCoveredSinceMillis);
+            writeBuckets(dataOut, mHourlyBuckets);
+            writeBuckets(dataOut, mDailyBuckets);
+            dataOut.flush();
+
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not write " + mFile, e);
+            file.failWrite(out);
+        }
+    }
+
+    private static void writeBuckets(@NonNull DataOutputStream out,
+            @NonNull LongSparseArray<Bucket> buckets) throws IOException {
+        int numBuckets = buckets.size();
+        out.writeInt(numBuckets);
+        for (int bucketNum = 0; bucketNum < numBuckets; bucketNum++) {
+            Bucket bucket = buckets.valueAt(bucketNum);
+            out.writeLong(bucket.mBeginMillis);
+            out.writeLong(bucket.mDurationMillis);
+
+            out.writeInt(bucket.getNumUsages());
+            int numUids = bucket.mUsages.size();
+            for (int uidNum = 0; uidNum < numUids; uidNum++) {
+                int uid = bucket.mUsages.keyAt(uidNum);
+                ArrayMap<String, Usage> uidUsages = bucket.mUsages.valueAt(uidNum);
+
+                int numGroups = uidUsages.size();
+                for (int i = 0; i < numGroups; i++) {
+                    Usage usage = uidUsages.valueAt(i);
+
+                    out.writeInt(uid);
+                    out.writeUTF(uidUsages.keyAt(i));
+                    out.writeLong(usage.mForegroundAccessCount);
+                    out.writeLong(usage.mBackgroundAccessCount);
+                    out.writeLong(usage.mForegroundAccessDuration);
+                    out.writeLong(usage.mBackgroundAccessDuration);
+                }
+            }
+        }
+    }
+
+    /**
+     * Print the usages of the last day and week.
+     *
+     * @param writer Where to print to
+     */
+    @WorkerThread
+    public void dump(@NonNull PrintWriter writer) {
+        long now = System.currentTimeMillis();
+
+        synchronized (mLock) {
+            loadLocked();
+
+            writer.println("Covered: " + mCoveredSinceMillis + " - " + mUpdatedUntilMillis);
+            writer.println("Buckets: " + mHourlyBuckets.size() + " hourly, "
+                    + mDailyBuckets.size() + " daily");
+        }
+
+        dumpUsages(writer, "Last day", getUsages(now - DAY_MILLIS, now));
+        dumpUsages(writer, "Last week", getUsages(now - DAYS.toMillis(7), now));
+    }
+
+    private static void dumpUsages(@NonNull PrintWriter writer, @NonNull String title,
+            @NonNull SparseArray<ArrayMap<String, Usage>> usages) {
+        writer.println(title + ":");
+
+        int numUids = usages.size();
+        for (int uidNum = 0; uidNum < numUids; uidNum++) {
+            ArrayMap<String, Usage> uidUsages = usages.valueAt(uidNum);
+
+            int numGroups = uidUsages.size();
+            for (int i = 0; i < numGroups; i++) {
+                writer.println("  " + usages.keyAt(uidNum) + " " + uidUsages.keyAt(i) + ": "
+                        + uidUsages.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Checks if an operation was canceled.
+     */
+    interface CancellationCheck {
+        /**
+         * @return {@code true} iff the operation should stop
+         */
+        boolean isCanceled();
+    }
+
+    /**
+     * The aggregated usage of a permission group by a uid.
+     */
+    public static final class Usage {
+        private long mForegroundAccessCount;
+        private long mBackgroundAccessCount;
+        private long mForegroundAccessDuration;
+        private long mBackgroundAccessDuration;
+
+        Usage(long foregroundAccessCount, long backgroundAccessCount,
+                long foregroundAccessDuration, long backgroundAccessDuration) {
+            mForegroundAccessCount = foregroundAccessCount;
+            mBackgroundAccessCount = backgroundAccessCount;
+            mForegroundAccessDuration = foregroundAccessDuration;
+            mBackgroundAccessDuration = backgroundAccessDuration;
+        }
+
+        private Usage() {
+        }
+
+        public long getForegroundAccessCount() {
+            return mForegroundAccessCount;
+        }
+
+        public long getBackgroundAccessCount() {
+            return mBackgroundAccessCount;
+        }
+
+        public long getAccessCount() {
+            return mForegroundAccessCount + mBackgroundAccessCount;
+        }
+
+        public long getForegroundAccessDuration() {
+            return mForegroundAccessDuration;
+        }
+
+        public long getBackgroundAccessDuration() {
+            return mBackgroundAccessDuration;
+        }
+
+        public long getAccessDuration() {
+            return mForegroundAccessDuration + mBackgroundAccessDuration;
+        }
+
+        private boolean isEmpty() {
+            return getAccessCount() == 0 && getAccessDuration() == 0;
+        }
+
+        private void add(@NonNull Usage other) {
+            mForegroundAccessCount += other.mForegroundAccessCount;
+            mBackgroundAccessCount += other.mBackgroundAccessCount;
+            mForegroundAccessDuration += other.mForegroundAccessDuration;
+            mBackgroundAccessDuration += other.mBackgroundAccessDuration;
+        }
+
+        @Override
+        public String toString() {
+            return "fg " + mForegroundAccessCount + "x " + mForegroundAccessDuration + "ms, bg "
+                    + mBackgroundAccessCount + "x " + mBackgroundAccessDuration + "ms";
+        }
+    }
+
+    /**
+     * The usages in a time window.
+     */
+    private static final class Bucket {
+        final long mBeginMillis;
+        final long mDurationMillis;
+
+        /** uid -> permission group -> usage */
+        final SparseArray<ArrayMap<String, Usage>> mUsages = new SparseArray<>();
+
+        Bucket(long beginMillis, long durationMillis) {
+            mBeginMillis = beginMillis;
+            mDurationMillis = durationMillis;
+        }
+
+        @NonNull Usage getOrCreateUsage(int uid, @NonNull String permissionGroup) {
+            return getOrCreateUsage(mUsages, uid, permissionGroup);
+        }
+
+        static @NonNull Usage getOrCreateUsage(@NonNull SparseArray<ArrayMap<String, Usage>> usages,
+                int uid, @NonNull String permissionGroup) {
+            ArrayMap<String, Usage> uidUsages = usages.get(uid);
+            if (uidUsages == null) {
+                uidUsages = new ArrayMap<>();
+                usages.put(uid, uidUsages);
+            }
+
+            Usage usage = uidUsages.get(permissionGroup);
+            if (usage == null) {
+                usage = new Usage();
+                uidUsages.put(permissionGroup, usage);
+            }
+            return usage;
+        }
+
+        int getNumUsages() {
+            int numUsages = 0;
+
+            int numUids = mUsages.size();
+            for (int i = 0; i < numUids; i++) {
+                numUsages += mUsages.valueAt(i).size();
+            }
+            return numUsages;
+        }
+
+        /**
+         * Add the usages of this bucket to a table of usages.
+         */
+        void addTo(@NonNull SparseArray<ArrayMap<String, Usage>> usages) {
+            int numUids = mUsages.size();
+            for (int uidNum = 0; uidNum < numUids; uidNum++) {
+                int uid = mUsages.keyAt(uidNum);
+                ArrayMap<String, Usage> uidUsages = mUsages.valueAt(uidNum);
+
+                int numGroups = uidUsages.size();
+                for (int i = 0; i < numGroups; i++) {
+                    getOrCreateUsage(usages, uid, uidUsages.keyAt(i)).add(uidUsages.valueAt(i));
+                }
+            }
+        }
+
+        /**
+         * Add the usages of another bucket to this one.
+         */
+        void add(@NonNull Bucket other) {
+            other.addTo(mUsages);
+        }
+    }
+
+    /**
+     * On boot and when this app was updated set up the periodic job that updates the store.
+     */
+    public static class SetupPeriodicUpdate extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            schedulePeriodicUpdate(context);
+        }
+    }
+
+    /**
+     * Adds the app op history since the last run to the store.
+     */
+    public static class UpdateJobService extends JobService {
+        /** If an update is running, the task executing it */
+        // @GuardedBy("sLock")
+        private @Nullable UpdateTask mUpdateTask;
+
+        @Override
+        public boolean onStartJob(JobParameters params) {
+            synchronized (sLock) {
+                if (mUpdateTask != null) {
+                    return false;
+                }
+
+                mUpdateTask = new UpdateTask();
+                mUpdateTask.executeOnExecutor(sUpdateExecutor, params);
+            }
+
+            return true;
+        }
+
+        /**
+         * Abort the update if still running. The hours added so far are kept.
+         *
+         * @param params ignored
+         *
+         * @return {@code true} iff an update was aborted and needs to be rescheduled
+         */
+        @Override
+        public boolean onStopJob(JobParameters params) {
+            UpdateTask task;
+            synchronized (sLock) {
+                if (mUpdateTask == null) {
+                    return false;
+                }
+                task = mUpdateTask;
+            }
+
+            task.cancel(false);
+            return true;
+        }
+
+        /**
+         * A {@link AsyncTask task} that runs the update in the background.
+         */
+        private class UpdateTask extends AsyncTask<JobParameters, Void, Void> {
+            @Override
+            protected final Void doInBackground(JobParameters... params) {
+                PermissionUsageStore.get(UpdateJobService.this).update(
+                        System.currentTimeMillis(), this::isCancelled);
+
+                synchronized (sLock) {
+                    mUpdateTask = null;
+                }
+
+                if (!isCancelled()) {
+                    jobFinished(params[0], false);
+                }
+                return null;
+            }
+        }
+    }
+}
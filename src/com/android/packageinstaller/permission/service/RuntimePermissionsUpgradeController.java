@@ -16,30 +16,29 @@
 
 package com.android.packageinstaller.permission.service;
 
-import static com.android.packageinstaller.PermissionControllerStatsLog.RUNTIME_PERMISSIONS_UPGRADE_RESULT;
-
 import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.content.pm.PermissionInfo;
 import android.permission.PermissionManager;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import com.android.packageinstaller.PermissionControllerStatsLog;
-import com.android.packageinstaller.permission.model.AppPermissionGroup;
-import com.android.packageinstaller.permission.model.Permission;
+import com.android.packageinstaller.permission.service.RuntimePermissionsUpgradeTable.PermissionState;
 import com.android.packageinstaller.permission.utils.ArrayUtils;
 import com.android.packageinstaller.permission.utils.Utils;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * This class handles upgrading the runtime permissions database
+ *
+ * <p>All upgrade steps run in a single pass over a {@link RuntimePermissionsUpgradeTable snapshot}
+ * of the packages. The steps only record their changes in the table, the changes are written to
+ * the platform in one batch once all steps ran. Only whitelist changes are written earlier if a
+ * later step reads the state of a whitelisted package, as the original upgrade whitelisted before
+ * reading the packages.
  */
 class RuntimePermissionsUpgradeController {
     private static final String LOG_TAG = RuntimePermissionsUpgradeController.class.getSimpleName();
@@ -47,6 +46,38 @@ class RuntimePermissionsUpgradeController {
     // The latest version of the runtime permissions database
     private static final int LATEST_VERSION = 8;
 
+    /**
+     * A step upgrading the runtime permissions database by one version.
+     */
+    interface UpgradeStep {
+        /**
+         * Record all changes needed for this step in the table.
+         *
+         * @param table The state of all packages
+         * @param sdkUpgradedFromP {@code true} iff the device is upgraded from Android P
+         */
+        void upgrade(@NonNull RuntimePermissionsUpgradeTable table, boolean sdkUpgradedFromP);
+    }
+
+    /**
+     * The upgrade steps. Step {@code n} upgrades the database from version {@code n} to
+     * {@code n + 1}. When you add a new upgrade step you *must* update LATEST_VERSION.
+     */
+    static final UpgradeStep[] UPGRADE_STEPS = new UpgradeStep[]{
+            /* 0 -> 1 */ RuntimePermissionsUpgradeController::grandfatherSmsAndCallLogPermissions,
+            // moved to step 4->5 as it has to be after the grandfathering of loc bg perms
+            /* 1 -> 2 */ (table, sdkUpgradedFromP) -> { },
+            // moved to step 5->6 to clean up broken permission state during dogfooding
+            /* 2 -> 3 */ (table, sdkUpgradedFromP) -> { },
+            /* 3 -> 4 */ RuntimePermissionsUpgradeController::grandfatherBackgroundLocation,
+            // moved to step 5->6 to clean up broken permission state during beta 4->5 upgrade
+            /* 4 -> 5 */ (table, sdkUpgradedFromP) -> { },
+            /* 5 -> 6 */ RuntimePermissionsUpgradeController::grandfatherStoragePermissions,
+            /* 6 -> 7 */ RuntimePermissionsUpgradeController::expandLocationPermissions,
+            /* 7 -> 8 */ RuntimePermissionsUpgradeController::expandReadStorageToMediaLocation,
+            // XXX: Add new upgrade steps above this point.
+    };
+
     private RuntimePermissionsUpgradeController() {
         /* do nothing - hide constructor */
     }
@@ -56,9 +87,11 @@ class RuntimePermissionsUpgradeController {
                 PermissionManager.class);
         final int currentVersion = permissionManager.getRuntimePermissionsVersion();
 
-        whitelistAllSystemAppPermissions(context);
+        final RuntimePermissionsUpgradeTable table = new RuntimePermissionsUpgradeTable(context);
 
-        final int upgradedVersion = onUpgradeLocked(context, currentVersion);
+        whitelistAllSystemAppPermissions(table);
+
+        final int upgradedVersion = onUpgradeLocked(table, currentVersion);
 
         if (upgradedVersion != LATEST_VERSION) {
             Log.wtf("PermissionControllerService", "warning: upgrading permission database"
@@ -68,6 +101,8 @@ class RuntimePermissionsUpgradeController {
             throw new RuntimeException("db upgrade error");
         }
 
+        table.applyChanges();
+
         if (currentVersion != upgradedVersion) {
             permissionManager.setRuntimePermissionsVersion(LATEST_VERSION);
         }
@@ -79,30 +114,25 @@ class RuntimePermissionsUpgradeController {
      * <p>Apps that are updated via OTAs are never installed. Hence their permission are never
      * whitelisted. This code replaces that by always whitelisting them.
      *
-     * @param context A context to talk to the platform
+     * @param table The state of all packages
      */
-    private static void whitelistAllSystemAppPermissions(@NonNull Context context) {
+    static void whitelistAllSystemAppPermissions(@NonNull RuntimePermissionsUpgradeTable table) {
         // Only whitelist permissions that are in the OTA. For non-OTA updates the installer should
         // do the white-listing
-        final List<PackageInfo> apps = context.getPackageManager()
-                .getInstalledPackages(PackageManager.GET_PERMISSIONS
-                        | PackageManager.MATCH_UNINSTALLED_PACKAGES
-                        | PackageManager.MATCH_FACTORY_ONLY);
+        final List<PackageInfo> apps = table.getAllPackages();
 
         final int appCount = apps.size();
         for (int i = 0; i < appCount; i++) {
             final PackageInfo app = apps.get(i);
 
-            if (app.requestedPermissions == null) {
+            final String[] factoryRequestedPermissions = table.getFactoryRequestedPermissions(app);
+            if (factoryRequestedPermissions == null) {
                 continue;
             }
 
-            for (String requestedPermission : app.requestedPermissions) {
-                final PermissionInfo permInfo;
-                try {
-                    permInfo = context.getPackageManager().getPermissionInfo(
-                            requestedPermission, 0);
-                } catch (PackageManager.NameNotFoundException e) {
+            for (String requestedPermission : factoryRequestedPermissions) {
+                final PermissionInfo permInfo = table.getPermissionInfo(requestedPermission);
+                if (permInfo == null) {
                     continue;
                 }
 
@@ -111,9 +141,7 @@ class RuntimePermissionsUpgradeController {
                     continue;
                 }
 
-                context.getPackageManager().addWhitelistedRestrictedPermission(
-                        app.packageName, requestedPermission,
-                        PackageManager.FLAG_PERMISSION_WHITELIST_UPGRADE);
+                table.whitelistRestrictedPermission(app.packageName, requestedPermission);
             }
         }
     }
@@ -121,17 +149,13 @@ class RuntimePermissionsUpgradeController {
     /**
      * You must perform all necessary mutations to bring the runtime permissions
      * database from the old to the new version. When you add a new upgrade step
-     * you *must* update LATEST_VERSION.
+     * you *must* add it to UPGRADE_STEPS and update LATEST_VERSION.
      *
-     * @param context Context to access APIs.
+     * @param table The state of all packages, records the mutations.
      * @param currentVersion The current db version.
      */
-    private static int onUpgradeLocked(@NonNull Context context, int currentVersion) {
-        final List<PackageInfo> apps = context.getPackageManager()
-                .getInstalledPackages(PackageManager.MATCH_ALL
-                        | PackageManager.GET_PERMISSIONS);
-        final int appCount = apps.size();
-
+    static int onUpgradeLocked(@NonNull RuntimePermissionsUpgradeTable table,
+            int currentVersion) {
         final boolean sdkUpgradedFromP;
         if (currentVersion <= -1) {
             Log.i(LOG_TAG, "Upgrading from Android P");
@@ -143,190 +167,152 @@ class RuntimePermissionsUpgradeController {
             sdkUpgradedFromP = false;
         }
 
-        if (currentVersion == 0) {
-            Log.i(LOG_TAG, "Grandfathering SMS and CallLog permissions");
-
-            final List<String> smsPermissions = Utils.getPlatformPermissionNamesOfGroup(
-                    android.Manifest.permission_group.SMS);
-            final List<String> callLogPermissions = Utils.getPlatformPermissionNamesOfGroup(
-                    Manifest.permission_group.CALL_LOG);
-
-            for (int i = 0; i < appCount; i++) {
-                final PackageInfo app = apps.get(i);
-                if (app.requestedPermissions == null) {
-                    continue;
-                }
-
-                for (String requestedPermission : app.requestedPermissions) {
-                    if (smsPermissions.contains(requestedPermission)
-                            || callLogPermissions.contains(requestedPermission)) {
-                        context.getPackageManager().addWhitelistedRestrictedPermission(
-                                app.packageName, requestedPermission,
-                                PackageManager.FLAG_PERMISSION_WHITELIST_UPGRADE);
-                    }
-                }
-            }
-            currentVersion = 1;
+        while (currentVersion < UPGRADE_STEPS.length) {
+            UPGRADE_STEPS[currentVersion].upgrade(table, sdkUpgradedFromP);
+            currentVersion++;
         }
 
-        if (currentVersion == 1) {
-            // moved to step 4->5 as it has to be after the grandfathering of loc bg perms
-            currentVersion = 2;
-        }
+        return currentVersion;
+    }
 
-        if (currentVersion == 2) {
-            // moved to step 5->6 to clean up broken permission state during dogfooding
-            currentVersion = 3;
-        }
+    private static void grandfatherSmsAndCallLogPermissions(
+            @NonNull RuntimePermissionsUpgradeTable table, boolean sdkUpgradedFromP) {
+        Log.i(LOG_TAG, "Grandfathering SMS and CallLog permissions");
 
-        if (currentVersion == 3) {
-            Log.i(LOG_TAG, "Grandfathering location background permissions");
+        final List<String> smsPermissions = Utils.getPlatformPermissionNamesOfGroup(
+                android.Manifest.permission_group.SMS);
+        final List<String> callLogPermissions = Utils.getPlatformPermissionNamesOfGroup(
+                Manifest.permission_group.CALL_LOG);
 
-            for (int i = 0; i < appCount; i++) {
-                final PackageInfo app = apps.get(i);
-                if (app.requestedPermissions == null) {
-                    continue;
-                }
+        final List<PackageInfo> apps = table.getPackages();
+        final int appCount = apps.size();
+        for (int i = 0; i < appCount; i++) {
+            final PackageInfo app = apps.get(i);
+            if (app.requestedPermissions == null) {
+                continue;
+            }
 
-                for (String requestedPermission : app.requestedPermissions) {
-                    if (requestedPermission.equals(
-                            Manifest.permission.ACCESS_BACKGROUND_LOCATION)) {
-                        context.getPackageManager().addWhitelistedRestrictedPermission(
-                                app.packageName, Manifest.permission.ACCESS_BACKGROUND_LOCATION,
-                                PackageManager.FLAG_PERMISSION_WHITELIST_UPGRADE);
-                        break;
-                    }
+            for (String requestedPermission : app.requestedPermissions) {
+                if (smsPermissions.contains(requestedPermission)
+                        || callLogPermissions.contains(requestedPermission)) {
+                    table.whitelistRestrictedPermission(app.packageName, requestedPermission);
                 }
             }
-            currentVersion = 4;
         }
+    }
 
-        if (currentVersion == 4) {
-            // moved to step 5->6 to clean up broken permission state during beta 4->5 upgrade
-            currentVersion = 5;
-        }
-
-        if (currentVersion == 5) {
-            Log.i(LOG_TAG, "Grandfathering Storage permissions");
-
-            final List<String> storagePermissions = Utils.getPlatformPermissionNamesOfGroup(
-                    Manifest.permission_group.STORAGE);
+    private static void grandfatherBackgroundLocation(
+            @NonNull RuntimePermissionsUpgradeTable table, boolean sdkUpgradedFromP) {
+        Log.i(LOG_TAG, "Grandfathering location background permissions");
 
-            for (int i = 0; i < appCount; i++) {
-                final PackageInfo app = apps.get(i);
-                if (app.requestedPermissions == null) {
-                    continue;
-                }
+        final List<PackageInfo> apps = table.getPackages();
+        final int appCount = apps.size();
+        for (int i = 0; i < appCount; i++) {
+            final PackageInfo app = apps.get(i);
 
-                // We don't want to allow modification of storage post install, so put it
-                // on the internal system whitelist to prevent the installer changing it.
-                for (String requestedPermission : app.requestedPermissions) {
-                    if (storagePermissions.contains(requestedPermission)) {
-                        context.getPackageManager().addWhitelistedRestrictedPermission(
-                                app.packageName, requestedPermission,
-                                PackageManager.FLAG_PERMISSION_WHITELIST_UPGRADE);
-                    }
-                }
+            if (ArrayUtils.contains(app.requestedPermissions,
+                    Manifest.permission.ACCESS_BACKGROUND_LOCATION)) {
+                table.whitelistRestrictedPermission(app.packageName,
+                        Manifest.permission.ACCESS_BACKGROUND_LOCATION);
             }
-            currentVersion = 6;
         }
+    }
 
-        if (currentVersion == 6) {
-            if (sdkUpgradedFromP) {
-                Log.i(LOG_TAG, "Expanding location permissions");
-
-                for (int i = 0; i < appCount; i++) {
-                    final PackageInfo app = apps.get(i);
-                    if (app.requestedPermissions == null) {
-                        continue;
-                    }
-
-                    for (String perm : app.requestedPermissions) {
-                        String groupName = Utils.getGroupOfPlatformPermission(perm);
-
-                        if (!TextUtils.equals(groupName, Manifest.permission_group.LOCATION)) {
-                            continue;
-                        }
-
-                        final AppPermissionGroup group = AppPermissionGroup.create(context, app,
-                                perm, false);
-                        final AppPermissionGroup bgGroup = group.getBackgroundPermissions();
+    private static void grandfatherStoragePermissions(
+            @NonNull RuntimePermissionsUpgradeTable table, boolean sdkUpgradedFromP) {
+        Log.i(LOG_TAG, "Grandfathering Storage permissions");
 
-                        if (group.areRuntimePermissionsGranted()
-                                && bgGroup != null
-                                && !bgGroup.isUserSet() && !bgGroup.isSystemFixed()
-                                && !bgGroup.isPolicyFixed()) {
-                            bgGroup.grantRuntimePermissions(group.isUserFixed());
+        final List<String> storagePermissions = Utils.getPlatformPermissionNamesOfGroup(
+                Manifest.permission_group.STORAGE);
 
-                            logRuntimePermissionUpgradeResult(bgGroup,
-                                    app.applicationInfo.uid, app.packageName);
-                        }
+        final List<PackageInfo> apps = table.getPackages();
+        final int appCount = apps.size();
+        for (int i = 0; i < appCount; i++) {
+            final PackageInfo app = apps.get(i);
+            if (app.requestedPermissions == null) {
+                continue;
+            }
 
-                        break;
-                    }
+            // We don't want to allow modification of storage post install, so put it
+            // on the internal system whitelist to prevent the installer changing it.
+            for (String requestedPermission : app.requestedPermissions) {
+                if (storagePermissions.contains(requestedPermission)) {
+                    table.whitelistRestrictedPermission(app.packageName, requestedPermission);
                 }
-            } else {
-                Log.i(LOG_TAG, "Not expanding location permissions as this is not an upgrade "
-                        + "from Android P");
             }
-
-            currentVersion = 7;
         }
+    }
 
-        if (currentVersion == 7) {
-            Log.i(LOG_TAG, "Expanding read storage to access media location");
+    private static void expandLocationPermissions(@NonNull RuntimePermissionsUpgradeTable table,
+            boolean sdkUpgradedFromP) {
+        if (!sdkUpgradedFromP) {
+            Log.i(LOG_TAG, "Not expanding location permissions as this is not an upgrade "
+                    + "from Android P");
+            return;
+        }
 
-            for (int i = 0; i < appCount; i++) {
-                final PackageInfo pkgInfo = apps.get(i);
+        Log.i(LOG_TAG, "Expanding location permissions");
 
-                if (!ArrayUtils.contains(pkgInfo.requestedPermissions,
-                        Manifest.permission.ACCESS_MEDIA_LOCATION)) {
-                    continue;
-                }
+        final List<PackageInfo> apps = table.getPackages();
+        final int appCount = apps.size();
+        for (int i = 0; i < appCount; i++) {
+            final PackageInfo app = apps.get(i);
+            if (!ArrayUtils.contains(app.requestedPermissions,
+                    Manifest.permission.ACCESS_BACKGROUND_LOCATION)) {
+                continue;
+            }
 
-                if (context.checkPermission(Manifest.permission.READ_EXTERNAL_STORAGE, 0,
-                        pkgInfo.applicationInfo.uid) != PackageManager.PERMISSION_GRANTED) {
-                    continue;
-                }
+            final PermissionState bgPerm = table.getPermissionState(app,
+                    Manifest.permission.ACCESS_BACKGROUND_LOCATION);
+            if (bgPerm == null) {
+                continue;
+            }
 
-                final AppPermissionGroup group = AppPermissionGroup.create(context, pkgInfo,
-                        Manifest.permission.ACCESS_MEDIA_LOCATION, false);
-                final Permission perm = group.getPermission(
-                        Manifest.permission.ACCESS_MEDIA_LOCATION);
+            boolean isFgGranted = false;
+            boolean isFgUserFixed = false;
 
-                if (!perm.isUserSet() && !perm.isSystemFixed() && !perm.isPolicyFixed()
-                        && !perm.isGrantedIncludingAppOp()) {
-                    group.grantRuntimePermissions(false,
-                            new String[]{Manifest.permission.ACCESS_MEDIA_LOCATION});
+            final List<PermissionState> fgPerms = bgPerm.getForegroundPermissions();
+            final int numFgPerms = fgPerms.size();
+            for (int fgPermNum = 0; fgPermNum < numFgPerms; fgPermNum++) {
+                final PermissionState fgPerm = fgPerms.get(fgPermNum);
 
-                    logRuntimePermissionUpgradeResult(group,
-                            pkgInfo.applicationInfo.uid, pkgInfo.packageName,
-                            Manifest.permission.ACCESS_MEDIA_LOCATION);
-                }
+                isFgGranted |= fgPerm.isGrantedIncludingAppOp();
+                isFgUserFixed |= fgPerm.isUserFixed();
             }
 
-            currentVersion = 8;
+            if (isFgGranted && !bgPerm.isUserSet() && !bgPerm.isSystemFixed()
+                    && !bgPerm.isPolicyFixed()) {
+                bgPerm.grant(isFgUserFixed);
+            }
         }
+    }
 
-        // XXX: Add new upgrade steps above this point.
+    private static void expandReadStorageToMediaLocation(
+            @NonNull RuntimePermissionsUpgradeTable table, boolean sdkUpgradedFromP) {
+        Log.i(LOG_TAG, "Expanding read storage to access media location");
 
-        return currentVersion;
-    }
+        final List<PackageInfo> apps = table.getPackages();
+        final int appCount = apps.size();
+        for (int i = 0; i < appCount; i++) {
+            final PackageInfo pkgInfo = apps.get(i);
 
-    private static void logRuntimePermissionUpgradeResult(AppPermissionGroup permissionGroup,
-            int uid, String packageName, String... filterPermissions) {
-        ArrayList<Permission> permissions = permissionGroup.getPermissions();
-        int numPermissions = permissions.size();
-        for (int i = 0; i < numPermissions; i++) {
-            if (filterPermissions != null && !ArrayUtils.contains(filterPermissions, permissions)) {
+            if (!ArrayUtils.contains(pkgInfo.requestedPermissions,
+                    Manifest.permission.ACCESS_MEDIA_LOCATION)) {
                 continue;
             }
 
-            Permission permission = permissions.get(i);
-            PermissionControllerStatsLog.write(RUNTIME_PERMISSIONS_UPGRADE_RESULT,
-                    permission.getName(), uid, packageName);
-            Log.v(LOG_TAG, "Runtime permission upgrade logged for permissionName="
-                    + permission.getName() + " uid=" + uid + " packageName=" + packageName);
+            if (!table.isPermissionGranted(Manifest.permission.READ_EXTERNAL_STORAGE,
+                    pkgInfo.applicationInfo.uid)) {
+                continue;
+            }
+
+            final PermissionState perm = table.getPermissionState(pkgInfo,
+                    Manifest.permission.ACCESS_MEDIA_LOCATION);
+
+            if (perm != null && !perm.isUserSet() && !perm.isSystemFixed()
+                    && !perm.isPolicyFixed() && !perm.isGrantedIncludingAppOp()) {
+                perm.grant(false);
+            }
         }
     }
 }
@@ -0,0 +1,841 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.service;
+
+import static android.app.AppOpsManager.MODE_ALLOWED;
+import static android.app.AppOpsManager.MODE_FOREGROUND;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import static com.android.packageinstaller.PermissionControllerStatsLog.RUNTIME_PERMISSIONS_UPGRADE_RESULT;
+
+import android.Manifest;
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.os.Build;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.packageinstaller.PermissionControllerStatsLog;
+import com.android.packageinstaller.permission.model.AppOpsSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * In-memory view of the runtime permission state of all packages used while upgrading the runtime
+ * permissions database.
+ *
+ * <p>The installed packages are loaded once. Upgrade steps read the state through this table and
+ * record their changes in it. Nothing is written to the platform until {@link #applyChanges()} is
+ * called, which then issues all writes in one batch: first the whitelist changes, then the
+ * changed permissions.
+ *
+ * <p>The only exception are whitelist changes recorded before a permission state is read. As
+ * whitelisting changes the state of a permission, they are written before the read and the
+ * state of the whitelisted packages is read again.
+ *
+ * @see RuntimePermissionsUpgradeController
+ */
+final class RuntimePermissionsUpgradeTable {
+    private static final String LOG_TAG = RuntimePermissionsUpgradeTable.class.getSimpleName();
+
+    /** Flags {@link PermissionState#grant} might change */
+    private static final int UPGRADE_FLAGS_MASK = PackageManager.FLAG_PERMISSION_USER_SET
+            | PackageManager.FLAG_PERMISSION_USER_FIXED
+            | PackageManager.FLAG_PERMISSION_REVOKE_ON_UPGRADE
+            | PackageManager.FLAG_PERMISSION_REVIEW_REQUIRED;
+
+    private final @NonNull Platform mPlatform;
+
+    /** All packages, including the ones not installed for the current user */
+    private final @NonNull List<PackageInfo> mAllPackages;
+
+    /** The packages installed for the current user */
+    private final @NonNull List<PackageInfo> mPackages;
+
+    /** permission name -> info, {@code null} values for permissions that do not exist */
+    private final ArrayMap<String, PermissionInfo> mPermissionInfos = new ArrayMap<>();
+
+    /** package name -> permission name -> state */
+    private final ArrayMap<String, ArrayMap<String, PermissionState>> mPermissionStates =
+            new ArrayMap<>();
+
+    /** package name -> restricted permissions to whitelist */
+    private final ArrayMap<String, ArraySet<String>> mPendingWhitelist = new ArrayMap<>();
+
+    /** Packages whitelisted after they were loaded, their state has to be read again */
+    private final ArraySet<String> mStalePackages = new ArraySet<>();
+
+    /** Permissions changed by upgrade steps, in the order they were changed */
+    private final ArrayList<PermissionState> mChangedPermissions = new ArrayList<>();
+
+    /**
+     * Access to the platform. All reads and writes of the table go through this interface.
+     */
+    interface Platform {
+        /**
+         * @return All packages with their requested permissions, including the ones not installed
+         *         for the current user
+         */
+        @NonNull List<PackageInfo> getAllPackages();
+
+        /**
+         * @return The package with its requested permissions or {@code null} if it does not exist
+         *         anymore
+         */
+        @Nullable PackageInfo getPackage(@NonNull String packageName);
+
+        /**
+         * @return The permissions requested by the version of the package on the system image or
+         *         {@code null} if the package is not on the system image
+         */
+        @Nullable String[] getFactoryRequestedPermissions(@NonNull String packageName);
+
+        /**
+         * @return The info of the permission or {@code null} if it does not exist
+         */
+        @Nullable PermissionInfo getPermissionInfo(@NonNull String permission);
+
+        int getPermissionFlags(@NonNull String permission, @NonNull String packageName,
+                @NonNull UserHandle user);
+
+        int checkPermission(@NonNull String permission, int uid);
+
+        int getAppOpMode(@NonNull String op, int uid, @NonNull String packageName);
+
+        void addWhitelistedRestrictedPermission(@NonNull String packageName,
+                @NonNull String permission);
+
+        void grantRuntimePermission(@NonNull String packageName, @NonNull String permission,
+                @NonNull UserHandle user);
+
+        void updatePermissionFlags(@NonNull String permission, @NonNull String packageName,
+                int flagMask, int flagValues, @NonNull UserHandle user);
+
+        void setUidMode(@NonNull String op, int uid, int mode);
+
+        /** Schedule a {@link LocationAccessCheck} as background location was granted */
+        void checkLocationAccessSoon();
+
+        /** Log that a permission was changed by an upgrade step */
+        void logUpgradeResult(@NonNull String permission, int uid, @NonNull String packageName);
+    }
+
+    /**
+     * Create a new table and load the packages.
+     *
+     * @param platform Used to read and write the permission state
+     */
+    RuntimePermissionsUpgradeTable(@NonNull Platform platform) {
+        mPlatform = platform;
+        mAllPackages = platform.getAllPackages();
+
+        mPackages = new ArrayList<>(mAllPackages.size());
+        int numPkgs = mAllPackages.size();
+        for (int i = 0; i < numPkgs; i++) {
+            PackageInfo pkg = mAllPackages.get(i);
+            if ((pkg.applicationInfo.flags & ApplicationInfo.FLAG_INSTALLED) != 0) {
+                mPackages.add(pkg);
+            }
+        }
+    }
+
+    /**
+     * Create a new table that uses the platform.
+     *
+     * @param context A context to talk to the platform
+     */
+    RuntimePermissionsUpgradeTable(@NonNull Context context) {
+        this(new DevicePlatform(context));
+    }
+
+    /**
+     * @return The packages installed for the current user
+     */
+    @NonNull List<PackageInfo> getPackages() {
+        return mPackages;
+    }
+
+    /**
+     * @return All packages, including the ones not installed for the current user
+     */
+    @NonNull List<PackageInfo> getAllPackages() {
+        return mAllPackages;
+    }
+
+    /**
+     * Get the permissions requested by the version of a package that is on the system image.
+     *
+     * <p>Only updated system packages need to be looked up, for all other packages the snapshot
+     * already contains the answer.
+     *
+     * @param pkg The package
+     *
+     * @return The requested permissions or {@code null} if the package is not on the system image
+     */
+    @Nullable String[] getFactoryRequestedPermissions(@NonNull PackageInfo pkg) {
+        int flags = pkg.applicationInfo.flags;
+        if ((flags & ApplicationInfo.FLAG_SYSTEM) == 0) {
+            return null;
+        }
+
+        if ((flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0) {
+            return pkg.requestedPermissions;
+        }
+
+        return mPlatform.getFactoryRequestedPermissions(pkg.packageName);
+    }
+
+    /**
+     * Get the info for a permission. Each permission is only looked up once.
+     *
+     * @param permission The name of the permission
+     *
+     * @return The info or {@code null} if the permission does not exist
+     */
+    @Nullable PermissionInfo getPermissionInfo(@NonNull String permission) {
+        int index = mPermissionInfos.indexOfKey(permission);
+        if (index >= 0) {
+            return mPermissionInfos.valueAt(index);
+        }
+
+        PermissionInfo permissionInfo = mPlatform.getPermissionInfo(permission);
+        mPermissionInfos.put(permission, permissionInfo);
+        return permissionInfo;
+    }
+
+    /**
+     * Get the state of a runtime permission requested by a package.
+     *
+     * @param pkg The package
+     * @param permission The name of the permission
+     *
+     * @return The state or {@code null} if the package does not request the permission or it is
+     *         not a runtime permission
+     */
+    @Nullable PermissionState getPermissionState(@NonNull PackageInfo pkg,
+            @NonNull String permission) {
+        reloadIfStale(pkg);
+
+        ArrayMap<String, PermissionState> pkgStates = mPermissionStates.get(pkg.packageName);
+        if (pkgStates == null) {
+            pkgStates = new ArrayMap<>();
+            mPermissionStates.put(pkg.packageName, pkgStates);
+        }
+
+        int index = pkgStates.indexOfKey(permission);
+        if (index >= 0) {
+            return pkgStates.valueAt(index);
+        }
+
+        PermissionState state = null;
+
+        int requestedIndex = indexOf(pkg.requestedPermissions, permission);
+        PermissionInfo permissionInfo = getPermissionInfo(permission);
+        if (requestedIndex >= 0 && permissionInfo != null
+                && permissionInfo.getProtection() == PermissionInfo.PROTECTION_DANGEROUS
+                && (permissionInfo.flags & PermissionInfo.FLAG_INSTALLED) != 0
+                && (permissionInfo.flags & PermissionInfo.FLAG_REMOVED) == 0) {
+            state = new PermissionState(pkg, permissionInfo,
+                    (pkg.requestedPermissionsFlags[requestedIndex]
+                            & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0,
+                    mPlatform.getPermissionFlags(permission, pkg.packageName,
+                            UserHandle.getUserHandleForUid(pkg.applicationInfo.uid)));
+        }
+
+        pkgStates.put(permission, state);
+        return state;
+    }
+
+    /**
+     * Check if a permission is granted to a uid.
+     *
+     * <p>If a package of the uid requests the permission the answer is taken from the table,
+     * otherwise the platform is asked.
+     *
+     * @param permission The name of the permission
+     * @param uid The uid
+     *
+     * @return {@code true} iff the permission is granted
+     */
+    boolean isPermissionGranted(@NonNull String permission, int uid) {
+        int numPkgs = mPackages.size();
+        for (int i = 0; i < numPkgs; i++) {
+            PackageInfo pkg = mPackages.get(i);
+            if (pkg.applicationInfo.uid != uid) {
+                continue;
+            }
+
+            int requestedIndex = indexOf(pkg.requestedPermissions, permission);
+            if (requestedIndex < 0) {
+                continue;
+            }
+
+            reloadIfStale(pkg);
+
+            // Prefer the state in the table as it might have been changed by an upgrade step
+            ArrayMap<String, PermissionState> pkgStates = mPermissionStates.get(pkg.packageName);
+            PermissionState state = pkgStates == null ? null : pkgStates.get(permission);
+            if (state != null) {
+                return state.mGranted;
+            }
+
+            return (pkg.requestedPermissionsFlags[requestedIndex]
+                    & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0;
+        }
+
+        writePendingWhitelist();
+        return mPlatform.checkPermission(permission, uid) == PERMISSION_GRANTED;
+    }
+
+    /**
+     * Whitelist a restricted permission for a package once the changes are applied.
+     *
+     * @param packageName The package
+     * @param permission The restricted permission
+     */
+    void whitelistRestrictedPermission(@NonNull String packageName, @NonNull String permission) {
+        ArraySet<String> permissions = mPendingWhitelist.get(packageName);
+        if (permissions == null) {
+            permissions = new ArraySet<>();
+            mPendingWhitelist.put(packageName, permissions);
+        }
+
+        permissions.add(permission);
+    }
+
+    /**
+     * Write the recorded whitelist changes to the platform and mark the whitelisted packages as
+     * stale.
+     */
+    private void writePendingWhitelist() {
+        int numWhitelistedPkgs = mPendingWhitelist.size();
+        for (int pkgNum = 0; pkgNum < numWhitelistedPkgs; pkgNum++) {
+            String packageName = mPendingWhitelist.keyAt(pkgNum);
+            ArraySet<String> permissions = mPendingWhitelist.valueAt(pkgNum);
+
+            int numPermissions = permissions.size();
+            for (int permNum = 0; permNum < numPermissions; permNum++) {
+                mPlatform.addWhitelistedRestrictedPermission(packageName,
+                        permissions.valueAt(permNum));
+            }
+
+            mStalePackages.add(packageName);
+        }
+        mPendingWhitelist.clear();
+    }
+
+    /**
+     * Make sure the state of a package reflects all whitelist changes recorded so far.
+     *
+     * <p>If the package was whitelisted after it was loaded, its grant states are loaded again and
+     * the cached permission states not changed by an upgrade step are read again.
+     *
+     * @param pkg The package, updated in place
+     */
+    private void reloadIfStale(@NonNull PackageInfo pkg) {
+        writePendingWhitelist();
+
+        if (!mStalePackages.remove(pkg.packageName)) {
+            return;
+        }
+
+        PackageInfo reloadedPkg = mPlatform.getPackage(pkg.packageName);
+        if (reloadedPkg != null && reloadedPkg != pkg) {
+            pkg.requestedPermissions = reloadedPkg.requestedPermissions;
+            pkg.requestedPermissionsFlags = reloadedPkg.requestedPermissionsFlags;
+        }
+
+        ArrayMap<String, PermissionState> pkgStates = mPermissionStates.get(pkg.packageName);
+        if (pkgStates != null) {
+            int numStates = pkgStates.size();
+            for (int i = 0; i < numStates; i++) {
+                PermissionState state = pkgStates.valueAt(i);
+
+                // States might be referenced by the upgrade steps, hence they are read again in
+                // place
+                if (state != null && !state.mIsChanged) {
+                    state.reload();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all recorded changes to the platform.
+     */
+    void applyChanges() {
+        writePendingWhitelist();
+        mStalePackages.clear();
+
+        boolean triggerLocationAccessCheck = false;
+
+        int numChanged = mChangedPermissions.size();
+        for (int i = 0; i < numChanged; i++) {
+            PermissionState state = mChangedPermissions.get(i);
+            state.persist();
+
+            triggerLocationAccessCheck |= state.mTriggerLocationAccessCheck;
+            mPlatform.logUpgradeResult(state.getName(), state.mPkg.applicationInfo.uid,
+                    state.mPkg.packageName);
+        }
+        mChangedPermissions.clear();
+
+        if (triggerLocationAccessCheck) {
+            mPlatform.checkLocationAccessSoon();
+        }
+    }
+
+    /**
+     * @return The number of platform writes {@link #applyChanges()} would currently issue at
+     *         least
+     */
+    int getNumPendingChanges() {
+        int numChanges = mChangedPermissions.size();
+
+        int numWhitelistedPkgs = mPendingWhitelist.size();
+        for (int i = 0; i < numWhitelistedPkgs; i++) {
+            numChanges += mPendingWhitelist.valueAt(i).size();
+        }
+
+        return numChanges;
+    }
+
+    private static int indexOf(@Nullable String[] array, @NonNull String value) {
+        if (array == null) {
+            return -1;
+        }
+
+        for (int i = 0; i < array.length; i++) {
+            if (value.equals(array[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * The state of a runtime permission requested by a package.
+     *
+     * <p>This mirrors the parts of {@link com.android.packageinstaller.permission.model.Permission}
+     * needed by the upgrade steps.
+     */
+    final class PermissionState {
+        private final @NonNull PackageInfo mPkg;
+        private final @NonNull PermissionInfo mInfo;
+        private final @Nullable String mAppOp;
+
+        private boolean mWasGranted;
+        private int mOriginalFlags;
+
+        private boolean mGranted;
+        private int mFlags;
+
+        /** Whether the app op allows access, {@code null} if not loaded yet */
+        private @Nullable Boolean mAppOpAllowed;
+        private @Nullable Boolean mOriginalAppOpAllowed;
+
+        private boolean mIsChanged;
+        private boolean mTriggerLocationAccessCheck;
+
+        private PermissionState(@NonNull PackageInfo pkg, @NonNull PermissionInfo info,
+                boolean granted, int flags) {
+            mPkg = pkg;
+            mInfo = info;
+            mAppOp = "android".equals(info.packageName)
+                    ? AppOpsManager.permissionToOp(info.name) : null;
+            mWasGranted = granted;
+            mGranted = granted;
+            mOriginalFlags = flags;
+            mFlags = flags;
+        }
+
+        @NonNull String getName() {
+            return mInfo.name;
+        }
+
+        /**
+         * Read the state from the package and the platform again, e.g. after the package was
+         * whitelisted.
+         */
+        private void reload() {
+            int requestedIndex = indexOf(mPkg.requestedPermissions, getName());
+            mWasGranted = requestedIndex >= 0 && (mPkg.requestedPermissionsFlags[requestedIndex]
+                    & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0;
+            mGranted = mWasGranted;
+            mOriginalFlags = mPlatform.getPermissionFlags(getName(), mPkg.packageName,
+                    UserHandle.getUserHandleForUid(mPkg.applicationInfo.uid));
+            mFlags = mOriginalFlags;
+            mAppOpAllowed = null;
+            mOriginalAppOpAllowed = null;
+        }
+
+        /**
+         * @return The state of the background permission of this permission or {@code null} if
+         *         this permission is not split or the package does not request the background
+         *         permission
+         */
+        @Nullable PermissionState getBackgroundPermission() {
+            if (mInfo.backgroundPermission == null) {
+                return null;
+            }
+
+            return getPermissionState(mPkg, mInfo.backgroundPermission);
+        }
+
+        /**
+         * @return The states of all requested foreground permissions of this background
+         *         permission
+         */
+        @NonNull List<PermissionState> getForegroundPermissions() {
+            ArrayList<PermissionState> foregroundPermissions = new ArrayList<>(1);
+
+            if (mPkg.requestedPermissions != null) {
+                for (String requestedPermission : mPkg.requestedPermissions) {
+                    PermissionInfo info = getPermissionInfo(requestedPermission);
+                    if (info == null || !getName().equals(info.backgroundPermission)) {
+                        continue;
+                    }
+
+                    PermissionState state = getPermissionState(mPkg, requestedPermission);
+                    if (state != null) {
+                        foregroundPermissions.add(state);
+                    }
+                }
+            }
+
+            return foregroundPermissions;
+        }
+
+        private boolean isBackgroundPermission() {
+            return !getForegroundPermissions().isEmpty();
+        }
+
+        private boolean affectsAppOp() {
+            return mAppOp != null || isBackgroundPermission();
+        }
+
+        /**
+         * @see com.android.packageinstaller.permission.model.Permission#isAppOpAllowed()
+         */
+        private boolean isAppOpAllowed() {
+            if (mAppOpAllowed == null) {
+                boolean isAllowed = false;
+
+                if (mAppOp != null) {
+                    int mode = mPlatform.getAppOpMode(mAppOp, mPkg.applicationInfo.uid,
+                            mPkg.packageName);
+                    isAllowed = mode == MODE_ALLOWED || mode == MODE_FOREGROUND;
+                } else {
+                    // The background permission refers to the background state of the foreground
+                    // permission's app op
+                    List<PermissionState> foregroundPermissions = getForegroundPermissions();
+                    int numForegroundPermissions = foregroundPermissions.size();
+                    for (int i = 0; i < numForegroundPermissions; i++) {
+                        PermissionState fgPerm = foregroundPermissions.get(i);
+                        if (fgPerm.mAppOp != null && mPlatform.getAppOpMode(fgPerm.mAppOp,
+                                mPkg.applicationInfo.uid, mPkg.packageName) == MODE_ALLOWED) {
+                            isAllowed = true;
+                            break;
+                        }
+                    }
+                }
+
+                mAppOpAllowed = isAllowed;
+                mOriginalAppOpAllowed = isAllowed;
+            }
+
+            return mAppOpAllowed;
+        }
+
+        /**
+         * @see com.android.packageinstaller.permission.model.Permission#isGrantedIncludingAppOp()
+         */
+        boolean isGrantedIncludingAppOp() {
+            return mGranted && (!affectsAppOp() || isAppOpAllowed())
+                    && (mFlags & PackageManager.FLAG_PERMISSION_REVIEW_REQUIRED) == 0;
+        }
+
+        boolean isUserSet() {
+            return (mFlags & PackageManager.FLAG_PERMISSION_USER_SET) != 0;
+        }
+
+        boolean isUserFixed() {
+            return (mFlags & PackageManager.FLAG_PERMISSION_USER_FIXED) != 0;
+        }
+
+        boolean isSystemFixed() {
+            return (mFlags & PackageManager.FLAG_PERMISSION_SYSTEM_FIXED) != 0;
+        }
+
+        boolean isPolicyFixed() {
+            return (mFlags & PackageManager.FLAG_PERMISSION_POLICY_FIXED) != 0;
+        }
+
+        /**
+         * Grant the permission once the changes are applied.
+         *
+         * <p>This follows the same rules as
+         * {@link com.android.packageinstaller.permission.model.AppPermissionGroup#grantRuntimePermissions}.
+         *
+         * @param fixedByTheUser If the user requested that she/he does not want to be asked again
+         */
+        void grant(boolean fixedByTheUser) {
+            boolean supportsRuntimePermissions =
+                    mPkg.applicationInfo.targetSdkVersion > Build.VERSION_CODES.LOLLIPOP_MR1;
+
+            boolean isEphemeral =
+                    (mInfo.protectionLevel & PermissionInfo.PROTECTION_FLAG_INSTANT) != 0;
+            boolean isRuntimeOnly =
+                    (mInfo.protectionLevel & PermissionInfo.PROTECTION_FLAG_RUNTIME_ONLY) != 0;
+            if ((mPkg.applicationInfo.isInstantApp() && !isEphemeral)
+                    || (!supportsRuntimePermissions && isRuntimeOnly)) {
+                return;
+            }
+
+            boolean wasGranted = isGrantedIncludingAppOp();
+
+            if (supportsRuntimePermissions) {
+                // Do not touch permissions fixed by the system.
+                if (isSystemFixed()) {
+                    return;
+                }
+
+                if (affectsAppOp()) {
+                    isAppOpAllowed();
+                    mAppOpAllowed = true;
+                }
+                mGranted = true;
+
+                if (!fixedByTheUser) {
+                    mFlags &= ~(PackageManager.FLAG_PERMISSION_USER_SET
+                            | PackageManager.FLAG_PERMISSION_USER_FIXED);
+                }
+            } else {
+                // Legacy apps cannot have a not granted permission but just in case.
+                if (!mGranted) {
+                    return;
+                }
+
+                if (affectsAppOp()) {
+                    isAppOpAllowed();
+                    mAppOpAllowed = true;
+                    mFlags &= ~PackageManager.FLAG_PERMISSION_REVOKE_ON_UPGRADE;
+                }
+
+                mFlags &= ~PackageManager.FLAG_PERMISSION_REVIEW_REQUIRED;
+            }
+
+            // If we newly grant background access to the fine location, double-guess the user some
+            // time later if this was really the right choice.
+            if (!wasGranted && isGrantedIncludingAppOp()) {
+                if (getName().equals(Manifest.permission.ACCESS_FINE_LOCATION)) {
+                    PermissionState bgPerm = getBackgroundPermission();
+                    mTriggerLocationAccessCheck = bgPerm != null
+                            && bgPerm.isGrantedIncludingAppOp();
+                } else if (getName().equals(Manifest.permission.ACCESS_BACKGROUND_LOCATION)) {
+                    PermissionState finePerm = getPermissionState(mPkg,
+                            Manifest.permission.ACCESS_FINE_LOCATION);
+                    mTriggerLocationAccessCheck = finePerm != null
+                            && finePerm.isGrantedIncludingAppOp();
+                }
+            }
+
+            if (!mIsChanged && (mGranted != mWasGranted || mFlags != mOriginalFlags
+                    || !Objects.equals(mAppOpAllowed, mOriginalAppOpAllowed))) {
+                mIsChanged = true;
+                mChangedPermissions.add(this);
+            }
+        }
+
+        /**
+         * Write the changed state to the platform.
+         *
+         * @see com.android.packageinstaller.permission.model.AppPermissionGroup#persistChanges
+         */
+        private void persist() {
+            int uid = mPkg.applicationInfo.uid;
+            UserHandle user = UserHandle.getUserHandleForUid(uid);
+
+            if (!isSystemFixed() && mGranted && !mWasGranted) {
+                mPlatform.grantRuntimePermission(mPkg.packageName, getName(), user);
+            }
+
+            if (mFlags != mOriginalFlags) {
+                mPlatform.updatePermissionFlags(getName(), mPkg.packageName, UPGRADE_FLAGS_MASK,
+                        mFlags & UPGRADE_FLAGS_MASK, user);
+            }
+
+            if (!Objects.equals(mAppOpAllowed, mOriginalAppOpAllowed) && !isSystemFixed()) {
+                allowAppOp(uid);
+            }
+        }
+
+        /**
+         * @see com.android.packageinstaller.permission.model.AppPermissionGroup#allowAppOp
+         */
+        private void allowAppOp(int uid) {
+            if (mAppOp == null) {
+                List<PermissionState> foregroundPermissions = getForegroundPermissions();
+
+                int numForegroundPermissions = foregroundPermissions.size();
+                for (int i = 0; i < numForegroundPermissions; i++) {
+                    PermissionState fgPerm = foregroundPermissions.get(i);
+                    if (fgPerm.mAppOp != null && fgPerm.isAppOpAllowed()) {
+                        setAppOpMode(fgPerm.mAppOp, uid, MODE_ALLOWED);
+                    }
+                }
+            } else if (mInfo.backgroundPermission != null) {
+                PermissionState bgPerm = getBackgroundPermission();
+
+                if (bgPerm != null && bgPerm.isAppOpAllowed()) {
+                    setAppOpMode(mAppOp, uid, MODE_ALLOWED);
+                } else {
+                    setAppOpMode(mAppOp, uid, MODE_FOREGROUND);
+                }
+            } else {
+                setAppOpMode(mAppOp, uid, MODE_ALLOWED);
+            }
+        }
+
+        private void setAppOpMode(@NonNull String op, int uid, int mode) {
+            if (mPlatform.getAppOpMode(op, uid, mPkg.packageName) != mode) {
+                mPlatform.setUidMode(op, uid, mode);
+            }
+        }
+    }
+
+    /**
+     * {@link Platform} backed by the services of the device.
+     *
+     * <p>App-ops are read and written through the {@link AppOpsSnapshot} shared with the UI, so
+     * that the modes written by the upgrade are never shadowed by stale cached modes.
+     */
+    private static final class DevicePlatform implements Platform {
+        private final @NonNull Context mContext;
+        private final @NonNull PackageManager mPackageManager;
+        private final @NonNull AppOpsSnapshot mAppOpsSnapshot;
+
+        DevicePlatform(@NonNull Context context) {
+            mContext = context;
+            mPackageManager = context.getPackageManager();
+            mAppOpsSnapshot = AppOpsSnapshot.get(context);
+        }
+
+        @Override
+        public @NonNull List<PackageInfo> getAllPackages() {
+            return mPackageManager.getInstalledPackages(PackageManager.MATCH_ALL
+                    | PackageManager.GET_PERMISSIONS | PackageManager.MATCH_UNINSTALLED_PACKAGES);
+        }
+
+        @Override
+        public @Nullable PackageInfo getPackage(@NonNull String packageName) {
+            try {
+                return mPackageManager.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS
+                        | PackageManager.MATCH_UNINSTALLED_PACKAGES);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public @Nullable String[] getFactoryRequestedPermissions(@NonNull String packageName) {
+            try {
+                return mPackageManager.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS
+                        | PackageManager.MATCH_UNINSTALLED_PACKAGES
+                        | PackageManager.MATCH_FACTORY_ONLY).requestedPermissions;
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public @Nullable PermissionInfo getPermissionInfo(@NonNull String permission) {
+            try {
+                return mPackageManager.getPermissionInfo(permission, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int getPermissionFlags(@NonNull String permission, @NonNull String packageName,
+                @NonNull UserHandle user) {
+            return mPackageManager.getPermissionFlags(permission, packageName, user);
+        }
+
+        @Override
+        public int checkPermission(@NonNull String permission, int uid) {
+            return mContext.checkPermission(permission, 0, uid);
+        }
+
+        @Override
+        public int getAppOpMode(@NonNull String op, int uid, @NonNull String packageName) {
+            return mAppOpsSnapshot.getMode(op, uid, packageName);
+        }
+
+        @Override
+        public void addWhitelistedRestrictedPermission(@NonNull String packageName,
+                @NonNull String permission) {
+            mPackageManager.addWhitelistedRestrictedPermission(packageName, permission,
+                    PackageManager.FLAG_PERMISSION_WHITELIST_UPGRADE);
+        }
+
+        @Override
+        public void grantRuntimePermission(@NonNull String packageName,
+                @NonNull String permission, @NonNull UserHandle user) {
+            mPackageManager.grantRuntimePermission(packageName, permission, user);
+        }
+
+        @Override
+        public void updatePermissionFlags(@NonNull String permission, @NonNull String packageName,
+                int flagMask, int flagValues, @NonNull UserHandle user) {
+            mPackageManager.updatePermissionFlags(permission, packageName, flagMask, flagValues,
+                    user);
+        }
+
+        @Override
+        public void setUidMode(@NonNull String op, int uid, int mode) {
+            mAppOpsSnapshot.setUidMode(op, uid, mode);
+        }
+
+        @Override
+        public void checkLocationAccessSoon() {
+            new LocationAccessCheck(mContext, null).checkLocationAccessSoon();
+        }
+
+        @Override
+        public void logUpgradeResult(@NonNull String permission, int uid,
+                @NonNull String packageName) {
+            PermissionControllerStatsLog.write(RUNTIME_PERMISSIONS_UPGRADE_RESULT, permission, uid,
+                    packageName);
+            Log.v(LOG_TAG, "Runtime permission upgrade logged for permissionName=" + permission
+                    + " uid=" + uid + " packageName=" + packageName);
+        }
+    }
+}
@@ -44,14 +44,15 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.graphics.drawable.Icon;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.permission.PermissionManager;
 import android.text.Html;
 import android.text.Spanned;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 import android.view.KeyEvent;
@@ -68,13 +69,18 @@ import com.android.packageinstaller.PermissionControllerStatsLog;
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.AppPermissions;
 import com.android.packageinstaller.permission.model.Permission;
+import com.android.packageinstaller.permission.model.PermissionChangeDispatcher;
+import com.android.packageinstaller.permission.model.PermissionChangeDispatcher.PermissionChanges;
 import com.android.packageinstaller.permission.ui.auto.GrantPermissionsAutoViewHandler;
 import com.android.packageinstaller.permission.utils.ArrayUtils;
 import com.android.packageinstaller.permission.utils.PackageRemovalMonitor;
 import com.android.packageinstaller.permission.utils.SafetyNetLogger;
+import com.android.packageinstaller.permission.utils.SplitPermissions;
 import com.android.permissioncontroller.R;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 // CTA Feature: Add Runtime Permission Plus@{
@@ -107,7 +113,26 @@ public class GrantPermissionsActivity extends Activity
             new ArrayMap<>();
 
     private GrantPermissionsViewHandler mViewHandler;
-    private AppPermissions mAppPermissions;
+    /** The permission groups of the calling app, {@code null} until loaded */
+    private @Nullable AppPermissions mAppPermissions;
+
+    /**
+     * The instance state this activity was created with while the {@link #mAppPermissions} are
+     * loading.
+     */
+    private @Nullable Bundle mPendingInstanceState;
+
+    /** If the groups of all requested permissions are loaded, not only the first ones */
+    private boolean mAllGroupsLoaded;
+
+    /** Which of the {@link #mRequestedPermissions} already have their group states */
+    private boolean[] mRequestedPermissionsAdded;
+
+    /** If the grant request UI was created */
+    private boolean mIsUiCreated;
+
+    /** If all requests shown so far were answered while the other groups are still loading */
+    private boolean mIsWaitingForGroups;
 
     boolean mResultSet;
 
@@ -115,7 +140,7 @@ public class GrantPermissionsActivity extends Activity
      * Listens for changes to the permission of the app the permissions are currently getting
      * granted to. {@code null} when unregistered.
      */
-    private @Nullable PackageManager.OnPermissionsChangedListener mPermissionChangeListener;
+    private @Nullable PermissionChangeDispatcher.Listener mPermissionChangeListener;
 
     /**
      * Listens for changes to the app the permissions are currently getting granted to. {@code null}
@@ -327,21 +352,150 @@ public class GrantPermissionsActivity extends Activity
                     .setResultListener(this);
         }
 
-        mAppPermissions = new AppPermissions(this, callingPackageInfo, false,
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        setResultAndFinish();
-                    }
-                });
+        // Creating the permission groups is slow, hence only create the groups of the requested
+        // permissions and do so in the background. The groups of the first requested permission
+        // are loaded first, so that the first request can be shown while the other groups are
+        // still loading. Until the first request is shown the window stays empty, i.e.
+        // transparent.
+        mPendingInstanceState = icicle;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            int targetSdk = callingPackageInfo.applicationInfo.targetSdkVersion;
+            Runnable onErrorCallback = new Runnable() {
+                @Override
+                public void run() {
+                    setResultAndFinish();
+                }
+            };
+
+            SplitPermissions splitPermissions = SplitPermissions.get(this);
+            ArrayList<String> firstPermissionsToLoad = new ArrayList<>();
+            ArrayList<String> otherPermissionsToLoad = new ArrayList<>();
+            for (String requestedPermission : mRequestedPermissions) {
+                if (requestedPermission != null) {
+                    Collections.addAll(firstPermissionsToLoad.isEmpty() ? firstPermissionsToLoad
+                            : otherPermissionsToLoad,
+                            splitPermissions.expand(requestedPermission, targetSdk));
+                }
+            }
+
+            AppPermissions appPermissions = new AppPermissions(this, callingPackageInfo,
+                    firstPermissionsToLoad.toArray(new String[firstPermissionsToLoad.size()]),
+                    false, false, onErrorCallback);
+
+            // Groups that were loaded with the groups of the first permission are not loaded
+            // again
+            for (int i = otherPermissionsToLoad.size() - 1; i >= 0; i--) {
+                if (appPermissions.getGroupForPermission(otherPermissionsToLoad.get(i)) != null) {
+                    otherPermissionsToLoad.remove(i);
+                }
+            }
+
+            boolean allGroupsLoaded = otherPermissionsToLoad.isEmpty();
+            runOnUiThread(() -> onAppPermissionsLoaded(appPermissions, allGroupsLoaded));
+
+            if (allGroupsLoaded) {
+                return;
+            }
+
+            AppPermissions otherAppPermissions = new AppPermissions(this, callingPackageInfo,
+                    otherPermissionsToLoad.toArray(new String[otherPermissionsToLoad.size()]),
+                    false, false, onErrorCallback);
+
+            runOnUiThread(() -> onOtherAppPermissionsLoaded(otherAppPermissions));
+        });
+    }
+
+    /**
+     * Set up the group states and show the first grant request once the groups of the first
+     * requested permission are loaded.
+     *
+     * @param appPermissions The loaded permission groups of the calling app
+     * @param allGroupsLoaded If the groups of all requested permissions are loaded
+     */
+    private void onAppPermissionsLoaded(@NonNull AppPermissions appPermissions,
+            boolean allGroupsLoaded) {
+        if (isFinishing() || isDestroyed()) {
+            return;
+        }
+
+        mAppPermissions = appPermissions;
+        mAllGroupsLoaded = allGroupsLoaded;
+        mRequestedPermissionsAdded = new boolean[mRequestedPermissions.length];
+
+        addGroupStates();
+        showFirstPermissionGroupGrantRequestIfReady();
+
+        if (mAllGroupsLoaded) {
+            mPendingInstanceState = null;
+        }
+    }
+
+    /**
+     * Add the group states of the remaining requested permissions once their groups are loaded.
+     *
+     * @param otherAppPermissions The permission groups of the remaining requested permissions
+     */
+    private void onOtherAppPermissionsLoaded(@NonNull AppPermissions otherAppPermissions) {
+        if (isFinishing() || isDestroyed() || mAppPermissions == null) {
+            return;
+        }
 
-        for (String requestedPermission : mRequestedPermissions) {
-            if (requestedPermission == null) {
+        mAppPermissions.addPermissionGroups(otherAppPermissions);
+        mAllGroupsLoaded = true;
+
+        addGroupStates();
+        if (!mIsUiCreated) {
+            showFirstPermissionGroupGrantRequestIfReady();
+        } else if (mIsWaitingForGroups) {
+            // All requests shown so far were answered while the groups were loading
+            mIsWaitingForGroups = false;
+            showNextPermissionGroupGrantRequestOrFinish();
+        }
+
+        mPendingInstanceState = null;
+    }
+
+    /**
+     * @return {@code true} iff the groups of all permissions affected by a requested permission
+     *         are loaded
+     */
+    private boolean areGroupsLoaded(@NonNull String requestedPermission) {
+        String[] permissions = SplitPermissions.get(this).expand(requestedPermission,
+                mAppPermissions.getPackageInfo().applicationInfo.targetSdkVersion);
+
+        for (String permission : permissions) {
+            if (mAppPermissions.getGroupForPermission(permission) == null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Create the group states of the requested permissions whose groups are loaded.
+     *
+     * <p>Until all groups are loaded, requested permissions whose groups are not loaded yet are
+     * left for later.
+     */
+    private void addGroupStates() {
+        ArraySet<Pair<String, Boolean>> existingGroupStates =
+                new ArraySet<>(mRequestGrantPermissionGroups.keySet());
+        Bundle icicle = mPendingInstanceState;
+
+        int numRequestedPermissions = mRequestedPermissions.length;
+        for (int reqNum = 0; reqNum < numRequestedPermissions; reqNum++) {
+            String requestedPermission = mRequestedPermissions[reqNum];
+            if (requestedPermission == null || mRequestedPermissionsAdded[reqNum]) {
                 continue;
             }
 
-            ArrayList<String> affectedPermissions =
-                    computeAffectedPermissions(requestedPermission);
+            if (!mAllGroupsLoaded && !areGroupsLoaded(requestedPermission)) {
+                continue;
+            }
+            mRequestedPermissionsAdded[reqNum] = true;
+
+            List<String> affectedPermissions = computeAffectedPermissions(requestedPermission);
 
             int numAffectedPermissions = affectedPermissions.size();
             for (int i = 0; i < numAffectedPermissions; i++) {
@@ -366,6 +520,11 @@ public class GrantPermissionsActivity extends Activity
 
         int numGroupStates = mRequestGrantPermissionGroups.size();
         for (int groupStateNum = 0; groupStateNum < numGroupStates; groupStateNum++) {
+            if (existingGroupStates.contains(mRequestGrantPermissionGroups.keyAt(groupStateNum))) {
+                // Already set up when the previous groups were loaded
+                continue;
+            }
+
             GroupState groupState = mRequestGrantPermissionGroups.valueAt(groupStateNum);
             AppPermissionGroup group = groupState.mGroup;
 
@@ -401,7 +560,24 @@ public class GrantPermissionsActivity extends Activity
                 }
             }
         }
+    }
 
+    /**
+     * Create the UI and show the first grant request if there is a request to show. If there is
+     * none, finish once all groups are loaded.
+     */
+    private void showFirstPermissionGroupGrantRequestIfReady() {
+        // Often nothing needs to be asked, e.g. when an app re-requests already granted
+        // permissions. Then finish before inflating any UI or configuring the window.
+        if (!hasGrantRequestToShow()) {
+            if (mAllGroupsLoaded) {
+                setResultAndFinish();
+            }
+            // Otherwise the window stays empty until the other groups are loaded
+            return;
+        }
+
+        mIsUiCreated = true;
         setContentView(mViewHandler.createView());
 
         Window window = getWindow();
@@ -412,12 +588,34 @@ public class GrantPermissionsActivity extends Activity
         // Restore UI state after lifecycle events. This has to be before
         // showNextPermissionGroupGrantRequest is called. showNextPermissionGroupGrantRequest might
         // update the UI and the UI behaves differently for updates and initial creations.
-        if (icicle != null) {
-            mViewHandler.loadInstanceState(icicle);
+        if (mPendingInstanceState != null) {
+            mViewHandler.loadInstanceState(mPendingInstanceState);
         }
 
-        if (!showNextPermissionGroupGrantRequest()) {
+        showNextPermissionGroupGrantRequestOrFinish();
+        if (isFinishing()) {
+            return;
+        }
+
+        // Permissions might have been granted while the groups were loading
+        if (mPermissionChangeListener != null) {
+            updateIfPermissionsWereGranted(null);
+        }
+    }
+
+    /**
+     * Show the next grant request. If there is none, finish once all groups are loaded.
+     */
+    private void showNextPermissionGroupGrantRequestOrFinish() {
+        if (showNextPermissionGroupGrantRequest()) {
+            return;
+        }
+
+        if (mAllGroupsLoaded) {
             setResultAndFinish();
+        } else {
+            // Show the next request once the other groups are loaded
+            mIsWaitingForGroups = true;
         }
     }
 
@@ -426,8 +624,16 @@ public class GrantPermissionsActivity extends Activity
      *
      * <p>This also updates the {@link #mAppPermissions} state and switches to the next group grant
      * request if the current group becomes granted.
+     *
+     * @param changes The already resolved permission state of the app, {@code null} to query the
+     *                system
      */
-    private void updateIfPermissionsWereGranted() {
+    private void updateIfPermissionsWereGranted(@Nullable PermissionChanges changes) {
+        if (mAppPermissions == null || !mIsUiCreated) {
+            // Not shown yet, the state will be checked once the first request is shown
+            return;
+        }
+
         PackageManager pm = getPackageManager();
 
         boolean mightShowNextGroup = true;
@@ -449,8 +655,17 @@ public class GrantPermissionsActivity extends Activity
             } else {
                 for (int permNum = 0; permNum < groupState.affectedPermissions.length;
                         permNum++) {
-                    if (pm.checkPermission(groupState.affectedPermissions[permNum], mCallingPackage)
-                            == PERMISSION_DENIED) {
+                    String affectedPermission = groupState.affectedPermissions[permNum];
+
+                    boolean isGranted;
+                    if (changes != null) {
+                        isGranted = changes.isGranted(affectedPermission);
+                    } else {
+                        isGranted = pm.checkPermission(affectedPermission, mCallingPackage)
+                                != PERMISSION_DENIED;
+                    }
+
+                    if (!isGranted) {
                         allAffectedPermissionsOfThisGroupAreGranted = false;
                         break;
                     }
@@ -464,9 +679,7 @@ public class GrantPermissionsActivity extends Activity
                     // The UI currently displays the first group with
                     // mState == STATE_UNKNOWN. So we are switching to next group until we
                     // could not allow a group that was still unknown
-                    if (!showNextPermissionGroupGrantRequest()) {
-                        setResultAndFinish();
-                    }
+                    showNextPermissionGroupGrantRequestOrFinish();
                 }
             } else {
                 mightShowNextGroup = false;
@@ -478,14 +691,17 @@ public class GrantPermissionsActivity extends Activity
     protected void onStart() {
         super.onStart();
 
+        PackageManager pm = getPackageManager();
+        int callingPackageUid;
         try {
-            mPermissionChangeListener = new PermissionChangeListener();
+            callingPackageUid = pm.getPackageUid(mCallingPackage, 0);
         } catch (NameNotFoundException e) {
             setResultAndFinish();
             return;
         }
-        PackageManager pm = getPackageManager();
-        pm.addOnPermissionsChangeListener(mPermissionChangeListener);
+        mPermissionChangeListener = this::updateIfPermissionsWereGranted;
+        PermissionChangeDispatcher.get(this).addListener(callingPackageUid, null,
+                mPermissionChangeListener);
 
         // get notified when the package is removed
         mPackageRemovalMonitor = new PackageRemovalMonitor(this, mCallingPackage) {
@@ -506,7 +722,7 @@ public class GrantPermissionsActivity extends Activity
             finish();
         }
 
-        updateIfPermissionsWereGranted();
+        updateIfPermissionsWereGranted(null);
     }
 
     @Override
@@ -519,7 +735,7 @@ public class GrantPermissionsActivity extends Activity
         }
 
         if (mPermissionChangeListener != null) {
-            getPackageManager().removeOnPermissionsChangeListener(mPermissionChangeListener);
+            PermissionChangeDispatcher.get(this).removeListener(mPermissionChangeListener);
             mPermissionChangeListener = null;
         }
     }
@@ -552,10 +768,19 @@ public class GrantPermissionsActivity extends Activity
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        mViewHandler.saveInstanceState(outState);
-
+        // Keep the state this activity was created with for the groups that are not loaded yet
+        if (mPendingInstanceState != null) {
+            outState.putAll(mPendingInstanceState);
+        }
         outState.putLong(KEY_REQUEST_ID, mRequestId);
 
+        if (!mIsUiCreated) {
+            // Nothing was shown yet
+            return;
+        }
+
+        mViewHandler.saveInstanceState(outState);
+
         int numGroups = mRequestGrantPermissionGroups.size();
         for (int i = 0; i < numGroups; i++) {
             int state = mRequestGrantPermissionGroups.valueAt(i).mState;
@@ -596,6 +821,57 @@ public class GrantPermissionsActivity extends Activity
         return true;
     }
 
+    /**
+     * Check if {@link #showNextPermissionGroupGrantRequest} would show a grant request.
+     *
+     * <p>Applies the same CTA filtering as {@link #showCtaNextPermissionGroupGrantRequest}.
+     *
+     * <p>Only looks at the already loaded group states, hence this can be called before any UI is
+     * created.
+     *
+     * @return {@code true} iff there is a group the user needs to be asked about
+     */
+    private boolean hasGrantRequestToShow() {
+        int numGroupStates = mRequestGrantPermissionGroups.size();
+        for (int i = 0; i < numGroupStates; i++) {
+            GroupState groupState = mRequestGrantPermissionGroups.valueAt(i);
+            if (!shouldShowRequestForGroupState(groupState)
+                    || groupState.mState != GroupState.STATE_UNKNOWN) {
+                continue;
+            }
+
+            // Same as in showNextPermissionGroupGrantRequest: The first group to show decides
+            GroupState foregroundGroupState;
+            GroupState backgroundGroupState;
+            if (groupState.mGroup.isBackgroundGroup()) {
+                backgroundGroupState = groupState;
+                foregroundGroupState = getForegroundGroupState(groupState.mGroup.getName());
+            } else {
+                foregroundGroupState = groupState;
+                backgroundGroupState = getBackgroundGroupState(groupState.mGroup.getName());
+            }
+
+            boolean needForegroundPermission;
+            if (foregroundGroupState == null) {
+                needForegroundPermission = false;
+            } else if (PermissionUtils.isCtaFeatureSupported()
+                    && !CtaPermissionPlus.filterGroupPermission(groupState.mGroup.getName())) {
+                // Same as in showCtaNextPermissionGroupGrantRequest: Only the requested
+                // permissions of groups handled by CTA are asked for
+                needForegroundPermission = !foregroundGroupState.mGroup
+                        .areRuntimePermissionsGranted(groupState.affectedPermissions);
+            } else {
+                needForegroundPermission =
+                        !foregroundGroupState.mGroup.areRuntimePermissionsGranted();
+            }
+
+            return needForegroundPermission || (backgroundGroupState != null
+                    && !backgroundGroupState.mGroup.areRuntimePermissionsGranted());
+        }
+
+        return false;
+    }
+
     private boolean showNextPermissionGroupGrantRequest() {
         // CTA Feature: show next dialog for granting permission @{
         if (PermissionUtils.isCtaFeatureSupported()) {
@@ -604,13 +880,26 @@ public class GrantPermissionsActivity extends Activity
         // @}
         int numGroupStates = mRequestGrantPermissionGroups.size();
         int numGrantRequests = 0;
+        int currentIndex = 0;
         for (int i = 0; i < numGroupStates; i++) {
-            if (shouldShowRequestForGroupState(mRequestGrantPermissionGroups.valueAt(i))) {
+            GroupState groupState = mRequestGrantPermissionGroups.valueAt(i);
+            if (shouldShowRequestForGroupState(groupState)) {
                 numGrantRequests++;
+
+                // Count the answered requests independent of their position, groups loaded later
+                // might be inserted before them
+                if (groupState.mState != GroupState.STATE_UNKNOWN) {
+                    currentIndex++;
+                }
             }
         }
 
-        int currentIndex = 0;
+        if (!mAllGroupsLoaded) {
+            // The number of requests still grows once the other groups are loaded. Hold back
+            // the "n of m" counter until it is final.
+            numGrantRequests = 1;
+        }
+
         for (GroupState groupState : mRequestGrantPermissionGroups.values()) {
             if (!shouldShowRequestForGroupState(groupState)) {
                 continue;
@@ -732,9 +1021,7 @@ public class GrantPermissionsActivity extends Activity
                     if ((groupState != null) && (groupState.mGroup != null)) {
                         groupState.mGroup.grantRuntimePermissions(false);
                         groupState.mState = GroupState.STATE_ALLOWED;
-                        if (!showNextPermissionGroupGrantRequest()) {
-                            setResultAndFinish();
-                        }
+                        showNextPermissionGroupGrantRequestOrFinish();
                     }
                 } else {
                 /* @} */
@@ -744,10 +1031,6 @@ public class GrantPermissionsActivity extends Activity
 
                 return true;
             }
-
-            if (groupState.mState != GroupState.STATE_SKIPPED) {
-                currentIndex++;
-            }
         }
 
         return false;
@@ -824,9 +1107,7 @@ public class GrantPermissionsActivity extends Activity
                 break;
         }
 
-        if (!showNextPermissionGroupGrantRequest()) {
-            setResultAndFinish();
-        }
+        showNextPermissionGroupGrantRequestOrFinish();
     }
 
     /**
@@ -940,26 +1221,14 @@ public class GrantPermissionsActivity extends Activity
      *
      * @return The actually requested permissions
      */
-    private ArrayList<String> computeAffectedPermissions(String permission) {
+    private List<String> computeAffectedPermissions(String permission) {
         int requestingAppTargetSDK =
                 mAppPermissions.getPackageInfo().applicationInfo.targetSdkVersion;
 
         // If a permission is split, all permissions the original permission is split into are
         // affected
-        ArrayList<String> extendedBySplitPerms = new ArrayList<>();
-        extendedBySplitPerms.add(permission);
-
-        List<PermissionManager.SplitPermissionInfo> splitPerms = getSystemService(
-                PermissionManager.class).getSplitPermissions();
-        int numSplitPerms = splitPerms.size();
-        for (int i = 0; i < numSplitPerms; i++) {
-            PermissionManager.SplitPermissionInfo splitPerm = splitPerms.get(i);
-
-            if (requestingAppTargetSDK < splitPerm.getTargetSdk()
-                    && permission.equals(splitPerm.getSplitPermission())) {
-                extendedBySplitPerms.addAll(splitPerm.getNewPermissions());
-            }
-        }
+        List<String> extendedBySplitPerms = Arrays.asList(SplitPermissions.get(this).expand(
+                permission, requestingAppTargetSDK));
 
         // For <= N_MR1 apps all permissions of the groups of the requested permissions are affected
         if (requestingAppTargetSDK <= Build.VERSION_CODES.N_MR1) {
@@ -1050,21 +1319,6 @@ public class GrantPermissionsActivity extends Activity
         }
     }
 
-    private class PermissionChangeListener implements PackageManager.OnPermissionsChangedListener {
-        final int mCallingPackageUid;
-
-        PermissionChangeListener() throws NameNotFoundException {
-            mCallingPackageUid = getPackageManager().getPackageUid(mCallingPackage, 0);
-        }
-
-        @Override
-        public void onPermissionsChanged(int uid) {
-            if (uid == mCallingPackageUid) {
-                updateIfPermissionsWereGranted();
-            }
-        }
-    }
-
 
 
     /**
@@ -1164,13 +1418,26 @@ public class GrantPermissionsActivity extends Activity
     private boolean showCtaNextPermissionGroupGrantRequest() {
         int numGroupStates = mRequestGrantPermissionGroups.size();
         int numGrantRequests = 0;
+        int currentIndex = 0;
         for (int i = 0; i < numGroupStates; i++) {
-            if (shouldShowRequestForGroupState(mRequestGrantPermissionGroups.valueAt(i))) {
+            GroupState groupState = mRequestGrantPermissionGroups.valueAt(i);
+            if (shouldShowRequestForGroupState(groupState)) {
                 numGrantRequests++;
+
+                // Count the answered requests independent of their position, groups loaded later
+                // might be inserted before them
+                if (groupState.mState != GroupState.STATE_UNKNOWN) {
+                    currentIndex++;
+                }
             }
         }
 
-        int currentIndex = 0;
+        if (!mAllGroupsLoaded) {
+            // The number of requests still grows once the other groups are loaded. Hold back
+            // the "n of m" counter until it is final.
+            numGrantRequests = 1;
+        }
+
         for (GroupState groupState : mRequestGrantPermissionGroups.values()) {
             if (!shouldShowRequestForGroupState(groupState)) {
                 continue;
@@ -1302,9 +1569,7 @@ public class GrantPermissionsActivity extends Activity
                     if ((groupState != null) && (groupState.mGroup != null)) {
                         groupState.mGroup.grantRuntimePermissions(false);
                         groupState.mState = GroupState.STATE_ALLOWED;
-                        if (!showCtaNextPermissionGroupGrantRequest()) {
-                            setResultAndFinish();
-                        }
+                        showNextPermissionGroupGrantRequestOrFinish();
                     }
                 } else {
                     /* @} */
@@ -1319,10 +1584,6 @@ public class GrantPermissionsActivity extends Activity
 
                 return true;
             }
-
-            if (groupState.mState != GroupState.STATE_SKIPPED) {
-                currentIndex++;
-            }
         }
 
         return false;
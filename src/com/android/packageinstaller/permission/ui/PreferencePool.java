@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.ui;
+
+import android.util.ArrayMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.preference.Preference;
+import androidx.preference.PreferenceGroup;
+
+import java.util.function.Function;
+
+/**
+ * Reuses preferences when a preference hierarchy is rebuilt.
+ *
+ * <p>Preferences are keyed, e.g. by the name of the permission group they show. When the
+ * hierarchy is rebuilt the preference of a key is handed out again instead of being re-created.
+ * Hence state that does not change (icons, labels) only needs to be loaded when the preference is
+ * created, and as the preference setters ignore unchanged values, the list only rebinds the rows
+ * that actually changed.
+ *
+ * <p>Usage:
+ * <pre>
+ * mPool.beginUpdate();
+ * group.removeAll();
+ * for (...) {
+ *     T pref = mPool.obtain(key, k -&gt; create(k));
+ *     // update the changeable fields of pref
+ *     group.addPreference(pref);
+ * }
+ * </pre>
+ *
+ * @param <T> The type of the preferences
+ */
+public final class PreferencePool<T extends Preference> {
+    /** key -> preference handed out in the previous update and not yet reused */
+    private @NonNull ArrayMap<String, T> mUnusedPreferences = new ArrayMap<>();
+
+    /** key -> preference handed out in the current update */
+    private @NonNull ArrayMap<String, T> mUsedPreferences = new ArrayMap<>();
+
+    /**
+     * Start rebuilding the hierarchy.
+     *
+     * <p>All preferences handed out so far can be reused. Preferences of the previous update that
+     * were not reused in the current update are dropped.
+     */
+    public void beginUpdate() {
+        ArrayMap<String, T> previouslyUsedPreferences = mUsedPreferences;
+
+        mUsedPreferences = mUnusedPreferences;
+        mUsedPreferences.clear();
+        mUnusedPreferences = previouslyUsedPreferences;
+    }
+
+    /**
+     * Get the preference for a key.
+     *
+     * <p>A reused preference is removed from its previous parent and has its order reset, so it
+     * can be added to any group, even if the group orders its preferences as added.
+     *
+     * @param key The key of the preference
+     * @param create Creates a new preference if there is no preference to reuse for the key. The
+     *               key is set by the pool.
+     *
+     * @return The preference for the key
+     */
+    public @NonNull T obtain(@NonNull String key, @NonNull Function<String, T> create) {
+        T preference = mUsedPreferences.get(key);
+        if (preference != null) {
+            return preference;
+        }
+
+        preference = mUnusedPreferences.remove(key);
+        if (preference == null) {
+            preference = create.apply(key);
+            preference.setKey(key);
+        } else {
+            PreferenceGroup parent = preference.getParent();
+            if (parent != null) {
+                parent.removePreference(preference);
+            }
+            preference.setOrder(Preference.DEFAULT_ORDER);
+        }
+
+        mUsedPreferences.put(key, preference);
+        return preference;
+    }
+
+    /**
+     * Get a preference handed out in the current update.
+     *
+     * @param key The key of the preference
+     *
+     * @return The preference or {@code null} if no preference was handed out for the key
+     */
+    public @Nullable T get(@NonNull String key) {
+        return mUsedPreferences.get(key);
+    }
+}
@@ -16,16 +16,345 @@
 
 package com.android.packageinstaller.permission.ui;
 
+import static android.Manifest.permission_group.CAMERA;
+import static android.Manifest.permission_group.LOCATION;
+import static android.Manifest.permission_group.MICROPHONE;
+import static android.app.AppOpsManager.OPSTR_CAMERA;
+import static android.app.AppOpsManager.OPSTR_MONITOR_HIGH_POWER_LOCATION;
+import static android.app.AppOpsManager.OPSTR_MONITOR_LOCATION;
+import static android.app.AppOpsManager.OPSTR_RECORD_AUDIO;
+
+import android.app.AlertDialog;
+import android.app.AppOpsManager;
+import android.app.AppOpsManager.OpEntry;
+import android.app.AppOpsManager.PackageOps;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.fragment.app.FragmentActivity;
 
+import com.android.packageinstaller.permission.model.AppPermissionGroup;
+import com.android.packageinstaller.permission.utils.Utils;
+import com.android.permissioncontroller.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the apps that currently use the camera, the microphone or the location.
+ *
+ * <p>The running ops are read once when the activity is created. Like in the rest of the UI only
+ * user sensitive usages of apps of the profiles of this user are shown.
+ */
 public final class ReviewOngoingUsageActivity extends FragmentActivity {
+    private static final String LOG_TAG = ReviewOngoingUsageActivity.class.getSimpleName();
+
+    /** Op -> permission group the op belongs to */
+    private static final ArrayMap<String, String> GROUPS_OF_OPS = new ArrayMap<>();
+    static {
+        GROUPS_OF_OPS.put(OPSTR_CAMERA, CAMERA);
+        GROUPS_OF_OPS.put(OPSTR_RECORD_AUDIO, MICROPHONE);
+        GROUPS_OF_OPS.put(OPSTR_MONITOR_LOCATION, LOCATION);
+        GROUPS_OF_OPS.put(OPSTR_MONITOR_HIGH_POWER_LOCATION, LOCATION);
+    }
+
+    private @Nullable AlertDialog mDialog;
+    private @Nullable TextView mTitle;
+    private @Nullable ViewGroup mItemsContainer;
+
+    /** permission group -> icon of the group */
+    private final @NonNull ArrayMap<String, Drawable> mGroupIcons = new ArrayMap<>();
+
+    /** permission group -> label of the group */
+    private final @NonNull ArrayMap<String, CharSequence> mGroupLabels = new ArrayMap<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        finish();
-        return;
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            List<UsageToShow> usagesToShow = getUsagesToShow(getOngoingUsages());
+
+            runOnUiThread(() -> {
+                if (!isDestroyed()) {
+                    showUsages(usagesToShow);
+                }
+            });
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (mDialog != null) {
+            mDialog.setOnDismissListener(null);
+            mDialog.dismiss();
+        }
+    }
+
+    private void showUsages(@NonNull List<UsageToShow> usages) {
+        if (usages.isEmpty()) {
+            // Nothing to review anymore
+            finish();
+            return;
+        }
+
+        createDialog();
+        updateDialog(usages);
+    }
+
+    /**
+     * Read which apps currently use the camera, the microphone or the location.
+     *
+     * @return The ongoing usages of all apps
+     */
+    @WorkerThread
+    private @NonNull List<OngoingUsage> getOngoingUsages() {
+        List<PackageOps> pkgsOps = getSystemService(AppOpsManager.class).getPackagesForOps(
+                GROUPS_OF_OPS.keySet().toArray(new String[0]));
+
+        ArrayList<OngoingUsage> usages = new ArrayList<>();
+        if (pkgsOps == null) {
+            return usages;
+        }
+
+        int numPkgs = pkgsOps.size();
+        for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
+            PackageOps pkgOps = pkgsOps.get(pkgNum);
+
+            ArraySet<String> groups = new ArraySet<>();
+            List<OpEntry> ops = pkgOps.getOps();
+            int numOps = ops.size();
+            for (int i = 0; i < numOps; i++) {
+                OpEntry op = ops.get(i);
+                if (op.isRunning()) {
+                    groups.add(GROUPS_OF_OPS.get(op.getOpStr()));
+                }
+            }
+
+            if (!groups.isEmpty()) {
+                usages.add(new OngoingUsage(pkgOps.getUid(), pkgOps.getPackageName(), groups));
+            }
+        }
+
+        return usages;
+    }
+
+    /**
+     * Filter the usages the same way as the rest of the UI: Only apps of the profiles of this
+     * user and only the groups that would be shown and are user sensitive for the app.
+     *
+     * @param usages The ongoing usages of all apps
+     *
+     * @return The usages to show, with label and icon of the app loaded
+     */
+    @WorkerThread
+    private @NonNull List<UsageToShow> getUsagesToShow(@NonNull List<OngoingUsage> usages) {
+        List<UserHandle> profiles = getSystemService(UserManager.class).getUserProfiles();
+        ArrayList<UsageToShow> usagesToShow = new ArrayList<>();
+
+        int numUsages = usages.size();
+        for (int usageNum = 0; usageNum < numUsages; usageNum++) {
+            OngoingUsage usage = usages.get(usageNum);
+
+            UserHandle user = UserHandle.getUserHandleForUid(usage.uid);
+            if (!profiles.contains(user)) {
+                continue;
+            }
+
+            PackageInfo pkg;
+            try {
+                pkg = createPackageContextAsUser(usage.packageName, 0, user)
+                        .getPackageManager().getPackageInfo(usage.packageName,
+                                PackageManager.GET_PERMISSIONS);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(LOG_TAG, "Not showing " + usage.packageName + " as it cannot be found",
+                        e);
+                continue;
+            }
+
+            ArraySet<String> groupsToShow = new ArraySet<>();
+            ArraySet<String> groups = usage.groups;
+            int numGroups = groups.size();
+            for (int i = 0; i < numGroups; i++) {
+                String groupName = groups.valueAt(i);
+
+                PackageItemInfo groupInfo = Utils.getGroupInfo(groupName, this);
+                List<PermissionInfo> groupPermInfos = Utils.getGroupPermissionInfos(groupName,
+                        this);
+                if (groupInfo == null || groupPermInfos == null) {
+                    continue;
+                }
+
+                AppPermissionGroup group = AppPermissionGroup.create(this, pkg, groupInfo,
+                        groupPermInfos, false);
+                if (group != null && Utils.shouldShowPermission(this, group)
+                        && Utils.isGroupOrBgGroupUserSensitive(group)) {
+                    groupsToShow.add(groupName);
+                }
+            }
+
+            if (!groupsToShow.isEmpty()) {
+                usagesToShow.add(new UsageToShow(Utils.getAppLabel(pkg.applicationInfo, this),
+                        Utils.getBadgedIcon(this, pkg.applicationInfo), groupsToShow));
+            }
+        }
+
+        return usagesToShow;
+    }
+
+    private void createDialog() {
+        View content = LayoutInflater.from(this).inflate(R.layout.ongoing_usage_dialog_content,
+                null);
+        mTitle = content.requireViewById(R.id.title);
+        mItemsContainer = content.requireViewById(R.id.items_container);
+
+        mDialog = new AlertDialog.Builder(this)
+                .setView(content)
+                .setPositiveButton(R.string.ongoing_usage_dialog_ok, null)
+                .setNeutralButton(R.string.ongoing_usage_dialog_open_settings,
+                        (dialog, which) -> startActivity(
+                                new Intent(Settings.ACTION_PRIVACY_SETTINGS)))
+                .setOnDismissListener(dialog -> finish())
+                .create();
+        mDialog.show();
+    }
+
+    private void updateDialog(@NonNull List<UsageToShow> usages) {
+        PackageManager pm = getPackageManager();
+        LayoutInflater inflater = LayoutInflater.from(this);
+
+        ArraySet<String> allGroups = new ArraySet<>();
+        int numUsages = usages.size();
+        for (int i = 0; i < numUsages; i++) {
+            allGroups.addAll(usages.get(i).groups);
+        }
+
+        mItemsContainer.removeAllViews();
+        for (int usageNum = 0; usageNum < numUsages; usageNum++) {
+            UsageToShow usage = usages.get(usageNum);
+
+            View item = inflater.inflate(R.layout.ongoing_usage_dialog_item, mItemsContainer,
+                    false);
+            ((ImageView) item.requireViewById(R.id.app_icon)).setImageDrawable(usage.icon);
+            ((TextView) item.requireViewById(R.id.app_name)).setText(usage.label);
+
+            // Only show which app uses what if there is more than one kind of usage
+            if (allGroups.size() > 1) {
+                ViewGroup icons = item.requireViewById(R.id.icons);
+                int numGroups = usage.groups.size();
+                for (int i = 0; i < numGroups; i++) {
+                    ImageView icon = new ImageView(this);
+                    icon.setImageDrawable(getGroupIcon(usage.groups.valueAt(i), pm));
+                    icon.setContentDescription(getGroupLabel(usage.groups.valueAt(i), pm));
+                    icons.addView(icon);
+                }
+                icons.setVisibility(View.VISIBLE);
+            }
+
+            mItemsContainer.addView(item);
+        }
+
+        mTitle.setText(getString(R.string.ongoing_usage_dialog_title,
+                getGroupsListString(allGroups, pm)));
+    }
+
+    /**
+     * @return The lower case labels of the groups, e.g. "camera and location"
+     */
+    private @NonNull String getGroupsListString(@NonNull ArraySet<String> groups,
+            @NonNull PackageManager pm) {
+        StringBuilder list = new StringBuilder();
+
+        int numGroups = groups.size();
+        for (int i = 0; i < numGroups; i++) {
+            if (i > 0) {
+                list.append(getString(i == numGroups - 1
+                        ? R.string.ongoing_usage_dialog_last_separator
+                        : R.string.ongoing_usage_dialog_separator));
+            }
+            list.append(getGroupLabel(groups.valueAt(i), pm).toString().toLowerCase());
+        }
+
+        return list.toString();
+    }
+
+    private @NonNull CharSequence getGroupLabel(@NonNull String group,
+            @NonNull PackageManager pm) {
+        CharSequence label = mGroupLabels.get(group);
+        if (label == null) {
+            PackageItemInfo groupInfo = Utils.getGroupInfo(group, this);
+            label = groupInfo != null ? groupInfo.loadLabel(pm) : group;
+            mGroupLabels.put(group, label);
+        }
+        return label;
+    }
+
+    private @Nullable Drawable getGroupIcon(@NonNull String group, @NonNull PackageManager pm) {
+        if (!mGroupIcons.containsKey(group)) {
+            Drawable icon = null;
+
+            PackageItemInfo groupInfo = Utils.getGroupInfo(group, this);
+            if (groupInfo != null) {
+                icon = Utils.loadDrawable(pm, groupInfo.packageName, groupInfo.icon);
+                if (icon != null) {
+                    icon = Utils.applyTint(this, icon, android.R.attr.colorControlNormal);
+                }
+            }
+            mGroupIcons.put(group, icon);
+        }
+        return mGroupIcons.get(group);
+    }
+
+    /**
+     * An app that currently uses permission groups.
+     */
+    private static final class OngoingUsage {
+        final int uid;
+        final @NonNull String packageName;
+        final @NonNull ArraySet<String> groups;
+
+        OngoingUsage(int uid, @NonNull String packageName, @NonNull ArraySet<String> groups) {
+            this.uid = uid;
+            this.packageName = packageName;
+            this.groups = groups;
+        }
+    }
+
+    /**
+     * An app that uses permission groups that should be shown.
+     */
+    private static final class UsageToShow {
+        final @NonNull String label;
+        final @NonNull Drawable icon;
+        final @NonNull ArraySet<String> groups;
+
+        UsageToShow(@NonNull String label, @NonNull Drawable icon,
+                @NonNull ArraySet<String> groups) {
+            this.label = label;
+            this.icon = icon;
+            this.groups = groups;
+        }
     }
 }
@@ -46,6 +46,9 @@ import androidx.preference.TwoStatePreference;
 import com.android.packageinstaller.auto.AutoSettingsFrameFragment;
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.Permission;
+import com.android.packageinstaller.permission.model.PermissionChangeDispatcher;
+import com.android.packageinstaller.permission.model.PermissionChangeDispatcher.PermissionChanges;
+import com.android.packageinstaller.permission.model.PermissionCommitQueue;
 import com.android.packageinstaller.permission.utils.LocationUtils;
 import com.android.packageinstaller.permission.utils.PackageRemovalMonitor;
 import com.android.packageinstaller.permission.utils.SafetyNetLogger;
@@ -73,6 +76,30 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
     @NonNull
     private AppPermissionGroup mGroup;
 
+    /** Commits the changes to {@link #mGroup} in the background */
+    @NonNull
+    private PermissionCommitQueue mCommitQueue;
+
+    /** Reloads the group if a commit failed as the state is not known anymore */
+    @NonNull
+    private final PermissionCommitQueue.Listener mCommitListener =
+            new PermissionCommitQueue.Listener() {
+                @Override
+                public void onCommitted() {
+                    // The group already reflects the committed state
+                }
+
+                @Override
+                public void onCommitFailed(@NonNull Exception e) {
+                    if (getActivity() == null) {
+                        return;
+                    }
+
+                    loadAppPermissionGroup();
+                    updateUi();
+                }
+            };
+
     @NonNull
     private TwoStatePreference mAlwaysPermissionPreference;
     @NonNull
@@ -89,7 +116,7 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
      * granted to. {@code null} when unregistered.
      */
     @Nullable
-    private PackageManager.OnPermissionsChangedListener mPermissionChangeListener;
+    private PermissionChangeListener mPermissionChangeListener;
 
     /**
      * Listens for changes to the app the permission is currently getting granted to. {@code null}
@@ -128,7 +155,7 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
 
         mHasConfirmedRevoke = false;
 
-        mGroup = getAppPermissionGroup();
+        loadAppPermissionGroup();
         if (mGroup == null) {
             requireActivity().setResult(Activity.RESULT_CANCELED);
             requireActivity().finish();
@@ -139,6 +166,21 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
                 getContext().getString(R.string.app_permission_title, mGroup.getFullLabel()));
     }
 
+    /**
+     * (Re-)load {@link #mGroup} unless it has changes that are not committed yet.
+     */
+    private void loadAppPermissionGroup() {
+        if (mCommitQueue != null && mCommitQueue.hasPendingChanges()) {
+            // The group is more up to date than the platform
+            return;
+        }
+
+        mGroup = getAppPermissionGroup();
+        if (mGroup != null) {
+            mCommitQueue = new PermissionCommitQueue(mGroup, mCommitListener);
+        }
+    }
+
     private AppPermissionGroup getAppPermissionGroup() {
         Activity activity = getActivity();
         Context context = getPreferenceManager().getContext();
@@ -162,7 +204,7 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
             return null;
         }
         AppPermissionGroup group = AppPermissionGroup.create(context, packageInfo, groupInfo,
-                groupPermInfos, false);
+                groupPermInfos, true);
 
         if (group == null || !Utils.shouldShowPermission(context, group)) {
             Log.i(LOG_TAG, "Illegal group: " + (group == null ? "null" : group.getName()));
@@ -214,10 +256,10 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
         super.onStart();
         Activity activity = requireActivity();
 
-        mPermissionChangeListener = new PermissionChangeListener(
-                mGroup.getApp().applicationInfo.uid);
-        PackageManager pm = activity.getPackageManager();
-        pm.addOnPermissionsChangeListener(mPermissionChangeListener);
+        mPermissionChangeListener = new PermissionChangeListener();
+        PermissionChangeDispatcher.get(activity).addListener(
+                mGroup.getApp().applicationInfo.uid, mGroup.getAllPermissionNames(),
+                mPermissionChangeListener);
 
         // Get notified when the package is removed.
         String packageName = mGroup.getApp().packageName;
@@ -243,7 +285,7 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
         }
 
         // Re-create the permission group in case permissions have changed and update the UI.
-        mGroup = getAppPermissionGroup();
+        loadAppPermissionGroup();
         updateUi();
     }
 
@@ -251,13 +293,17 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
     public void onStop() {
         super.onStop();
 
+        if (mCommitQueue != null) {
+            mCommitQueue.flush();
+        }
+
         if (mPackageRemovalMonitor != null) {
             mPackageRemovalMonitor.unregister();
             mPackageRemovalMonitor = null;
         }
 
         if (mPermissionChangeListener != null) {
-            getActivity().getPackageManager().removeOnPermissionsChangeListener(
+            PermissionChangeDispatcher.get(getActivity()).removeListener(
                     mPermissionChangeListener);
             mPermissionChangeListener = null;
         }
@@ -603,22 +649,25 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
         }
 
         if (requestGrant) {
-            if ((changeTarget & CHANGE_FOREGROUND) != 0) {
-                if (!mGroup.areRuntimePermissionsGranted()) {
-                    SafetyNetLogger.logPermissionToggled(mGroup);
+            mCommitQueue.change(() -> {
+                if ((changeTarget & CHANGE_FOREGROUND) != 0) {
+                    if (!mGroup.areRuntimePermissionsGranted()) {
+                        SafetyNetLogger.logPermissionToggled(mGroup);
+                    }
+
+                    mGroup.grantRuntimePermissions(false);
                 }
+                if ((changeTarget & CHANGE_BACKGROUND) != 0) {
+                    if (mGroup.getBackgroundPermissions() != null) {
+                        if (!mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
+                            SafetyNetLogger.logPermissionToggled(
+                                    mGroup.getBackgroundPermissions());
+                        }
 
-                mGroup.grantRuntimePermissions(false);
-            }
-            if ((changeTarget & CHANGE_BACKGROUND) != 0) {
-                if (mGroup.getBackgroundPermissions() != null) {
-                    if (!mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
-                        SafetyNetLogger.logPermissionToggled(mGroup.getBackgroundPermissions());
+                        mGroup.getBackgroundPermissions().grantRuntimePermissions(false);
                     }
-
-                    mGroup.getBackgroundPermissions().grantRuntimePermissions(false);
                 }
-            }
+            });
         } else {
             boolean showDefaultDenyDialog = false;
 
@@ -643,24 +692,24 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
                 updateUi();
                 return false;
             } else {
-                if ((changeTarget & CHANGE_FOREGROUND) != 0
-                        && mGroup.areRuntimePermissionsGranted()) {
-                    if (mGroup.areRuntimePermissionsGranted()) {
-                        SafetyNetLogger.logPermissionToggled(mGroup);
+                mCommitQueue.change(() -> {
+                    if ((changeTarget & CHANGE_FOREGROUND) != 0
+                            && mGroup.areRuntimePermissionsGranted()) {
+                        if (mGroup.areRuntimePermissionsGranted()) {
+                            SafetyNetLogger.logPermissionToggled(mGroup);
+                        }
+
+                        mGroup.revokeRuntimePermissions(false);
                     }
+                    if ((changeTarget & CHANGE_BACKGROUND) != 0) {
+                        AppPermissionGroup bgGroup = mGroup.getBackgroundPermissions();
+                        if (bgGroup != null && bgGroup.areRuntimePermissionsGranted()) {
+                            SafetyNetLogger.logPermissionToggled(bgGroup);
 
-                    mGroup.revokeRuntimePermissions(false);
-                }
-                if ((changeTarget & CHANGE_BACKGROUND) != 0) {
-                    if (mGroup.getBackgroundPermissions() != null
-                            && mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
-                        if (mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
-                            SafetyNetLogger.logPermissionToggled(mGroup.getBackgroundPermissions());
+                            bgGroup.revokeRuntimePermissions(false);
                         }
-
-                        mGroup.getBackgroundPermissions().revokeRuntimePermissions(false);
                     }
-                }
+                });
             }
         }
 
@@ -716,24 +765,30 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
      */
     void onDenyAnyWay(@ChangeTarget int changeTarget) {
         boolean hasDefaultPermissions = false;
-        if ((changeTarget & CHANGE_FOREGROUND) != 0) {
-            if (mGroup.areRuntimePermissionsGranted()) {
-                SafetyNetLogger.logPermissionToggled(mGroup);
+        mCommitQueue.change(() -> {
+            if ((changeTarget & CHANGE_FOREGROUND) != 0) {
+                if (mGroup.areRuntimePermissionsGranted()) {
+                    SafetyNetLogger.logPermissionToggled(mGroup);
+                }
+
+                mGroup.revokeRuntimePermissions(false);
             }
+            if ((changeTarget & CHANGE_BACKGROUND) != 0) {
+                if (mGroup.getBackgroundPermissions() != null) {
+                    if (mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
+                        SafetyNetLogger.logPermissionToggled(mGroup.getBackgroundPermissions());
+                    }
 
-            mGroup.revokeRuntimePermissions(false);
-            hasDefaultPermissions = mGroup.hasGrantedByDefaultPermission();
-        }
-        if ((changeTarget & CHANGE_BACKGROUND) != 0) {
-            if (mGroup.getBackgroundPermissions() != null) {
-                if (mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
-                    SafetyNetLogger.logPermissionToggled(mGroup.getBackgroundPermissions());
+                    mGroup.getBackgroundPermissions().revokeRuntimePermissions(false);
                 }
-
-                mGroup.getBackgroundPermissions().revokeRuntimePermissions(false);
-                hasDefaultPermissions |=
-                        mGroup.getBackgroundPermissions().hasGrantedByDefaultPermission();
             }
+        });
+        if ((changeTarget & CHANGE_FOREGROUND) != 0) {
+            hasDefaultPermissions = mGroup.hasGrantedByDefaultPermission();
+        }
+        if ((changeTarget & CHANGE_BACKGROUND) != 0 && mGroup.getBackgroundPermissions() != null) {
+            hasDefaultPermissions |=
+                    mGroup.getBackgroundPermissions().hasGrantedByDefaultPermission();
         }
 
         if (hasDefaultPermissions || !mGroup.doesSupportRuntimePermissions()) {
@@ -787,18 +842,16 @@ public class AutoAppPermissionFragment extends AutoSettingsFrameFragment {
     /**
      * A listener for permission changes.
      */
-    private class PermissionChangeListener implements PackageManager.OnPermissionsChangedListener {
-        private final int mUid;
-
-        PermissionChangeListener(int uid) {
-            mUid = uid;
-        }
-
+    private class PermissionChangeListener implements PermissionChangeDispatcher.Listener {
         @Override
-        public void onPermissionsChanged(int uid) {
-            if (uid == mUid) {
+        public void onPermissionsChanged(@NonNull PermissionChanges changes) {
+            if (mCommitQueue != null && mCommitQueue.hasPendingChanges()) {
+                // The group is more up to date than the platform
+                return;
+            }
+
+            if (mGroup.applyPermissionChanges(changes)) {
                 Log.w(LOG_TAG, "Permissions changed.");
-                mGroup = getAppPermissionGroup();
                 updateUi();
             }
         }
@@ -36,6 +36,7 @@ import com.android.packageinstaller.auto.AutoSettingsFrameFragment;
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.AppPermissions;
 import com.android.packageinstaller.permission.ui.AppPermissionActivity;
+import com.android.packageinstaller.permission.ui.PreferencePool;
 import com.android.packageinstaller.permission.utils.Utils;
 import com.android.permissioncontroller.R;
 
@@ -53,6 +54,9 @@ public class AutoAppPermissionsFragment extends AutoSettingsFrameFragment {
 
     private Collator mCollator;
 
+    /** Preferences of the permission groups, keyed by group name */
+    private final PreferencePool<Preference> mPreferencePool = new PreferencePool<>();
+
     /**
      * @return A new fragment
      */
@@ -152,6 +156,7 @@ public class AutoAppPermissionsFragment extends AutoSettingsFrameFragment {
         PreferenceCategory allowed = findPreference(KEY_ALLOWED_PERMISSIONS_GROUP);
         PreferenceCategory denied = findPreference(KEY_DENIED_PERMISSIONS_GROUP);
 
+        mPreferencePool.beginUpdate();
         allowed.removeAll();
         denied.removeAll();
 
@@ -180,7 +185,9 @@ public class AutoAppPermissionsFragment extends AutoSettingsFrameFragment {
 
             boolean isPlatform = group.getDeclaringPackage().equals(Utils.OS_PKG);
 
-            Preference preference = createPermissionPreference(getContext(), group);
+            Preference preference = mPreferencePool.obtain(group.getName(),
+                    key -> createPermissionPreference(getContext(), group));
+            preference.setTitle(group.getFullLabel());
             if (isPlatform) {
                 PreferenceCategory category =
                         group.areRuntimePermissionsGranted() ? allowed : denied;
@@ -242,8 +249,6 @@ public class AutoAppPermissionsFragment extends AutoSettingsFrameFragment {
         Preference preference = new Preference(context);
         Drawable icon = Utils.loadDrawable(context.getPackageManager(),
                 group.getIconPkg(), group.getIconResId());
-        preference.setKey(group.getName());
-        preference.setTitle(group.getFullLabel());
         preference.setIcon(Utils.applyTint(context, icon, android.R.attr.colorControlNormal));
         preference.setOnPreferenceClickListener(pref -> {
             Intent intent = new Intent(Intent.ACTION_MANAGE_APP_PERMISSION);
@@ -209,7 +209,7 @@ public class AutoPermissionAppsFragment extends AutoSettingsFrameFragment implem
         ArrayList<PermissionApps.PermissionApp> sortedApps = new ArrayList<>(
                 permissionApps.getApps());
         sortedApps.sort((x, y) -> {
-            int result = mCollator.compare(x.getLabel(), y.getLabel());
+            int result = x.getLabelSortKey(mCollator).compareTo(y.getLabelSortKey(mCollator));
             if (result == 0) {
                 result = x.getUid() - y.getUid();
             }
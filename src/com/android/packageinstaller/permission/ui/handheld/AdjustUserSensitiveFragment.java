@@ -24,7 +24,9 @@ import static com.android.packageinstaller.Constants.FORCED_USER_SENSITIVE_UIDS_
 import static com.android.packageinstaller.Constants.PREFERENCES_FILE;
 import static com.android.packageinstaller.permission.utils.Utils.getFullAppLabel;
 import static com.android.packageinstaller.permission.utils.Utils.getParentUserContext;
+import static com.android.packageinstaller.permission.utils.Utils.updateAssistantUserSensitive;
 import static com.android.packageinstaller.permission.utils.Utils.updateUserSensitive;
+import static com.android.packageinstaller.permission.utils.Utils.updateUserSensitiveForUids;
 
 import android.app.ActionBar;
 import android.app.Application;
@@ -288,12 +290,29 @@ public class AdjustUserSensitiveFragment extends PermissionsFrameFragment {
         }
 
         /**
-         * Update permission state to reflect user sensitivity selected.
+         * Update permission state of a single uid to reflect user sensitivity selected.
          *
-         * @param user The user to update.
+         * @param uid The uid to update.
          */
-        private void updatePermissionFlags(@NonNull UserHandle user) {
-            AsyncTask.execute(() -> updateUserSensitive(getApplication(), user));
+        private void updatePermissionFlags(int uid) {
+            AsyncTask.execute(() -> updateUserSensitiveForUids(getApplication(),
+                    UserHandle.getUserHandleForUid(uid), new int[]{uid}));
+        }
+
+        /**
+         * Update permission state of the assistant to reflect user sensitivity selected. (for all
+         * users)
+         */
+        private void updateAssistantPermissionFlags() {
+            AsyncTask.execute(() -> {
+                List<UserHandle> users = getApplication().getSystemService(UserManager.class)
+                        .getUserProfiles();
+
+                int numUsers = users.size();
+                for (int userNum = 0; userNum < numUsers; userNum++) {
+                    updateAssistantUserSensitive(getApplication(), users.get(userNum));
+                }
+            });
         }
 
         /**
@@ -346,7 +365,7 @@ public class AdjustUserSensitiveFragment extends PermissionsFrameFragment {
                 mPrefs.edit().putStringSet(FORCED_USER_SENSITIVE_UIDS_KEY, newOverrides).apply();
             }
 
-            updatePermissionFlags(UserHandle.getUserHandleForUid(uid));
+            updatePermissionFlags(uid);
         }
 
         /**
@@ -400,7 +419,7 @@ public class AdjustUserSensitiveFragment extends PermissionsFrameFragment {
             sharedPrefChanges.apply();
 
             // We don't know which user contains the assistant
-            updatePermissionFlags();
+            updateAssistantPermissionFlags();
         }
 
         /**
@@ -59,6 +59,9 @@ import androidx.fragment.app.Fragment;
 import com.android.packageinstaller.PermissionControllerStatsLog;
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.Permission;
+import com.android.packageinstaller.permission.model.PermissionChangeDispatcher;
+import com.android.packageinstaller.permission.model.PermissionChangeDispatcher.PermissionChanges;
+import com.android.packageinstaller.permission.model.PermissionCommitQueue;
 import com.android.packageinstaller.permission.ui.AppPermissionActivity;
 import com.android.packageinstaller.permission.utils.LocationUtils;
 import com.android.packageinstaller.permission.utils.PackageRemovalMonitor;
@@ -91,6 +94,28 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
 
     private @NonNull AppPermissionGroup mGroup;
 
+    /** Commits the changes to {@link #mGroup} in the background */
+    private @NonNull PermissionCommitQueue mCommitQueue;
+
+    /** Reloads the group if a commit failed as the state is not known anymore */
+    private final @NonNull PermissionCommitQueue.Listener mCommitListener =
+            new PermissionCommitQueue.Listener() {
+                @Override
+                public void onCommitted() {
+                    // The group already reflects the committed state
+                }
+
+                @Override
+                public void onCommitFailed(@NonNull Exception e) {
+                    if (getActivity() == null) {
+                        return;
+                    }
+
+                    createAppPermissionGroup();
+                    updateButtons();
+                }
+            };
+
     private @NonNull RadioGroup mRadioGroup;
     private @NonNull RadioButton mAlwaysButton;
     private @NonNull RadioButton mForegroundOnlyButton;
@@ -108,7 +133,7 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
      * Listens for changes to the permission of the app the permission is currently getting
      * granted to. {@code null} when unregistered.
      */
-    private @Nullable PackageManager.OnPermissionsChangedListener mPermissionChangeListener;
+    private @Nullable PermissionChangeListener mPermissionChangeListener;
 
     /**
      * Listens for changes to the app the permission is currently getting granted to. {@code null}
@@ -164,6 +189,12 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
     }
 
     private void createAppPermissionGroup() {
+        if (mCommitQueue != null && mCommitQueue.hasPendingChanges()) {
+            // The group has changes that are not committed yet, i.e. the group is more up to date
+            // than the platform
+            return;
+        }
+
         Context context = getPreferenceManager().getContext();
 
         String packageName = getArguments().getString(Intent.EXTRA_PACKAGE_NAME);
@@ -182,7 +213,7 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
         UserHandle userHandle = getArguments().getParcelable(Intent.EXTRA_USER);
         mGroup = AppPermissionGroup.create(context,
                 getPackageInfo(mActivity, packageName, userHandle),
-                groupInfo, groupPermInfos, false);
+                groupInfo, groupPermInfos, true);
 
         if (mGroup == null || !Utils.shouldShowPermission(context, mGroup)) {
             Log.i(LOG_TAG, "Illegal group: " + (mGroup == null ? "null" : mGroup.getName()));
@@ -190,6 +221,8 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
             mActivity.finish();
             return;
         }
+
+        mCommitQueue = new PermissionCommitQueue(mGroup, mCommitListener);
     }
 
     @Override
@@ -265,16 +298,10 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
         UserHandle userHandle = getArguments().getParcelable(Intent.EXTRA_USER);
 
         // Get notified when permissions change.
-        try {
-            mPermissionChangeListener = new PermissionChangeListener(
-                    mGroup.getApp().applicationInfo.uid);
-        } catch (NameNotFoundException e) {
-            mActivity.setResult(Activity.RESULT_CANCELED);
-            mActivity.finish();
-            return;
-        }
-        PackageManager pm = mActivity.getPackageManager();
-        pm.addOnPermissionsChangeListener(mPermissionChangeListener);
+        mPermissionChangeListener = new PermissionChangeListener();
+        PermissionChangeDispatcher.get(mActivity).addListener(
+                mGroup.getApp().applicationInfo.uid, mGroup.getAllPermissionNames(),
+                mPermissionChangeListener);
 
         // Get notified when the package is removed.
         mPackageRemovalMonitor = new PackageRemovalMonitor(getContext(), packageName) {
@@ -321,13 +348,17 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
     public void onStop() {
         super.onStop();
 
+        if (mCommitQueue != null) {
+            mCommitQueue.flush();
+        }
+
         if (mPackageRemovalMonitor != null) {
             mPackageRemovalMonitor.unregister();
             mPackageRemovalMonitor = null;
         }
 
         if (mPermissionChangeListener != null) {
-            getActivity().getPackageManager().removeOnPermissionsChangeListener(
+            PermissionChangeDispatcher.get(getActivity()).removeListener(
                     mPermissionChangeListener);
             mPermissionChangeListener = null;
         }
@@ -798,22 +829,25 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
 
         if (requestGrant) {
             ArrayList<PermissionState> stateBefore = createPermissionSnapshot();
-            if ((changeTarget & CHANGE_FOREGROUND) != 0) {
-                if (!mGroup.areRuntimePermissionsGranted()) {
-                    SafetyNetLogger.logPermissionToggled(mGroup);
+            mCommitQueue.change(() -> {
+                if ((changeTarget & CHANGE_FOREGROUND) != 0) {
+                    if (!mGroup.areRuntimePermissionsGranted()) {
+                        SafetyNetLogger.logPermissionToggled(mGroup);
+                    }
+
+                    mGroup.grantRuntimePermissions(false);
                 }
+                if ((changeTarget & CHANGE_BACKGROUND) != 0) {
+                    if (mGroup.getBackgroundPermissions() != null) {
+                        if (!mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
+                            SafetyNetLogger.logPermissionToggled(
+                                    mGroup.getBackgroundPermissions());
+                        }
 
-                mGroup.grantRuntimePermissions(false);
-            }
-            if ((changeTarget & CHANGE_BACKGROUND) != 0) {
-                if (mGroup.getBackgroundPermissions() != null) {
-                    if (!mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
-                        SafetyNetLogger.logPermissionToggled(mGroup.getBackgroundPermissions());
+                        mGroup.getBackgroundPermissions().grantRuntimePermissions(false);
                     }
-
-                    mGroup.getBackgroundPermissions().grantRuntimePermissions(false);
                 }
-            }
+            });
             logPermissionChanges(stateBefore);
         } else {
             boolean showDefaultDenyDialog = false;
@@ -845,24 +879,24 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
                 return false;
             } else {
                 ArrayList<PermissionState> stateBefore = createPermissionSnapshot();
-                if ((changeTarget & CHANGE_FOREGROUND) != 0
-                        && mGroup.areRuntimePermissionsGranted()) {
-                    if (mGroup.areRuntimePermissionsGranted()) {
-                        SafetyNetLogger.logPermissionToggled(mGroup);
+                mCommitQueue.change(() -> {
+                    if ((changeTarget & CHANGE_FOREGROUND) != 0
+                            && mGroup.areRuntimePermissionsGranted()) {
+                        if (mGroup.areRuntimePermissionsGranted()) {
+                            SafetyNetLogger.logPermissionToggled(mGroup);
+                        }
+
+                        mGroup.revokeRuntimePermissions(false);
                     }
+                    if ((changeTarget & CHANGE_BACKGROUND) != 0) {
+                        AppPermissionGroup bgGroup = mGroup.getBackgroundPermissions();
+                        if (bgGroup != null && bgGroup.areRuntimePermissionsGranted()) {
+                            SafetyNetLogger.logPermissionToggled(bgGroup);
 
-                    mGroup.revokeRuntimePermissions(false);
-                }
-                if ((changeTarget & CHANGE_BACKGROUND) != 0) {
-                    if (mGroup.getBackgroundPermissions() != null
-                            && mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
-                        if (mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
-                            SafetyNetLogger.logPermissionToggled(mGroup.getBackgroundPermissions());
+                            bgGroup.revokeRuntimePermissions(false);
                         }
-
-                        mGroup.getBackgroundPermissions().revokeRuntimePermissions(false);
                     }
-                }
+                });
                 logPermissionChanges(stateBefore);
             }
         }
@@ -920,24 +954,30 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
     void onDenyAnyWay(@ChangeTarget int changeTarget) {
         boolean hasDefaultPermissions = false;
         ArrayList<PermissionState> stateBefore = createPermissionSnapshot();
-        if ((changeTarget & CHANGE_FOREGROUND) != 0) {
-            if (mGroup.areRuntimePermissionsGranted()) {
-                SafetyNetLogger.logPermissionToggled(mGroup);
+        mCommitQueue.change(() -> {
+            if ((changeTarget & CHANGE_FOREGROUND) != 0) {
+                if (mGroup.areRuntimePermissionsGranted()) {
+                    SafetyNetLogger.logPermissionToggled(mGroup);
+                }
+
+                mGroup.revokeRuntimePermissions(false);
             }
+            if ((changeTarget & CHANGE_BACKGROUND) != 0) {
+                if (mGroup.getBackgroundPermissions() != null) {
+                    if (mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
+                        SafetyNetLogger.logPermissionToggled(mGroup.getBackgroundPermissions());
+                    }
 
-            mGroup.revokeRuntimePermissions(false);
-            hasDefaultPermissions = mGroup.hasGrantedByDefaultPermission();
-        }
-        if ((changeTarget & CHANGE_BACKGROUND) != 0) {
-            if (mGroup.getBackgroundPermissions() != null) {
-                if (mGroup.getBackgroundPermissions().areRuntimePermissionsGranted()) {
-                    SafetyNetLogger.logPermissionToggled(mGroup.getBackgroundPermissions());
+                    mGroup.getBackgroundPermissions().revokeRuntimePermissions(false);
                 }
-
-                mGroup.getBackgroundPermissions().revokeRuntimePermissions(false);
-                hasDefaultPermissions |=
-                        mGroup.getBackgroundPermissions().hasGrantedByDefaultPermission();
             }
+        });
+        if ((changeTarget & CHANGE_FOREGROUND) != 0) {
+            hasDefaultPermissions = mGroup.hasGrantedByDefaultPermission();
+        }
+        if ((changeTarget & CHANGE_BACKGROUND) != 0 && mGroup.getBackgroundPermissions() != null) {
+            hasDefaultPermissions |=
+                    mGroup.getBackgroundPermissions().hasGrantedByDefaultPermission();
         }
         logPermissionChanges(stateBefore);
 
@@ -977,18 +1017,17 @@ public class AppPermissionFragment extends SettingsWithLargeHeader {
     /**
      * A listener for permission changes.
      */
-    private class PermissionChangeListener implements PackageManager.OnPermissionsChangedListener {
-        private final int mUid;
-
-        PermissionChangeListener(int uid) throws NameNotFoundException {
-            mUid = uid;
-        }
-
+    private class PermissionChangeListener implements PermissionChangeDispatcher.Listener {
         @Override
-        public void onPermissionsChanged(int uid) {
-            if (uid == mUid) {
+        public void onPermissionsChanged(@NonNull PermissionChanges changes) {
+            if (mCommitQueue != null && mCommitQueue.hasPendingChanges()) {
+                // The group has changes that are not committed yet, i.e. the group is more up to
+                // date than the platform
+                return;
+            }
+
+            if (mGroup.applyPermissionChanges(changes)) {
                 Log.w(LOG_TAG, "Permissions changed.");
-                createAppPermissionGroup();
                 updateButtons();
             }
         }
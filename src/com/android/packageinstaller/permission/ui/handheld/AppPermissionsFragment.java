@@ -51,6 +51,7 @@ import androidx.preference.PreferenceScreen;
 import com.android.packageinstaller.PermissionControllerStatsLog;
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.AppPermissions;
+import com.android.packageinstaller.permission.ui.PreferencePool;
 import com.android.packageinstaller.permission.utils.Utils;
 import com.android.permissioncontroller.R;
 import com.android.settingslib.HelpUtils;
@@ -82,6 +83,10 @@ public final class AppPermissionsFragment extends SettingsWithLargeHeader {
 
     private Collator mCollator;
 
+    /** Preferences of the permission groups, keyed by group name */
+    private final PreferencePool<PermissionControlPreference> mPreferencePool =
+            new PreferencePool<>();
+
     /**
      * @return A new fragment
      */
@@ -220,6 +225,7 @@ public final class AppPermissionsFragment extends SettingsWithLargeHeader {
         PreferenceCategory allowed = (PreferenceCategory) findPreference(PREFERENCE_ALLOWED);
         PreferenceCategory denied = (PreferenceCategory) findPreference(PREFERENCE_DENIED);
 
+        mPreferencePool.beginUpdate();
         allowed.removeAll();
         denied.removeAll();
 
@@ -250,13 +256,17 @@ public final class AppPermissionsFragment extends SettingsWithLargeHeader {
 
             boolean isPlatform = group.getDeclaringPackage().equals(Utils.OS_PKG);
 
-            PermissionControlPreference preference = new PermissionControlPreference(context,
-                    group, AppPermissionsFragment.class.getName(), sessionId);
-            preference.setKey(group.getName());
-            Drawable icon = Utils.loadDrawable(context.getPackageManager(),
-                    group.getIconPkg(), group.getIconResId());
-            preference.setIcon(Utils.applyTint(context, icon,
-                    android.R.attr.colorControlNormal));
+            PermissionControlPreference preference = mPreferencePool.obtain(group.getName(),
+                    key -> {
+                        PermissionControlPreference newPreference =
+                                new PermissionControlPreference(context, group,
+                                        AppPermissionsFragment.class.getName(), sessionId);
+                        Drawable icon = Utils.loadDrawable(context.getPackageManager(),
+                                group.getIconPkg(), group.getIconResId());
+                        newPreference.setIcon(Utils.applyTint(context, icon,
+                                android.R.attr.colorControlNormal));
+                        return newPreference;
+                    });
             preference.setTitle(group.getFullLabel());
             preference.setGroupSummary(group);
 
@@ -68,7 +68,7 @@ class PermissionPreference extends MultiTargetSwitchPreference {
     static final int CHANGE_BACKGROUND = 2;
     static final int CHANGE_BOTH = CHANGE_FOREGROUND | CHANGE_BACKGROUND;
 
-    private final AppPermissionGroup mGroup;
+    private AppPermissionGroup mGroup;
     private final PreferenceFragmentCompat mFragment;
     private final PermissionPreferenceChangeListener mCallBacks;
     private final @LayoutRes int mOriginalWidgetLayoutRes;
@@ -224,6 +224,16 @@ class PermissionPreference extends MultiTargetSwitchPreference {
         return RestrictedLockUtils.getProfileOrDeviceOwner(getContext(), mGroup.getUser());
     }
 
+    /**
+     * Show a new instance of the group, e.g. after the app's permissions were reloaded.
+     *
+     * @param group The group to show, needs to have the same name as the current group
+     */
+    void setGroup(AppPermissionGroup group) {
+        mGroup = group;
+        updateUi();
+    }
+
     /**
      * Update the preference after the state might have changed.
      */
@@ -50,6 +50,7 @@ import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.AppPermissions;
 import com.android.packageinstaller.permission.model.Permission;
 import com.android.packageinstaller.permission.ui.ManagePermissionsActivity;
+import com.android.packageinstaller.permission.ui.PreferencePool;
 import com.android.packageinstaller.permission.utils.ArrayUtils;
 import com.android.packageinstaller.permission.utils.Utils;
 import com.android.permissioncontroller.R;
@@ -90,6 +91,9 @@ public final class ReviewPermissionsFragment extends PreferenceFragmentCompat
 
     private boolean mHasConfirmedRevoke;
 
+    private final PreferencePool<PermissionReviewPreference> mPreferencePool =
+            new PreferencePool<>();
+
     public static ReviewPermissionsFragment newInstance(PackageInfo packageInfo) {
         Bundle arguments = new Bundle();
         arguments.putParcelable(ReviewPermissionsFragment.EXTRA_PACKAGE_INFO, packageInfo);
@@ -348,18 +352,7 @@ public final class ReviewPermissionsFragment extends PreferenceFragmentCompat
     }
 
     private PermissionReviewPreference getPreference(String key) {
-        if (mNewPermissionsCategory != null) {
-            PermissionReviewPreference pref =
-                    (PermissionReviewPreference) mNewPermissionsCategory.findPreference(key);
-
-            if (pref == null && mCurrentPermissionsCategory != null) {
-                return (PermissionReviewPreference) mCurrentPermissionsCategory.findPreference(key);
-            } else {
-                return pref;
-            }
-        } else {
-            return (PermissionReviewPreference) getPreferenceScreen().findPreference(key);
-        }
+        return mPreferencePool.get(key);
     }
 
     private void loadPreferences() {
@@ -375,6 +368,7 @@ public final class ReviewPermissionsFragment extends PreferenceFragmentCompat
         } else {
             screen.removeAll();
         }
+        mPreferencePool.beginUpdate();
 
         mCurrentPermissionsCategory = null;
         mNewPermissionsCategory = null;
@@ -387,24 +381,28 @@ public final class ReviewPermissionsFragment extends PreferenceFragmentCompat
                 continue;
             }
 
-            PermissionReviewPreference preference = getPreference(group.getName());
-            if (preference == null) {
-                // CTA Feature: Add mLinearLayout to hide the reviewUI button @{
-                if (!PermissionUtils.isCtaFeatureSupported()) {
-                    preference = new PermissionReviewPreference(this, group, this);
-                } else {
-                    preference = new PermissionReviewPreference(this, group, this, mLinearLayout);
-                }
-                // @}
-
-                preference.setKey(group.getName());
-                Drawable icon = Utils.loadDrawable(activity.getPackageManager(),
-                        group.getIconPkg(), group.getIconResId());
-                preference.setIcon(Utils.applyTint(getContext(), icon,
-                        android.R.attr.colorControlNormal));
-                preference.setTitle(group.getLabel());
-            } else {
-                preference.updateUi();
+            PermissionReviewPreference preference = mPreferencePool.obtain(group.getName(),
+                    key -> {
+                        PermissionReviewPreference newPreference;
+                        // CTA Feature: Add mLinearLayout to hide the reviewUI button @{
+                        if (!PermissionUtils.isCtaFeatureSupported()) {
+                            newPreference = new PermissionReviewPreference(this, group, this);
+                        } else {
+                            newPreference = new PermissionReviewPreference(this, group, this,
+                                    mLinearLayout);
+                        }
+                        // @}
+
+                        Drawable icon = Utils.loadDrawable(activity.getPackageManager(),
+                                group.getIconPkg(), group.getIconResId());
+                        newPreference.setIcon(Utils.applyTint(getContext(), icon,
+                                android.R.attr.colorControlNormal));
+                        newPreference.setTitle(group.getLabel());
+                        return newPreference;
+                    });
+            // The groups are re-created when the app's permissions are refreshed
+            if (preference.getGroup() != group) {
+                preference.setGroup(group);
             }
 
             if (group.isReviewRequired() || (group.getBackgroundPermissions() != null
@@ -513,7 +511,7 @@ public final class ReviewPermissionsFragment extends PreferenceFragmentCompat
      * </ul>
      */
     private static class PermissionReviewPreference extends PermissionPreference {
-        private final AppPermissionGroup mGroup;
+        private AppPermissionGroup mGroup;
         private boolean mWasChanged;
 
         PermissionReviewPreference(PreferenceFragmentCompat fragment, AppPermissionGroup group,
@@ -538,6 +536,20 @@ public final class ReviewPermissionsFragment extends PreferenceFragmentCompat
             return mGroup;
         }
 
+        /**
+         * Rebind a reused preference to a reloaded group.
+         *
+         * <p>Toggles the user made before the group was reloaded were not persisted, hence the
+         * preference is reset to the state of the new group.
+         */
+        @Override
+        void setGroup(AppPermissionGroup group) {
+            mGroup = group;
+            mWasChanged = false;
+            // Re-derives the checked state from the group
+            super.setGroup(group);
+        }
+
         /**
          * Mark the permission as changed by the user
          */
@@ -45,6 +45,7 @@ import androidx.preference.SwitchPreference;
 
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
 import com.android.packageinstaller.permission.model.AppPermissions;
+import com.android.packageinstaller.permission.ui.PreferencePool;
 import com.android.packageinstaller.permission.ui.ReviewPermissionsActivity;
 import com.android.packageinstaller.permission.utils.LocationUtils;
 import com.android.packageinstaller.permission.utils.SafetyNetLogger;
@@ -64,6 +65,9 @@ public final class AppPermissionsFragment extends SettingsWithHeader
     private AppPermissions mAppPermissions;
     private PreferenceScreen mExtraScreen;
 
+    /** Preferences of the permission groups, keyed by group name */
+    private final PreferencePool<SwitchPreference> mPreferencePool = new PreferencePool<>();
+
     private boolean mHasConfirmedRevoke;
 
     public static AppPermissionsFragment newInstance(String packageName) {
@@ -177,6 +181,7 @@ public final class AppPermissionsFragment extends SettingsWithHeader
         }
 
         PreferenceScreen screen = getPreferenceScreen();
+        mPreferencePool.beginUpdate();
         screen.removeAll();
         screen.addPreference(createHeaderLineTwoPreference(context));
 
@@ -196,20 +201,24 @@ public final class AppPermissionsFragment extends SettingsWithHeader
 
             boolean isPlatform = group.getDeclaringPackage().equals(Utils.OS_PKG);
 
-            SwitchPreference preference = new SwitchPreference(context);
-            preference.setOnPreferenceChangeListener(this);
-            preference.setKey(group.getName());
-            Drawable icon = Utils.loadDrawable(context.getPackageManager(),
-                    group.getIconPkg(), group.getIconResId());
-            preference.setIcon(Utils.applyTint(getContext(), icon,
-                    android.R.attr.colorControlNormal));
+            SwitchPreference preference = mPreferencePool.obtain(group.getName(), key -> {
+                SwitchPreference newPreference = new SwitchPreference(context);
+                newPreference.setOnPreferenceChangeListener(this);
+                Drawable icon = Utils.loadDrawable(context.getPackageManager(),
+                        group.getIconPkg(), group.getIconResId());
+                newPreference.setIcon(Utils.applyTint(getContext(), icon,
+                        android.R.attr.colorControlNormal));
+                newPreference.setPersistent(false);
+                return newPreference;
+            });
             preference.setTitle(group.getLabel());
             if (group.isSystemFixed()) {
                 preference.setSummary(getString(R.string.permission_summary_enabled_system_fixed));
             } else if (group.isPolicyFixed()) {
                 preference.setSummary(getString(R.string.permission_summary_enforced_by_policy));
+            } else {
+                preference.setSummary(null);
             }
-            preference.setPersistent(false);
             preference.setEnabled(!group.isSystemFixed() && !group.isPolicyFixed());
             preference.setChecked(group.areRuntimePermissionsGranted());
 
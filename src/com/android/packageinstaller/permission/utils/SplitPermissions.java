@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.utils;
+
+import android.content.Context;
+import android.permission.PermissionManager;
+import android.permission.PermissionManager.SplitPermissionInfo;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The split permissions of the platform.
+ *
+ * <p>The splits do not change while this process is running, hence they are loaded only once and
+ * expansions of permissions by their splits are memoized.
+ */
+public final class SplitPermissions {
+    private static final Object sLock = new Object();
+
+    // @GuardedBy("sLock")
+    private static SplitPermissions sInstance;
+
+    /** All splits */
+    private final @NonNull List<SplitPermissionInfo> mSplitPermissions;
+
+    /** split permission -> splits of this permission */
+    private final @NonNull ArrayMap<String, ArrayList<SplitPermissionInfo>> mSplitsOfPermission;
+
+    private final Object mLock = new Object();
+
+    /** permission -> target SDK -> expanded permissions */
+    // @GuardedBy("mLock")
+    private final ArrayMap<String, SparseArray<String[]>> mExpandedPermissions = new ArrayMap<>();
+
+    /**
+     * Get the split permissions.
+     *
+     * @param context A context
+     *
+     * @return The split permissions shared in this process
+     */
+    public static @NonNull SplitPermissions get(@NonNull Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new SplitPermissions(
+                        context.getSystemService(PermissionManager.class).getSplitPermissions());
+            }
+
+            return sInstance;
+        }
+    }
+
+    private SplitPermissions(@NonNull List<SplitPermissionInfo> splitPermissions) {
+        mSplitPermissions = Collections.unmodifiableList(new ArrayList<>(splitPermissions));
+
+        mSplitsOfPermission = new ArrayMap<>();
+        int numSplitPerms = mSplitPermissions.size();
+        for (int i = 0; i < numSplitPerms; i++) {
+            SplitPermissionInfo splitPerm = mSplitPermissions.get(i);
+
+            ArrayList<SplitPermissionInfo> splitsOfPermission = mSplitsOfPermission.get(
+                    splitPerm.getSplitPermission());
+            if (splitsOfPermission == null) {
+                splitsOfPermission = new ArrayList<>(1);
+                mSplitsOfPermission.put(splitPerm.getSplitPermission(), splitsOfPermission);
+            }
+            splitsOfPermission.add(splitPerm);
+        }
+    }
+
+    /**
+     * @return All split permissions of the platform
+     */
+    public @NonNull List<SplitPermissionInfo> getSplitPermissions() {
+        return mSplitPermissions;
+    }
+
+    /**
+     * Get the permissions a permission is split into for an app targeting a certain SDK.
+     *
+     * <p>The returned array is shared, hence it must not be modified.
+     *
+     * @param permission The permission to expand
+     * @param targetSdk The target SDK of the app (or the platform version a backup was taken on)
+     *
+     * @return The {@code permission} followed by all permissions it is split into
+     */
+    public @NonNull String[] expand(@NonNull String permission, int targetSdk) {
+        ArrayList<SplitPermissionInfo> splitsOfPermission = mSplitsOfPermission.get(permission);
+        if (splitsOfPermission == null) {
+            return new String[]{permission};
+        }
+
+        synchronized (mLock) {
+            SparseArray<String[]> expandedForTargetSdk = mExpandedPermissions.get(permission);
+            if (expandedForTargetSdk == null) {
+                expandedForTargetSdk = new SparseArray<>();
+                mExpandedPermissions.put(permission, expandedForTargetSdk);
+            }
+
+            String[] expanded = expandedForTargetSdk.get(targetSdk);
+            if (expanded == null) {
+                ArrayList<String> expandedList = new ArrayList<>();
+                expandedList.add(permission);
+
+                int numSplits = splitsOfPermission.size();
+                for (int i = 0; i < numSplits; i++) {
+                    SplitPermissionInfo splitPerm = splitsOfPermission.get(i);
+
+                    if (targetSdk < splitPerm.getTargetSdk()) {
+                        expandedList.addAll(splitPerm.getNewPermissions());
+                    }
+                }
+
+                expanded = expandedList.toArray(new String[expandedList.size()]);
+                expandedForTargetSdk.put(targetSdk, expanded);
+            }
+
+            return expanded;
+        }
+    }
+
+    /**
+     * Expand permissions by the permissions they are split into.
+     *
+     * @param permissions The permissions to expand
+     * @param targetSdk The target SDK of the app
+     *
+     * @return The {@code permissions} followed by the permissions they are split into
+     */
+    public @NonNull ArrayList<String> expand(@NonNull List<String> permissions, int targetSdk) {
+        ArrayList<String> expandedPermissions = new ArrayList<>(permissions);
+
+        int numPermissions = permissions.size();
+        for (int i = 0; i < numPermissions; i++) {
+            String[] expanded = expand(permissions.get(i), targetSdk);
+
+            // The first element is the permission itself
+            for (int j = 1; j < expanded.length; j++) {
+                expandedPermissions.add(expanded[j]);
+            }
+        }
+
+        return expandedPermissions;
+    }
+}
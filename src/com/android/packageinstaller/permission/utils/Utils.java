@@ -39,6 +39,8 @@ import static android.os.UserHandle.myUserId;
 import static com.android.packageinstaller.Constants.ASSISTANT_RECORD_AUDIO_IS_USER_SENSITIVE_KEY;
 import static com.android.packageinstaller.Constants.FORCED_USER_SENSITIVE_UIDS_KEY;
 import static com.android.packageinstaller.Constants.PREFERENCES_FILE;
+import static com.android.packageinstaller.Constants.USER_SENSITIVE_ASSISTANT_UID_KEY;
+import static com.android.packageinstaller.Constants.USER_SENSITIVE_UPDATE_TIME_KEY;
 
 import android.Manifest;
 import android.app.Application;
@@ -48,6 +50,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -59,6 +62,7 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Parcelable;
+import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.DeviceConfig;
@@ -84,6 +88,7 @@ import com.android.launcher3.icons.IconFactory;
 import com.android.packageinstaller.Constants;
 import com.android.packageinstaller.permission.data.PerUserUidToSensitivityLiveData;
 import com.android.packageinstaller.permission.model.AppPermissionGroup;
+import com.android.packageinstaller.permission.model.LauncherPackages;
 import com.android.permissioncontroller.R;
 
 import java.util.ArrayList;
@@ -497,7 +502,49 @@ public final class Utils {
         return applyTint(context, context.getDrawable(iconResId), attr);
     }
 
+    /**
+     * Check if a package has an activity that shows up in the launcher.
+     *
+     * <p>Much cheaper than {@link #queryLauncherPackages(Context)} if only a single package is
+     * interesting.
+     *
+     * @param context The context of the user the package belongs to
+     * @param packageName The package to check
+     *
+     * @return {@code true} iff the package has a launcher icon
+     */
+    public static boolean hasLauncherIcon(@NonNull Context context, @NonNull String packageName) {
+        return !context.getPackageManager().queryIntentActivities(
+                new Intent(LAUNCHER_INTENT).setPackage(packageName),
+                MATCH_DIRECT_BOOT_AWARE | MATCH_DIRECT_BOOT_UNAWARE).isEmpty();
+    }
+
+    /**
+     * Get the packages that have an activity that shows up in the launcher.
+     *
+     * <p>The packages are tracked incrementally and shared in this process, hence this is cheap
+     * once the packages of the user were loaded.
+     *
+     * @param context The context of the user the packages belong to
+     *
+     * @return The packages with launcher icon
+     *
+     * @see LauncherPackages
+     */
     public static ArraySet<String> getLauncherPackages(Context context) {
+        return LauncherPackages.get(context).getLauncherPackages(context.getUser(), null);
+    }
+
+    /**
+     * Resolve all packages that have an activity that shows up in the launcher.
+     *
+     * <p>Expensive, use {@link #getLauncherPackages(Context)} instead.
+     *
+     * @param context The context of the user the packages belong to
+     *
+     * @return The packages with launcher icon
+     */
+    public static @NonNull ArraySet<String> queryLauncherPackages(@NonNull Context context) {
         ArraySet<String> launcherPkgs = new ArraySet<>();
         for (ResolveInfo info : context.getPackageManager().queryIntentActivities(LAUNCHER_INTENT,
                 MATCH_DIRECT_BOOT_AWARE | MATCH_DIRECT_BOOT_UNAWARE)) {
@@ -684,10 +731,26 @@ public final class Utils {
      */
     public static @NonNull Drawable getBadgedIcon(@NonNull Context context,
             @NonNull ApplicationInfo appInfo) {
-        UserHandle user = UserHandle.getUserHandleForUid(appInfo.uid);
+        return getBadgedIcon(context, appInfo.loadUnbadgedIcon(context.getPackageManager()),
+                UserHandle.getUserHandleForUid(appInfo.uid));
+    }
+
+    /**
+     * Badge an already loaded app icon for a user if necessary.
+     *
+     * <p>Useful if the same app is shown for several profiles as the unbadged icon only needs to be
+     * loaded once.
+     *
+     * @param context The context to use
+     * @param unbadgedIcon The unbadged icon of the app
+     * @param user The user the app is installed for
+     *
+     * @return The icon to use
+     */
+    public static @NonNull Drawable getBadgedIcon(@NonNull Context context,
+            @NonNull Drawable unbadgedIcon, @NonNull UserHandle user) {
         try (IconFactory iconFactory = IconFactory.obtain(context)) {
-            Bitmap iconBmp = iconFactory.createBadgedIconBitmap(
-                    appInfo.loadUnbadgedIcon(context.getPackageManager()), user, false).icon;
+            Bitmap iconBmp = iconFactory.createBadgedIconBitmap(unbadgedIcon, user, false).icon;
             return new BitmapDrawable(context.getResources(), iconBmp);
         }
     }
@@ -765,6 +828,206 @@ public final class Utils {
      */
     public static void updateUserSensitive(@NonNull Application application,
             @NonNull UserHandle user) {
+        PerUserUidToSensitivityLiveData appUserSensitivityLiveData =
+                PerUserUidToSensitivityLiveData.get(user, application);
+
+        updateUserSensitive(application, user,
+                appUserSensitivityLiveData.loadValueInBackground());
+    }
+
+    /**
+     * Update the {@link PackageManager#FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED} and
+     * {@link PackageManager#FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED} for only some apps of
+     * this user.
+     *
+     * <p>Use this instead of {@link #updateUserSensitive(Application, UserHandle)} when it is
+     * known which uids are affected by a change, e.g. when the user sensitivity of a single uid
+     * is overridden.
+     *
+     * @param application The application
+     * @param user The user the uids belong to
+     * @param uids The uids to update
+     *
+     * @see PerUserUidToSensitivityLiveData#loadUidsInBackground(int[])
+     */
+    public static void updateUserSensitiveForUids(@NonNull Application application,
+            @NonNull UserHandle user, @NonNull int[] uids) {
+        PerUserUidToSensitivityLiveData appUserSensitivityLiveData =
+                PerUserUidToSensitivityLiveData.get(user, application);
+
+        updateUserSensitive(application, user,
+                appUserSensitivityLiveData.loadUidsInBackground(uids));
+    }
+
+    /**
+     * Update the user sensitivity of the app holding the assistant role for this user.
+     *
+     * @param application The application
+     * @param user The user to update
+     */
+    public static void updateAssistantUserSensitive(@NonNull Application application,
+            @NonNull UserHandle user) {
+        int assistantUid = getAssistantUid(getParentUserContext(application), user);
+        if (assistantUid == Process.INVALID_UID) {
+            return;
+        }
+
+        updateUserSensitiveForUids(application, user, new int[]{assistantUid});
+    }
+
+    /**
+     * Update the user sensitivity after the assistant changed, i.e. of the previous and the new
+     * assistant.
+     *
+     * <p>If the previous assistant is not known, e.g. the first time this is called for a user,
+     * all apps of the user are updated.
+     *
+     * @param application The application
+     * @param user The user the assistant changed for
+     */
+    public static void updateAssistantChangedUserSensitive(@NonNull Application application,
+            @NonNull UserHandle user) {
+        Context userContext = getParentUserContext(application);
+        SharedPreferences prefs = userContext.getSharedPreferences(PREFERENCES_FILE, MODE_PRIVATE);
+        String key = USER_SENSITIVE_ASSISTANT_UID_KEY + user.getIdentifier();
+
+        int assistantUid = getAssistantUid(userContext, user);
+        if (!prefs.contains(key)) {
+            updateUserSensitive(application, user);
+        } else {
+            int previousAssistantUid = prefs.getInt(key, Process.INVALID_UID);
+
+            ArraySet<Integer> uids = new ArraySet<>();
+            if (previousAssistantUid != Process.INVALID_UID) {
+                uids.add(previousAssistantUid);
+            }
+            if (assistantUid != Process.INVALID_UID) {
+                uids.add(assistantUid);
+            }
+
+            updateUserSensitiveForUids(application, user, uids);
+        }
+
+        prefs.edit().putInt(key, assistantUid).apply();
+    }
+
+    /**
+     * Update the user sensitivity of the apps that were installed or updated since this was last
+     * called for a user.
+     *
+     * <p>If this was never called for the user, all apps of the user are updated.
+     *
+     * @param application The application
+     * @param user The user to update
+     */
+    public static void updateUpdatedPackagesUserSensitive(@NonNull Application application,
+            @NonNull UserHandle user) {
+        Context userContext = getParentUserContext(application);
+        SharedPreferences prefs = userContext.getSharedPreferences(PREFERENCES_FILE, MODE_PRIVATE);
+        String key = USER_SENSITIVE_UPDATE_TIME_KEY + user.getIdentifier();
+
+        // Taken before the packages are read, so that no update can fall between two calls
+        long now = System.currentTimeMillis();
+
+        if (!prefs.contains(key)) {
+            updateUserSensitive(application, user);
+        } else {
+            long lastUpdateTime = prefs.getLong(key, 0);
+
+            List<PackageInfo> pkgs = userContext.getPackageManager().getInstalledPackagesAsUser(0,
+                    user.getIdentifier());
+
+            ArraySet<Integer> uids = new ArraySet<>();
+            int numPkgs = pkgs.size();
+            for (int i = 0; i < numPkgs; i++) {
+                PackageInfo pkg = pkgs.get(i);
+
+                if (pkg.lastUpdateTime >= lastUpdateTime) {
+                    uids.add(pkg.applicationInfo.uid);
+                }
+            }
+
+            updateUserSensitiveForUids(application, user, uids);
+        }
+
+        prefs.edit().putLong(key, now).apply();
+    }
+
+    /**
+     * Update the user sensitivity of some uids of a user, if there are any.
+     */
+    private static void updateUserSensitiveForUids(@NonNull Application application,
+            @NonNull UserHandle user, @NonNull ArraySet<Integer> uids) {
+        int numUids = uids.size();
+        if (numUids == 0) {
+            return;
+        }
+
+        int[] uidsArray = new int[numUids];
+        for (int i = 0; i < numUids; i++) {
+            uidsArray[i] = uids.valueAt(i);
+        }
+
+        updateUserSensitiveForUids(application, user, uidsArray);
+    }
+
+    /**
+     * Get the uid of the package holding the assistant role for a user.
+     *
+     * @param userContext A context of the parent user
+     * @param user The user
+     *
+     * @return The uid of the assistant or {@link Process#INVALID_UID} if there is no assistant
+     */
+    private static int getAssistantUid(@NonNull Context userContext, @NonNull UserHandle user) {
+        String assistant = getAssistant(userContext.getSystemService(RoleManager.class));
+        if (assistant == null) {
+            return Process.INVALID_UID;
+        }
+
+        try {
+            return userContext.getPackageManager().getApplicationInfoAsUser(assistant, 0, user)
+                    .uid;
+        } catch (NameNotFoundException e) {
+            // Assistant is not installed for this user
+            return Process.INVALID_UID;
+        }
+    }
+
+    /**
+     * Get the package holding the (exclusive) assistant role.
+     *
+     * @param rm The role manager
+     *
+     * @return The assistant package or {@code null} if there is no assistant
+     */
+    private static @Nullable String getAssistant(@NonNull RoleManager rm) {
+        List<String> assistants = rm.getRoleHolders(ROLE_ASSISTANT);
+        if (assistants.isEmpty()) {
+            return null;
+        }
+
+        if (assistants.size() > 1) {
+            Log.wtf(LOG_TAG, "Assistant role is not exclusive");
+        }
+
+        // Assistant is an exclusive role
+        return assistants.get(0);
+    }
+
+    /**
+     * Apply computed user sensitivity to the permission flags.
+     *
+     * <p>Flags are only written if they differ from the current ones, as each write is persisted
+     * and broadcast by the system.
+     *
+     * @param application The application
+     * @param user The user the uids belong to
+     * @param uidUserSensitivity uid -> permission -> flags to apply
+     */
+    private static void updateUserSensitive(@NonNull Application application,
+            @NonNull UserHandle user,
+            @NonNull SparseArray<ArrayMap<String, Integer>> uidUserSensitivity) {
         Context userContext = getParentUserContext(application);
         PackageManager pm = userContext.getPackageManager();
         RoleManager rm = userContext.getSystemService(RoleManager.class);
@@ -775,23 +1038,7 @@ public final class Utils {
         Set<String> overriddenUids = prefs.getStringSet(FORCED_USER_SENSITIVE_UIDS_KEY,
                 Collections.emptySet());
 
-        List<String> assistants = rm.getRoleHolders(ROLE_ASSISTANT);
-        String assistant = null;
-        if (!assistants.isEmpty()) {
-            if (assistants.size() > 1) {
-                Log.wtf(LOG_TAG, "Assistant role is not exclusive");
-            }
-
-            // Assistant is an exclusive role
-            assistant = assistants.get(0);
-        }
-
-        PerUserUidToSensitivityLiveData appUserSensitivityLiveData =
-                PerUserUidToSensitivityLiveData.get(user, application);
-
-        // uid -> permission -> flags
-        SparseArray<ArrayMap<String, Integer>> uidUserSensitivity =
-                appUserSensitivityLiveData.loadValueInBackground();
+        String assistant = getAssistant(rm);
 
         // Apply the update
         int numUids = uidUserSensitivity.size();
@@ -821,8 +1068,13 @@ public final class Utils {
                     }
 
                     try {
-                        pm.updatePermissionFlags(perm, uidPkg, FLAGS_ALWAYS_USER_SENSITIVE, flags,
-                                user);
+                        // All packages of a uid share the permission state, hence it is enough to
+                        // look at the first package that is able to report it.
+                        if ((pm.getPermissionFlags(perm, uidPkg, user)
+                                & FLAGS_ALWAYS_USER_SENSITIVE) != flags) {
+                            pm.updatePermissionFlags(perm, uidPkg, FLAGS_ALWAYS_USER_SENSITIVE,
+                                    flags, user);
+                        }
                         break;
                     } catch (IllegalArgumentException e) {
                         Log.e(LOG_TAG, "Unexpected exception while updating flags for "
@@ -214,6 +214,7 @@ public class AssistantRoleBehavior implements RoleBehavior {
     @Override
     public void onHolderChangedAsUser(@NonNull Role role, @NonNull UserHandle user,
             @NonNull Context context) {
-        Utils.updateUserSensitive((Application) context.getApplicationContext(), user);
+        Utils.updateAssistantChangedUserSensitive((Application) context.getApplicationContext(),
+                user);
     }
 }
@@ -27,7 +27,6 @@ import android.content.pm.PermissionInfo;
 import android.os.Build;
 import android.os.Process;
 import android.os.UserHandle;
-import android.permission.PermissionManager;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
@@ -35,8 +34,10 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.packageinstaller.permission.model.AppOpsSnapshot;
 import com.android.packageinstaller.permission.utils.ArrayUtils;
 import com.android.packageinstaller.permission.utils.CollectionUtils;
+import com.android.packageinstaller.permission.utils.SplitPermissions;
 import com.android.packageinstaller.permission.utils.Utils;
 import com.android.packageinstaller.role.utils.PackageUtils;
 
@@ -94,20 +95,8 @@ public class Permissions {
         }
 
         // Automatically attempt to grant split permissions to older APKs
-        PermissionManager permissionManager = context.getSystemService(PermissionManager.class);
-        List<PermissionManager.SplitPermissionInfo> splitPermissions =
-                permissionManager.getSplitPermissions();
-        ArraySet<String> permissionsWithoutSplits = new ArraySet<>(permissions);
-        ArraySet<String> permissionsToGrant = new ArraySet<>(permissionsWithoutSplits);
-        int splitPermissionsSize = splitPermissions.size();
-        for (int i = 0; i < splitPermissionsSize; i++) {
-            PermissionManager.SplitPermissionInfo splitPermission = splitPermissions.get(i);
-
-            if (packageInfo.applicationInfo.targetSdkVersion < splitPermission.getTargetSdk()
-                    && permissionsWithoutSplits.contains(splitPermission.getSplitPermission())) {
-                permissionsToGrant.addAll(splitPermission.getNewPermissions());
-            }
-        }
+        ArraySet<String> permissionsToGrant = new ArraySet<>(SplitPermissions.get(context).expand(
+                permissions, packageInfo.applicationInfo.targetSdkVersion));
 
         CollectionUtils.retainAll(permissionsToGrant, packageInfo.requestedPermissions);
         if (permissionsToGrant.isEmpty()) {
@@ -769,8 +758,7 @@ public class Permissions {
         if (applicationInfo == null) {
             return null;
         }
-        AppOpsManager appOpsManager = context.getSystemService(AppOpsManager.class);
-        return appOpsManager.unsafeCheckOpRaw(appOp, applicationInfo.uid, packageName);
+        return AppOpsSnapshot.get(context).getMode(appOp, applicationInfo.uid, packageName);
     }
 
     static int getDefaultAppOpMode(@NonNull String appOp) {
@@ -789,8 +777,7 @@ public class Permissions {
                     + packageName);
             return false;
         }
-        AppOpsManager appOpsManager = context.getSystemService(AppOpsManager.class);
-        appOpsManager.setUidMode(appOp, applicationInfo.uid, mode);
+        AppOpsSnapshot.get(context).setUidMode(appOp, applicationInfo.uid, mode);
         return true;
     }
 }
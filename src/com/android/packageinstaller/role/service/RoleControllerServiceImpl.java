@@ -171,7 +171,7 @@ public class RoleControllerServiceImpl extends RoleControllerService {
 
         // Load data on this thread instead of background.
         // TODO: Move out of this thread
-        Utils.updateUserSensitive(getApplication(), Process.myUserHandle());
+        Utils.updateUpdatedPackagesUserSensitive(getApplication(), Process.myUserHandle());
 
         return true;
     }
@@ -17,7 +17,9 @@
 package com.android.packageinstaller.role.ui;
 
 import android.content.Context;
+import android.icu.text.CollationKey;
 import android.icu.text.Collator;
+import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.arch.core.util.Function;
@@ -33,20 +35,34 @@ import java.util.List;
 public class RoleListSortFunction implements Function<List<RoleItem>, List<RoleItem>> {
 
     @NonNull
-    private final Comparator<RoleItem> mComparator;
+    private final Context mContext;
+
+    @NonNull
+    private final Collator mCollator;
 
     public RoleListSortFunction(@NonNull Context context) {
-        Collator collator = Collator.getInstance(context.getResources().getConfiguration()
+        mContext = context;
+        mCollator = Collator.getInstance(context.getResources().getConfiguration()
                 .getLocales().get(0));
-        mComparator = Comparator.comparing(roleItem -> context.getString(
-                roleItem.getRole().getShortLabelResource()), collator);
     }
 
     @NonNull
     @Override
     public List<RoleItem> apply(@NonNull List<RoleItem> input) {
-        List<RoleItem> sorted = new ArrayList<>(input);
-        sorted.sort(mComparator);
+        // Collate each label once instead of for every comparison
+        int inputSize = input.size();
+        List<Pair<CollationKey, RoleItem>> keyedRoleItems = new ArrayList<>(inputSize);
+        for (int i = 0; i < inputSize; i++) {
+            RoleItem roleItem = input.get(i);
+            keyedRoleItems.add(new Pair<>(mCollator.getCollationKey(mContext.getString(
+                    roleItem.getRole().getShortLabelResource())), roleItem));
+        }
+        keyedRoleItems.sort(Comparator.comparing(keyedRoleItem -> keyedRoleItem.first));
+
+        List<RoleItem> sorted = new ArrayList<>(inputSize);
+        for (int i = 0; i < inputSize; i++) {
+            sorted.add(keyedRoleItems.get(i).second);
+        }
         return sorted;
     }
 }
@@ -18,6 +18,7 @@ package com.android.packageinstaller.role.ui;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.icu.text.CollationKey;
 import android.icu.text.Collator;
 import android.os.UserHandle;
 import android.util.Pair;
@@ -39,15 +40,23 @@ public class RoleSortFunction implements Function<List<Pair<ApplicationInfo, Boo
         List<Pair<ApplicationInfo, Boolean>>> {
 
     @NonNull
-    private final Comparator<Pair<ApplicationInfo, Boolean>> mComparator;
+    private final Context mContext;
+
+    @NonNull
+    private final Collator mCollator;
+
+    @NonNull
+    private final Comparator<Pair<CollationKey, Pair<ApplicationInfo, Boolean>>> mComparator;
 
     public RoleSortFunction(@NonNull Context context) {
-        Collator collator = Collator.getInstance(context.getResources().getConfiguration()
+        mContext = context;
+        mCollator = Collator.getInstance(context.getResources().getConfiguration()
                 .getLocales().get(0));
-        Comparator<Pair<ApplicationInfo, Boolean>> labelComparator = Comparator.comparing(role ->
-                Utils.getAppLabel(role.first, context), collator);
-        Comparator<Pair<ApplicationInfo, Boolean>> userIdComparator = Comparator.comparingInt(role
-                -> UserHandle.getUserHandleForUid(role.first.uid).getIdentifier());
+        Comparator<Pair<CollationKey, Pair<ApplicationInfo, Boolean>>> labelComparator =
+                Comparator.comparing(keyedRole -> keyedRole.first);
+        Comparator<Pair<CollationKey, Pair<ApplicationInfo, Boolean>>> userIdComparator =
+                Comparator.comparingInt(keyedRole -> UserHandle.getUserHandleForUid(
+                        keyedRole.second.first.uid).getIdentifier());
         mComparator = labelComparator.thenComparing(userIdComparator);
     }
 
@@ -55,8 +64,21 @@ public class RoleSortFunction implements Function<List<Pair<ApplicationInfo, Boo
     @Override
     public List<Pair<ApplicationInfo, Boolean>> apply(
             @NonNull List<Pair<ApplicationInfo, Boolean>> input) {
-        List<Pair<ApplicationInfo, Boolean>> sorted = new ArrayList<>(input);
-        sorted.sort(mComparator);
+        // Load and collate each label once instead of for every comparison
+        int inputSize = input.size();
+        List<Pair<CollationKey, Pair<ApplicationInfo, Boolean>>> keyedRoles = new ArrayList<>(
+                inputSize);
+        for (int i = 0; i < inputSize; i++) {
+            Pair<ApplicationInfo, Boolean> role = input.get(i);
+            keyedRoles.add(new Pair<>(mCollator.getCollationKey(Utils.getAppLabel(role.first,
+                    mContext)), role));
+        }
+        keyedRoles.sort(mComparator);
+
+        List<Pair<ApplicationInfo, Boolean>> sorted = new ArrayList<>(inputSize);
+        for (int i = 0; i < inputSize; i++) {
+            sorted.add(keyedRoles.get(i).second);
+        }
         return sorted;
     }
 }
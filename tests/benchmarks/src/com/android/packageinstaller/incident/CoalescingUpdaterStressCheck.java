@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.incident;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress check for the coordination of updates by the {@link CoalescingUpdater} that runs the
+ * updates of the {@link PendingList}.
+ *
+ * <p>Several threads concurrently add and remove synthetic pending reports and request updates,
+ * some of them from the notification handling. The update is a fake that only remembers which
+ * reports it saw, hence nothing on the device is changed. Once all threads are done the following
+ * is verified:
+ * <ul>
+ *     <li>No two updates ran at the same time</li>
+ *     <li>The last update saw the final set of pending reports, i.e. no requested update was
+ *     lost</li>
+ *     <li>An update allowed to show the dialog ran after the last request that allowed it</li>
+ *     <li>A new update runs right away, i.e. the updater is not stuck in the updating state</li>
+ * </ul>
+ *
+ * <p>Run via
+ * {@code adb shell am instrument -w -e class com.android.packageinstaller.incident.CoalescingUpdaterStressCheck [-e args "<options>"] com.android.permissioncontroller.benchmarks/androidx.test.runner.AndroidJUnitRunner}
+ *
+ * @see Config#parse for the options
+ */
+@RunWith(AndroidJUnit4.class)
+public final class CoalescingUpdaterStressCheck {
+    private static final String TAG = "CoalescingUpdaterStressCheck";
+
+    /**
+     * Configuration of the stress check.
+     */
+    static final class Config {
+        /** Number of threads changing the reports and requesting updates */
+        int numThreads = 8;
+
+        /** Number of changes and update requests per thread */
+        int iterations = 2000;
+
+        /** Number of different synthetic reports */
+        int numReports = 32;
+
+        /** Fraction of update requests coming from the notification handling */
+        float fromNotificationFraction = 0.5f;
+
+        /** Maximum time a single update takes, in microseconds */
+        int maxUpdateMicros = 200;
+
+        /** Seed for the random changes */
+        long seed = 0;
+
+        /**
+         * Parse the arguments.
+         *
+         * <p>Options are {@code --threads <n>}, {@code --iterations <n>},
+         * {@code --reports <n>}, {@code --from-notification <fraction>},
+         * {@code --max-update-micros <micros>} and {@code --seed <seed>}.
+         *
+         * @param args The arguments
+         *
+         * @return The configuration
+         *
+         * @throws IllegalArgumentException if the arguments cannot be parsed
+         */
+        static Config parse(String[] args) {
+            final Config config = new Config();
+
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                final String value = args[i + 1];
+                switch (args[i]) {
+                    case "--threads":
+                        config.numThreads = Integer.parseInt(value);
+                        break;
+                    case "--iterations":
+                        config.iterations = Integer.parseInt(value);
+                        break;
+                    case "--reports":
+                        config.numReports = Integer.parseInt(value);
+                        break;
+                    case "--from-notification":
+                        config.fromNotificationFraction = Float.parseFloat(value);
+                        break;
+                    case "--max-update-micros":
+                        config.maxUpdateMicros = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        config.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+
+            return config;
+        }
+    }
+
+    /**
+     * Fake update that records the pending reports it saw.
+     */
+    private static final class FakeUpdate implements CoalescingUpdater.Update {
+        /** Orders all changes, requests and updates */
+        final AtomicLong mSequence = new AtomicLong();
+
+        /** The synthetic pending reports, guarded by itself */
+        final ArraySet<String> mPendingReports = new ArraySet<String>();
+
+        /** Number of updates currently running */
+        final AtomicInteger mNumRunning = new AtomicInteger();
+
+        /** Number of updates that ran at the same time as another one */
+        final AtomicInteger mNumOverlaps = new AtomicInteger();
+
+        /** Number of updates that ran */
+        final AtomicInteger mNumUpdates = new AtomicInteger();
+
+        /** Sequence of the last request allowed to show the dialog */
+        final AtomicLong mLastDialogRequest = new AtomicLong(-1);
+
+        /** Sequence at the start of the last update allowed to show the dialog */
+        volatile long mLastDialogUpdateStart = -1;
+
+        /** The reports the last update saw */
+        volatile ArraySet<String> mShownReports = new ArraySet<String>();
+
+        private final int mMaxUpdateMicros;
+        private final Random mRandom;
+
+        FakeUpdate(Config config) {
+            mMaxUpdateMicros = config.maxUpdateMicros;
+            mRandom = new Random(config.seed);
+        }
+
+        @Override
+        public void run(Context context, int flags) {
+            if (mNumRunning.incrementAndGet() != 1) {
+                mNumOverlaps.incrementAndGet();
+            }
+
+            final long start = mSequence.incrementAndGet();
+            if ((flags & PendingList.FLAG_FROM_NOTIFICATION) == 0) {
+                mLastDialogUpdateStart = start;
+            }
+
+            final ArraySet<String> shownReports;
+            synchronized (mPendingReports) {
+                shownReports = new ArraySet<String>(mPendingReports);
+            }
+
+            // Take some time, so that more requests arrive while the update is running
+            final int updateMicros;
+            synchronized (mRandom) {
+                updateMicros = mMaxUpdateMicros > 0 ? mRandom.nextInt(mMaxUpdateMicros) : 0;
+            }
+            final long end = SystemClock.elapsedRealtimeNanos() + updateMicros * 1000L;
+            while (SystemClock.elapsedRealtimeNanos() < end) {
+                Thread.yield();
+            }
+
+            mShownReports = shownReports;
+            mNumUpdates.incrementAndGet();
+            mNumRunning.decrementAndGet();
+        }
+    }
+
+    @Test
+    public void coordinateConcurrentUpdates() {
+        final String args = InstrumentationRegistry.getArguments().getString("args", "").trim();
+        final StringWriter output = new StringWriter();
+
+        final boolean isVerified = run(InstrumentationRegistry.getTargetContext(),
+                args.isEmpty() ? new String[0] : args.split("\\s+"), new PrintWriter(output));
+
+        Log.i(TAG, output.toString());
+        assertTrue(output.toString(), isVerified);
+    }
+
+    /**
+     * Run the stress check and print the results.
+     *
+     * @param context Passed through to the updates
+     * @param args The {@link Config#parse arguments}
+     * @param writer Where to print the results to
+     *
+     * @return {@code true} iff the final state was verified
+     */
+    private static boolean run(Context context, String[] args, PrintWriter writer) {
+        final Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IllegalArgumentException e) {
+            writer.println("Invalid arguments: " + e.getMessage());
+            return false;
+        }
+
+        final FakeUpdate update = new FakeUpdate(config);
+        final CoalescingUpdater updater = new CoalescingUpdater(update);
+
+        writer.println("Running " + config.numThreads + " threads with " + config.iterations
+                + " iterations each on " + config.numReports + " reports");
+
+        final long start = SystemClock.elapsedRealtimeNanos();
+
+        final Thread[] threads = new Thread[config.numThreads];
+        for (int threadNum = 0; threadNum < config.numThreads; threadNum++) {
+            final Random random = new Random(config.seed + threadNum + 1);
+
+            threads[threadNum] = new Thread(() -> {
+                for (int i = 0; i < config.iterations; i++) {
+                    final String report = "content://incident/pending/"
+                            + random.nextInt(config.numReports);
+
+                    synchronized (update.mPendingReports) {
+                        if (random.nextBoolean()) {
+                            update.mPendingReports.add(report);
+                        } else {
+                            update.mPendingReports.remove(report);
+                        }
+                    }
+                    update.mSequence.incrementAndGet();
+
+                    final int flags;
+                    if (random.nextFloat() < config.fromNotificationFraction) {
+                        flags = PendingList.FLAG_FROM_NOTIFICATION;
+                    } else {
+                        flags = 0;
+                        update.mLastDialogRequest.accumulateAndGet(
+                                update.mSequence.incrementAndGet(), Math::max);
+                    }
+
+                    updater.requestUpdate(context, flags);
+                }
+            });
+        }
+
+        for (int threadNum = 0; threadNum < config.numThreads; threadNum++) {
+            threads[threadNum].start();
+        }
+        try {
+            for (int threadNum = 0; threadNum < config.numThreads; threadNum++) {
+                threads[threadNum].join();
+            }
+        } catch (InterruptedException e) {
+            writer.println("Interrupted");
+            return false;
+        }
+
+        final long durationMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        final int numRequests = config.numThreads * config.iterations;
+        writer.println("  " + numRequests + " requests ran as " + update.mNumUpdates.get()
+                + " updates in " + durationMicros + " us");
+
+        final List<String> violations = new ArrayList<String>();
+
+        if (update.mNumOverlaps.get() > 0) {
+            violations.add(update.mNumOverlaps.get() + " updates ran concurrently");
+        }
+
+        final ArraySet<String> pendingReports;
+        synchronized (update.mPendingReports) {
+            pendingReports = new ArraySet<String>(update.mPendingReports);
+        }
+        if (!pendingReports.equals(update.mShownReports)) {
+            violations.add("Last update saw " + update.mShownReports + " instead of "
+                    + pendingReports);
+        }
+
+        if (update.mLastDialogRequest.get() > update.mLastDialogUpdateStart) {
+            violations.add("No update allowed to show the dialog ran after the last request "
+                    + "allowing it");
+        }
+
+        final int numUpdatesBefore = update.mNumUpdates.get();
+        updater.requestUpdate(context, PendingList.FLAG_FROM_NOTIFICATION);
+        if (update.mNumUpdates.get() != numUpdatesBefore + 1) {
+            violations.add("Update after all threads finished did not run");
+        }
+
+        if (violations.isEmpty()) {
+            writer.println("Final state verified");
+            return true;
+        }
+
+        writer.println(violations.size() + " violations:");
+        final int numViolations = violations.size();
+        for (int i = 0; i < numViolations; i++) {
+            writer.println("  " + violations.get(i));
+        }
+        return false;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.incident;
+
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+
+/**
+ * Compares {@link IncidentMinimal#parseFrom} with the {@link IncidentMinimalParser} on a
+ * synthetic incident report.
+ *
+ * <p>The report contains a few headers and a restricted images section surrounded by large
+ * sections that are not needed to confirm the report. For both parsers the time taken and the
+ * number of bytes kept in memory after parsing are reported.
+ *
+ * <p>Run via
+ * {@code adb shell am instrument -w -e class com.android.packageinstaller.incident.IncidentParserBenchmark [-e args "<options>"] com.android.permissioncontroller.benchmarks/androidx.test.runner.AndroidJUnitRunner}
+ *
+ * @see Config#parse for the options
+ */
+@RunWith(AndroidJUnit4.class)
+public final class IncidentParserBenchmark {
+    private static final String TAG = "IncidentParserBenchmark";
+
+    /** First field number used for the unrelated sections of the synthetic report */
+    private static final int FIRST_OTHER_SECTION_FIELD_NUMBER = 3000;
+
+    /** Number of different field numbers used for the unrelated sections */
+    private static final int NUM_OTHER_SECTION_FIELD_NUMBERS = 20;
+
+    /**
+     * Configuration of the synthetic report.
+     */
+    static final class Config {
+        /** Number of sections not needed to confirm the report */
+        int numOtherSections = 200;
+
+        /** Size of each of these sections in bytes */
+        int otherSectionSize = 256 * 1024;
+
+        /** Number of headers */
+        int numHeaders = 3;
+
+        /** Number of restricted images */
+        int numImages = 10;
+
+        /** Size of each image in bytes */
+        int imageSize = 64 * 1024;
+
+        /** How often each parser is run */
+        int iterations = 5;
+
+        /** Seed for the random content */
+        long seed = 0;
+
+        /**
+         * Parse the arguments.
+         *
+         * <p>Options are {@code --other-sections <n>}, {@code --other-section-size <bytes>},
+         * {@code --headers <n>}, {@code --images <n>}, {@code --image-size <bytes>},
+         * {@code --iterations <n>} and {@code --seed <seed>}.
+         *
+         * @param args The arguments
+         *
+         * @return The configuration
+         *
+         * @throws IllegalArgumentException if the arguments cannot be parsed
+         */
+        static Config parse(String[] args) {
+            final Config config = new Config();
+
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                final String value = args[i + 1];
+                switch (args[i]) {
+                    case "--other-sections":
+                        config.numOtherSections = Integer.parseInt(value);
+                        break;
+                    case "--other-section-size":
+                        config.otherSectionSize = Integer.parseInt(value);
+                        break;
+                    case "--headers":
+                        config.numHeaders = Integer.parseInt(value);
+                        break;
+                    case "--images":
+                        config.numImages = Integer.parseInt(value);
+                        break;
+                    case "--image-size":
+                        config.imageSize = Integer.parseInt(value);
+                        break;
+                    case "--iterations":
+                        config.iterations = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        config.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+
+            return config;
+        }
+    }
+
+    @Test
+    public void parseSyntheticReport() {
+        final String args = InstrumentationRegistry.getArguments().getString("args", "").trim();
+        final StringWriter output = new StringWriter();
+
+        final boolean isMatching = run(args.isEmpty() ? new String[0] : args.split("\\s+"),
+                new PrintWriter(output));
+
+        Log.i(TAG, output.toString());
+        assertTrue(output.toString(), isMatching);
+    }
+
+    /**
+     * Parse a synthetic report with both parsers and print the results.
+     *
+     * @param args The {@link Config#parse arguments}
+     * @param writer Where to print the results to
+     *
+     * @return {@code true} iff both parsers returned the same content
+     */
+    private static boolean run(String[] args, PrintWriter writer) {
+        final Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IllegalArgumentException e) {
+            writer.println("Invalid arguments: " + e.getMessage());
+            return false;
+        }
+
+        final byte[] report;
+        try {
+            report = createReport(config);
+        } catch (IOException | OutOfMemoryError e) {
+            writer.println("Cannot create synthetic report: " + e);
+            return false;
+        }
+        writer.println("Synthetic report: " + report.length + " bytes, " + config.numHeaders
+                + " headers, " + config.numImages + " images");
+
+        IncidentMinimal full = null;
+        IncidentMinimal selective = null;
+        for (int i = 0; i < config.iterations; i++) {
+            full = measure(writer, "parseFrom", report, false);
+            selective = measure(writer, "IncidentMinimalParser", report, true);
+        }
+
+        if (full == null || selective == null) {
+            return false;
+        }
+
+        final boolean isMatching = isSameContent(full, selective);
+        writer.println(isMatching ? "Results match" : "ERROR: Results differ");
+        return isMatching;
+    }
+
+    /**
+     * Parse the report once and print the time taken and the size of the result.
+     *
+     * @return The parsed report or {@code null} if it could not be parsed
+     */
+    private static IncidentMinimal measure(PrintWriter writer, String name, byte[] report,
+            boolean isSelective) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+
+        final IncidentMinimal incident;
+        try {
+            if (isSelective) {
+                incident = IncidentMinimalParser.parse(new ByteArrayInputStream(report));
+            } else {
+                incident = IncidentMinimal.parseFrom(new ByteArrayInputStream(report));
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            writer.println(name + ": failed: " + e);
+            return null;
+        }
+
+        final long durationMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+
+        // Includes the unknown fields kept by parseFrom
+        writer.println(name + ": " + durationMicros + " us, " + incident.getSerializedSize()
+                + " bytes kept");
+
+        return incident;
+    }
+
+    /**
+     * @return {@code true} iff the fields needed to confirm the report are the same
+     */
+    private static boolean isSameContent(IncidentMinimal a, IncidentMinimal b) {
+        if (!a.getHeaderList().equals(b.getHeaderList())) {
+            return false;
+        }
+
+        final RestrictedImagesDumpProto aSection = a.getRestrictedImagesSection();
+        final RestrictedImagesDumpProto bSection = b.getRestrictedImagesSection();
+        final int setsCount = aSection.getSetsCount();
+        if (setsCount != bSection.getSetsCount()) {
+            return false;
+        }
+
+        for (int i = 0; i < setsCount; i++) {
+            final RestrictedImageSetProto aSet = aSection.getSets(i);
+            final RestrictedImageSetProto bSet = bSection.getSets(i);
+            final int imageCount = aSet.getImagesCount();
+            if (imageCount != bSet.getImagesCount()) {
+                return false;
+            }
+
+            for (int j = 0; j < imageCount; j++) {
+                final RestrictedImageProto aImage = aSet.getImages(j);
+                final RestrictedImageProto bImage = bSet.getImages(j);
+                if (!aImage.getMimeType().equals(bImage.getMimeType())
+                        || !aImage.getImageData().equals(bImage.getImageData())) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Create a synthetic report. The restricted images section is put in the middle of the other
+     * sections, so both parsers have to read past unrelated data.
+     */
+    private static byte[] createReport(Config config) throws IOException {
+        final Random random = new Random(config.seed);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+
+        for (int i = 0; i < config.numHeaders; i++) {
+            output.writeMessage(IncidentMinimal.HEADER_FIELD_NUMBER,
+                    IncidentHeaderProto.newBuilder().setReason("Reason " + i).build());
+        }
+
+        final byte[] otherSection = new byte[config.otherSectionSize];
+        for (int i = 0; i < config.numOtherSections; i++) {
+            if (i == config.numOtherSections / 2) {
+                output.writeMessage(IncidentMinimal.RESTRICTED_IMAGES_SECTION_FIELD_NUMBER,
+                        createImagesSection(config, random));
+            }
+
+            random.nextBytes(otherSection);
+            output.writeByteArray(FIRST_OTHER_SECTION_FIELD_NUMBER
+                    + i % NUM_OTHER_SECTION_FIELD_NUMBERS, otherSection);
+        }
+        if (config.numOtherSections == 0) {
+            output.writeMessage(IncidentMinimal.RESTRICTED_IMAGES_SECTION_FIELD_NUMBER,
+                    createImagesSection(config, random));
+        }
+
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private static RestrictedImagesDumpProto createImagesSection(Config config, Random random) {
+        final RestrictedImageSetProto.Builder set = RestrictedImageSetProto.newBuilder()
+                .setCategory("benchmark");
+
+        final byte[] imageData = new byte[config.imageSize];
+        for (int i = 0; i < config.numImages; i++) {
+            random.nextBytes(imageData);
+            set.addImages(RestrictedImageProto.newBuilder()
+                    .setMimeType("image/png")
+                    .setImageData(ByteString.copyFrom(imageData))
+                    .setMetadata(ByteString.copyFromUtf8("image " + i)));
+        }
+
+        return RestrictedImagesDumpProto.newBuilder().addSets(set).build();
+    }
+}
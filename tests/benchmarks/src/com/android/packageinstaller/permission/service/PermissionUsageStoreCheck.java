@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.service;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.packageinstaller.permission.service.PermissionUsageStore.Usage;
+import com.android.packageinstaller.permission.utils.Utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Feeds a synthetic stream of app op usages into a {@link PermissionUsageStore} and verifies the
+ * aggregates the store answers.
+ *
+ * <p>The usages are added hour by hour and the store is compacted after every hour, the same way
+ * the periodic update job does it. Then the usages of several time windows are compared to the
+ * sums computed directly from the stream. Finally the store is persisted and read again, and
+ * some uids are purged.
+ *
+ * <p>The store under test is kept in the cache directory, the real store is not touched.
+ *
+ * <p>Run via
+ * {@code adb shell am instrument -w -e class com.android.packageinstaller.permission.service.PermissionUsageStoreCheck [-e args "<options>"] com.android.permissioncontroller.benchmarks/androidx.test.runner.AndroidJUnitRunner}
+ *
+ * @see Config#parse for the options
+ */
+@RunWith(AndroidJUnit4.class)
+public final class PermissionUsageStoreCheck {
+    private static final String LOG_TAG = PermissionUsageStoreCheck.class.getSimpleName();
+
+    /** Name of the file in the cache directory the store under test is kept in */
+    private static final String FILE_NAME = "permission-usage-store-check";
+
+    private static final long HOUR_MILLIS = HOURS.toMillis(1);
+    private static final long DAY_MILLIS = DAYS.toMillis(1);
+
+    /** Must match the retention of the store */
+    private static final long HOURLY_RETENTION_MILLIS = DAYS.toMillis(2);
+    private static final long RETENTION_MILLIS = DAYS.toMillis(28);
+
+    /** Windows (back from now) that are checked */
+    private static final long[] WINDOWS_MILLIS = new long[]{HOUR_MILLIS, HOURS.toMillis(6),
+            DAY_MILLIS, DAYS.toMillis(2), DAYS.toMillis(3), DAYS.toMillis(7), DAYS.toMillis(28),
+            DAYS.toMillis(40)};
+
+    /**
+     * Configuration of the synthetic stream.
+     */
+    static final class Config {
+        /** How many days of usages to feed */
+        int numDays = 35;
+
+        /** Number of uids using permissions */
+        int numUids = 50;
+
+        /** Average number of usages per hour */
+        int usagesPerHour = 20;
+
+        /** Seed for the random stream */
+        long seed = 0;
+
+        /**
+         * Parse the arguments.
+         *
+         * <p>Options are {@code --days <n>}, {@code --uids <n>}, {@code --usages-per-hour <n>}
+         * and {@code --seed <seed>}.
+         *
+         * @param args The arguments
+         *
+         * @return The configuration
+         *
+         * @throws IllegalArgumentException if the arguments cannot be parsed
+         */
+        static @NonNull Config parse(@NonNull String[] args) {
+            Config config = new Config();
+
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--days":
+                        config.numDays = Integer.parseInt(value);
+                        break;
+                    case "--uids":
+                        config.numUids = Integer.parseInt(value);
+                        break;
+                    case "--usages-per-hour":
+                        config.usagesPerHour = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        config.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+
+            return config;
+        }
+    }
+
+    /**
+     * A single synthetic usage.
+     */
+    private static final class Event {
+        final long mTimeMillis;
+        final int mUid;
+        final @NonNull String mGroup;
+        final @NonNull Usage mUsage;
+
+        Event(long timeMillis, int uid, @NonNull String group, @NonNull Usage usage) {
+            mTimeMillis = timeMillis;
+            mUid = uid;
+            mGroup = group;
+            mUsage = usage;
+        }
+    }
+
+    @Test
+    public void aggregateSyntheticUsages() {
+        String args = InstrumentationRegistry.getArguments().getString("args", "").trim();
+        StringWriter output = new StringWriter();
+
+        boolean isVerified = run(InstrumentationRegistry.getTargetContext(),
+                args.isEmpty() ? new String[0] : args.split("\\s+"), new PrintWriter(output));
+
+        Log.i(LOG_TAG, output.toString());
+        assertTrue(output.toString(), isVerified);
+    }
+
+    /**
+     * Feed the synthetic stream, verify the store and print the results.
+     *
+     * @param context A context of this app
+     * @param args The {@link Config#parse arguments}
+     * @param writer Where to print the results to
+     *
+     * @return {@code true} iff all usages were verified
+     */
+    private static boolean run(@NonNull Context context, @NonNull String[] args,
+            @NonNull PrintWriter writer) {
+        Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IllegalArgumentException e) {
+            writer.println("Invalid arguments: " + e.getMessage());
+            return false;
+        }
+
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        file.delete();
+
+        try {
+            return check(context, config, file, writer);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static boolean check(@NonNull Context context, @NonNull Config config,
+            @NonNull File file, @NonNull PrintWriter writer) {
+        Random random = new Random(config.seed);
+        List<String> groups = Utils.getPlatformPermissionGroups();
+
+        int myUid = Process.myUid();
+        int userBase = myUid - UserHandle.getAppId(myUid);
+        int[] uids = new int[config.numUids];
+        for (int i = 0; i < config.numUids; i++) {
+            uids[i] = userBase + Process.FIRST_APPLICATION_UID + i;
+        }
+
+        long now = System.currentTimeMillis();
+        long firstHour = getBucketBegin(now - config.numDays * DAY_MILLIS, HOUR_MILLIS);
+        long lastHourEnd = getBucketBegin(now, HOUR_MILLIS);
+
+        PermissionUsageStore store = new PermissionUsageStore(context, file);
+        ArrayList<Event> events = new ArrayList<>();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (long hour = firstHour; hour < lastHourEnd; hour += HOUR_MILLIS) {
+            int numUsages = random.nextInt(2 * config.usagesPerHour + 1);
+            for (int i = 0; i < numUsages; i++) {
+                Event event = new Event(hour + (long) (random.nextDouble() * HOUR_MILLIS),
+                        uids[random.nextInt(uids.length)], groups.get(random.nextInt(
+                        groups.size())), new Usage(random.nextInt(10), random.nextInt(10),
+                        random.nextInt(60000), random.nextInt(60000)));
+
+                events.add(event);
+                store.addUsage(event.mTimeMillis, event.mUid, event.mGroup, event.mUsage);
+            }
+
+            store.compact(hour + HOUR_MILLIS);
+        }
+        store.compact(now);
+        printStep(writer, "feed " + events.size() + " usages", start);
+
+        ArrayList<String> violations = new ArrayList<>();
+        ArrayList<SparseArray<ArrayMap<String, Usage>>> usagesPerWindow = new ArrayList<>();
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (long windowMillis : WINDOWS_MILLIS) {
+            SparseArray<ArrayMap<String, Usage>> usages = store.getUsages(now - windowMillis,
+                    now);
+            usagesPerWindow.add(usages);
+
+            compare("window " + windowMillis + "ms", usages,
+                    getExpectedUsages(events, now - windowMillis, now, now, null), violations);
+        }
+        printStep(writer, "query " + WINDOWS_MILLIS.length + " windows", start);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        store.write();
+        PermissionUsageStore readStore = new PermissionUsageStore(context, file);
+        for (int i = 0; i < WINDOWS_MILLIS.length; i++) {
+            compare("read window " + WINDOWS_MILLIS[i] + "ms",
+                    readStore.getUsages(now - WINDOWS_MILLIS[i], now), usagesPerWindow.get(i),
+                    violations);
+        }
+        printStep(writer, "write and read", start);
+
+        ArraySet<Integer> removedUids = new ArraySet<>();
+        for (int uid : uids) {
+            if (random.nextBoolean()) {
+                removedUids.add(uid);
+            }
+        }
+
+        start = SystemClock.elapsedRealtimeNanos();
+        readStore.purgeUids(removedUids::contains);
+        compare("purged", readStore.getUsages(0, Long.MAX_VALUE),
+                getExpectedUsages(events, 0, Long.MAX_VALUE, now, removedUids), violations);
+        printStep(writer, "purge " + removedUids.size() + " uids", start);
+
+        if (violations.isEmpty()) {
+            writer.println("All usages verified");
+            return true;
+        }
+
+        writer.println(violations.size() + " violations:");
+        int numViolations = violations.size();
+        for (int i = 0; i < numViolations; i++) {
+            writer.println("  " + violations.get(i));
+        }
+        return false;
+    }
+
+    /**
+     * Sum up the usages of the stream the same way the store buckets them.
+     *
+     * @param events The stream
+     * @param beginTimeMillis Begin of the window
+     * @param endTimeMillis End of the window
+     * @param compactedAtMillis When the store was last compacted
+     * @param removedUids Uids that were purged from the store, {@code null} if none
+     *
+     * @return uid -> permission group -> usage
+     */
+    private static @NonNull SparseArray<ArrayMap<String, Usage>> getExpectedUsages(
+            @NonNull List<Event> events, long beginTimeMillis, long endTimeMillis,
+            long compactedAtMillis, @Nullable ArraySet<Integer> removedUids) {
+        SparseArray<ArrayMap<String, Usage>> usages = new SparseArray<>();
+
+        int numEvents = events.size();
+        for (int i = 0; i < numEvents; i++) {
+            Event event = events.get(i);
+            if (removedUids != null && removedUids.contains(event.mUid)) {
+                continue;
+            }
+
+            long bucketBegin = getBucketBegin(event.mTimeMillis, HOUR_MILLIS);
+            long bucketDuration = HOUR_MILLIS;
+            if (bucketBegin < compactedAtMillis - HOURLY_RETENTION_MILLIS) {
+                bucketBegin = getBucketBegin(bucketBegin, DAY_MILLIS);
+                bucketDuration = DAY_MILLIS;
+
+                if (bucketBegin + DAY_MILLIS <= compactedAtMillis - RETENTION_MILLIS) {
+                    continue;
+                }
+            }
+
+            if (bucketBegin >= endTimeMillis || bucketBegin + bucketDuration <= beginTimeMillis) {
+                continue;
+            }
+
+            Usage usage = getOrCreateUsage(usages, event.mUid, event.mGroup);
+            usages.get(event.mUid).put(event.mGroup, new Usage(
+                    usage.getForegroundAccessCount() + event.mUsage.getForegroundAccessCount(),
+                    usage.getBackgroundAccessCount() + event.mUsage.getBackgroundAccessCount(),
+                    usage.getForegroundAccessDuration()
+                            + event.mUsage.getForegroundAccessDuration(),
+                    usage.getBackgroundAccessDuration()
+                            + event.mUsage.getBackgroundAccessDuration()));
+        }
+
+        return usages;
+    }
+
+    private static @NonNull Usage getOrCreateUsage(
+            @NonNull SparseArray<ArrayMap<String, Usage>> usages, int uid, @NonNull String group) {
+        ArrayMap<String, Usage> uidUsages = usages.get(uid);
+        if (uidUsages == null) {
+            uidUsages = new ArrayMap<>();
+            usages.put(uid, uidUsages);
+        }
+
+        Usage usage = uidUsages.get(group);
+        if (usage == null) {
+            usage = new Usage(0, 0, 0, 0);
+            uidUsages.put(group, usage);
+        }
+        return usage;
+    }
+
+    /**
+     * Compare two tables of usages and add a violation for every difference.
+     */
+    private static void compare(@NonNull String step,
+            @NonNull SparseArray<ArrayMap<String, Usage>> actual,
+            @NonNull SparseArray<ArrayMap<String, Usage>> expected,
+            @NonNull List<String> violations) {
+        ArraySet<Integer> uids = new ArraySet<>();
+        for (int i = 0; i < actual.size(); i++) {
+            uids.add(actual.keyAt(i));
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            uids.add(expected.keyAt(i));
+        }
+
+        int numUids = uids.size();
+        for (int uidNum = 0; uidNum < numUids; uidNum++) {
+            int uid = uids.valueAt(uidNum);
+            ArrayMap<String, Usage> actualUidUsages = actual.get(uid, new ArrayMap<>());
+            ArrayMap<String, Usage> expectedUidUsages = expected.get(uid, new ArrayMap<>());
+
+            ArraySet<String> groups = new ArraySet<>(actualUidUsages.keySet());
+            groups.addAll(expectedUidUsages.keySet());
+
+            int numGroups = groups.size();
+            for (int i = 0; i < numGroups; i++) {
+                String group = groups.valueAt(i);
+                String actualUsage = String.valueOf(actualUidUsages.get(group));
+                String expectedUsage = String.valueOf(expectedUidUsages.get(group));
+
+                if (!actualUsage.equals(expectedUsage)) {
+                    violations.add(step + ": " + uid + " " + group + " is " + actualUsage
+                            + ", expected " + expectedUsage);
+                }
+            }
+        }
+    }
+
+    private static long getBucketBegin(long timeMillis, long durationMillis) {
+        return timeMillis - Math.floorMod(timeMillis, durationMillis);
+    }
+
+    private static void printStep(@NonNull PrintWriter writer, @NonNull String step,
+            long start) {
+        long durationMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        writer.println("  " + step + ": " + durationMicros + " us");
+    }
+}
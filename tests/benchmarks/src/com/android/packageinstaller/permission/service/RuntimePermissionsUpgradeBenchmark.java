@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller.permission.service;
+
+import static android.app.AppOpsManager.MODE_ALLOWED;
+import static android.app.AppOpsManager.MODE_FOREGROUND;
+import static android.app.AppOpsManager.MODE_IGNORED;
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import static org.junit.Assert.assertTrue;
+
+import android.Manifest;
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Dry-run of the {@link RuntimePermissionsUpgradeController runtime permissions upgrade} against a
+ * synthetic package population.
+ *
+ * <p>All platform access goes to an in-memory {@link FakePlatform}, hence nothing on the device is
+ * changed. For every upgrade step the time taken and the number of platform calls (each of which
+ * would be an IPC on a real device) is reported. Finally the resulting state is verified.
+ *
+ * <p>Run via
+ * {@code adb shell am instrument -w -e class com.android.packageinstaller.permission.service.RuntimePermissionsUpgradeBenchmark [-e args "<options>"] com.android.permissioncontroller.benchmarks/androidx.test.runner.AndroidJUnitRunner}
+ *
+ * @see Config#parse for the options
+ */
+@RunWith(AndroidJUnit4.class)
+public final class RuntimePermissionsUpgradeBenchmark {
+    private static final String LOG_TAG = RuntimePermissionsUpgradeBenchmark.class.getSimpleName();
+
+    /** Permissions the synthetic packages request from */
+    private static final String[] PERMISSIONS = new String[]{
+            Manifest.permission.ACCESS_FINE_LOCATION,
+            Manifest.permission.ACCESS_COARSE_LOCATION,
+            Manifest.permission.ACCESS_BACKGROUND_LOCATION,
+            Manifest.permission.READ_EXTERNAL_STORAGE,
+            Manifest.permission.WRITE_EXTERNAL_STORAGE,
+            Manifest.permission.ACCESS_MEDIA_LOCATION,
+            Manifest.permission.READ_SMS,
+            Manifest.permission.RECEIVE_SMS,
+            Manifest.permission.READ_CALL_LOG,
+            Manifest.permission.CAMERA,
+            Manifest.permission.RECORD_AUDIO,
+            Manifest.permission.ACTIVITY_RECOGNITION,
+    };
+
+    /**
+     * Configuration of the synthetic package population.
+     */
+    static final class Config {
+        /** Number of packages */
+        int numPackages = 500;
+
+        /** Target SDKs to choose from */
+        int[] targetSdks = new int[]{Build.VERSION_CODES.LOLLIPOP_MR1, Build.VERSION_CODES.P,
+                Build.VERSION_CODES.Q};
+
+        /** Fraction of packages that share their uid with the previous package */
+        float sharedUidFraction = 0.1f;
+
+        /** Fraction of packages that are system packages */
+        float systemFraction = 0.3f;
+
+        /** Fraction of requested permissions that are granted */
+        float grantedFraction = 0.5f;
+
+        /** Fraction of requested permissions that have the user-set flag */
+        float userSetFraction = 0.2f;
+
+        /** Database version to upgrade from, {@code -1} for an upgrade from Android P */
+        int fromVersion = -1;
+
+        /** Seed for the random population */
+        long seed = 0;
+
+        /**
+         * Parse the arguments.
+         *
+         * <p>Options are {@code --packages <n>}, {@code --target-sdks <sdk,sdk,...>},
+         * {@code --shared-uid <fraction>}, {@code --system <fraction>},
+         * {@code --granted <fraction>}, {@code --user-set <fraction>},
+         * {@code --from-version <version>} and {@code --seed <seed>}.
+         *
+         * @param args The arguments
+         *
+         * @return The configuration
+         *
+         * @throws IllegalArgumentException if the arguments cannot be parsed
+         */
+        static @NonNull Config parse(@NonNull String[] args) {
+            Config config = new Config();
+
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--packages":
+                        config.numPackages = Integer.parseInt(value);
+                        break;
+                    case "--target-sdks":
+                        String[] sdks = value.split(",");
+                        config.targetSdks = new int[sdks.length];
+                        for (int sdkNum = 0; sdkNum < sdks.length; sdkNum++) {
+                            config.targetSdks[sdkNum] = Integer.parseInt(sdks[sdkNum]);
+                        }
+                        break;
+                    case "--shared-uid":
+                        config.sharedUidFraction = Float.parseFloat(value);
+                        break;
+                    case "--system":
+                        config.systemFraction = Float.parseFloat(value);
+                        break;
+                    case "--granted":
+                        config.grantedFraction = Float.parseFloat(value);
+                        break;
+                    case "--user-set":
+                        config.userSetFraction = Float.parseFloat(value);
+                        break;
+                    case "--from-version":
+                        config.fromVersion = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        config.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+
+            return config;
+        }
+    }
+
+    @Test
+    public void upgradeSyntheticPackages() {
+        String args = InstrumentationRegistry.getArguments().getString("args", "").trim();
+        StringWriter output = new StringWriter();
+
+        boolean isVerified = run(InstrumentationRegistry.getTargetContext(),
+                args.isEmpty() ? new String[0] : args.split("\\s+"), new PrintWriter(output));
+
+        Log.i(LOG_TAG, output.toString());
+        assertTrue(output.toString(), isVerified);
+    }
+
+    /**
+     * Run all upgrade steps against a synthetic population and print the results.
+     *
+     * @param context Used to resolve the real permission definitions
+     * @param args The {@link Config#parse arguments}
+     * @param writer Where to print the results to
+     *
+     * @return {@code true} iff the final state was verified
+     */
+    private static boolean run(@NonNull Context context, @NonNull String[] args,
+            @NonNull PrintWriter writer) {
+        Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IllegalArgumentException e) {
+            writer.println("Invalid arguments: " + e.getMessage());
+            return false;
+        }
+
+        FakePlatform platform = new FakePlatform(context, config);
+        writer.println("Upgrading " + config.numPackages + " synthetic packages from version "
+                + config.fromVersion);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        RuntimePermissionsUpgradeTable table = new RuntimePermissionsUpgradeTable(platform);
+        printStep(writer, "load", start, platform);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        RuntimePermissionsUpgradeController.whitelistAllSystemAppPermissions(table);
+        printStep(writer, "whitelist system apps", start, platform);
+
+        int version = config.fromVersion;
+        boolean sdkUpgradedFromP = version <= -1;
+        if (sdkUpgradedFromP) {
+            version = 0;
+        }
+
+        RuntimePermissionsUpgradeController.UpgradeStep[] steps =
+                RuntimePermissionsUpgradeController.UPGRADE_STEPS;
+        for (; version < steps.length; version++) {
+            start = SystemClock.elapsedRealtimeNanos();
+            steps[version].upgrade(table, sdkUpgradedFromP);
+            printStep(writer, version + " -> " + (version + 1), start, platform);
+        }
+
+        int numPendingChanges = table.getNumPendingChanges();
+        start = SystemClock.elapsedRealtimeNanos();
+        table.applyChanges();
+        printStep(writer, "apply " + numPendingChanges + " changes", start, platform);
+
+        List<String> violations = platform.verify(sdkUpgradedFromP, config.fromVersion);
+        if (violations.isEmpty()) {
+            writer.println("Final state verified");
+            return true;
+        }
+
+        writer.println(violations.size() + " violations:");
+        int numViolations = violations.size();
+        for (int i = 0; i < numViolations; i++) {
+            writer.println("  " + violations.get(i));
+        }
+        return false;
+    }
+
+    private static void printStep(@NonNull PrintWriter writer, @NonNull String step, long start,
+            @NonNull FakePlatform platform) {
+        long durationMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        writer.println("  " + step + ": " + durationMicros + " us, " + platform.mNumCalls
+                + " platform calls " + platform.mCallsPerMethod);
+
+        platform.mNumCalls = 0;
+        platform.mCallsPerMethod.clear();
+    }
+
+    /**
+     * In-memory {@link RuntimePermissionsUpgradeTable.Platform} holding a synthetic package
+     * population. Counts all calls.
+     */
+    private static final class FakePlatform implements RuntimePermissionsUpgradeTable.Platform {
+        private final @NonNull List<PackageInfo> mPackages = new ArrayList<>();
+        private final ArrayMap<String, PermissionInfo> mPermissionInfos = new ArrayMap<>();
+
+        /** uid -> granted permissions */
+        private final ArrayMap<Integer, ArraySet<String>> mGranted = new ArrayMap<>();
+        /** "package permission" -> flags */
+        private final ArrayMap<String, Integer> mFlags = new ArrayMap<>();
+        /** "uid op" -> mode */
+        private final ArrayMap<String, Integer> mAppOpModes = new ArrayMap<>();
+        /** package -> whitelisted permissions */
+        private final ArrayMap<String, ArraySet<String>> mWhitelisted = new ArrayMap<>();
+
+        /** State before the upgrade, used for verification */
+        private final ArrayMap<Integer, ArraySet<String>> mOriginalGranted = new ArrayMap<>();
+        private final ArrayMap<String, Integer> mOriginalFlags = new ArrayMap<>();
+
+        int mNumCalls;
+        final ArrayMap<String, Integer> mCallsPerMethod = new ArrayMap<>();
+
+        FakePlatform(@NonNull Context context, @NonNull Config config) {
+            PackageManager pm = context.getPackageManager();
+            for (String permission : PERMISSIONS) {
+                try {
+                    mPermissionInfos.put(permission, pm.getPermissionInfo(permission, 0));
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Permission does not exist on this device
+                }
+            }
+
+            Random random = new Random(config.seed);
+            int myUid = Process.myUid();
+            int userBase = myUid - UserHandle.getAppId(myUid);
+
+            int uid = userBase + Process.FIRST_APPLICATION_UID;
+            for (int pkgNum = 0; pkgNum < config.numPackages; pkgNum++) {
+                if (pkgNum == 0 || random.nextFloat() >= config.sharedUidFraction) {
+                    uid++;
+                }
+
+                PackageInfo pkg = new PackageInfo();
+                pkg.packageName = "com.android.permissioncontroller.benchmark.pkg" + pkgNum;
+                pkg.applicationInfo = new ApplicationInfo();
+                pkg.applicationInfo.packageName = pkg.packageName;
+                pkg.applicationInfo.uid = uid;
+                pkg.applicationInfo.targetSdkVersion =
+                        config.targetSdks[random.nextInt(config.targetSdks.length)];
+                pkg.applicationInfo.flags = ApplicationInfo.FLAG_INSTALLED;
+                if (random.nextFloat() < config.systemFraction) {
+                    pkg.applicationInfo.flags |= ApplicationInfo.FLAG_SYSTEM;
+                }
+
+                boolean isLegacy =
+                        pkg.applicationInfo.targetSdkVersion <= Build.VERSION_CODES.LOLLIPOP_MR1;
+
+                ArrayList<String> requested = new ArrayList<>();
+                for (String permission : PERMISSIONS) {
+                    if (mPermissionInfos.containsKey(permission) && random.nextBoolean()) {
+                        requested.add(permission);
+                    }
+                }
+                pkg.requestedPermissions = requested.toArray(new String[0]);
+                pkg.requestedPermissionsFlags = new int[requested.size()];
+
+                ArraySet<String> granted = mGranted.get(uid);
+                if (granted == null) {
+                    granted = new ArraySet<>();
+                    mGranted.put(uid, granted);
+                }
+
+                for (int permNum = 0; permNum < requested.size(); permNum++) {
+                    String permission = requested.get(permNum);
+                    String op = AppOpsManager.permissionToOp(permission);
+                    boolean isGranted = random.nextFloat() < config.grantedFraction;
+
+                    // Legacy apps always have the permission granted, access is controlled by the
+                    // app op.
+                    if (isLegacy || isGranted) {
+                        granted.add(permission);
+                    }
+
+                    if (op != null && !mAppOpModes.containsKey(uid + " " + op)) {
+                        mAppOpModes.put(uid + " " + op, isGranted ? (permission.equals(
+                                Manifest.permission.ACCESS_BACKGROUND_LOCATION)
+                                ? MODE_ALLOWED : MODE_FOREGROUND) : MODE_IGNORED);
+                    }
+
+                    if (random.nextFloat() < config.userSetFraction) {
+                        mFlags.put(pkg.packageName + " " + permission,
+                                PackageManager.FLAG_PERMISSION_USER_SET);
+                    }
+                }
+
+                mPackages.add(pkg);
+            }
+
+            // Fill in the grant state after all packages of a shared uid are known
+            int numPkgs = mPackages.size();
+            for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
+                PackageInfo pkg = mPackages.get(pkgNum);
+                ArraySet<String> granted = mGranted.get(pkg.applicationInfo.uid);
+
+                for (int permNum = 0; permNum < pkg.requestedPermissions.length; permNum++) {
+                    if (granted.contains(pkg.requestedPermissions[permNum])) {
+                        pkg.requestedPermissionsFlags[permNum] |=
+                                PackageInfo.REQUESTED_PERMISSION_GRANTED;
+                    }
+                }
+            }
+
+            int numUids = mGranted.size();
+            for (int i = 0; i < numUids; i++) {
+                mOriginalGranted.put(mGranted.keyAt(i), new ArraySet<>(mGranted.valueAt(i)));
+            }
+            mOriginalFlags.putAll(mFlags);
+        }
+
+        private void countCall(@NonNull String method) {
+            mNumCalls++;
+
+            Integer numCalls = mCallsPerMethod.get(method);
+            mCallsPerMethod.put(method, numCalls == null ? 1 : numCalls + 1);
+        }
+
+        private int getFlags(@NonNull String packageName, @NonNull String permission) {
+            Integer flags = mFlags.get(packageName + " " + permission);
+            return flags == null ? 0 : flags;
+        }
+
+        private int getMode(@NonNull String op, int uid) {
+            Integer mode = mAppOpModes.get(uid + " " + op);
+            return mode == null ? MODE_IGNORED : mode;
+        }
+
+        @Override
+        public @NonNull List<PackageInfo> getAllPackages() {
+            countCall("getInstalledPackages");
+            return mPackages;
+        }
+
+        @Override
+        public @Nullable PackageInfo getPackage(@NonNull String packageName) {
+            countCall("getPackageInfo");
+
+            int numPkgs = mPackages.size();
+            for (int i = 0; i < numPkgs; i++) {
+                PackageInfo pkg = mPackages.get(i);
+                if (pkg.packageName.equals(packageName)) {
+                    return pkg;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public @Nullable String[] getFactoryRequestedPermissions(@NonNull String packageName) {
+            countCall("getPackageInfo");
+            return null;
+        }
+
+        @Override
+        public @Nullable PermissionInfo getPermissionInfo(@NonNull String permission) {
+            countCall("getPermissionInfo");
+            return mPermissionInfos.get(permission);
+        }
+
+        @Override
+        public int getPermissionFlags(@NonNull String permission, @NonNull String packageName,
+                @NonNull UserHandle user) {
+            countCall("getPermissionFlags");
+            return getFlags(packageName, permission);
+        }
+
+        @Override
+        public int checkPermission(@NonNull String permission, int uid) {
+            countCall("checkPermission");
+            ArraySet<String> granted = mGranted.get(uid);
+            return granted != null && granted.contains(permission) ? PERMISSION_GRANTED
+                    : PERMISSION_DENIED;
+        }
+
+        @Override
+        public int getAppOpMode(@NonNull String op, int uid, @NonNull String packageName) {
+            countCall("unsafeCheckOpRaw");
+            return getMode(op, uid);
+        }
+
+        @Override
+        public void addWhitelistedRestrictedPermission(@NonNull String packageName,
+                @NonNull String permission) {
+            countCall("addWhitelistedRestrictedPermission");
+
+            ArraySet<String> whitelisted = mWhitelisted.get(packageName);
+            if (whitelisted == null) {
+                whitelisted = new ArraySet<>();
+                mWhitelisted.put(packageName, whitelisted);
+            }
+            whitelisted.add(permission);
+        }
+
+        @Override
+        public void grantRuntimePermission(@NonNull String packageName,
+                @NonNull String permission, @NonNull UserHandle user) {
+            countCall("grantRuntimePermission");
+
+            int numPkgs = mPackages.size();
+            for (int i = 0; i < numPkgs; i++) {
+                PackageInfo pkg = mPackages.get(i);
+                if (pkg.packageName.equals(packageName)) {
+                    mGranted.get(pkg.applicationInfo.uid).add(permission);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void updatePermissionFlags(@NonNull String permission,
+                @NonNull String packageName, int flagMask, int flagValues,
+                @NonNull UserHandle user) {
+            countCall("updatePermissionFlags");
+
+            int flags = getFlags(packageName, permission);
+            mFlags.put(packageName + " " + permission,
+                    (flags & ~flagMask) | (flagValues & flagMask));
+        }
+
+        @Override
+        public void setUidMode(@NonNull String op, int uid, int mode) {
+            countCall("setUidMode");
+            mAppOpModes.put(uid + " " + op, mode);
+        }
+
+        @Override
+        public void checkLocationAccessSoon() {
+            countCall("schedule");
+        }
+
+        @Override
+        public void logUpgradeResult(@NonNull String permission, int uid,
+                @NonNull String packageName) {
+            // Not an IPC
+        }
+
+        /**
+         * Verify the state after the upgrade.
+         *
+         * @param sdkUpgradedFromP If the upgrade started on Android P
+         * @param fromVersion The version the upgrade started from
+         *
+         * @return A description of every unexpected state found
+         */
+        @NonNull List<String> verify(boolean sdkUpgradedFromP, int fromVersion) {
+            ArrayList<String> violations = new ArrayList<>();
+
+            int numPkgs = mPackages.size();
+            for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
+                PackageInfo pkg = mPackages.get(pkgNum);
+                int uid = pkg.applicationInfo.uid;
+                boolean isSystem = (pkg.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+                ArraySet<String> whitelisted = mWhitelisted.get(pkg.packageName);
+
+                for (String permission : pkg.requestedPermissions) {
+                    PermissionInfo info = mPermissionInfos.get(permission);
+                    boolean isRestricted = (info.flags & (PermissionInfo.FLAG_HARD_RESTRICTED
+                            | PermissionInfo.FLAG_SOFT_RESTRICTED)) != 0;
+
+                    if (isSystem && isRestricted
+                            && (whitelisted == null || !whitelisted.contains(permission))) {
+                        violations.add(pkg.packageName + " " + permission + " not whitelisted");
+                    }
+                }
+
+                boolean wasFgLocationGranted = false;
+                for (String fgPermission : new String[]{Manifest.permission.ACCESS_FINE_LOCATION,
+                        Manifest.permission.ACCESS_COARSE_LOCATION}) {
+                    String op = AppOpsManager.permissionToOp(fgPermission);
+                    wasFgLocationGranted |= contains(pkg.requestedPermissions, fgPermission)
+                            && mOriginalGranted.get(uid).contains(fgPermission)
+                            && getMode(op, uid) != MODE_IGNORED;
+                }
+
+                String bgPermission = Manifest.permission.ACCESS_BACKGROUND_LOCATION;
+                if (sdkUpgradedFromP && wasFgLocationGranted
+                        && pkg.applicationInfo.targetSdkVersion > Build.VERSION_CODES.LOLLIPOP_MR1
+                        && contains(pkg.requestedPermissions, bgPermission)
+                        && !isUserSet(mOriginalFlags, pkg.packageName, bgPermission)
+                        && !mGranted.get(uid).contains(bgPermission)) {
+                    violations.add(pkg.packageName + " background location not expanded");
+                }
+
+                String mediaLocation = Manifest.permission.ACCESS_MEDIA_LOCATION;
+                if (fromVersion <= 7
+                        && pkg.applicationInfo.targetSdkVersion > Build.VERSION_CODES.LOLLIPOP_MR1
+                        && contains(pkg.requestedPermissions, mediaLocation)
+                        && mOriginalGranted.get(uid).contains(
+                                Manifest.permission.READ_EXTERNAL_STORAGE)
+                        && !isUserSet(mOriginalFlags, pkg.packageName, mediaLocation)
+                        && !mGranted.get(uid).contains(mediaLocation)) {
+                    violations.add(pkg.packageName + " media location not expanded");
+                }
+            }
+
+            return violations;
+        }
+
+        private static boolean isUserSet(@NonNull ArrayMap<String, Integer> flags,
+                @NonNull String packageName, @NonNull String permission) {
+            Integer permFlags = flags.get(packageName + " " + permission);
+            return permFlags != null
+                    && (permFlags & PackageManager.FLAG_PERMISSION_USER_SET) != 0;
+        }
+
+        private static boolean contains(@NonNull String[] array, @NonNull String value) {
+            for (String element : array) {
+                if (element.equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}